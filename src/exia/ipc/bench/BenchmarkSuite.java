@@ -0,0 +1,267 @@
+package exia.ipc.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import exia.ipc.bench.MicroBenchmark.Operation;
+import exia.ipc.bench.MicroBenchmark.Result;
+import exia.ipc.client.ChatClient;
+import exia.ipc.client.cypher.Base64Cypher;
+import exia.ipc.client.protocol.ChatClientProtocol;
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.LogOverflowPolicy;
+import exia.ipc.server.LogWriter;
+import exia.ipc.server.ServerEvent;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.TokenBucket;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Les mesures de rfrence des chemins les plus emprunts,  relancer avant et aprs chaque
+ * optimisation : le traitement d'une ligne par le serveur et par le client, le broadcast  10,
+ * 1000 et 10000 clients factices, le seau  jetons des messages, le chiffrement Base64 et
+ * l'criture d'un log.
+ *
+ * Chaque mesure donne le temps par opration, le dbit et les octets allous par opration.
+ * Avec un nom de fichier, les rsultats y sont aussi crits en CSV, pour comparer deux sries.
+ * Un filtre ne lance que les mesures dont le nom le contient.
+ *
+ * Usage : BenchmarkSuite [-csv fichier] [filtre]
+ */
+public class BenchmarkSuite {
+
+	/**
+	 * Les lignes envoyes par un client, dans les proportions d'une discussion.
+	 */
+	private static final String[] CLIENT_LINES = {
+		"MSG Bonjour tout le monde, comment allez-vous ?",
+		"MSG Trs bien, et toi ?",
+		"DM alice Tu viens ce soir ?",
+		"ROOMMSG general Runion  14h",
+	};
+
+	/**
+	 * Les lignes envoyes par le serveur, dans les mmes proportions. Chaque arrive est suivie
+	 * d'un dpart, pour que la liste des connects du modle ne grossisse pas.
+	 */
+	private static final String[] SERVER_LINES = {
+		"MSG alice 127.0.0.1 1500000000000 Bonjour tout le monde, comment allez-vous ?",
+		"MSG bob 127.0.0.1 1500000000000 Trs bien, et toi ?",
+		"DM bob 127.0.0.1 1500000000000 Tu viens ce soir ?",
+		"ROOMMSG carol 127.0.0.1 1500000000000 general Runion  14h",
+		"CONNECTED dave 127.0.0.1",
+		"DISCONNECTED dave 127.0.0.1",
+	};
+
+	/**
+	 * Le texte chiffr et dchiffr.
+	 */
+	private static final String PLAIN_TEXT = "Bonjour  tous, ceci est un message de test d'une longueur habituelle.";
+
+	/**
+	 * Les tailles du broadcast.
+	 */
+	private static final int[] FANOUTS = { 10, 1000, 10000 };
+
+	private static final List<Result> results = new ArrayList<>();
+
+	private static String filter;
+
+	public static void main(String[] args) throws IOException {
+
+		String csv = null;
+		for (int i = 0; i < args.length; i++) {
+			if ("-csv".equals(args[i]) && i + 1 < args.length) csv = args[++i];
+			else filter = args[i];
+		}
+
+		// Les logs du serveur partent dans un flux qui ne fait rien : on garde la vraie sortie
+		// pour les rsultats
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		LogWriter.getInstance().setOverflowPolicy(LogOverflowPolicy.WAIT);
+
+		try {
+			serverProtocol(stdout);
+			clientProtocol(stdout);
+			for (int fanout : FANOUTS) {
+				broadcast(stdout, fanout);
+			}
+			rateLimit(stdout);
+			cypher(stdout);
+			log(stdout);
+		}
+		finally {
+			System.setOut(stdout);
+		}
+
+		if (csv != null) {
+			writeCsv(csv);
+			stdout.println("Rsultats crits dans " + csv);
+		}
+
+	}
+
+	/**
+	 * ChatServerProtocol.processClientInput : dcoupage de la ligne et appel de l'observer.
+	 * Le client factice ne propage rien, on ne mesure que le protocole.
+	 */
+	private static void serverProtocol(PrintStream out) {
+		ChatServer server = new ChatServer(0, new ChatServerProtocol(), ServerMode.NIO);
+		final ChatServerProtocol protocol = new ChatServerProtocol();
+		protocol.setServer(server);
+		final MockClient client = new MockClient(server, protocol, 1) {
+			@Override
+			public void notifyMessageReceived(ClientSocketThread client, String log) {
+			}
+			@Override
+			public void notifyDirectMessageReceived(ClientSocketThread client, String recipient, String log) {
+			}
+			@Override
+			public void notifyRoomMessageReceived(ClientSocketThread client, String room, String log) {
+			}
+		};
+		run(out, "ChatServerProtocol.processClientInput", new Operation() {
+			int i;
+			public Object run() {
+				return protocol.processClientInput(client, CLIENT_LINES[i++ % CLIENT_LINES.length]);
+			}
+		});
+	}
+
+	/**
+	 * ChatClientProtocol.processServerInput : dcoupage, mise  jour du modle et texte  afficher.
+	 * Le client n'a pas de fentre.
+	 */
+	private static void clientProtocol(PrintStream out) {
+		ChatClient client = new ChatClient("bench");
+		final ChatClientProtocol protocol = (ChatClientProtocol) client.getProtocol();
+		run(out, "ChatClientProtocol.processServerInput", new Operation() {
+			int i;
+			public Object run() {
+				return protocol.processServerInput(SERVER_LINES[i++ % SERVER_LINES.length]);
+			}
+		});
+	}
+
+	/**
+	 * ChatServer.broadcast  des clients factices : encodage et mise en file pour chacun.
+	 */
+	private static void broadcast(PrintStream out, int fanout) {
+		final ChatServer server = new ChatServer(0, new ChatServerProtocol(), ServerMode.NIO);
+		ChatServerProtocol protocol = new ChatServerProtocol();
+		protocol.setServer(server);
+		final MockClient[] clients = new MockClient[fanout];
+		for (int i = 0; i < fanout; i++) {
+			clients[i] = new MockClient(server, protocol, i);
+			server.addClient(clients[i]);
+		}
+		run(out, "ChatServer.broadcast (" + fanout + " clients)", new Operation() {
+			int i;
+			public Object run() {
+				server.broadcast(ServerEvent.message(clients[i++ % clients.length], "Bonjour"));
+				return i;
+			}
+		});
+	}
+
+	/**
+	 * TokenBucket.tryAcquire, appel pour chaque message reu : un seau qui accepte tout, puis
+	 * un seau vide qui refuse tout. Aucun des deux ne doit allouer.
+	 */
+	private static void rateLimit(PrintStream out) {
+		final TokenBucket open = new TokenBucket(Integer.MAX_VALUE / 1000, 1e9);
+		run(out, "TokenBucket.tryAcquire (accept)", new Operation() {
+			public Object run() {
+				return open.tryAcquire() ? Boolean.TRUE : Boolean.FALSE;
+			}
+		});
+		final TokenBucket empty = new TokenBucket(1, 1e-3);
+		empty.tryAcquire();
+		run(out, "TokenBucket.tryAcquire (refus)", new Operation() {
+			public Object run() {
+				return empty.tryAcquire() ? Boolean.TRUE : Boolean.FALSE;
+			}
+		});
+	}
+
+	/**
+	 * Base64Cypher, dans les deux sens. Il s'appuie sur javax.xml.bind, absent des JVM depuis
+	 * Java 11 : la mesure est alors saute.
+	 */
+	private static void cypher(PrintStream out) {
+		final Base64Cypher cypher = new Base64Cypher();
+		final String encoded;
+		try {
+			encoded = cypher.encode(PLAIN_TEXT);
+		}
+		catch (NoClassDefFoundError e) {
+			out.println(String.format("%-44s indisponible sur cette JVM (%s)", "Base64Cypher", e.getMessage()));
+			return;
+		}
+		run(out, "Base64Cypher.encode", new Operation() {
+			public Object run() {
+				return cypher.encode(PLAIN_TEXT);
+			}
+		});
+		run(out, "Base64Cypher.decode", new Operation() {
+			public Object run() {
+				return cypher.decode(encoded);
+			}
+		});
+	}
+
+	/**
+	 * LogWriter.writeLog, avec un modle et des paramtres. L'anneau attend quand il est plein :
+	 * on mesure le dbit que le thread d'criture peut tenir, pas le cot d'un log perdu.
+	 */
+	private static void log(PrintStream out) {
+		final String user = new StringBuilder("alice").toString();
+		final String address = new StringBuilder("127.0.0.1").toString();
+		run(out, "LogWriter.writeLog", new Operation() {
+			public Object run() {
+				LogWriter.getInstance().writeLog("Message de {} ({})", user, address);
+				return null;
+			}
+		});
+		LogWriter.getInstance().flush();
+	}
+
+	/**
+	 * Lance une mesure si elle passe le filtre, et affiche son rsultat sur la vraie sortie.
+	 */
+	private static void run(PrintStream out, String name, Operation op) {
+		if (filter != null && !name.contains(filter)) return;
+		Result result = MicroBenchmark.run(name, op);
+		out.println(result);
+		results.add(result);
+	}
+
+	/**
+	 * Ecrit les rsultats en CSV : nom, ns/op, ops/s, octets/op.
+	 */
+	private static void writeCsv(String file) throws IOException {
+		try (PrintWriter csv = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")))) {
+			csv.println("benchmark,ns_per_op,ops_per_s,bytes_per_op");
+			for (Result result : results) {
+				csv.println(String.format(Locale.ROOT, "\"%s\",%.2f,%.0f,%.2f", result.name, result.nanosPerOp,
+						result.opsPerSecond(), result.bytesPerOp));
+			}
+		}
+	}
+
+}
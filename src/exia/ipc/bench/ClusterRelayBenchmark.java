@@ -0,0 +1,179 @@
+package exia.ipc.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import exia.ipc.client.ChatEngine;
+import exia.ipc.client.protocol.ChatClientProtocol;
+import exia.ipc.client.protocol.IClientProtocol;
+import exia.ipc.client.protocol.ServerFrame;
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.cluster.ClusterNode;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Lance plusieurs serveurs relis en cluster sur la boucle locale, avec des clients sur chacun.
+ *
+ * On vrifie d'abord que chaque client voit la mme liste de connects, quel que soit son
+ * serveur, puis on fait parler des clients de tous les serveurs et on mesure le temps qu'il faut
+ * pour que chaque client ait reu tous les messages. On compare enfin le nombre d'vnements
+ * changs entre les noeuds au nombre de livraisons : chaque message ne traverse chaque liaison
+ * qu'une fois, quel que soit le nombre de destinataires.
+ *
+ * Usage : ClusterRelayBenchmark [noeuds] [clients par noeud] [messages] [port]
+ */
+public class ClusterRelayBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int perNode = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		final int messages = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+		int portNumber = args.length > 3 ? Integer.parseInt(args[3]) : 5200;
+		final int total = nodes * perNode;
+
+		// On coupe les logs des serveurs
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		// Les serveurs, chacun reli aux prcdents : le maillage est complet
+		ChatServer[] servers = new ChatServer[nodes];
+		ClusterNode[] cluster = new ClusterNode[nodes];
+		for (int n = 0; n < nodes; n++) {
+			servers[n] = new ChatServer(portNumber + n, new ChatServerProtocol(), ServerMode.NIO);
+			servers[n].setOutboundQueueCapacity(messages + 1024);
+			cluster[n] = new ClusterNode(servers[n], "noeud" + n, portNumber + 100 + n);
+			for (int p = 0; p < n; p++) {
+				cluster[n].addPeer("127.0.0.1", portNumber + 100 + p);
+			}
+			servers[n].start();
+			cluster[n].start();
+		}
+		for (int n = 0; n < nodes; n++) {
+			while (cluster[n].getConnectedPeers().size() < nodes - 1) {
+				Thread.sleep(10);
+			}
+		}
+
+		// Les clients, rpartis sur tous les serveurs
+		final CountDownLatch roster = new CountDownLatch(total);
+		final CountDownLatch done = new CountDownLatch(total);
+		List<Socket> sockets = new ArrayList<>();
+		List<IClientProtocol> senders = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < total; i++) {
+			final String userName = "bench" + i;
+			final IClientProtocol protocol = new ChatClientProtocol();
+			protocol.setEngine(new ChatEngine(userName));
+			Socket socket = new Socket("127.0.0.1", portNumber + i % nodes);
+			sockets.add(socket);
+			protocol.open(socket);
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					// Les noms connus du client, lui compris. Les clients qui ne se sont pas encore
+					// prsents apparaissent sous le nom Anonymous dans la liste : on les ignore.
+					Set<String> users = new HashSet<>();
+					boolean complete = false;
+					int received = 0;
+					try {
+						ServerFrame frame;
+						while ((frame = protocol.readServerFrame()) != null) {
+							switch (frame.getType()) {
+							case CONNECTED :
+								users.add(frame.getUser());
+								break;
+							case DISCONNECTED :
+								users.remove(frame.getUser());
+								break;
+							case ROSTER :
+								for (int j = 0; j < frame.getRosterSize(); j++) {
+									users.add(frame.getRosterUser(j));
+								}
+								break;
+							case PRESENCE :
+								for (int j = 0; j < frame.getPresenceSize(); j++) {
+									if (frame.isPresenceJoined(j)) users.add(frame.getPresenceUser(j));
+									else users.remove(frame.getPresenceUser(j));
+								}
+								break;
+							case MSG :
+								if (++received == messages) done.countDown();
+								break;
+							default :
+								break;
+							}
+							users.remove("Anonymous");
+							if (!complete && users.size() == total) {
+								complete = true;
+								roster.countDown();
+							}
+						}
+					}
+					catch (IOException e) {
+						// Le socket a t ferm  la fin de la mesure
+					}
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+			protocol.sendHello(userName);
+			senders.add(protocol);
+		}
+		boolean unified = roster.await(30, TimeUnit.SECONDS);
+		long joined = System.nanoTime() - start;
+
+		// Les clients de tous les serveurs parlent  tour de rle
+		long sentBefore = 0;
+		for (ClusterNode node : cluster) sentBefore += node.getEventsSent();
+		start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			senders.get(i % total).sendMessage("Bonjour " + i);
+		}
+		boolean finished = done.await(120, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		// Le trafic entre les noeuds
+		long sent = -sentBefore, batches = 0, duplicates = 0;
+		for (ClusterNode node : cluster) {
+			sent += node.getEventsSent();
+			batches += node.getBatchesSent();
+			duplicates += node.getDuplicates();
+		}
+
+		// On libre tout
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		for (ChatServer server : servers) {
+			server.interrupt();
+		}
+		System.setOut(stdout);
+
+		System.out.println(String.format("noeuds=%s clients=%s messages=%s", nodes, total, messages));
+		System.out.println(String.format("liste unifie=%s en %.0fms", unified, joined / 1e6));
+		if (!finished) {
+			System.out.println("incomplet aprs 120s");
+			System.exit(1);
+		}
+		System.out.println(String.format("livraisons/s=%.0f dure=%.0fms", (double) messages * total / (elapsed / 1e9), elapsed / 1e6));
+		System.out.println(String.format("livraisons=%s vnements entre noeuds=%s (%.2f par message) lots=%s doublons=%s",
+				(long) messages * total, sent, sent / (double) messages, batches, duplicates));
+		System.exit(0);
+
+	}
+
+}
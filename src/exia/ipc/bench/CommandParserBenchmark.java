@@ -0,0 +1,85 @@
+package exia.ipc.bench;
+
+import exia.ipc.bench.MicroBenchmark.Operation;
+import exia.ipc.server.protocol.CommandTokenizer;
+
+/**
+ * Compare l'ancien dcoupage des commandes de ChatServerProtocol (trim, split avec une regex,
+ * toUpperCase) au CommandTokenizer.
+ */
+public class CommandParserBenchmark {
+
+	private static final String[] LINES = {
+		"MSG Bonjour tout le monde, comment allez-vous ?",
+		"  msg   un message avec des espaces   ",
+		"HELLO alice",
+	};
+
+	public static void main(String[] args) {
+
+		MicroBenchmark.run("split + toUpperCase (ancien)", new Operation() {
+			int i;
+			public Object run() {
+				return legacy(LINES[i++ % LINES.length]);
+			}
+		});
+
+		MicroBenchmark.run("CommandTokenizer", new Operation() {
+			int i;
+			public Object run() {
+				return tokenizer(LINES[i++ % LINES.length]);
+			}
+		});
+
+		MicroBenchmark.run("CommandTokenizer (verbe seul)", new Operation() {
+			int i;
+			public Object run() {
+				return verbOnly(LINES[i++ % LINES.length]);
+			}
+		});
+
+	}
+
+	/**
+	 * L'ancien code de ChatServerProtocol.processClientInput().
+	 */
+	static String legacy(String inputLine) {
+		String[] tokens = inputLine.trim().split("\\s+", 2);
+		if (tokens.length < 2) return null;
+		switch (tokens[0].toUpperCase()) {
+		case "HELLO" :
+		case "MSG" :
+			return tokens[1];
+		default :
+			return null;
+		}
+	}
+
+	/**
+	 * Le code actuel de ChatServerProtocol.processClientInput().
+	 */
+	static String tokenizer(String inputLine) {
+		int verbStart = CommandTokenizer.skipSpaces(inputLine, 0);
+		int verbEnd = CommandTokenizer.endOfToken(inputLine, verbStart);
+		int argStart = CommandTokenizer.skipSpaces(inputLine, verbEnd);
+		int argEnd = CommandTokenizer.trimEnd(inputLine, argStart);
+		if (argStart >= argEnd) return null;
+		if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "HELLO")
+				|| CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "MSG")) {
+			return inputLine.substring(argStart, argEnd);
+		}
+		return null;
+	}
+
+	/**
+	 * Uniquement la reconnaissance du verbe, sans extraire l'argument : aucune allocation.
+	 */
+	static Integer verbOnly(String inputLine) {
+		int verbStart = CommandTokenizer.skipSpaces(inputLine, 0);
+		int verbEnd = CommandTokenizer.endOfToken(inputLine, verbStart);
+		if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "HELLO")) return 1;
+		if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "MSG")) return 2;
+		return 0;
+	}
+
+}
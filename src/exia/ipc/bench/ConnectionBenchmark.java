@@ -0,0 +1,81 @@
+package exia.ipc.bench;
+
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.metrics.ServerMetrics;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Mesure le cot d'une connexion selon le mode d'excution du serveur : nombre de connexions
+ * acceptes par seconde, mmoire et threads consomms par connexion.
+ *
+ * Avec un nombre maximal de connexions infrieur au nombre de clients, on simule une vague de
+ * reconnexions : les connexions en trop sont refuses, et la mmoire et les threads doivent
+ * rester ceux des connexions admises.
+ *
+ * Usage : ConnectionBenchmark [BLOCKING|VIRTUAL_THREADS|NIO|MULTI_REACTOR] [nombre de clients] [port] [connexions max]
+ */
+public class ConnectionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0]) : ServerMode.BLOCKING;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int portNumber = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+		int maxConnections = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		// On dmarre le serveur
+		ChatServer server = new ChatServer(portNumber, new ChatServerProtocol(), mode);
+		server.setMaxConnections(maxConnections);
+		server.start();
+		ServerMetrics metrics = server.getMetrics();
+
+		// Etat de rfrence
+		long heapBefore = usedHeap();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		// On ouvre toutes les connexions, et on attend que le serveur les ait enregistres ou refuses
+		List<Socket> sockets = new ArrayList<>(count);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			sockets.add(new Socket("127.0.0.1", portNumber));
+		}
+		while (server.getClientCount() + metrics.rejectedFull.get() < count) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		int admitted = server.getClientCount();
+
+		// Mmoire et threads aprs les connexions
+		long heapAfter = usedHeap();
+		int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		System.out.println(String.format("mode=%s clients=%s admis=%s refuss=%s", mode, count, admitted, count - admitted));
+		System.out.println(String.format("connexions/s=%.0f", count / (elapsed / 1e9)));
+		System.out.println(String.format("heap/connexion admise=%s octets", (heapAfter - heapBefore) / Math.max(1, admitted)));
+		System.out.println(String.format("threads=%s (+%s)", threadsAfter, threadsAfter - threadsBefore));
+
+		// On libre tout
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.interrupt();
+
+	}
+
+	/**
+	 * Mmoire du tas utilise aprs un passage du ramasse-miettes.
+	 */
+	private static long usedHeap() throws InterruptedException {
+		System.gc();
+		Thread.sleep(100);
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
@@ -0,0 +1,61 @@
+package exia.ipc.bench;
+
+import exia.ipc.bench.MicroBenchmark.Operation;
+import exia.ipc.server.ClientRegistry;
+import exia.ipc.server.ClientSocketThread;
+
+/**
+ * Mesure la recherche du destinataire d'un message priv selon le nombre de clients connects :
+ * l'index des noms du ClientRegistry, et un parcours de la liste des clients comme on l'aurait
+ * fait avec l'ancienne clientList.
+ *
+ * Usage : DirectMessageBenchmark [clients...]
+ */
+public class DirectMessageBenchmark {
+
+	public static void main(String[] args) {
+
+		int[] sizes = { 1000, 100000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		for (int size : sizes) {
+
+			final ClientRegistry registry = new ClientRegistry();
+			final String[] names = new String[size];
+			for (int i = 0; i < size; i++) {
+				names[i] = "user" + i;
+				registry.add(new MockClient(names[i], i));
+			}
+
+			MicroBenchmark.run("index des noms (" + size + " clients)", new Operation() {
+				int i;
+				public Object run() {
+					return registry.findUser(names[i = (i + 7919) % names.length]);
+				}
+			});
+
+			MicroBenchmark.run("parcours de la liste (" + size + " clients)", new Operation() {
+				int i;
+				public Object run() {
+					return linear(registry, names[i = (i + 7919) % names.length]);
+				}
+			});
+
+		}
+
+	}
+
+	/**
+	 * La recherche sans index.
+	 */
+	static ClientSocketThread linear(Iterable<ClientSocketThread> clients, String userName) {
+		for (ClientSocketThread client : clients) {
+			if (client.getUserName().equals(userName)) return client;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,90 @@
+package exia.ipc.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import exia.ipc.client.ChatEngine;
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Mesure ce que cote un client sans interface (ChatEngine) dans une JVM qui en ouvre des
+ * centaines, comme un robot ou une passerelle : le temps de connexion, et la mmoire du tas
+ * par client, avec et sans la liste des utilisateurs connects.
+ *
+ * Le serveur tourne dans la mme JVM, en mode NIO, pour ne compter que ses clients  part.
+ *
+ * Usage : EngineFootprintBenchmark [clients] [taille de pile en Ko, 0 pour celle de la JVM]
+ */
+public class EngineFootprintBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		long stackSize = args.length > 1 ? Long.parseLong(args[1]) * 1024 : 256 * 1024;
+		int portNumber = 5000;
+
+		// On coupe les logs du serveur
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		ChatServer server = new ChatServer(portNumber, new ChatServerProtocol(), ServerMode.NIO);
+		server.start();
+
+		for (boolean trackUsers : new boolean[] { false, true }) {
+
+			long heapBefore = usedHeap();
+			List<ChatEngine> engines = new ArrayList<>(count);
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				ChatEngine engine = new ChatEngine("bot" + i);
+				engine.setTrackUsers(trackUsers);
+				engine.setStackSize(stackSize);
+				engine.connect("127.0.0.1", portNumber);
+				engines.add(engine);
+			}
+			long elapsed = System.nanoTime() - start;
+
+			// On attend que chacun ait reu la liste des connects
+			while (server.getClientCount() < count) {
+				Thread.sleep(10);
+			}
+			Thread.sleep(1000);
+			long heapAfter = usedHeap();
+
+			stdout.println(String.format("clients=%s liste des utilisateurs=%s connexion=%.2f ms/client heap=%s octets/client",
+					count, trackUsers ? "oui" : "non", elapsed / 1e6 / count, (heapAfter - heapBefore) / count));
+
+			for (ChatEngine engine : engines) {
+				engine.disconnect();
+			}
+			while (server.getClientCount() > 0) {
+				Thread.sleep(10);
+			}
+
+		}
+
+		server.interrupt();
+		System.setOut(stdout);
+
+	}
+
+	/**
+	 * Mmoire du tas utilise aprs un passage du ramasse-miettes.
+	 */
+	private static long usedHeap() throws InterruptedException {
+		System.gc();
+		Thread.sleep(100);
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
@@ -0,0 +1,424 @@
+package exia.ipc.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Locale;
+
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.metrics.Histogram;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Un gnrateur de charge sans interface : il ouvre des milliers de connexions au serveur, se
+ * prsente avec HELLO, puis envoie des MSG au dbit et  la taille demands.
+ *
+ * Toutes les connexions sont tenues par un seul thread et un slecteur, comme la boucle du
+ * serveur en mode NIO : on peut simuler bien plus de clients que de threads. Les envois sont
+ * rpartis  tour de rle entre les clients, au rythme du dbit total demand.
+ *
+ * La latence de bout en bout est tire de l'horodatage que le serveur met dans chaque MSG : c'est
+ * le temps entre l'arrive du message au serveur et sa rception par chaque destinataire. Il est
+ * en millisecondes, et suppose que le serveur et le gnrateur partagent la mme horloge (mme
+ * machine, ou horloges synchronises).
+ *
+ * Le rapport est crit en JSON, sur la sortie ou dans un fichier, pour comparer deux sries.
+ *
+ * Usage : LoadGenerator [-host 127.0.0.1] [-port 5000] [-clients 1000] [-rate 100] [-size 64]
+ *                       [-duration 30] [-drain 2] [-out fichier.json] [-server BLOCKING|NIO|...]
+ *
+ * -rate est le nombre total de messages envoys par seconde, tous clients confondus. -size est
+ * la longueur du texte d'un message, en octets. -server lance un serveur dans la mme JVM.
+ */
+public class LoadGenerator {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Taille initiale du buffer de lecture d'un client.
+	 */
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	/**
+	 * Taille maximale d'une ligne reue. Une liste de connects peut tre longue.
+	 */
+	private static final int MAX_LINE_LENGTH = 1 << 20;
+
+	private String host = "127.0.0.1";
+
+	private int port = 5000;
+
+	private int clients = 1000;
+
+	private double rate = 100;
+
+	private int size = 64;
+
+	private int duration = 30;
+
+	private int drain = 2;
+
+	private String out;
+
+	private ServerMode serverMode;
+
+	/**
+	 * Les connexions ouvertes.
+	 */
+	private Connection[] connections;
+
+	private Selector selector;
+
+	/**
+	 * La ligne MSG envoye par tous les clients, encode une fois.
+	 */
+	private byte[] message;
+
+	/**
+	 * La rponse au battement de coeur du serveur, sans laquelle un client qui envoie peu serait
+	 * dconnect.
+	 */
+	private final byte[] pong = "PONG\n".getBytes(CHARSET);
+
+	/**
+	 * La latence de chaque message reu, en nanosecondes.
+	 */
+	private final Histogram latency = new Histogram();
+
+	private long sent;
+
+	private long received;
+
+	/**
+	 * Les envois sauts parce que le socket du client n'avait pas fini d'crire le prcdent.
+	 */
+	private long skipped;
+
+	private long bytesSent;
+
+	private long bytesReceived;
+
+	private int errors;
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			generator.set(args[i], args[i + 1]);
+		}
+		generator.run();
+	}
+
+	/**
+	 * Lit une option de la ligne de commande.
+	 */
+	private void set(String option, String value) {
+		switch (option) {
+		case "-host" : host = value; break;
+		case "-port" : port = Integer.parseInt(value); break;
+		case "-clients" : clients = Integer.parseInt(value); break;
+		case "-rate" : rate = Double.parseDouble(value); break;
+		case "-size" : size = Integer.parseInt(value); break;
+		case "-duration" : duration = Integer.parseInt(value); break;
+		case "-drain" : drain = Integer.parseInt(value); break;
+		case "-out" : out = value; break;
+		case "-server" : serverMode = ServerMode.valueOf(value); break;
+		default : throw new IllegalArgumentException("Option inconnue : " + option);
+		}
+	}
+
+	private void run() throws Exception {
+
+		// Un serveur dans la mme JVM, si on l'a demand
+		ChatServer server = null;
+		if (serverMode != null) {
+			server = new ChatServer(port, new ChatServerProtocol(), serverMode);
+			server.start();
+		}
+
+		// Le message, de la taille demande
+		StringBuilder line = new StringBuilder("MSG ");
+		for (int i = 0; i < size; i++) line.append((char) ('a' + i % 26));
+		message = line.append('\n').toString().getBytes(CHARSET);
+
+		// On ouvre les connexions, et chaque client se prsente
+		selector = Selector.open();
+		connections = new Connection[clients];
+		long connectStart = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			connections[i] = connect(i);
+			// On lit au fur et  mesure les annonces des connexions prcdentes, pour que le
+			// serveur ne trouve pas nos sockets pleins
+			selector.selectNow();
+			process();
+		}
+		long connectNanos = System.nanoTime() - connectStart;
+		System.err.println(String.format("%s connexions ouvertes en %.1f s", clients, connectNanos / 1e9));
+
+		// On laisse passer la liste des connects et les annonces, puis on envoie
+		loop(System.nanoTime() + 1000000000L, false);
+		sent = received = skipped = bytesSent = bytesReceived = 0;
+		long start = System.nanoTime();
+		loop(start + duration * 1000000000L, true);
+		long elapsed = System.nanoTime() - start;
+
+		// On attend les derniers messages en route
+		loop(System.nanoTime() + drain * 1000000000L, false);
+
+		for (Connection connection : connections) {
+			connection.channel.close();
+		}
+		selector.close();
+		if (server != null) server.interrupt();
+
+		report(elapsed, connectNanos);
+
+	}
+
+	/**
+	 * Ouvre une connexion et envoie HELLO.
+	 */
+	private Connection connect(int id) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		channel.configureBlocking(false);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		send(connection, ByteBuffer.wrap(("HELLO load" + id + "\n").getBytes(CHARSET)));
+		return connection;
+	}
+
+	/**
+	 * Lit les sockets jusqu' l'chance, et envoie les messages au rythme demand.
+	 *
+	 * @param deadline L'chance, en System.nanoTime().
+	 * @param sending Indique s'il faut envoyer des messages.
+	 */
+	private void loop(long deadline, boolean sending) throws IOException {
+		long start = System.nanoTime();
+		long due = 0;
+		int next = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= deadline) return;
+
+			// Les messages dus depuis le dbut, moins ceux dj partis
+			if (sending) {
+				long target = (long) ((now - start) / 1e9 * rate);
+				for (; due < target; due++) {
+					Connection connection = connections[next];
+					next = (next + 1) % connections.length;
+					if (connection.pending != null) {
+						skipped++;
+						continue;
+					}
+					send(connection, ByteBuffer.wrap(message));
+					sent++;
+				}
+			}
+
+			// On attend au plus jusqu'au prochain envoi
+			long wait = sending ? Math.max(1, (long) (1000 / rate)) : 10;
+			selector.select(Math.min(wait, Math.max(1, (deadline - now) / 1000000)));
+			process();
+		}
+	}
+
+	/**
+	 * Traite les sockets prts.
+	 */
+	private void process() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			Connection connection = (Connection) key.attachment();
+			if (!key.isValid()) continue;
+			if (key.isWritable()) send(connection, connection.pending);
+			if (key.isValid() && key.isReadable()) read(connection);
+		}
+	}
+
+	/**
+	 * Ecrit ce que le socket accepte. Le reste est gard, et crit quand le socket est prt.
+	 */
+	private void send(Connection connection, ByteBuffer data) {
+		try {
+			bytesSent += connection.channel.write(data);
+		}
+		catch (IOException e) {
+			fail(connection);
+			return;
+		}
+		if (data.hasRemaining()) {
+			connection.pending = data;
+			connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		else if (connection.pending != null) {
+			connection.pending = null;
+			connection.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Lit ce qui est disponible, et traite les lignes compltes.
+	 */
+	private void read(Connection connection) {
+		ByteBuffer buffer = connection.readBuffer;
+		int count;
+		try {
+			count = connection.channel.read(buffer);
+		}
+		catch (IOException e) {
+			count = -1;
+		}
+		if (count < 0) {
+			fail(connection);
+			return;
+		}
+		bytesReceived += count;
+
+		// On dcoupe les lignes sans fabriquer de String
+		buffer.flip();
+		int start = 0;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < buffer.limit(); i++) {
+			if (buffer.get(i) != '\n') continue;
+			line(connection, buffer, start, i, now);
+			start = i + 1;
+		}
+		buffer.position(start);
+		buffer.compact();
+
+		// Une ligne plus longue que le buffer
+		if (!buffer.hasRemaining()) {
+			if (buffer.capacity() >= MAX_LINE_LENGTH) {
+				fail(connection);
+				return;
+			}
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			larger.put(buffer);
+			connection.readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Traite une ligne reue : seuls les MSG sont compts. MSG nom adresse horodatage texte.
+	 * On rpond aux PING, sauf si un envoi est dj en cours : il suffit au serveur.
+	 */
+	private void line(Connection connection, ByteBuffer buffer, int start, int end, long now) {
+		if (end - start == 4 && buffer.get(start) == 'P' && buffer.get(start + 1) == 'I' && buffer.get(start + 2) == 'N'
+				&& buffer.get(start + 3) == 'G') {
+			if (connection.pending == null) send(connection, ByteBuffer.wrap(pong));
+			return;
+		}
+		if (end - start < 4 || buffer.get(start) != 'M' || buffer.get(start + 1) != 'S' || buffer.get(start + 2) != 'G'
+				|| buffer.get(start + 3) != ' ') return;
+		// On saute le nom et l'adresse
+		int i = start + 4;
+		for (int spaces = 0; i < end && spaces < 2; i++) {
+			if (buffer.get(i) == ' ') spaces++;
+		}
+		long timestamp = 0;
+		for (; i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9'; i++) {
+			timestamp = timestamp * 10 + (buffer.get(i) - '0');
+		}
+		received++;
+		latency.record((now - timestamp) * 1000000L);
+	}
+
+	/**
+	 * Une connexion a t coupe : on la compte, et on ne la lit plus.
+	 */
+	private void fail(Connection connection) {
+		if (connection.key.isValid()) {
+			errors++;
+			connection.key.cancel();
+		}
+		try {
+			connection.channel.close();
+		}
+		catch (IOException e) {
+			// On ne peut rien faire de plus
+		}
+	}
+
+	/**
+	 * Ecrit le rapport en JSON.
+	 */
+	private void report(long elapsed, long connectNanos) throws IOException {
+		Histogram.Snapshot snapshot = latency.snapshot();
+		double seconds = elapsed / 1e9;
+		StringBuilder json = new StringBuilder(512);
+		json.append("{\n");
+		field(json, "host", '"' + host + '"');
+		field(json, "port", port);
+		field(json, "server", serverMode == null ? "null" : '"' + serverMode.name() + '"');
+		field(json, "clients", clients);
+		field(json, "rate", rate);
+		field(json, "size", size);
+		field(json, "duration_s", seconds);
+		field(json, "connect_s", connectNanos / 1e9);
+		field(json, "sent", sent);
+		field(json, "skipped", skipped);
+		field(json, "received", received);
+		// Chaque message est diffus  tous les clients, l'expditeur compris
+		field(json, "expected", sent * (clients - errors));
+		field(json, "errors", errors);
+		field(json, "sent_per_s", sent / seconds);
+		field(json, "received_per_s", received / seconds);
+		field(json, "bytes_sent", bytesSent);
+		field(json, "bytes_received", bytesReceived);
+		json.append("  \"latency_ms\": {");
+		json.append(String.format(Locale.ROOT, "\"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d, \"mean\": %.3f",
+				snapshot.percentile(0.5) / 1000000, snapshot.percentile(0.9) / 1000000, snapshot.percentile(0.99) / 1000000,
+				snapshot.percentile(0.999) / 1000000, snapshot.getMax() / 1000000, snapshot.getMean() / 1e6));
+		json.append("}\n}\n");
+
+		if (out == null) {
+			System.out.print(json);
+			return;
+		}
+		try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), CHARSET))) {
+			writer.print(json);
+		}
+		System.err.println("Rapport crit dans " + out);
+	}
+
+	private static void field(StringBuilder json, String name, Object value) {
+		if (value instanceof Double) value = String.format(Locale.ROOT, "%.3f", value);
+		json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+	}
+
+	/**
+	 * Un client simul.
+	 */
+	private static final class Connection {
+
+		final SocketChannel channel;
+
+		SelectionKey key;
+
+		ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		/**
+		 * Les donnes que le socket n'a pas encore acceptes, ou NULL.
+		 */
+		ByteBuffer pending;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+	}
+
+}
@@ -0,0 +1,102 @@
+package exia.ipc.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import exia.ipc.bench.MicroBenchmark.Operation;
+import exia.ipc.server.LogOverflowPolicy;
+import exia.ipc.server.LogWriter;
+
+/**
+ * Mesure les octets allous par log, dans le thread qui crit le log et dans le thread
+ * d'criture du LogWriter : le log d'un message construit par concatnation, comme avant, et
+ * le mme log crit avec un modle et des paramtres.
+ *
+ * La sortie standard est redirige vers un flux qui ne fait rien, et l'anneau ne perd aucun log :
+ * on mesure tout le chemin, jusqu' l'encodage des octets.
+ *
+ * Usage : LogAllocationBenchmark [logs pour la mesure du thread d'criture]
+ */
+public class LogAllocationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		// Le nom et l'adresse ne sont pas des constantes : sinon le compilateur ferait lui-mme
+		// la concatnation
+		final String user = new StringBuilder("alice").toString();
+		final String address = new StringBuilder("127.0.0.1").toString();
+		final LogWriter log = LogWriter.getInstance();
+		log.setOverflowPolicy(LogOverflowPolicy.WAIT);
+		Thread writer = findThread("LogWriter");
+
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		Operation concatenation = new Operation() {
+			public Object run() {
+				LogWriter.getInstance().writeLog("Message de " + user + " (" + address + ")");
+				return null;
+			}
+		};
+		Operation parameters = new Operation() {
+			public Object run() {
+				LogWriter.getInstance().writeLog("Message de {} ({})", user, address);
+				return null;
+			}
+		};
+
+		// Les rsultats sont affichs sur la vraie sortie
+		stdout.println(measure("concatnation", concatenation, writer, count));
+		stdout.println(measure("modle et paramtres", parameters, writer, count));
+
+		System.setOut(stdout);
+
+	}
+
+	/**
+	 * Mesure une opration : le thread appelant avec MicroBenchmark, puis le thread d'criture
+	 * sur un nombre fixe de logs.
+	 */
+	private static String measure(String name, Operation op, Thread writer, int count) {
+		MicroBenchmark.Result caller = MicroBenchmark.run(name, op);
+		LogWriter.getInstance().flush();
+
+		long before = allocatedBytes(writer);
+		for (int i = 0; i < count; i++) {
+			op.run();
+		}
+		LogWriter.getInstance().flush();
+		long after = allocatedBytes(writer);
+
+		return String.format("%-24s %8.1f ns/op %8.1f B/op appelant %8.1f B/op thread d'criture", name,
+				caller.nanosPerOp, caller.bytesPerOp, (after - before) / (double) count);
+	}
+
+	private static Thread findThread(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name)) return thread;
+		}
+		throw new IllegalStateException("Thread " + name + " introuvable");
+	}
+
+	/**
+	 * Renvoie le nombre d'octets allous par un thread, ou -1 si la JVM ne le permet pas.
+	 */
+	private static long allocatedBytes(Thread thread) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread.getId());
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,77 @@
+package exia.ipc.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import exia.ipc.bench.MicroBenchmark.Operation;
+import exia.ipc.server.ServerEvent;
+import exia.ipc.server.history.MessageLog;
+
+/**
+ * Mesure l'historique des messages : le temps que le broadcast passe  y dposer un message,
+ * le dbit du thread d'criture dans les segments projets en mmoire, et la lecture des
+ * derniers messages envoys  un client qui se prsente.
+ *
+ * Usage : MessageLogBenchmark [dossier] [messages]
+ */
+public class MessageLogBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		File directory = new File(args.length > 0 ? args[0] : "history-bench");
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+
+		// On repart d'un journal vide
+		File[] old = directory.listFiles();
+		if (old != null) {
+			for (File file : old) file.delete();
+		}
+
+		// On coupe les logs
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		final MessageLog history = new MessageLog(directory);
+		history.start();
+		System.setOut(stdout);
+
+		// Le ct du broadcast : on dpose les messages aussi vite que possible, par paquets que
+		// la file peut contenir, et on attend que le thread d'criture les ait publis
+		ServerEvent event = ServerEvent.message("bench", "127.0.0.1", System.currentTimeMillis(),
+				"Bonjour  tous, ceci est un message de test d'une longueur habituelle pour une discussion.");
+		long appendNanos = 0;
+		long start = System.nanoTime();
+		for (int sent = 0; sent < messages; ) {
+			int chunk = Math.min(messages - sent, 32768);
+			long t0 = System.nanoTime();
+			for (int i = 0; i < chunk; i++) {
+				history.append(event);
+			}
+			appendNanos += System.nanoTime() - t0;
+			sent += chunk;
+			while (history.getNextOffset() < sent) {
+				Thread.sleep(1);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("messages=%s segments=%s perdus=%s", messages, history.getSegmentCount(),
+				history.getDropped()));
+		System.out.println(String.format("append (broadcast) %.0f ns/message", appendNanos / (double) messages));
+		System.out.println(String.format("criture           %.0f messages/s", messages / (elapsed / 1e9)));
+
+		MicroBenchmark.run("tail(50) au HELLO", new Operation() {
+			public Object run() {
+				return history.tail(50);
+			}
+		});
+
+		history.interrupt();
+		history.join();
+
+	}
+
+}
@@ -0,0 +1,96 @@
+package exia.ipc.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import exia.ipc.bench.MicroBenchmark.Operation;
+import exia.ipc.server.metrics.Counter;
+import exia.ipc.server.metrics.Histogram;
+
+/**
+ * Mesure le cot de l'enregistrement des mesures du serveur : l'incrment d'un compteur, compar
+ *  un simple AtomicLong, l'enregistrement d'une dure dans une rpartition, et la lecture de
+ * l'horloge qui encadre chaque dure mesure.
+ *
+ * Avec plusieurs threads, l'cart entre Counter et AtomicLong se creuse : on les fait aussi
+ * tourner en parallle, un thread par coeur.
+ */
+public class MetricsBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		final Counter counter = new Counter();
+		final AtomicLong atomic = new AtomicLong();
+		final Histogram histogram = new Histogram();
+
+		MicroBenchmark.run("AtomicLong.incrementAndGet", new Operation() {
+			public Object run() {
+				return atomic.incrementAndGet();
+			}
+		});
+
+		MicroBenchmark.run("Counter.increment", new Operation() {
+			public Object run() {
+				counter.increment();
+				return counter;
+			}
+		});
+
+		MicroBenchmark.run("Histogram.record", new Operation() {
+			long value = 1;
+			public Object run() {
+				// Des dures de toutes les grandeurs, de 1 ns  1 s
+				value = value * 31 % 1000000007L;
+				histogram.record(value);
+				return histogram;
+			}
+		});
+
+		MicroBenchmark.run("System.nanoTime", new Operation() {
+			public Object run() {
+				return System.nanoTime();
+			}
+		});
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		System.out.println(String.format("AtomicLong, %s threads : %.1f ns/incrment", threads, parallel(threads, new Runnable() {
+			public void run() {
+				atomic.incrementAndGet();
+			}
+		})));
+		System.out.println(String.format("Counter, %s threads    : %.1f ns/incrment", threads, parallel(threads, new Runnable() {
+			public void run() {
+				counter.increment();
+			}
+		})));
+
+	}
+
+	/**
+	 * Fait tourner une opration dans plusieurs threads  la fois.
+	 *
+	 * @return Le temps moyen d'une opration, vu par un thread.
+	 */
+	private static double parallel(int threads, final Runnable op) throws InterruptedException {
+		final int count = 20000000;
+		Thread[] workers = new Thread[threads];
+		final long[] elapsed = new long[threads];
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread() {
+				public void run() {
+					long start = System.nanoTime();
+					for (int i = 0; i < count; i++) op.run();
+					elapsed[index] = System.nanoTime() - start;
+				}
+			};
+			workers[t].start();
+		}
+		long total = 0;
+		for (int t = 0; t < threads; t++) {
+			workers[t].join();
+			total += elapsed[t];
+		}
+		return total / (double) threads / count;
+	}
+
+}
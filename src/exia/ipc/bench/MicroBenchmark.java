@@ -0,0 +1,135 @@
+package exia.ipc.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Un petit harnais de micro-benchmark : on fait tourner une opration  vide pour laisser le JIT
+ * la compiler, puis on mesure son temps moyen et la mmoire qu'elle alloue.
+ *
+ * L'allocation est lue avec com.sun.management.ThreadMXBean, disponible sur les JVM HotSpot. Sur
+ * une autre JVM, elle est affiche  -1.
+ */
+public final class MicroBenchmark {
+
+	/**
+	 * Dure de la chauffe, en millisecondes.
+	 */
+	private static final long WARMUP_MS = 1000;
+
+	/**
+	 * Dure de la mesure, en millisecondes.
+	 */
+	private static final long MEASURE_MS = 2000;
+
+	/**
+	 * Nombre d'appels entre deux lectures de l'horloge.
+	 */
+	private static final int BATCH = 1000;
+
+	/**
+	 * Une opration  mesurer. Elle renvoie une valeur pour que le JIT ne puisse pas
+	 * supprimer le calcul.
+	 */
+	public interface Operation {
+
+		Object run();
+
+	}
+
+	/**
+	 * Le rsultat d'une mesure.
+	 */
+	public static final class Result {
+
+		public final String name;
+
+		public final double nanosPerOp;
+
+		public final double bytesPerOp;
+
+		Result(String name, double nanosPerOp, double bytesPerOp) {
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+		}
+
+		public double opsPerSecond() {
+			return 1e9 / nanosPerOp;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-44s %12.1f ns/op %14.0f ops/s %10.1f B/op", name, nanosPerOp, opsPerSecond(), bytesPerOp);
+		}
+
+	}
+
+	/**
+	 * Les valeurs renvoyes par les oprations atterrissent ici.
+	 */
+	public static volatile Object sink;
+
+	/**
+	 * Classe utilitaire.
+	 */
+	private MicroBenchmark() {
+	}
+
+	/**
+	 * Mesure une opration et affiche le rsultat.
+	 *
+	 * @param name Le nom de la mesure.
+	 * @param op L'opration.
+	 * @return Le rsultat.
+	 */
+	public static Result run(String name, Operation op) {
+
+		// Chauffe
+		loop(op, WARMUP_MS);
+
+		// Mesure
+		long bytesBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long count = loop(op, MEASURE_MS);
+		long elapsed = System.nanoTime() - start;
+		long bytesAfter = allocatedBytes();
+
+		double bytes = bytesBefore < 0 ? -1 : (bytesAfter - bytesBefore) / (double) count;
+		Result result = new Result(name, elapsed / (double) count, bytes);
+		System.out.println(result);
+		return result;
+
+	}
+
+	/**
+	 * Excute l'opration pendant la dure donne.
+	 *
+	 * @return Le nombre d'appels.
+	 */
+	private static long loop(Operation op, long durationMs) {
+		long deadline = System.nanoTime() + durationMs * 1000000L;
+		long count = 0;
+		Object last = null;
+		do {
+			for (int i = 0; i < BATCH; i++) {
+				last = op.run();
+			}
+			count += BATCH;
+		} while (System.nanoTime() < deadline);
+		sink = last;
+		return count;
+	}
+
+	/**
+	 * Renvoie le nombre d'octets allous par le thread courant, ou -1 si la JVM ne le permet pas.
+	 */
+	public static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+}
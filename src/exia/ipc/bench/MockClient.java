@@ -0,0 +1,96 @@
+package exia.ipc.bench;
+
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.Frame;
+import exia.ipc.server.OutboundQueue;
+import exia.ipc.server.OverflowPolicy;
+import exia.ipc.server.protocol.ChatServerProtocol;
+import exia.ipc.server.protocol.IServerProtocol;
+
+/**
+ * Un client sans socket, partag par les benchmarks. Les trames qu'on lui crit sont seulement
+ * comptes.
+ *
+ * Selon le constructeur, il porte un nom ds sa cration, ou parle le protocole texte d'un
+ * serveur qui n'est pas lanc.
+ */
+class MockClient extends ClientSocketThread {
+
+	/**
+	 * Le nombre d'octets "envoys". Le compteur n'est pas protg : seule la prsence de
+	 * l'criture compte, pas sa valeur exacte.
+	 */
+	long written;
+
+	/**
+	 * Le nom du client, ou null s'il n'en a pas reu  sa cration.
+	 */
+	private final String name;
+
+	/**
+	 * Un client anonyme, rattach  aucun serveur.
+	 */
+	MockClient(int id) {
+		this(null, null, null, id);
+	}
+
+	/**
+	 * Un client rattach  aucun serveur, qui porte son nom ds sa cration.
+	 */
+	MockClient(String name, int id) {
+		this(name, null, null, id);
+	}
+
+	/**
+	 * Un client rattach au serveur, qui parle le protocole texte ds sa cration.
+	 */
+	MockClient(ChatServer server, ChatServerProtocol protocol, int id) {
+		this(null, server, protocol, id);
+		negotiate('H');
+	}
+
+	private MockClient(String name, ChatServer server, IServerProtocol protocol, int id) {
+		super("10." + (id >> 16 & 0xff) + "." + (id >> 8 & 0xff) + "." + (id & 0xff), server, protocol,
+				new OutboundQueue(1, OverflowPolicy.DROP_NEWEST));
+		this.name = name;
+	}
+
+	@Override
+	public String getUserName() {
+		return name != null ? name : super.getUserName();
+	}
+
+	@Override
+	public boolean hasUserName() {
+		return name != null || super.hasUserName();
+	}
+
+	/**
+	 * On n'envoie ni salut ni liste des connects aux clients factices.
+	 */
+	@Override
+	public void notifyProtocolNegotiated(ClientSocketThread client) {
+	}
+
+	@Override
+	public void write(Frame frame) {
+		written += frame.length();
+	}
+
+	/**
+	 * Pas de socket : rien  couper ni  fermer.
+	 */
+	@Override
+	protected void abort() {
+	}
+
+	@Override
+	protected void close() {
+	}
+
+	@Override
+	protected void sendReasonAndClose() {
+	}
+
+}
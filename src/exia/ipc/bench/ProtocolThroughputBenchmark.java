@@ -0,0 +1,153 @@
+package exia.ipc.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import exia.ipc.client.ChatEngine;
+import exia.ipc.client.protocol.BinaryClientProtocol;
+import exia.ipc.client.protocol.ChatClientProtocol;
+import exia.ipc.client.protocol.IClientProtocol;
+import exia.ipc.client.protocol.ServerFrame;
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Compare le dbit du protocole texte et du protocole binaire : un client envoie des messages
+ * aussi vite que possible, et on mesure le temps qu'il faut pour que tous les destinataires
+ * les aient reus et dcods.
+ *
+ * Les deux protocoles sont mesurs sur un serveur neuf, avec les vrais protocoles clients. Les
+ * logs du serveur sont coups pendant la mesure : ils coteraient plus cher que le protocole.
+ *
+ * Usage : ProtocolThroughputBenchmark [BLOCKING|VIRTUAL_THREADS|NIO|MULTI_REACTOR] [destinataires] [messages] [port]
+ */
+public class ProtocolThroughputBenchmark {
+
+	/**
+	 * Un message d'une centaine de caractres.
+	 */
+	private static final String MESSAGE = "Bonjour  tous, ceci est un message de test d'une longueur "
+			+ "habituelle pour une discussion, avec des accents.";
+
+	public static void main(String[] args) throws Exception {
+
+		ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0]) : ServerMode.NIO;
+		int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+		int portNumber = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+		System.out.println(String.format("mode=%s destinataires=%s messages=%s", mode, receivers, messages));
+
+		run("texte", false, mode, receivers, messages, portNumber);
+		run("binaire", true, mode, receivers, messages, portNumber + 1);
+
+		System.exit(0);
+
+	}
+
+	private static void run(String name, boolean binary, ServerMode mode, int receivers, final int messages,
+			int portNumber) throws Exception {
+
+		// On coupe les logs du serveur
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		// Un serveur dont les files d'envoi peuvent contenir tous les messages : on mesure le
+		// dbit, pas la politique de dbordement
+		ChatServer server = new ChatServer(portNumber, new ChatServerProtocol(), mode);
+		server.setOutboundQueueCapacity(messages + 1024);
+		server.start();
+
+		final CountDownLatch ready = new CountDownLatch(receivers + 1);
+		final CountDownLatch done = new CountDownLatch(receivers);
+		List<Socket> sockets = new ArrayList<>();
+		IClientProtocol sender = null;
+
+		// Les destinataires, plus l'expditeur dont on vide aussi le socket
+		for (int i = 0; i <= receivers; i++) {
+			final String userName = "bench" + i;
+			final IClientProtocol protocol = binary ? new BinaryClientProtocol() : new ChatClientProtocol();
+			protocol.setEngine(new ChatEngine(userName));
+			Socket socket = new Socket("127.0.0.1", portNumber);
+			sockets.add(socket);
+			protocol.open(socket);
+			final boolean counted = i > 0;
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					int received = 0;
+					try {
+						ServerFrame frame;
+						while ((frame = protocol.readServerFrame()) != null) {
+							switch (frame.getType()) {
+							// Le client est prt quand il reoit sa propre connexion
+							case CONNECTED :
+								if (userName.equals(frame.getUser())) ready.countDown();
+								break;
+							// ou dans une annonce regroupe avec d'autres connexions
+							case PRESENCE :
+								for (int j = 0; j < frame.getPresenceSize(); j++) {
+									if (frame.isPresenceJoined(j) && userName.equals(frame.getPresenceUser(j))) ready.countDown();
+								}
+								break;
+							case MSG :
+								// On lit le contenu, comme le ferait l'affichage
+								if (frame.getPayload() != null) received++;
+								if (counted && received == messages) done.countDown();
+								break;
+							default :
+								break;
+							}
+						}
+					}
+					catch (IOException e) {
+						// Le socket a t ferm  la fin de la mesure
+					}
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+			protocol.sendHello(userName);
+			if (i == 0) {
+				sender = protocol;
+			}
+		}
+		ready.await();
+
+		// L'expditeur envoie tout d'un coup
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			sender.sendMessage(MESSAGE);
+		}
+		long sent = System.nanoTime() - start;
+		boolean finished = done.await(120, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		// On libre tout
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.interrupt();
+		System.setOut(stdout);
+
+		if (!finished) {
+			System.out.println(String.format("%-8s incomplet aprs 120s", name));
+			return;
+		}
+		System.out.println(String.format("%-8s envoys/s=%-10.0f reus/s=%-10.0f dure=%.0fms",
+				name, messages / (sent / 1e9), (double) messages * receivers / (elapsed / 1e9), elapsed / 1e6));
+
+	}
+
+}
@@ -0,0 +1,137 @@
+package exia.ipc.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Mesure le dbit du mode MULTI_REACTOR selon le nombre de boucles d'vnements : 1, 2, 4...
+ * jusqu'au nombre de coeurs.
+ *
+ * Les clients discutent deux par deux dans des salons : chaque message n'a que deux
+ * destinataires, et le travail se rpartit sur toutes les boucles sans qu'un grand broadcast
+ * ne domine la mesure. On affiche aussi la rpartition des clients entre les boucles.
+ *
+ * Usage : ReactorScalingBenchmark [clients] [messages par client] [port]
+ */
+public class ReactorScalingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int portNumber = args.length > 2 ? Integer.parseInt(args[2]) : 5300;
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		System.out.println(String.format("coeurs=%s clients=%s messages par client=%s", cores, clients, messages));
+
+		for (int loops = 1; ; loops *= 2) {
+			run(Math.min(loops, cores), clients, messages, portNumber++);
+			if (loops >= cores) break;
+		}
+		System.exit(0);
+
+	}
+
+	private static void run(int loops, int clients, final int messages, int portNumber) throws Exception {
+
+		// On coupe les logs du serveur
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		ChatServer server = new ChatServer(portNumber, new ChatServerProtocol(), ServerMode.MULTI_REACTOR);
+		server.setEventLoopCount(loops);
+		server.setOutboundQueueCapacity(2 * messages + 1024);
+		server.start();
+
+		// Chaque client reoit ses messages et ceux de son voisin de salon
+		final CountDownLatch joined = new CountDownLatch(clients);
+		final CountDownLatch done = new CountDownLatch(clients);
+		List<Socket> sockets = new ArrayList<>();
+		List<PrintWriter> writers = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			final String userName = "bench" + i;
+			Socket socket = new Socket("127.0.0.1", portNumber);
+			sockets.add(socket);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+			writers.add(out);
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					int received = 0;
+					try {
+						String line;
+						while ((line = in.readLine()) != null) {
+							if (line.startsWith("JOINED " + userName + " ")) {
+								joined.countDown();
+							}
+							else if (line.startsWith("ROOMMSG") && ++received == 2 * messages) {
+								done.countDown();
+							}
+						}
+					}
+					catch (IOException e) {
+						// Le socket a t ferm  la fin de la mesure
+					}
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+			out.println("HELLO " + userName);
+			out.println("JOIN paire" + i / 2);
+			out.flush();
+		}
+		// On attend que chaque client ait vu sa propre arrive dans le salon
+		joined.await(30, TimeUnit.SECONDS);
+
+		// Tous les clients parlent,  tour de rle
+		long start = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			for (int i = 0; i < clients; i++) {
+				writers.get(i).println("ROOMMSG paire" + i / 2 + " message " + m);
+			}
+			if (m % 16 == 15) {
+				for (PrintWriter out : writers) out.flush();
+			}
+		}
+		for (PrintWriter out : writers) out.flush();
+		boolean finished = done.await(120, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+		int[] loads = server.getEventLoopLoads();
+
+		// On libre tout
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.interrupt();
+		System.setOut(stdout);
+
+		if (!finished) {
+			System.out.println(String.format("boucles=%-3s incomplet aprs 120s", loops));
+			return;
+		}
+		System.out.println(String.format("boucles=%-3s messages/s=%-10.0f livraisons/s=%-10.0f clients par boucle=%s",
+				loops, (double) messages * clients / (elapsed / 1e9), 2.0 * messages * clients / (elapsed / 1e9),
+				Arrays.toString(loads)));
+
+	}
+
+}
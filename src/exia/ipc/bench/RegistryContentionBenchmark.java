@@ -0,0 +1,159 @@
+package exia.ipc.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import exia.ipc.server.ClientRegistry;
+import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.Frame;
+
+/**
+ * Mesure la contention sur la liste des clients : des threads connectent et dconnectent des
+ * clients en boucle pendant que d'autres font des broadcasts.
+ *
+ * On compare l'ancienne ArrayList protge par synchronized et le ClientRegistry. Les clients
+ * sont factices : ils n'ont pas de socket, et crire une trame ne cote presque rien.
+ *
+ * Usage : RegistryContentionBenchmark [clients permanents] [threads de churn] [threads de broadcast] [secondes]
+ */
+public class RegistryContentionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int baseClients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int churnThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int broadcastThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		System.out.println(String.format("clients=%s churn=%s broadcast=%s dure=%ss",
+				baseClients, churnThreads, broadcastThreads, seconds));
+
+		run("synchronized ArrayList", new SynchronizedListRegistry(), baseClients, churnThreads, broadcastThreads, seconds);
+		run("ClientRegistry", new LockFreeRegistry(), baseClients, churnThreads, broadcastThreads, seconds);
+
+	}
+
+	private static void run(String name, final Registry registry, int baseClients, int churnThreads,
+			int broadcastThreads, int seconds) throws InterruptedException {
+
+		// Les clients permanents
+		for (int i = 0; i < baseClients; i++) {
+			registry.add(new MockClient(i));
+		}
+
+		final AtomicLong churns = new AtomicLong();
+		final AtomicLong broadcasts = new AtomicLong();
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(churnThreads + broadcastThreads);
+		final Frame frame = Frame.text("MSG bench 127.0.0.1 0 Bonjour");
+
+		// Les threads qui connectent et dconnectent
+		for (int t = 0; t < churnThreads; t++) {
+			final int offset = baseClients + t * 1000;
+			new Thread(new Runnable() {
+				public void run() {
+					long count = 0;
+					int i = 0;
+					while (System.nanoTime() < deadline) {
+						MockClient client = new MockClient(offset + (i++ % 1000));
+						registry.add(client);
+						registry.remove(client);
+						count++;
+					}
+					churns.addAndGet(count);
+					done.countDown();
+				}
+			}).start();
+		}
+
+		// Les threads qui diffusent
+		for (int t = 0; t < broadcastThreads; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					long count = 0;
+					while (System.nanoTime() < deadline) {
+						registry.broadcast(frame);
+						count++;
+					}
+					broadcasts.addAndGet(count);
+					done.countDown();
+				}
+			}).start();
+		}
+
+		done.await();
+		frame.release();
+
+		System.out.println(String.format("%-24s connexions+dconnexions/s=%-12.0f broadcasts/s=%.0f",
+				name, churns.get() / (double) seconds, broadcasts.get() / (double) seconds));
+
+	}
+
+	/**
+	 * Les oprations communes aux deux implmentations compares.
+	 */
+	private interface Registry {
+
+		void add(ClientSocketThread client);
+
+		void remove(ClientSocketThread client);
+
+		void broadcast(Frame frame);
+
+	}
+
+	/**
+	 * L'ancienne implmentation de ChatServer.
+	 */
+	private static class SynchronizedListRegistry implements Registry {
+
+		private final List<ClientSocketThread> clientList = new ArrayList<>();
+
+		public void add(ClientSocketThread client) {
+			synchronized (clientList) {
+				clientList.add(client);
+			}
+		}
+
+		public void remove(ClientSocketThread client) {
+			synchronized (clientList) {
+				clientList.remove(client);
+			}
+		}
+
+		public void broadcast(Frame frame) {
+			synchronized (clientList) {
+				for (ClientSocketThread client : clientList) {
+					client.write(frame);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * L'implmentation actuelle.
+	 */
+	private static class LockFreeRegistry implements Registry {
+
+		private final ClientRegistry clients = new ClientRegistry();
+
+		public void add(ClientSocketThread client) {
+			clients.add(client);
+		}
+
+		public void remove(ClientSocketThread client) {
+			clients.remove(client);
+		}
+
+		public void broadcast(Frame frame) {
+			for (ClientSocketThread client : clients) {
+				client.write(frame);
+			}
+		}
+
+	}
+
+}
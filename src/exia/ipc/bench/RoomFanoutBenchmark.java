@@ -0,0 +1,97 @@
+package exia.ipc.bench;
+
+import exia.ipc.bench.MicroBenchmark.Operation;
+import exia.ipc.bench.MicroBenchmark.Result;
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ServerEvent;
+import exia.ipc.server.ServerMode;
+import exia.ipc.server.protocol.ChatServerProtocol;
+
+/**
+ * Compare le cot d'un message selon la taille du salon : beaucoup de petits salons, un seul
+ * grand salon qui contient tout le monde, et l'ancien broadcast  tous les clients connects.
+ *
+ * Le serveur n'est pas lanc et les clients sont factices : on ne mesure que la diffusion
+ * (parcours des membres, encodage, mise en file), pas le rseau.
+ *
+ * Usage : RoomFanoutBenchmark [clients] [taille des petits salons]
+ */
+public class RoomFanoutBenchmark {
+
+	public static void main(String[] args) {
+
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int roomSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final int rooms = (users + roomSize - 1) / roomSize;
+		final String[] names = new String[rooms];
+		for (int r = 0; r < rooms; r++) {
+			names[r] = "salon" + r;
+		}
+
+		System.out.println(String.format("clients=%s petits salons=%s de %s membres", users, rooms, roomSize));
+
+		// Beaucoup de petits salons : chaque client entre dans le salon de son groupe
+		final ChatServer small = new ChatServer(0, new ChatServerProtocol(), ServerMode.NIO);
+		final MockClient[] smallClients = connect(small, users);
+		for (int i = 0; i < users; i++) {
+			small.joinRoom(smallClients[i], names[i / roomSize]);
+		}
+
+		// Un seul grand salon
+		final ChatServer huge = new ChatServer(0, new ChatServerProtocol(), ServerMode.NIO);
+		final MockClient[] hugeClients = connect(huge, users);
+		for (int i = 0; i < users; i++) {
+			huge.joinRoom(hugeClients[i], "tous");
+		}
+
+		report(MicroBenchmark.run("petits salons", new Operation() {
+			int i;
+			public Object run() {
+				// On fait parler un membre de chaque salon  tour de rle
+				int room = i++ % rooms;
+				small.onRoomMessage(smallClients[room * roomSize], names[room], "Bonjour");
+				return room;
+			}
+		}), users / (double) rooms);
+
+		report(MicroBenchmark.run("un grand salon", new Operation() {
+			int i;
+			public Object run() {
+				huge.onRoomMessage(hugeClients[i++ % hugeClients.length], "tous", "Bonjour");
+				return i;
+			}
+		}), users);
+
+		report(MicroBenchmark.run("broadcast  tous (sans salon)", new Operation() {
+			int i;
+			public Object run() {
+				huge.broadcast(ServerEvent.message(hugeClients[i++ % hugeClients.length], "Bonjour"));
+				return i;
+			}
+		}), users);
+
+	}
+
+	/**
+	 * Enregistre des clients factices dans le serveur.
+	 */
+	private static MockClient[] connect(ChatServer server, int count) {
+		// Tous les clients partagent le protocole, comme dans le serveur : la trame est encode une fois
+		ChatServerProtocol protocol = new ChatServerProtocol();
+		protocol.setServer(server);
+		MockClient[] clients = new MockClient[count];
+		for (int i = 0; i < count; i++) {
+			clients[i] = new MockClient(server, protocol, i);
+			server.addClient(clients[i]);
+		}
+		return clients;
+	}
+
+	/**
+	 * Affiche le nombre de messages livrs par seconde, tous destinataires confondus.
+	 */
+	private static void report(Result result, double recipients) {
+		System.out.println(String.format("%-44s %12.0f livraisons/s", "", result.opsPerSecond() * recipients));
+	}
+
+}
@@ -0,0 +1,53 @@
+package exia.ipc.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import exia.ipc.server.TimerWheel;
+
+/**
+ * Mesure ce que cote la surveillance du silence de nombreuses connexions sur une seule roue de
+ * minuteurs : chaque minuteur se replanifie  chaque chance, comme celui d'un client actif.
+ *
+ * On donne le temps CPU du thread de la roue par replanification, et sa part d'un coeur.
+ *
+ * Usage : TimerWheelBenchmark [minuteurs] [priode en ms] [dure en s]
+ */
+public class TimerWheelBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final long period = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		long duration = args.length > 2 ? Long.parseLong(args[2]) * 1000 : 10000;
+
+		final long[] fired = new long[1];
+		TimerWheel wheel = new TimerWheel("TimerWheelBenchmark", 100, 1024);
+		TimerWheel.Task task = new TimerWheel.Task() {
+			public void run(TimerWheel.Timeout timeout) {
+				fired[0]++;
+				timeout.reschedule(period);
+			}
+		};
+
+		// Les minuteurs sont tals sur une priode, comme des connexions ouvertes peu  peu
+		for (int i = 0; i < count; i++) {
+			wheel.schedule(task, 1 + (long) i * period / count);
+		}
+		wheel.start();
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Thread.sleep(period + 500);
+		long firedBefore = fired[0];
+		long cpuBefore = threads.getThreadCpuTime(wheel.getId());
+		Thread.sleep(duration);
+		long cpu = threads.getThreadCpuTime(wheel.getId()) - cpuBefore;
+		long count2 = fired[0] - firedBefore;
+		wheel.interrupt();
+
+		System.out.println(String.format("minuteurs=%s priode=%s ms : %s replanifications/s, %.0f ns CPU chacune, %.2f %% d'un coeur",
+				count, period, count2 * 1000 / duration, (double) cpu / Math.max(1, count2), cpu * 100.0 / (duration * 1000000L)));
+
+	}
+
+}
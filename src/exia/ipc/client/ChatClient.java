@@ -1,25 +1,27 @@
 package exia.ipc.client;
 
 import java.awt.EventQueue;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.List;
 
-import exia.ipc.client.cypher.ClearText;
 import exia.ipc.client.cypher.ICypher;
+import exia.ipc.client.entities.User;
+import exia.ipc.client.events.IChatEngineObserver;
 import exia.ipc.client.ihm.Controller;
 import exia.ipc.client.ihm.Model;
 import exia.ipc.client.ihm.View;
-import exia.ipc.client.protocol.ChatClientProtocol;
 import exia.ipc.client.protocol.IClientProtocol;
+import exia.ipc.client.protocol.ServerFrame;
 
 /**
- * Le client de chat priv.
+ * Le client de chat priv, avec sa fentre.
  * Se dmarre avec la mthode start().
+ *
+ * La connexion elle-mme est tenue par un ChatEngine, sans interface : le client n'est qu'un
+ * observateur qui recopie les utilisateurs dans le modle et affiche ce qui arrive.
  */
-public class ChatClient implements Runnable {
+public class ChatClient implements IChatEngineObserver {
 	
 	/**
 	 * Le modle de donnes.
@@ -32,36 +34,9 @@ public class ChatClient implements Runnable {
 	private Controller ctrl;
 	
 	/**
-	 * Le socket ouvert vers le serveur.
+	 * La connexion au serveur.
 	 */
-	private Socket socket;
-	
-	/**
-	 * Le flux d'criture sur le socket.
-	 */
-	private PrintWriter outStream;
-	
-	/**
-	 * Le flux de lecture sur le socket.
-	 */
-	private BufferedReader inStream;
-	
-	/**
-	 * Le thread qui coute le socket. Le ChatClient est le runnable du thread.
-	 */
-	private Thread thread;
-	
-	/**
-	 * Le protocole de communication.
-	 * Design pattern strategy.
-	 */
-	private IClientProtocol protocol;
-	
-	/**
-	 * L'algorithme de chiffrement.
-	 * Design pattern strategy.
-	 */
-	private ICypher cypher;
+	private final ChatEngine engine;
 
 	/**
 	 * Constructeur.
@@ -81,12 +56,11 @@ public class ChatClient implements Runnable {
 		// On fabrique le modle de l'application
 		this.model = new Model(userName);
 		
-		// On conserve l'objet d'encodage/dcodage
-		this.cypher = new ClearText();
-		
-		// On fabrique un protocole par dfaut.
-		this.protocol = new ChatClientProtocol();
-		this.protocol.setClient(this);
+		// On fabrique la connexion, avec son protocole et son chiffrement par dfaut. Le modle
+		// tient dj la liste des utilisateurs : la connexion n'a pas besoin de la sienne.
+		this.engine = new ChatEngine(userName);
+		this.engine.setTrackUsers(false);
+		this.engine.addListener(this);
 		
 	}
 	
@@ -163,28 +137,17 @@ public class ChatClient implements Runnable {
 		
 		// On est dj connect
 		if (isConnected()) {
-			getView().appendOutput("Vous tes dj connect!");
+			displayMessage("Vous tes dj connect!");
 			return;
 		}
 		
 		try {
 			
-			// On ouvre un socket vers le serveur
-			socket = new Socket(hostName, portNumber);
-			
-			// On ouvre les flux d'entres/sortie
-			outStream = new PrintWriter(socket.getOutputStream(), true);
-			inStream  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			
-			// On lance un thread pour lire le socket
-			thread = new Thread(this);
-			thread.start();
+			// On ouvre la connexion : le socket, le thread de lecture, puis l'envoi du nom
+			engine.connect(hostName, portNumber);
 
 			// Information pour l'utilisateur
-			getView().appendOutput(String.format("Connect  %s:%s", hostName, portNumber));
-			
-			// On envoie le nom choisi par le client au serveur
-			outStream.println(protocol.sayHelloToServer(model.getCurrentUser().getName()));
+			displayMessage(String.format("Connect  %s:%s", hostName, portNumber));
 			
 		}
 		
@@ -194,108 +157,94 @@ public class ChatClient implements Runnable {
 			// On affiche une erreur
 			displayMessage("Erreur : connexion impossible, " + e.getClass().getSimpleName() + " - " + e.getMessage());
 			
-			// Si le socket a t ouvert, on tente de le fermer
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (Exception e1) {
-					// Cette fois on ne fait rien si cela n'a pas fonctionn
-				}
-			}
-			
-			// On reset les variables de connexion
-			socket = null;
-			outStream = null;
-			inStream = null;
 		}
 		
 	}
 
 	public void displayMessage(String msg) {
-		// On affiche le texte dans la console
-		ctrl.getView().appendOutput(msg);
+		// On affiche le texte dans la console, s'il y a une fentre
+		if (ctrl != null) ctrl.getView().appendOutput(msg);
 	}
 
 	@Override
-	public void run() {
-		
-		// On prpare la chane d'entres
-		String inputLine;
-		
-		try {
-			// On lit le socket ligne par ligne
-			while ((inputLine = inStream.readLine()) != null) {
-				
-				// On laisse le protocol traiter. Le message renvoy doit tre affich en console.
-				String msg = protocol.processServerInput(inputLine);
-				
-				// Affichage dans la console
-				if (msg != null) {
-					displayMessage(msg);
-				}
-				
-				// Gestion de interruptions de thread
-				if (thread.isInterrupted()) return;
-				
-			}
+	public void onConnected(ChatEngine engine) {
+	}
+
+	@Override
+	public void onFrame(ChatEngine engine, ServerFrame frame) {
+		// Affichage dans la console. Le texte n'est fabriqu que s'il y a une vue.
+		if (ctrl != null) {
+			displayMessage(frame.render(engine.getCypher()));
+		}
+	}
+
+	@Override
+	public void onError(ChatEngine engine, String reason) {
+		// L'erreur est affiche  part des messages
+		if (ctrl != null) ctrl.getView().appendError(ServerFrame.describeError(reason));
+	}
+
+	@Override
+	public void onUserEvent(ChatEngine engine, User user, boolean connected) {
+		if (connected) {
+			// On ajoute l'utilisateur dans le modle
+			model.addUser(user);
+		}
+		else {
+			// On cherche l'utilisateur qui vient de se dconnecter, et on le retire
+			model.removeUser(model.findUser(user.getName(), user.getLocation()));
 		}
+	}
+
+	@Override
+	public void onUsersLoaded(ChatEngine engine, List<User> users) {
+		// On charge toute la liste dans le modle d'un coup
+		model.addUsers(users);
+	}
+
+	@Override
+	public void onDisconnected(ChatEngine engine, IOException error) {
 		// Erreur de lecture/criture
-		catch (IOException e) {
+		if (error != null) {
 			displayMessage("Erreur: lecture impossible sur le socket");
 		}
-		
 		// Fin de connexion
 		displayMessage("Dconnect du serveur.");
-			
 	}
 
 	public void stop() {
-		
-		// On coupe le thread de lecture du socket
-		thread.interrupt();
-		
-		// On s'assure que toutes les donnes ont t envoyes au serveur
-		outStream.flush();
-		
-		// On ferme le socket. Cela va prvenir le serveur.
-		try {
-			socket.close();
-		}
-		catch (IOException e) {
-			// On n'a pas russit  fermer le socket.
-			// C'est difficile de faire quelque chose de plus  ce stade...
-		}
-		// Dans tous les cas on supprime les rfrences
-		finally {
-			outStream = null;
-			inStream = null;
-			socket = null;
-		}
-		
+		// On ferme la connexion. Cela va prvenir le serveur.
+		engine.disconnect();
 	}
 
-	public Socket getSocket() {
-		return socket;
+	/**
+	 * Renvoie la connexion au serveur, sans interface.
+	 */
+	public ChatEngine getEngine() {
+		return engine;
 	}
 
-	public PrintWriter getOutputStream() {
-		return outStream;
+	public Socket getSocket() {
+		return engine.getSocket();
 	}
 
-	public BufferedReader getInputStream() {
-		return inStream;
+	public IClientProtocol getProtocol() {
+		return engine.getProtocol();
 	}
 
-	public IClientProtocol getProtocol() {
-		return protocol;
+	/**
+	 * Change de protocole, par exemple pour le protocole binaire. A faire avant la connexion.
+	 */
+	public void setProtocol(IClientProtocol protocol) {
+		engine.setProtocol(protocol);
 	}
 
 	public ICypher getCypher() {
-		return cypher;
+		return engine.getCypher();
 	}
 
 	public void setCypher(ICypher cypher) {
-		this.cypher = cypher;
+		engine.setCypher(cypher);
 	}
 
 	public View<ICypher> getView() {
@@ -311,7 +260,7 @@ public class ChatClient implements Runnable {
 	}
 	
 	public boolean isConnected() {
-		return socket != null && socket.isConnected();
+		return engine.isConnected();
 	}
 
 }
@@ -0,0 +1,351 @@
+package exia.ipc.client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import exia.ipc.client.cypher.ClearText;
+import exia.ipc.client.cypher.ICypher;
+import exia.ipc.client.entities.User;
+import exia.ipc.client.events.IChatEngineObserver;
+import exia.ipc.client.protocol.ChatClientProtocol;
+import exia.ipc.client.protocol.IClientProtocol;
+import exia.ipc.client.protocol.ServerFrame;
+
+/**
+ * Le coeur du client de chat, sans interface graphique : la connexion au serveur, le protocole,
+ * le chiffrement, la liste des utilisateurs connects et le thread qui lit le socket.
+ *
+ * Tout ce qui arrive du serveur est annonc aux observateurs (IChatEngineObserver). La fentre
+ * de ChatClient n'est que l'un d'eux : un robot ou une passerelle peut ouvrir des centaines de
+ * ChatEngine dans la mme JVM, sans rien construire de Swing.
+ */
+public class ChatEngine implements Runnable {
+
+	/**
+	 * Le nom de l'utilisateur, envoy au serveur  la connexion.
+	 */
+	private final String userName;
+
+	/**
+	 * Le socket ouvert vers le serveur, ou NULL.
+	 */
+	private volatile Socket socket;
+
+	/**
+	 * Le thread qui lit le socket.
+	 */
+	private Thread thread;
+
+	/**
+	 * La taille de la pile du thread de lecture, 0 pour celle de la JVM.
+	 */
+	private long stackSize = 0;
+
+	/**
+	 * Indique qu'on a demand la fermeture : l'erreur de lecture qui suit n'en est pas une.
+	 */
+	private volatile boolean closing;
+
+	/**
+	 * Le protocole de communication.
+	 * Design pattern strategy.
+	 */
+	private IClientProtocol protocol;
+
+	/**
+	 * L'algorithme de chiffrement.
+	 * Design pattern strategy.
+	 */
+	private volatile ICypher cypher = new ClearText();
+
+	/**
+	 * Les observateurs.
+	 */
+	private final List<IChatEngineObserver> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Les utilisateurs connects, par nom@adresse, si on les suit.
+	 */
+	private final Map<String, User> users = new ConcurrentHashMap<>();
+
+	/**
+	 * Indique si on tient la liste des utilisateurs connects.
+	 */
+	private boolean trackUsers = true;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param userName Nom d'utilisateur sur le chat.
+	 */
+	public ChatEngine(String userName) {
+		this.userName = userName;
+		// On fabrique un protocole par dfaut.
+		setProtocol(new ChatClientProtocol());
+	}
+
+	public void addListener(IChatEngineObserver listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(IChatEngineObserver listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Ouvre la connexion, lance le thread de lecture et envoie le nom au serveur. La mthode
+	 * bloque le temps d'ouvrir le socket.
+	 *
+	 * @param hostName Nom du serveur.
+	 * @param portNumber Port du serveur.
+	 * @throws IOException Connexion impossible.
+	 */
+	public synchronized void connect(String hostName, int portNumber) throws IOException {
+
+		if (isConnected()) {
+			throw new IllegalStateException("Dj connect");
+		}
+
+		// On ouvre un socket vers le serveur, et ses flux. C'est le protocole qui sait comment
+		// lire et crire.
+		Socket socket = new Socket(hostName, portNumber);
+		try {
+			protocol.open(socket);
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		this.socket = socket;
+		this.closing = false;
+		users.clear();
+
+		// On lance un thread pour lire le socket
+		thread = new Thread(null, this, "ChatEngine-" + userName, stackSize);
+		thread.start();
+
+		//listeners.forEach(listener -> listener.onConnected(this));
+		for (IChatEngineObserver listener : listeners) {
+			listener.onConnected(this);
+		}
+
+		// On envoie le nom au serveur
+		protocol.sendHello(userName);
+
+	}
+
+	/**
+	 * Lecture du socket, jusqu' la fermeture de la connexion.
+	 */
+	@Override
+	public void run() {
+
+		// Le socket de cette connexion : une nouvelle connexion a pu tre ouverte quand on le ferme
+		Socket own = socket;
+		IOException error = null;
+		try {
+			// On laisse le protocole lire et traiter le socket
+			ServerFrame frame;
+			while ((frame = protocol.readServerFrame()) != null) {
+				// Le serveur vrifie qu'on est toujours l : on rpond tout de suite. Les
+				// battements de coeur ne concernent pas les observateurs.
+				if (frame.getType() == ServerFrame.Type.PING) {
+					protocol.sendPong();
+				}
+				// Une erreur qui ne concerne que nous
+				else if (frame.getType() == ServerFrame.Type.ERROR) {
+					String reason = frame.getErrorReason();
+					for (IChatEngineObserver listener : listeners) {
+						listener.onError(this, reason);
+					}
+				}
+				else if (frame.getType() != ServerFrame.Type.PONG) {
+					for (IChatEngineObserver listener : listeners) {
+						listener.onFrame(this, frame);
+					}
+				}
+				// Gestion de interruptions de thread
+				if (Thread.currentThread().isInterrupted()) break;
+			}
+		}
+		// Erreur de lecture, sauf si c'est nous qui avons ferm le socket
+		catch (IOException e) {
+			if (!closing) error = e;
+		}
+
+		close(own);
+		for (IChatEngineObserver listener : listeners) {
+			listener.onDisconnected(this, error);
+		}
+
+	}
+
+	/**
+	 * Ferme la connexion. Cela va prvenir le serveur, et le thread de lecture s'arrte.
+	 */
+	public synchronized void disconnect() {
+		closing = true;
+		if (thread != null) thread.interrupt();
+		close(socket);
+	}
+
+	/**
+	 * Ferme un socket, et l'oublie si c'est celui de la connexion en cours.
+	 */
+	private void close(Socket socket) {
+		synchronized (this) {
+			if (this.socket == socket) this.socket = null;
+		}
+		if (socket == null) return;
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			// On n'a pas russi  fermer le socket : il n'y a rien de plus  faire
+		}
+	}
+
+	/**
+	 * Envoie un message  tous les clients.
+	 */
+	public void sendMessage(String log) {
+		protocol.sendMessage(log);
+	}
+
+	/**
+	 * Entre dans un salon. Le serveur confirme par un vnement JOINED.
+	 */
+	public void joinRoom(String room) {
+		protocol.joinRoom(room);
+	}
+
+	/**
+	 * Quitte un salon. Le serveur confirme par un vnement LEFT.
+	 */
+	public void leaveRoom(String room) {
+		protocol.leaveRoom(room);
+	}
+
+	/**
+	 * Envoie un message aux membres d'un salon.
+	 */
+	public void sendRoomMessage(String room, String log) {
+		protocol.sendRoomMessage(room, log);
+	}
+
+	/**
+	 * Envoie un message priv  un utilisateur, dsign par son nom ou par nom@adresse.
+	 */
+	public void sendDirectMessage(String recipient, String log) {
+		protocol.sendDirectMessage(recipient, log);
+	}
+
+	/**
+	 * Envoie un battement de coeur au serveur. Sa rponse n'est pas transmise aux observateurs :
+	 * c'est le trafic qu'elle gnre qui garde la connexion ouverte  travers un NAT.
+	 */
+	public void ping() {
+		protocol.sendPing();
+	}
+
+	/**
+	 * Un utilisateur vient de se connecter. Appel par le protocole.
+	 */
+	public void userConnected(String name, String address) {
+		User user = new User(name, address);
+		if (trackUsers) users.put(name + "@" + address, user);
+		for (IChatEngineObserver listener : listeners) {
+			listener.onUserEvent(this, user, true);
+		}
+	}
+
+	/**
+	 * Un utilisateur vient de se dconnecter. Appel par le protocole.
+	 */
+	public void userDisconnected(String name, String address) {
+		User user = trackUsers ? users.remove(name + "@" + address) : null;
+		// On ne le connaissait pas : on prvient quand mme
+		if (user == null) user = new User(name, address);
+		for (IChatEngineObserver listener : listeners) {
+			listener.onUserEvent(this, user, false);
+		}
+	}
+
+	/**
+	 * Plusieurs utilisateurs ont t reus d'un coup. Appel par le protocole.
+	 */
+	public void usersLoaded(List<User> loaded) {
+		if (loaded.isEmpty()) return;
+		if (trackUsers) {
+			for (User user : loaded) {
+				users.put(user.getName() + "@" + user.getLocation(), user);
+			}
+		}
+		for (IChatEngineObserver listener : listeners) {
+			listener.onUsersLoaded(this, loaded);
+		}
+	}
+
+	/**
+	 * Renvoie une copie de la liste des utilisateurs connects, vide si on ne la tient pas.
+	 */
+	public List<User> getUsers() {
+		return new ArrayList<>(users.values());
+	}
+
+	/**
+	 * Indique si on tient la liste des utilisateurs connects. Un robot qui n'en a pas besoin
+	 * conomise un objet par utilisateur ; les observateurs sont prvenus dans tous les cas.
+	 */
+	public void setTrackUsers(boolean trackUsers) {
+		this.trackUsers = trackUsers;
+		if (!trackUsers) users.clear();
+	}
+
+	/**
+	 * Modifie la taille de la pile du thread de lecture, en octets. A appeler avant connect().
+	 * Avec des centaines de connexions, une petite pile rduit la mmoire rserve.
+	 */
+	public void setStackSize(long stackSize) {
+		this.stackSize = stackSize;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public IClientProtocol getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Change de protocole, par exemple pour le protocole binaire. A faire avant la connexion.
+	 */
+	public void setProtocol(IClientProtocol protocol) {
+		this.protocol = protocol;
+		this.protocol.setEngine(this);
+	}
+
+	public ICypher getCypher() {
+		return cypher;
+	}
+
+	public void setCypher(ICypher cypher) {
+		this.cypher = cypher;
+	}
+
+	public boolean isConnected() {
+		Socket socket = this.socket;
+		return socket != null && socket.isConnected();
+	}
+
+}
@@ -0,0 +1,40 @@
+package exia.ipc.client.events;
+
+import java.io.IOException;
+import java.util.List;
+
+import exia.ipc.client.ChatEngine;
+import exia.ipc.client.entities.User;
+import exia.ipc.client.protocol.ServerFrame;
+
+/**
+ * Un observateur qui ne fait rien : on ne surcharge que les vnements qui nous intressent,
+ * comme avec MouseAdapter.
+ */
+public class ChatEngineAdapter implements IChatEngineObserver {
+
+	@Override
+	public void onConnected(ChatEngine engine) {
+	}
+
+	@Override
+	public void onFrame(ChatEngine engine, ServerFrame frame) {
+	}
+
+	@Override
+	public void onError(ChatEngine engine, String reason) {
+	}
+
+	@Override
+	public void onUserEvent(ChatEngine engine, User user, boolean connected) {
+	}
+
+	@Override
+	public void onUsersLoaded(ChatEngine engine, List<User> users) {
+	}
+
+	@Override
+	public void onDisconnected(ChatEngine engine, IOException error) {
+	}
+
+}
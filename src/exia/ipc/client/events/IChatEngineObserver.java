@@ -0,0 +1,56 @@
+package exia.ipc.client.events;
+
+import java.io.IOException;
+import java.util.List;
+
+import exia.ipc.client.ChatEngine;
+import exia.ipc.client.entities.User;
+import exia.ipc.client.protocol.ServerFrame;
+
+/**
+ * Design pattern Observer, pour suivre une connexion au serveur.
+ *
+ * Les mthodes sont appeles par le thread de lecture de la connexion : elles doivent rendre la
+ * main vite, et passer dans l'EDT pour toucher  une fentre.
+ */
+public interface IChatEngineObserver {
+
+	/**
+	 * Quand la connexion vient d'tre ouverte, juste avant l'envoi du nom au serveur.
+	 */
+	public void onConnected(ChatEngine engine);
+
+	/**
+	 * Quand une donne a t reue du serveur. La vue est rutilise : elle n'est valide que
+	 * pendant l'appel. Les battements de coeur (PING, PONG) ne sont pas transmis.
+	 */
+	public void onFrame(ChatEngine engine, ServerFrame frame);
+
+	/**
+	 * Quand le serveur a envoy une erreur qui ne concerne que nous : message refus,
+	 * destinataire inconnu, connexion refuse ou coupe... Ces erreurs ne passent pas par onFrame().
+	 *
+	 * @param reason La raison envoye par le serveur, par exemple rate-limited.
+	 */
+	public void onError(ChatEngine engine, String reason);
+
+	/**
+	 * Quand un utilisateur vient de se connecter ou de se dconnecter.
+	 */
+	public void onUserEvent(ChatEngine engine, User user, boolean connected);
+
+	/**
+	 * Quand plusieurs utilisateurs ont t reus d'un coup : une page de la liste des connects,
+	 * ou des connexions regroupes.
+	 */
+	public void onUsersLoaded(ChatEngine engine, List<User> users);
+
+	/**
+	 * Quand la connexion est ferme.
+	 *
+	 * @param error L'erreur de lecture, ou NULL si le serveur a ferm la connexion ou si on a
+	 * appel disconnect().
+	 */
+	public void onDisconnected(ChatEngine engine, IOException error);
+
+}
@@ -1,5 +1,7 @@
 package exia.ipc.client.events;
 
+import java.util.List;
+
 import exia.ipc.client.entities.Log;
 import exia.ipc.client.entities.User;
 
@@ -28,4 +30,9 @@ public interface IModelObservable {
 	 */
 	public void notifyListeners(User user, boolean connected);
 	
+	/**
+	 * Lancer un vnement quand plusieurs utilisateurs dj connects viennent d'tre chargs.
+	 */
+	public void notifyListeners(List<User> users);
+	
 }
@@ -1,5 +1,7 @@
 package exia.ipc.client.events;
 
+import java.util.List;
+
 import exia.ipc.client.entities.Log;
 import exia.ipc.client.entities.User;
 
@@ -13,6 +15,11 @@ public interface IModelObserver {
 	 */
 	public void onUserEvent(User user, boolean connected);
 	
+	/**
+	 * Quand la liste des utilisateurs dj connects a t reue, en une seule fois.
+	 */
+	public void onUsersLoaded(List<User> users);
+	
 	/**
 	 * Quand un message a t reu.
 	 */
@@ -8,6 +8,9 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JFrame;
@@ -108,7 +111,7 @@ public class Controller implements IModelObserver, Runnable {
 				}
 				// On envoie le message au serveur
 				else {
-					client.getOutputStream().println(client.getProtocol().sendMessageToServer(log));
+					client.getProtocol().sendMessage(log);
 				}
 			}
 		});
@@ -172,6 +175,23 @@ public class Controller implements IModelObserver, Runnable {
 		}
 	}
 	
+	/**
+	 * Met  jour la liste des utilisateurs d'un coup, quand la liste des connects est reue.
+	 * Les noms dj affichs sont relevs une seule fois, plutt qu'un contains() par utilisateur.
+	 */
+	@Override
+	public void onUsersLoaded(List<User> users) {
+		DefaultListModel<String> model = view.getUsersListModel();
+		Set<String> known = new HashSet<>(model.getSize() * 2);
+		for (int i = 0; i < model.getSize(); i++) {
+			known.add(model.getElementAt(i));
+		}
+		for (User user : users) {
+			String fqn = user.getName() + "@" + user.getLocation();
+			if (known.add(fqn)) model.addElement(fqn);
+		}
+	}
+	
 	/**
 	 * Met  jour la vue quand un client a envoy un message.
 	 */
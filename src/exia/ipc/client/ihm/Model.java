@@ -80,11 +80,28 @@ public class Model implements IModelObservable {
 		}
 	}
 
+	@Override
+	public void notifyListeners(List<User> users) {
+		//listeners.forEach(listener -> listener.onUsersLoaded(users));
+		for (IModelObserver listener : listeners) {
+			listener.onUsersLoaded(users);
+		}
+	}
+
 	public void addUser(User user) {
 		connectedUsers.add(user);
 		notifyListeners(user, true);
 	}
 	
+	/**
+	 * Ajoute toute une liste d'utilisateurs, avec un seul vnement.
+	 */
+	public void addUsers(List<User> users) {
+		if (users.isEmpty()) return;
+		connectedUsers.addAll(users);
+		notifyListeners(users);
+	}
+	
 	public void removeUser(User user) {
 		if (connectedUsers.remove(user)) {
 			notifyListeners(user, false);
@@ -1,5 +1,6 @@
 package exia.ipc.client.ihm;
 
+import java.awt.Color;
 import java.awt.EventQueue;
 import java.awt.Font;
 
@@ -18,6 +19,11 @@ import javax.swing.JTextField;
 import javax.swing.JTextPane;
 import javax.swing.LayoutStyle.ComponentPlacement;
 import javax.swing.border.EmptyBorder;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
 import javax.swing.DefaultComboBoxModel;
 
 /**
@@ -47,6 +53,11 @@ public class View<E> extends JFrame {
 
 	private DefaultComboBoxModel<E> cypherModel;
 
+	/**
+	 * Le style des erreurs envoyes par le serveur.
+	 */
+	private final SimpleAttributeSet errorStyle = new SimpleAttributeSet();
+
 	/**
 	 * Create the frame.
 	 */
@@ -115,6 +126,7 @@ public class View<E> extends JFrame {
 		
 		outputArea = new JTextPane();
 		outputArea.setEditable(false);
+		StyleConstants.setForeground(errorStyle, Color.RED);
 		scrollPane.setViewportView(outputArea);
 		contentPane.setLayout(gl_contentPane);
 	}
@@ -152,7 +164,37 @@ public class View<E> extends JFrame {
 			// On arrte l ce traitement
 			return;
 		}
-		outputArea.setText(outputArea.getText() + txt + "\n");
+		append(txt, null);
+	}
+
+	/**
+	 * Affiche une erreur envoye par le serveur, en rouge pour la distinguer des messages.
+	 */
+	public void appendError(final String txt) {
+		if (!EventQueue.isDispatchThread()) {
+			//EventQueue.invokeLater(() -> appendError(txt));
+			EventQueue.invokeLater(new Runnable() {
+				public void run() {
+					appendError(txt);
+				}
+			});
+			return;
+		}
+		append(txt, errorStyle);
+	}
+
+	/**
+	 * Ajoute une ligne  la fin de la console. On l'insre dans le document plutt que de
+	 * remplacer tout le texte : les lignes dj affiches gardent leur style.
+	 */
+	private void append(String txt, AttributeSet style) {
+		Document document = outputArea.getDocument();
+		try {
+			document.insertString(document.getLength(), txt + "\n", style);
+		}
+		catch (BadLocationException e) {
+			// La fin du document est toujours une position valide
+		}
 	}
 
 	public JLabel getUserNameLabel() {
@@ -0,0 +1,269 @@
+package exia.ipc.client.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Le protocole binaire : des trames prfixes par leur longueur, avec des champs typs.
+ *
+ * Le format est dcrit dans BinaryServerProtocol, ct serveur. Le client annonce le protocole
+ * en envoyant l'octet MAGIC juste avant sa trame HELLO ; le serveur confirme en commenant sa
+ * rponse par le mme octet. Les messages peuvent contenir des retours  la ligne.
+ *
+ * Un serveur qui refuse la connexion (plein, trop de connexions de notre adresse...) ne connat
+ * pas encore notre protocole : il rpond par une ligne de texte "ERROR raison"  la place de
+ * l'octet MAGIC, puis ferme la connexion. Cette ligne est rendue comme une trame ERROR.
+ */
+public class BinaryClientProtocol extends ChatClientProtocol {
+
+	/**
+	 * L'octet qui annonce le protocole binaire, dans les deux sens.
+	 */
+	public static final int MAGIC = 0xB1;
+
+	/**
+	 * Taille maximale d'une trame du serveur. Elle peut dpasser celle des trames des clients,
+	 * car le serveur y ajoute le nom et l'adresse de l'expditeur.
+	 */
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	// Les types de trames, identiques  ceux de BinaryServerProtocol
+	public static final int HELLO = 1;
+	public static final int MSG = 2;
+	public static final int MESSAGE = 3;
+	public static final int CONNECTED = 4;
+	public static final int DISCONNECTED = 5;
+	public static final int LINE = 6;
+	public static final int ROSTER = 7;
+	public static final int PRESENCE = 8;
+	public static final int JOIN = 9;
+	public static final int LEAVE = 10;
+	public static final int ROOM_MSG = 11;
+	public static final int ROOM_MESSAGE = 12;
+	public static final int JOINED = 13;
+	public static final int LEFT = 14;
+	public static final int DM = 15;
+	public static final int DIRECT_MESSAGE = 16;
+	public static final int ERROR = 17;
+	public static final int PING = 18;
+	public static final int PONG = 19;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Le dbut de la ligne d'un refus de connexion.
+	 */
+	private static final String REJECTION_PREFIX = "ERROR ";
+
+	/**
+	 * La taille maximale de la ligne d'un refus de connexion, en octets.
+	 */
+	private static final int MAX_REJECTION_LENGTH = 256;
+
+	/**
+	 * Le flux d'criture sur le socket.
+	 */
+	private DataOutputStream outStream;
+
+	/**
+	 * Le flux de lecture sur le socket.
+	 */
+	private DataInputStream inStream;
+
+	/**
+	 * Le serveur a confirm qu'il parle le protocole binaire.
+	 */
+	private boolean welcomed;
+
+	/**
+	 * Le tableau dans lequel on lit les trames, rutilis d'une trame  l'autre.
+	 */
+	private byte[] buffer = new byte[8192];
+
+	/**
+	 * La vue rutilise pour chaque trame reue. Elle n'est utilise que par le thread de lecture.
+	 */
+	private final ServerFrame frame = new ServerFrame();
+
+	@Override
+	public void open(Socket socket) throws IOException {
+		outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		inStream  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		welcomed = false;
+	}
+
+	@Override
+	public synchronized void sendHello(String clientName) {
+		try {
+			// On annonce le protocole, juste avant la premire trame
+			outStream.write(MAGIC);
+			writeFrame(HELLO, clientName.trim());
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	@Override
+	public synchronized void sendMessage(String log) {
+		try {
+			writeFrame(MSG, getEngine().getCypher().encode(log));
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	@Override
+	public synchronized void joinRoom(String room) {
+		try {
+			writeFrame(JOIN, room.trim());
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	@Override
+	public synchronized void leaveRoom(String room) {
+		try {
+			writeFrame(LEAVE, room.trim());
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	@Override
+	public synchronized void sendRoomMessage(String room, String log) {
+		try {
+			writeFrame(ROOM_MSG, room.trim(), getEngine().getCypher().encode(log));
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	@Override
+	public synchronized void sendDirectMessage(String recipient, String log) {
+		try {
+			writeFrame(DM, recipient.trim(), getEngine().getCypher().encode(log));
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	@Override
+	public synchronized void sendPing() {
+		try {
+			writeFrame(PING, "");
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	@Override
+	public synchronized void sendPong() {
+		try {
+			writeFrame(PONG, "");
+		}
+		catch (IOException e) {
+			// Comme PrintWriter, on ignore l'erreur : la lecture du socket chouera aussi
+		}
+	}
+
+	/**
+	 * Ecrit une trame avec une cible (salon ou destinataire) prfixe par sa longueur, puis le
+	 * message qui occupe le reste de la trame, et l'envoie tout de suite.
+	 */
+	private void writeFrame(int type, String target, String value) throws IOException {
+		byte[] targetBytes = target.getBytes(UTF8);
+		byte[] bytes = value.getBytes(UTF8);
+		outStream.writeInt(1 + 2 + targetBytes.length + bytes.length);
+		outStream.write(type);
+		outStream.writeShort(targetBytes.length);
+		outStream.write(targetBytes);
+		outStream.write(bytes);
+		outStream.flush();
+	}
+
+	/**
+	 * Ecrit une trame qui n'a qu'un champ de texte, et l'envoie tout de suite.
+	 */
+	private void writeFrame(int type, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		outStream.writeInt(1 + bytes.length);
+		outStream.write(type);
+		outStream.write(bytes);
+		outStream.flush();
+	}
+
+	@Override
+	public ServerFrame readServerFrame() throws IOException {
+
+		// Le serveur confirme le protocole avant toute trame
+		if (!welcomed) {
+			int firstByte = inStream.read();
+			if (firstByte < 0) return null;
+			// Le serveur a refus la connexion avant de lire notre protocole
+			if (firstByte == REJECTION_PREFIX.charAt(0)) {
+				return update(frame.parse(readRejection(firstByte)));
+			}
+			if (firstByte != MAGIC) {
+				throw new IOException("Le serveur ne connat pas le protocole binaire");
+			}
+			welcomed = true;
+		}
+
+		// Le serveur a ferm la connexion entre deux trames
+		int length;
+		try {
+			length = inStream.readInt();
+		}
+		catch (EOFException e) {
+			return null;
+		}
+
+		if (length < 1 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Trame invalide de " + length + " octets");
+		}
+		if (length > buffer.length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+
+		// La longueur indique exactement combien d'octets lire
+		inStream.readFully(buffer, 0, length);
+		return update(frame.parse(buffer, length));
+
+	}
+
+	/**
+	 * Lit la ligne d'un refus de connexion, dont on a dj lu le premier octet. Le serveur
+	 * l'crit avec son encodage par dfaut, comme les lignes du protocole texte.
+	 *
+	 * @throws IOException Ce n'est pas une ligne ERROR : le serveur ne parle pas ce protocole.
+	 */
+	private String readRejection(int firstByte) throws IOException {
+		byte[] line = new byte[MAX_REJECTION_LENGTH];
+		int length = 0;
+		int b = firstByte;
+		while (b >= 0 && b != '\n' && length < line.length) {
+			line[length++] = (byte) b;
+			b = inStream.read();
+		}
+		String text = new String(line, 0, length, Charset.defaultCharset()).trim();
+		if (!text.startsWith(REJECTION_PREFIX)) {
+			throw new IOException("Le serveur ne connat pas le protocole binaire");
+		}
+		return text;
+	}
+
+}
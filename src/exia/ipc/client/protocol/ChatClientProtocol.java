@@ -1,70 +1,178 @@
 package exia.ipc.client.protocol;
 
-import exia.ipc.client.ChatClient;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import exia.ipc.client.ChatEngine;
 import exia.ipc.client.entities.User;
 
 public class ChatClientProtocol implements IClientProtocol {
 
-	private ChatClient client;
+	private ChatEngine engine;
+
+	/**
+	 * Le flux d'criture sur le socket.
+	 */
+	private PrintWriter outStream;
+
+	/**
+	 * Le flux de lecture sur le socket.
+	 */
+	private BufferedReader inStream;
 
+	/**
+	 * La vue rutilise pour chaque ligne reue. Elle n'est utilise que par le thread de lecture.
+	 */
+	private final ServerFrame frame = new ServerFrame();
+
+	@Override
+	public void setEngine(ChatEngine engine) {
+		this.engine = engine;
+	}
+	
+	public ChatEngine getEngine() {
+		return engine;
+	}
+	
+	@Override
+	public void open(Socket socket) throws IOException {
+		outStream = new PrintWriter(socket.getOutputStream(), true);
+		inStream  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+	}
+	
+	@Override
+	public void sendHello(String clientName) {
+		outStream.println(sayHelloToServer(clientName));
+	}
+	
+	@Override
+	public void sendMessage(String log) {
+		outStream.println(sendMessageToServer(log));
+	}
+	
+	@Override
+	public void joinRoom(String room) {
+		outStream.println("JOIN " + room.trim());
+	}
+	
+	@Override
+	public void leaveRoom(String room) {
+		outStream.println("LEAVE " + room.trim());
+	}
+	
 	@Override
-	public void setClient(ChatClient client) {
-		this.client = client;
+	public void sendRoomMessage(String room, String log) {
+		outStream.println("ROOMMSG " + room.trim() + " " + engine.getCypher().encode(log));
 	}
 	
 	@Override
+	public void sendDirectMessage(String recipient, String log) {
+		outStream.println("DM " + recipient.trim() + " " + engine.getCypher().encode(log));
+	}
+	
+	@Override
+	public void sendPing() {
+		outStream.println("PING");
+	}
+	
+	@Override
+	public void sendPong() {
+		outStream.println("PONG");
+	}
+	
+	@Override
+	public ServerFrame readServerFrame() throws IOException {
+		String inputLine = inStream.readLine();
+		return inputLine == null ? null : decodeServerInput(inputLine);
+	}
+	
 	public String sayHelloToServer(String clientName) {
 		return "HELLO " + clientName.trim();
 	}
 
-	@Override
 	public String sendMessageToServer(String log) {
-		return "MSG " + client.getCypher().encode(log);
+		return "MSG " + engine.getCypher().encode(log);
 	}
 
-	@Override
+	/**
+	 * Traite une ligne du serveur et renvoie le texte  afficher.
+	 */
 	public String processServerInput(String inputLine) {
+		return decodeServerInput(inputLine).render(engine.getCypher());
+	}
+
+	/**
+	 * Traite une ligne du serveur sans fabriquer le texte  afficher.
+	 * La vue renvoye est rutilise : elle n'est valide que jusqu' la ligne suivante.
+	 */
+	public ServerFrame decodeServerInput(String inputLine) {
 		
 		// Debug
 		// System.out.println("Le serveur a envoy: " + inputLine);
 		
-		// On explose la chane avec les espaces. On cherche  isoler le
-		// premier mot (qui indique la commande) et le reste de la ligne.
-		String[] tokens = inputLine.trim().split("\\s+", 2);
-		
-		// Message vide
-		if (tokens.length < 2) {
-			return "Erreur: message invalide du serveur";
-		}
+		// On dcoupe la ligne en un seul passage, dans la vue rutilisable.
+		// Les champs ne sont extraits que si on en a besoin.
+		// Ancienne mthode : inputLine.trim().split("\\s+", 2) puis un second split par commande
+		return update(frame.parse(inputLine));
+	}
+
+	/**
+	 * Signale  la connexion les utilisateurs connects et dconnects d'aprs ce que le serveur
+	 * a envoy.
+	 * 
+	 * @param frame La vue sur la donne reue.
+	 * @return La vue elle-mme.
+	 */
+	protected ServerFrame update(ServerFrame frame) {
 		
 		// On value le type de fonction
-		switch (tokens[0].toUpperCase()) {
-		
-		// Un message a t reu
-		case "MSG":
-			tokens = tokens[1].trim().split("\\s+", 4);
-			String msg = client.getCypher().decode(tokens[3]);
-			return String.format("%s a dit: %s", tokens[0], msg);
+		switch (frame.getType()) {
+			
+		case CONNECTED:
+			// On ajoute l'utilisateur
+			engine.userConnected(frame.getUser(), frame.getAddress());
+			break;
 			
-		case "CONNECTED":
-			tokens = tokens[1].trim().split("\\s+", 2);
-			// On ajoute l'utilisateur dans la modle
-			client.getModel().addUser(new User(tokens[0], tokens[1]));
-			return String.format("* %s vient de se connecter (%s)", tokens[0], tokens[1]);
+		case DISCONNECTED:
+			// On retire l'utilisateur qui vient de se dconnecter
+			engine.userDisconnected(frame.getUser(), frame.getAddress());
+			break;
 			
-		case "DISCONNECTED":
-			tokens = tokens[1].trim().split("\\s+", 2);
-			// On cherche l'utilisateur qui vient de se dconnecter
-			User user = client.getModel().findUser(tokens[0], tokens[1]);
-			// On retire l'utilisateur
-			client.getModel().removeUser(user);
-			return String.format("* %s vient de se dconnecter (%s)", tokens[0], tokens[1]);
+		case ROSTER:
+			// On charge toute la page d'un coup
+			List<User> users = new ArrayList<>(frame.getRosterSize());
+			for (int i = 0; i < frame.getRosterSize(); i++) {
+				users.add(new User(frame.getRosterUser(i), frame.getRosterAddress(i)));
+			}
+			engine.usersLoaded(users);
+			break;
 			
-		// Par dfaut
+		case PRESENCE:
+			// Les arrives sont charges d'un coup, les dparts retirs un par un
+			List<User> joined = new ArrayList<>();
+			for (int i = 0; i < frame.getPresenceSize(); i++) {
+				if (frame.isPresenceJoined(i)) {
+					joined.add(new User(frame.getPresenceUser(i), frame.getPresenceAddress(i)));
+				}
+				else {
+					engine.userDisconnected(frame.getPresenceUser(i), frame.getPresenceAddress(i));
+				}
+			}
+			engine.usersLoaded(joined);
+			break;
+			
+		// Les messages et les erreurs ne changent pas la liste des utilisateurs : il n'y a que du texte  afficher
 		default :
-			return "Commande invalide " + tokens[0] + " envoye par le serveur";
+			break;
 		
 		}
+		
+		return frame;
 	}
 
 }
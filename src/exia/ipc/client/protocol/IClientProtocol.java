@@ -1,15 +1,70 @@
 package exia.ipc.client.protocol;
 
-import exia.ipc.client.ChatClient;
+import java.io.IOException;
+import java.net.Socket;
+
+import exia.ipc.client.ChatEngine;
 
 public interface IClientProtocol {
-	
-	public void setClient(ChatClient client);
 
-	public String sayHelloToServer(String clientName);
+	/**
+	 * Rattache le protocole  la connexion qui l'utilise : on y prend le chiffrement, et on
+	 * lui signale les connexions et les dconnexions des utilisateurs.
+	 */
+	public void setEngine(ChatEngine engine);
+
+	/**
+	 * Ouvre les flux sur un socket qui vient d'tre connect au serveur.
+	 * C'est le protocole qui dcide comment lire et crire.
+	 */
+	public void open(Socket socket) throws IOException;
+
+	/**
+	 * Envoie le nom du client au serveur, en dbut de communication.
+	 */
+	public void sendHello(String clientName);
+
+	/**
+	 * Envoie un message au serveur.
+	 */
+	public void sendMessage(String log);
+
+	/**
+	 * Entre dans un salon. Le serveur confirme par un vnement JOINED.
+	 */
+	public void joinRoom(String room);
+
+	/**
+	 * Quitte un salon. Le serveur confirme par un vnement LEFT.
+	 */
+	public void leaveRoom(String room);
+
+	/**
+	 * Envoie un message aux membres d'un salon.
+	 */
+	public void sendRoomMessage(String room, String log);
+
+	/**
+	 * Envoie un message priv  un utilisateur, dsign par son nom ou par nom@adresse.
+	 */
+	public void sendDirectMessage(String recipient, String log);
+
+	/**
+	 * Envoie un battement de coeur au serveur, qui rpond PONG.
+	 */
+	public void sendPing();
+
+	/**
+	 * Rpond au battement de coeur du serveur : sans rponse, il finit par nous dconnecter.
+	 */
+	public void sendPong();
 
-	public String sendMessageToServer(String log);
-	
-	public String processServerInput(String inputLine);
+	/**
+	 * Lit et traite la prochaine donne envoye par le serveur, sans fabriquer le texte  afficher.
+	 * La vue renvoye est rutilise : elle n'est valide que jusqu' l'appel suivant.
+	 *
+	 * @return La vue sur la donne reue, ou NULL si le serveur a ferm la connexion.
+	 */
+	public ServerFrame readServerFrame() throws IOException;
 
 }
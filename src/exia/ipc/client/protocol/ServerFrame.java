@@ -0,0 +1,760 @@
+package exia.ipc.client.protocol;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import exia.ipc.client.cypher.ICypher;
+
+/**
+ * Une vue sur une ligne envoye par le serveur, dcoupe en un seul passage et sans regex.
+ *
+ * La vue est rutilisable : parse() la recycle pour chaque nouvelle ligne. Le dcoupage ne retient
+ * que des positions dans la ligne ; les champs ne sont extraits que si on les demande, et le texte
+ *  afficher n'est fabriqu que par render(), c'est--dire seulement quand une vue l'affiche.
+ *
+ * La mme vue sert pour les trames du protocole binaire : les positions sont alors celles des
+ * champs dans le tableau d'octets.
+ */
+public class ServerFrame {
+
+	/**
+	 * Les types de lignes envoyes par le serveur.
+	 */
+	public enum Type {
+
+		/** Un message : MSG user address timestamp payload */
+		MSG(3),
+
+		/** Un message priv : DM user address timestamp payload */
+		DM(3),
+
+		/** Un message dans un salon : ROOMMSG user address timestamp room payload */
+		ROOMMSG(4),
+
+		/** Un utilisateur vient d'entrer dans un salon : JOINED user address room */
+		JOINED(2),
+
+		/** Un utilisateur vient de quitter un salon : LEFT user address room */
+		LEFT(2),
+
+		/** Un utilisateur vient de se connecter : CONNECTED user address */
+		CONNECTED(1),
+
+		/** Un utilisateur vient de se dconnecter : DISCONNECTED user address */
+		DISCONNECTED(1),
+
+		/** Une page de la liste des utilisateurs dj connects : ROSTER page/pages user address user address... */
+		ROSTER(0),
+
+		/** Des connexions et des dconnexions regroupes : PRESENCE +user address -user address... */
+		PRESENCE(0),
+
+		/** Un battement de coeur : le serveur vrifie qu'on est toujours l, il faut rpondre PONG. */
+		PING(0),
+
+		/** La rponse du serveur  notre PING. */
+		PONG(0),
+
+		/** Une erreur qui ne concerne que nous : ERROR reason */
+		ERROR(0),
+
+		/** Une commande ou une trame inconnue. */
+		UNKNOWN(0),
+
+		/** Une ligne vide ou  laquelle il manque des champs. */
+		INVALID(0);
+
+		/**
+		 * Le nombre de champs spars par des espaces avant le dernier, qui prend le reste de la ligne.
+		 */
+		final int fields;
+
+		Type(int fields) {
+			this.fields = fields;
+		}
+
+	}
+
+	/**
+	 * La raison de l'erreur envoye quand le serveur refuse un de nos messages parce qu'on en
+	 * envoie trop : le message n'a t reu par personne.
+	 */
+	public static final String RATE_LIMITED = "rate-limited";
+
+	/**
+	 * Les positions de dbut et de fin du verbe et des champs : [dbut, fin] par mot.
+	 */
+	private final int[] bounds = new int[12];
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * La ligne en cours.
+	 */
+	private String line;
+
+	/**
+	 * La trame binaire en cours, ou NULL pour une ligne de texte.
+	 */
+	private byte[] bytes;
+
+	/**
+	 * Le type de la trame binaire en cours, tel qu'il a t envoy.
+	 */
+	private int code;
+
+	/**
+	 * Le type de la ligne en cours.
+	 */
+	private Type type;
+
+	/**
+	 * Les positions des utilisateurs d'une liste (ROSTER, PRESENCE) : [dbut du nom, fin du nom, dbut de
+	 * l'adresse, fin de l'adresse] par utilisateur. Le tableau grandit au besoin et est rutilis.
+	 */
+	private int[] entries = new int[64];
+
+	/**
+	 * Le nombre d'utilisateurs de la liste en cours.
+	 */
+	private int entryCount;
+
+	/**
+	 * Pour chaque utilisateur d'une liste PRESENCE : TRUE s'il vient de se connecter, FALSE s'il
+	 * vient de se dconnecter.
+	 */
+	private boolean[] joined = new boolean[16];
+
+	/**
+	 * Le numro de la page de la liste en cours, et le nombre de pages.
+	 */
+	private int page, pages;
+
+	/**
+	 * Dcoupe une nouvelle ligne. Les valeurs de la ligne prcdente sont perdues.
+	 *
+	 * @param inputLine La ligne envoye par le serveur.
+	 * @return La vue elle-mme.
+	 */
+	public ServerFrame parse(String inputLine) {
+
+		line = inputLine;
+		bytes = null;
+		int length = inputLine.length();
+
+		// Le verbe
+		int pos = skipSpaces(0);
+		int end = endOfToken(pos);
+		bounds[0] = pos;
+		bounds[1] = end;
+		type = typeOf(pos, end);
+
+		// Les battements de coeur n'ont pas de champ
+		if (type == Type.PING || type == Type.PONG) {
+			return this;
+		}
+
+		// Une liste d'utilisateurs n'a pas un nombre de champs fixe
+		if (type == Type.ROSTER) {
+			return parseRoster(end);
+		}
+		if (type == Type.PRESENCE) {
+			return parsePresence(end);
+		}
+
+		// Les champs spars par des espaces
+		int fields = type.fields;
+		for (int i = 1; i <= fields; i++) {
+			pos = skipSpaces(end);
+			end = endOfToken(pos);
+			bounds[2 * i] = pos;
+			bounds[2 * i + 1] = end;
+		}
+
+		// Le dernier champ prend le reste de la ligne, sans les espaces finaux
+		pos = skipSpaces(end);
+		end = length;
+		while (end > pos && inputLine.charAt(end - 1) <= ' ') end--;
+		bounds[2 * fields + 2] = pos;
+		bounds[2 * fields + 3] = end;
+
+		// Il manque des champs
+		if (pos >= end) {
+			type = Type.INVALID;
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * Dcoupe une trame du protocole binaire. Les valeurs de la trame prcdente sont perdues, et
+	 * le tableau ne doit pas tre modifi tant que la vue est utilise.
+	 *
+	 * @param frame Le tableau qui contient la trame,  partir de son type (sans la longueur).
+	 * @param length La longueur de la trame.
+	 * @return La vue elle-mme.
+	 */
+	public ServerFrame parse(byte[] frame, int length) {
+
+		code = frame[0] & 0xFF;
+
+		// Une ligne du protocole texte, pour les vnements sans trame ddie
+		if (code == BinaryClientProtocol.LINE) {
+			return parse(new String(frame, 1, length - 1, UTF8));
+		}
+
+		line = null;
+		bytes = frame;
+		bounds[0] = 0;
+		bounds[1] = 1;
+
+		switch (code) {
+		case BinaryClientProtocol.MESSAGE :
+			type = Type.MSG;
+			break;
+		case BinaryClientProtocol.CONNECTED :
+			type = Type.CONNECTED;
+			break;
+		case BinaryClientProtocol.DISCONNECTED :
+			type = Type.DISCONNECTED;
+			break;
+		case BinaryClientProtocol.DIRECT_MESSAGE :
+			type = Type.DM;
+			break;
+		case BinaryClientProtocol.ROOM_MESSAGE :
+			type = Type.ROOMMSG;
+			break;
+		case BinaryClientProtocol.JOINED :
+			type = Type.JOINED;
+			break;
+		case BinaryClientProtocol.LEFT :
+			type = Type.LEFT;
+			break;
+		case BinaryClientProtocol.ROSTER :
+			type = Type.ROSTER;
+			return parseRoster(frame, length);
+		case BinaryClientProtocol.PRESENCE :
+			type = Type.PRESENCE;
+			return parsePresence(frame, length);
+		case BinaryClientProtocol.PING :
+			type = Type.PING;
+			return this;
+		case BinaryClientProtocol.PONG :
+			type = Type.PONG;
+			return this;
+		case BinaryClientProtocol.ERROR :
+			// La raison occupe toute la trame
+			type = Type.ERROR;
+			bounds[2] = 1;
+			bounds[3] = length;
+			return this;
+		default :
+			type = Type.UNKNOWN;
+			bounds[2] = 1;
+			bounds[3] = length;
+			return this;
+		}
+
+		// Les textes prfixs par leur longueur : le nom, et l'adresse sauf pour CONNECTED et DISCONNECTED
+		int pos = 1;
+		int fields = type == Type.CONNECTED || type == Type.DISCONNECTED ? 1 : 2;
+		for (int i = 1; i <= fields; i++) {
+			if (pos + 2 > length) {
+				type = Type.INVALID;
+				return this;
+			}
+			int fieldLength = uint16(frame, pos);
+			bounds[2 * i] = pos + 2;
+			bounds[2 * i + 1] = pos = pos + 2 + fieldLength;
+		}
+
+		// La date
+		if (type == Type.MSG || type == Type.DM || type == Type.ROOMMSG) {
+			bounds[6] = pos;
+			bounds[7] = pos = pos + 8;
+		}
+
+		// Le salon d'un message
+		if (type == Type.ROOMMSG) {
+			if (pos + 2 > length) {
+				type = Type.INVALID;
+				return this;
+			}
+			bounds[8] = pos + 2;
+			bounds[9] = pos = pos + 2 + uint16(frame, pos);
+		}
+
+		// Le dernier champ prend le reste de la trame
+		bounds[2 * type.fields + 2] = pos;
+		bounds[2 * type.fields + 3] = length;
+		if (pos > length) {
+			type = Type.INVALID;
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * Dcoupe une liste d'utilisateurs en texte : page/pages puis des paires nom adresse.
+	 */
+	private ServerFrame parseRoster(int end) {
+
+		// La page et le nombre de pages
+		int pos = skipSpaces(end);
+		end = endOfToken(pos);
+		int slash = line.indexOf('/', pos);
+		if (slash < 0 || slash >= end) {
+			type = Type.INVALID;
+			return this;
+		}
+		page = number(pos, slash);
+		pages = number(slash + 1, end);
+
+		// Les utilisateurs
+		entryCount = 0;
+		while (true) {
+			int userStart = skipSpaces(end);
+			int userEnd = endOfToken(userStart);
+			if (userStart >= userEnd) break;
+			int addressStart = skipSpaces(userEnd);
+			end = endOfToken(addressStart);
+			if (addressStart >= end) {
+				type = Type.INVALID;
+				return this;
+			}
+			addEntry(userStart, userEnd, addressStart, end);
+		}
+
+		if (page < 1 || pages < page) {
+			type = Type.INVALID;
+		}
+		return this;
+
+	}
+
+	/**
+	 * Dcoupe une liste d'utilisateurs en binaire : page, pages et nombre sur 16 bits, puis des
+	 * paires de textes prfixs par leur longueur.
+	 */
+	private ServerFrame parseRoster(byte[] frame, int length) {
+
+		if (length < 7) {
+			type = Type.INVALID;
+			return this;
+		}
+		page = uint16(frame, 1);
+		pages = uint16(frame, 3);
+		int count = uint16(frame, 5);
+
+		entryCount = 0;
+		int pos = 7;
+		for (int i = 0; i < count; i++) {
+			if (pos + 2 > length) break;
+			int userStart = pos + 2;
+			int userEnd = userStart + uint16(frame, pos);
+			if (userEnd + 2 > length) break;
+			int addressStart = userEnd + 2;
+			pos = addressStart + uint16(frame, userEnd);
+			if (pos > length) break;
+			addEntry(userStart, userEnd, addressStart, pos);
+		}
+
+		if (entryCount != count || page < 1 || pages < page) {
+			type = Type.INVALID;
+		}
+		return this;
+
+	}
+
+	/**
+	 * Dcoupe des changements regroups en texte : des paires nom adresse, le nom prcd de
+	 * + (connexion) ou - (dconnexion).
+	 */
+	private ServerFrame parsePresence(int end) {
+
+		entryCount = 0;
+		while (true) {
+			int userStart = skipSpaces(end);
+			int userEnd = endOfToken(userStart);
+			if (userStart >= userEnd) break;
+			int addressStart = skipSpaces(userEnd);
+			end = endOfToken(addressStart);
+			char sign = line.charAt(userStart);
+			if (addressStart >= end || userEnd - userStart < 2 || (sign != '+' && sign != '-')) {
+				type = Type.INVALID;
+				return this;
+			}
+			addEntry(userStart + 1, userEnd, addressStart, end);
+			setJoined(sign == '+');
+		}
+		return this;
+
+	}
+
+	/**
+	 * Dcoupe des changements regroups en binaire : le nombre sur 16 bits, puis pour chaque
+	 * changement son type (CONNECTED ou DISCONNECTED) et deux textes prfixs par leur longueur.
+	 */
+	private ServerFrame parsePresence(byte[] frame, int length) {
+
+		if (length < 3) {
+			type = Type.INVALID;
+			return this;
+		}
+		int count = uint16(frame, 1);
+
+		entryCount = 0;
+		int pos = 3;
+		for (int i = 0; i < count; i++) {
+			if (pos + 3 > length) break;
+			int kind = frame[pos] & 0xFF;
+			if (kind != BinaryClientProtocol.CONNECTED && kind != BinaryClientProtocol.DISCONNECTED) break;
+			int userStart = pos + 3;
+			int userEnd = userStart + uint16(frame, pos + 1);
+			if (userEnd + 2 > length) break;
+			int addressStart = userEnd + 2;
+			pos = addressStart + uint16(frame, userEnd);
+			if (pos > length) break;
+			addEntry(userStart, userEnd, addressStart, pos);
+			setJoined(kind == BinaryClientProtocol.CONNECTED);
+		}
+
+		if (entryCount != count) {
+			type = Type.INVALID;
+		}
+		return this;
+
+	}
+
+	private void setJoined(boolean value) {
+		if (joined.length < entryCount) {
+			joined = Arrays.copyOf(joined, Math.max(entryCount, joined.length * 2));
+		}
+		joined[entryCount - 1] = value;
+	}
+
+	private void addEntry(int userStart, int userEnd, int addressStart, int addressEnd) {
+		if (entries.length < 4 * (entryCount + 1)) {
+			entries = Arrays.copyOf(entries, entries.length * 2);
+		}
+		int i = 4 * entryCount++;
+		entries[i] = userStart;
+		entries[i + 1] = userEnd;
+		entries[i + 2] = addressStart;
+		entries[i + 3] = addressEnd;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Le verbe, tel qu'il a t envoy.
+	 */
+	public String getVerb() {
+		if (bytes != null) {
+			return type == Type.UNKNOWN ? String.valueOf(code) : type.name();
+		}
+		return field(0);
+	}
+
+	/**
+	 * Le nom de l'utilisateur concern (MSG, DM, ROOMMSG, CONNECTED, DISCONNECTED, JOINED, LEFT).
+	 */
+	public String getUser() {
+		return field(1);
+	}
+
+	/**
+	 * L'adresse de l'utilisateur concern (MSG, DM, ROOMMSG, CONNECTED, DISCONNECTED, JOINED, LEFT).
+	 */
+	public String getAddress() {
+		return field(2);
+	}
+
+	/**
+	 * Le nom du salon (ROOMMSG, JOINED, LEFT).
+	 */
+	public String getRoom() {
+		switch (type) {
+		case ROOMMSG :
+			return field(4);
+		case JOINED :
+		case LEFT :
+			return field(3);
+		default :
+			return null;
+		}
+	}
+
+	/**
+	 * La date d'envoi du message en millisecondes (MSG, DM, ROOMMSG), lue sans crer de chane.
+	 *
+	 * @return La date, ou -1 si le champ n'est pas un nombre.
+	 */
+	public long getTimestamp() {
+		if (type != Type.MSG && type != Type.DM && type != Type.ROOMMSG) return -1;
+		int start = bounds[6], end = bounds[7];
+		// En binaire, la date est un entier sur 8 octets
+		if (bytes != null) {
+			long value = 0;
+			for (int i = start; i < end; i++) {
+				value = value << 8 | (bytes[i] & 0xFF);
+			}
+			return value;
+		}
+		if (start >= end) return -1;
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Le contenu du message, encore chiffr (MSG, DM, ROOMMSG).
+	 */
+	public String getPayload() {
+		return type == Type.MSG || type == Type.DM || type == Type.ROOMMSG ? field(type.fields + 1) : null;
+	}
+
+	/**
+	 * La raison de l'erreur, par exemple rate-limited (ERROR).
+	 */
+	public String getErrorReason() {
+		return type == Type.ERROR ? field(1) : null;
+	}
+
+	/**
+	 * Le numro de la page de la liste,  partir de 1 (ROSTER).
+	 */
+	public int getRosterPage() {
+		return page;
+	}
+
+	/**
+	 * Le nombre de pages de la liste (ROSTER).
+	 */
+	public int getRosterPages() {
+		return pages;
+	}
+
+	/**
+	 * Le nombre d'utilisateurs dans cette page de la liste (ROSTER).
+	 */
+	public int getRosterSize() {
+		return type == Type.ROSTER ? entryCount : 0;
+	}
+
+	/**
+	 * Le nom du i-me utilisateur de la page (ROSTER).
+	 */
+	public String getRosterUser(int index) {
+		return text(entries[4 * index], entries[4 * index + 1]);
+	}
+
+	/**
+	 * L'adresse du i-me utilisateur de la page (ROSTER).
+	 */
+	public String getRosterAddress(int index) {
+		return text(entries[4 * index + 2], entries[4 * index + 3]);
+	}
+
+	/**
+	 * Le nombre de changements regroups (PRESENCE).
+	 */
+	public int getPresenceSize() {
+		return type == Type.PRESENCE ? entryCount : 0;
+	}
+
+	/**
+	 * TRUE si le i-me changement est une connexion, FALSE si c'est une dconnexion (PRESENCE).
+	 */
+	public boolean isPresenceJoined(int index) {
+		return joined[index];
+	}
+
+	/**
+	 * Le nom de l'utilisateur du i-me changement (PRESENCE).
+	 */
+	public String getPresenceUser(int index) {
+		return getRosterUser(index);
+	}
+
+	/**
+	 * L'adresse de l'utilisateur du i-me changement (PRESENCE).
+	 */
+	public String getPresenceAddress(int index) {
+		return getRosterAddress(index);
+	}
+
+	/**
+	 * Fabrique le texte  afficher pour cette ligne.
+	 *
+	 * @param cypher L'algorithme pour dchiffrer le contenu des messages.
+	 * @return Le texte  afficher.
+	 */
+	public String render(ICypher cypher) {
+		switch (type) {
+		case MSG :
+			return getUser() + " a dit: " + cypher.decode(getPayload());
+		case DM :
+			return "[priv] " + getUser() + " a dit: " + cypher.decode(getPayload());
+		case ROOMMSG :
+			return "[" + getRoom() + "] " + getUser() + " a dit: " + cypher.decode(getPayload());
+		case JOINED :
+			return "* " + getUser() + " est entr dans le salon " + getRoom();
+		case LEFT :
+			return "* " + getUser() + " a quitt le salon " + getRoom();
+		case CONNECTED :
+			return "* " + getUser() + " vient de se connecter (" + getAddress() + ")";
+		case DISCONNECTED :
+			return "* " + getUser() + " vient de se dconnecter (" + getAddress() + ")";
+		case ROSTER :
+			return renderRoster();
+		case PRESENCE :
+			return renderPresence();
+		case ERROR :
+			return describeError(getErrorReason());
+		case UNKNOWN :
+			return "Commande invalide " + getVerb() + " envoye par le serveur";
+		default :
+			return "Erreur: message invalide du serveur";
+		}
+	}
+
+	/**
+	 * Le texte  afficher pour une erreur du serveur.
+	 *
+	 * @param reason La raison envoye par le serveur.
+	 */
+	public static String describeError(String reason) {
+		if (RATE_LIMITED.equals(reason)) {
+			return "Message refus : vous envoyez trop de messages, il n'a pas t transmis";
+		}
+		return "Erreur du serveur : " + reason;
+	}
+
+	/**
+	 * Une liste peut compter des milliers d'utilisateurs : on n'affiche que les premiers noms.
+	 */
+	private String renderRoster() {
+		int count = getRosterSize();
+		int shown = Math.min(count, 10);
+		StringBuilder text = new StringBuilder("* Dj connects : ");
+		for (int i = 0; i < shown; i++) {
+			if (i > 0) text.append(", ");
+			text.append(getRosterUser(i));
+		}
+		if (count > shown) {
+			text.append(" et ").append(count - shown).append(" autres");
+		}
+		if (pages > 1) {
+			text.append(" (page ").append(page).append('/').append(pages).append(')');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Comme pour la liste, on n'affiche que les premiers noms de chaque sens.
+	 */
+	private String renderPresence() {
+		StringBuilder text = new StringBuilder("*");
+		for (int pass = 0; pass < 2; pass++) {
+			boolean joining = pass == 0;
+			int count = 0;
+			for (int i = 0; i < entryCount; i++) {
+				if (joined[i] != joining) continue;
+				if (count == 0) text.append(text.length() > 1 ? " ; " : " ").append(joining ? "Connects : " : "Dconnects : ");
+				else if (count < 10) text.append(", ");
+				if (count < 10) text.append(getPresenceUser(i));
+				count++;
+			}
+			if (count > 10) {
+				text.append(" et ").append(count - 10).append(" autres");
+			}
+		}
+		return text.toString();
+	}
+
+	@Override
+	public String toString() {
+		return bytes != null ? type + " (binaire)" : line;
+	}
+
+	/**
+	 * Extrait le n-ime mot de la ligne (0 pour le verbe).
+	 */
+	private String field(int index) {
+		if (index > type.fields + 1) return null;
+		return text(bounds[2 * index], bounds[2 * index + 1]);
+	}
+
+	/**
+	 * Extrait un texte de la ligne ou de la trame en cours.
+	 */
+	private String text(int start, int end) {
+		if (bytes != null) {
+			return new String(bytes, start, end - start, UTF8);
+		}
+		return line.substring(start, end);
+	}
+
+	/**
+	 * Lit un nombre positif dans la ligne, sans crer de chane.
+	 *
+	 * @return Le nombre, ou -1 si ce n'est pas un nombre.
+	 */
+	private int number(int start, int end) {
+		if (start >= end) return -1;
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static int uint16(byte[] frame, int pos) {
+		return (frame[pos] & 0xFF) << 8 | (frame[pos + 1] & 0xFF);
+	}
+
+	/**
+	 * Reconnait le verbe sans tenir compte de la casse, et sans crer de chane.
+	 */
+	private Type typeOf(int start, int end) {
+		if (matches(start, end, "MSG")) return Type.MSG;
+		if (matches(start, end, "CONNECTED")) return Type.CONNECTED;
+		if (matches(start, end, "DISCONNECTED")) return Type.DISCONNECTED;
+		if (matches(start, end, "DM")) return Type.DM;
+		if (matches(start, end, "ROOMMSG")) return Type.ROOMMSG;
+		if (matches(start, end, "JOINED")) return Type.JOINED;
+		if (matches(start, end, "LEFT")) return Type.LEFT;
+		if (matches(start, end, "ROSTER")) return Type.ROSTER;
+		if (matches(start, end, "PRESENCE")) return Type.PRESENCE;
+		if (matches(start, end, "PING")) return Type.PING;
+		if (matches(start, end, "PONG")) return Type.PONG;
+		if (matches(start, end, "ERROR")) return Type.ERROR;
+		return start < end ? Type.UNKNOWN : Type.INVALID;
+	}
+
+	private boolean matches(int start, int end, String verb) {
+		return end - start == verb.length() && line.regionMatches(true, start, verb, 0, verb.length());
+	}
+
+	private int skipSpaces(int from) {
+		while (from < line.length() && line.charAt(from) <= ' ') from++;
+		return from;
+	}
+
+	private int endOfToken(int from) {
+		while (from < line.length() && line.charAt(from) > ' ') from++;
+		return from;
+	}
+
+}
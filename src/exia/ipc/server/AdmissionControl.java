@@ -0,0 +1,201 @@
+package exia.ipc.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exia.ipc.server.metrics.ServerMetrics;
+
+/**
+ * Le contrle d'admission des connexions : dcide, juste aprs accept() et avant toute autre
+ * chose, si le serveur prend un nouveau client.
+ *
+ * Trois limites, chacune dsactive  0 :
+ *  - le nombre total de connexions ouvertes ;
+ *  - le nombre de connexions ouvertes par adresse IP ;
+ *  - le dbit des connexions acceptes, par un seau  jetons, pour amortir une vague de
+ *    reconnexions (aprs un redmarrage, une coupure rseau...).
+ *
+ * Une connexion refuse ne cote qu'un accept(), une ligne crite et un close() : pas de tche,
+ * pas de protocole, pas de file d'envoi. Le serveur reste ainsi debout au lieu d'puiser ses
+ * descripteurs de fichiers et sa mmoire. Les compteurs sont sans verrou, et les refus sont
+ * compts dans les mesures du serveur.
+ */
+public class AdmissionControl {
+
+	/**
+	 * La raison envoye quand le serveur est plein, ou que les connexions arrivent trop vite.
+	 */
+	public static final String SERVER_BUSY = "server-busy";
+
+	/**
+	 * La raison envoye quand l'adresse du client a trop de connexions ouvertes.
+	 */
+	public static final String TOO_MANY_CONNECTIONS = "too-many-connections";
+
+	/**
+	 * Le nombre maximal de connexions ouvertes, 0 pour ne pas limiter.
+	 */
+	private volatile int maxConnections;
+
+	/**
+	 * Le nombre maximal de connexions ouvertes par adresse IP, 0 pour ne pas limiter.
+	 */
+	private volatile int maxPerAddress;
+
+	/**
+	 * Le seau  jetons des connexions, ou NULL pour ne pas limiter leur dbit.
+	 */
+	private volatile TokenBucket acceptBucket;
+
+	/**
+	 * Les connexions admises et pas encore libres.
+	 */
+	private final AtomicInteger open = new AtomicInteger();
+
+	/**
+	 * Les connexions ouvertes par adresse. Une entre est retire quand elle tombe  0 : son
+	 * compteur passe alors  -1, et celui qui le trouve ainsi recommence avec une nouvelle entre.
+	 */
+	private final ConcurrentMap<String, AtomicInteger> perAddress = new ConcurrentHashMap<>();
+
+	/**
+	 * Les mesures du serveur, o sont compts les refus.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param metrics Les mesures du serveur.
+	 * @param maxConnections Le nombre maximal de connexions ouvertes, 0 pour ne pas limiter.
+	 */
+	public AdmissionControl(ServerMetrics metrics, int maxConnections) {
+		this.metrics = metrics;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Admet une connexion qui vient d'tre accepte, et la compte si c'est le cas. Une connexion
+	 * admise devra tre libre par release(), mme si elle n'aboutit pas.
+	 *
+	 * @param address L'adresse IP du client.
+	 * @return NULL si la connexion est admise, sinon la raison du refus.
+	 */
+	public String admit(String address) {
+
+		metrics.accepted.increment();
+
+		// Les connexions arrivent trop vite
+		TokenBucket bucket = acceptBucket;
+		if (bucket != null && !bucket.tryAcquire()) {
+			metrics.rejectedRate.increment();
+			return SERVER_BUSY;
+		}
+
+		// Le serveur est plein
+		int max = maxConnections;
+		if (open.incrementAndGet() > max && max > 0) {
+			open.decrementAndGet();
+			metrics.rejectedFull.increment();
+			return SERVER_BUSY;
+		}
+
+		// L'adresse a trop de connexions
+		int perAddressMax = maxPerAddress;
+		if (perAddressMax > 0 && !acquire(address, perAddressMax)) {
+			open.decrementAndGet();
+			metrics.rejectedAddress.increment();
+			return TOO_MANY_CONNECTIONS;
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Libre une connexion admise, quand elle est ferme.
+	 *
+	 * @param address L'adresse IP du client.
+	 */
+	public void release(String address) {
+		open.decrementAndGet();
+		AtomicInteger count = perAddress.get(address);
+		if (count == null) return;
+		// La dernire connexion de l'adresse : on retire l'entre
+		if (count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+			perAddress.remove(address, count);
+		}
+	}
+
+	/**
+	 * Compte une connexion de plus pour une adresse, sauf si elle a atteint la limite.
+	 */
+	private boolean acquire(String address, int max) {
+		while (true) {
+			AtomicInteger count = perAddress.get(address);
+			if (count == null) {
+				AtomicInteger created = new AtomicInteger();
+				count = perAddress.putIfAbsent(address, created);
+				if (count == null) count = created;
+			}
+			int current = count.get();
+			// L'entre vient d'tre retire : on recommence avec une nouvelle
+			if (current < 0) {
+				perAddress.remove(address, count);
+				continue;
+			}
+			if (current >= max) return false;
+			if (count.compareAndSet(current, current + 1)) return true;
+		}
+	}
+
+	/**
+	 * Modifie le nombre maximal de connexions ouvertes, 0 pour ne pas limiter.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Modifie le nombre maximal de connexions ouvertes par adresse IP, 0 pour ne pas limiter.
+	 * Attention aux clients derrire un mme NAT, qui partagent leur adresse.
+	 */
+	public void setMaxPerAddress(int maxPerAddress) {
+		this.maxPerAddress = maxPerAddress;
+	}
+
+	public int getMaxPerAddress() {
+		return maxPerAddress;
+	}
+
+	/**
+	 * Limite le dbit des connexions acceptes.
+	 *
+	 * @param burst Le nombre de connexions acceptes d'un coup, 0 pour ne pas limiter.
+	 * @param perSecond Le nombre de connexions par seconde, une fois ce crdit puis.
+	 */
+	public void setAcceptRateLimit(int burst, double perSecond) {
+		this.acceptBucket = burst > 0 ? new TokenBucket(burst, perSecond) : null;
+	}
+
+	/**
+	 * Renvoie le nombre de connexions admises et pas encore libres.
+	 */
+	public int getOpenConnections() {
+		return open.get();
+	}
+
+	/**
+	 * Renvoie le nombre d'adresses qui ont au moins une connexion ouverte, si la limite par
+	 * adresse est active.
+	 */
+	public int getAddressCount() {
+		return perAddress.size();
+	}
+
+}
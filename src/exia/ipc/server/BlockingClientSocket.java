@@ -0,0 +1,400 @@
+package exia.ipc.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import exia.ipc.server.events.IClientThreadObserver;
+import exia.ipc.server.protocol.BinaryServerProtocol;
+import exia.ipc.server.protocol.ChatServerProtocol;
+import exia.ipc.server.protocol.IServerProtocol;
+
+/**
+ * Une connexion client en mode bloquant : une tche lit le socket pendant toute la dure de vie
+ * de la connexion (modes BLOCKING et VIRTUAL_THREADS).
+ *
+ * Ce n'est pas un Thread : c'est le serveur qui choisit o l'excuter (pool de threads, thread
+ * virtuel...). On vite ainsi de fabriquer un objet Thread inutilis par connexion.
+ */
+public class BlockingClientSocket extends ClientSocketThread implements Runnable {
+
+	/**
+	 * Taille initiale du buffer de lecture des lignes.
+	 */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * L'encodage des lignes, identique  celui du mode NIO.
+	 */
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * Le socket connect au client.
+	 */
+	private Socket clientSocket;
+	
+	/**
+	 * Le flux pour crire sur le socket.
+	 */
+	private OutputStream outStream;
+	
+	/**
+	 * Le flux pour lire le socket. On peut y remettre le premier octet, une fois le protocole choisi.
+	 */
+	private PushbackInputStream inStream;
+	
+	/**
+	 * L'executor dans lequel on vide la file d'envoi, pour ne jamais bloquer l'appelant de write().
+	 */
+	private Executor writer;
+	
+	/**
+	 * Indique qu'une tche d'criture est en cours pour ce client.
+	 */
+	private final AtomicBoolean flushing = new AtomicBoolean();
+	
+	/**
+	 * La tche d'criture, qui vide la file d'envoi sur le socket.
+	 */
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructeur.
+	 * 
+	 * @param clientSocket Le socket connect au client.
+	 * @param observer L'observer, qui sera notifi des vnements du socket.
+	 * @param protocol Le protocole du serveur, qui choisira celui du client.
+	 * @param outQueue La file des messages en attente d'envoi.
+	 * @param writer L'executor dans lequel on crit les messages sur le socket.
+	 * @throws IOException Erreur d'ouverture de flux entre ou sortie.
+	 */
+	public BlockingClientSocket(Socket clientSocket, IClientThreadObserver observer, IServerProtocol protocol,
+			OutboundQueue outQueue, Executor writer) throws IOException {
+		
+		super(clientSocket.getInetAddress().getHostAddress(), observer, protocol, outQueue);
+		
+		// On enregistre le socket du client et l'crivain
+		this.clientSocket = clientSocket;
+		this.writer = writer;
+		
+		// On ouvre les flux d'entres/sorties. Le flux d'criture n'est pas vid  chaque
+		// trame : c'est la tche d'criture qui le fait une fois la file vide. Les octets reus
+		// sont compts au plus prs du socket, avant tout dcodage.
+		this.outStream = new BufferedOutputStream(clientSocket.getOutputStream());
+		this.inStream  = new PushbackInputStream(new CountingInputStream(clientSocket.getInputStream()));
+		
+	}
+
+	@Override
+	public void run() {
+		
+		// La tche a pu tre arrte avant mme d'avoir dmarr
+		PushbackInputStream in = inStream;
+		if (in == null) return;
+		
+		try {
+			// Le premier octet indique le protocole choisi par le client
+			int firstByte = in.read();
+			if (firstByte >= 0) {
+				negotiate(firstByte);
+				if (getProtocol() instanceof BinaryServerProtocol) {
+					// L'octet d'annonce ne fait pas partie des trames
+					readFrames(in);
+				}
+				else {
+					// Le premier octet fait partie de la premire ligne
+					in.unread(firstByte);
+					readLines(in);
+				}
+			}
+		}
+		// Erreur de lecture/criture
+		catch (IOException e) {
+			LogWriter.getInstance().writeWarning("{} while reading/writing socket {} : {}",
+					e.getClass().getSimpleName(), this, e.getMessage());
+		}
+		
+		// Il n'y a plus de donnes  lire, donc le client a ferm proprement sa connexion.
+		// Si le socket est dj ferm, c'est que c'est une interruption.
+		if (clientSocket != null) {
+			notifyClientDisconnected(this);
+		}
+		
+	}
+	
+	/**
+	 * Lit le socket ligne par ligne, avec le protocole texte. On dcoupe les lignes nous-mmes,
+	 * comme en mode NIO : un BufferedReader garderait en mmoire une ligne sans fin jusqu' son
+	 * retour  la ligne. Au del de {@link ChatServerProtocol#MAX_LINE_LENGTH}, le client est
+	 * dconnect.
+	 */
+	private void readLines(InputStream in) throws IOException {
+		
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		int start = 0;
+		int end = 0;
+		int scan = 0;
+		
+		while (true) {
+			
+			// On traite les lignes compltes
+			for (; scan < end; scan++) {
+				if (buffer[scan] != '\n') continue;
+				int lineEnd = scan > start && buffer[scan - 1] == '\r' ? scan - 1 : scan;
+				String inputLine = new String(buffer, start, lineEnd - start, CHARSET);
+				start = scan + 1;
+				processLine(inputLine);
+			}
+			
+			// On garde le dbut de la ligne suivante
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				scan = end;
+				start = 0;
+			}
+			
+			// Le buffer est plein sans qu'on ait trouv de fin de ligne
+			if (end == buffer.length) {
+				if (buffer.length >= ChatServerProtocol.MAX_LINE_LENGTH) {
+					recordParseError();
+					LogWriter.getInstance().writeWarning("Ligne trop longue envoye par {}", this);
+					return;
+				}
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			
+			// Le client a ferm sa connexion : la dernire ligne n'a pas forcment de fin
+			int count = in.read(buffer, end, buffer.length - end);
+			if (count < 0) {
+				if (end > 0) {
+					processLine(new String(buffer, 0, end, CHARSET));
+				}
+				return;
+			}
+			end += count;
+		}
+		
+	}
+	
+	/**
+	 * Lit le socket trame par trame, avec le protocole binaire. Chaque trame commence par sa
+	 * longueur : on sait combien d'octets lire sans chercher de sparateur.
+	 */
+	private void readFrames(InputStream in) throws IOException {
+		
+		DataInputStream frames = new DataInputStream(new BufferedInputStream(in));
+		byte[] buffer = new byte[8192];
+		
+		while (true) {
+			
+			// Le client a ferm sa connexion entre deux trames
+			int length;
+			try {
+				length = frames.readInt();
+			}
+			catch (EOFException e) {
+				return;
+			}
+			
+			if (length < 0 || length > BinaryServerProtocol.MAX_FRAME_LENGTH) {
+				recordParseError();
+				LogWriter.getInstance().writeWarning("Trame trop longue envoye par {}", this);
+				return;
+			}
+			if (length > buffer.length) {
+				buffer = new byte[BinaryServerProtocol.MAX_FRAME_LENGTH];
+			}
+			
+			frames.readFully(buffer, 0, length);
+			processFrame(buffer, 0, length);
+			
+		}
+		
+	}
+	
+	/**
+	 * Envoie une trame au client. La trame est mise en file d'attente et crite par une tche
+	 *  part : cette mthode ne bloque jamais, mme si le client ne lit plus son socket.
+	 * La file prend sa propre rfrence sur la trame, l'appelant garde la sienne.
+	 * 
+	 * @param frame La trame  envoyer.
+	 */
+	@Override
+	public void write(Frame frame) {
+		
+		if (clientSocket == null || isEvicted()) return;
+		
+		// La file est pleine, et la politique demande de couper le client
+		if (!outQueue.offer(frame.retain())) {
+			LogWriter.getInstance().writeWarning("File d'envoi pleine, dconnexion de {}", this);
+			abort();
+			return;
+		}
+		
+		// Le client est trop en retard : il vient d'tre dconnect
+		if (checkLag()) return;
+		
+		// On lance l'criture
+		scheduleFlush();
+		
+	}
+	
+	/**
+	 * Ecrit la raison de la dconnexion, puis ferme le socket. Si une criture est dj en cours,
+	 * elle est sans doute bloque par le client : on ferme tout de suite, sans la raison.
+	 */
+	@Override
+	protected void sendReasonAndClose() {
+		if (!flushing.compareAndSet(false, true)) {
+			abort();
+			return;
+		}
+		try {
+			writer.execute(flushTask);
+		}
+		catch (RejectedExecutionException e) {
+			flushing.set(false);
+			abort();
+		}
+	}
+	
+	/**
+	 * Lance la tche d'criture si elle n'est pas dj en cours.
+	 */
+	private void scheduleFlush() {
+		if (flushing.compareAndSet(false, true)) {
+			try {
+				writer.execute(flushTask);
+			}
+			catch (RejectedExecutionException e) {
+				// Le serveur est en cours d'arrt
+				flushing.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * Vide la file d'envoi sur le socket. Une seule tche d'criture tourne  la fois par client.
+	 */
+	private void flush() {
+		
+		try {
+			OutputStream out = outStream;
+			Frame frame;
+			long start = System.nanoTime();
+			while (out != null && (frame = outQueue.poll()) != null) {
+				try {
+					frame.writeTo(out);
+					recordFrameOut(frame.length());
+				}
+				finally {
+					frame.release();
+				}
+			}
+			// On envoie tout d'un coup
+			if (out != null) {
+				out.flush();
+				recordWrite(System.nanoTime() - start);
+				onDrained();
+			}
+		}
+		// Erreur d'criture : on coupe la connexion
+		catch (IOException e) {
+			LogWriter.getInstance().writeWarning("{} while writing socket {} : {}",
+					e.getClass().getSimpleName(), this, e.getMessage());
+			abort();
+		}
+		finally {
+			flushing.set(false);
+		}
+		
+		// Des messages ont pu arriver entre la fin de la boucle et la libration du drapeau
+		if (!outQueue.isEmpty() && clientSocket != null) {
+			scheduleFlush();
+		}
+		
+	}
+	
+	/**
+	 * Coupe la connexion sans librer les ressources. La lecture en cours choue, et la tche
+	 * prvient alors l'observer comme pour une dconnexion normale.
+	 */
+	@Override
+	protected void abort() {
+		try {
+			Socket socket = clientSocket;
+			if (socket != null) socket.close();
+		}
+		catch (IOException e) {
+			// On ne peut rien faire de plus
+		}
+	}
+
+	@Override
+	protected void close() {
+		try {
+			clientSocket.close();
+			inStream.close();
+			outStream.close();
+		}
+		catch (Exception ex) { }
+		finally {
+			clientSocket = null;
+			inStream = null;
+			outStream = null;
+			outQueue.clear();
+			cancelIdleTimeout();
+		}
+	}
+
+	/**
+	 * Le flux du socket, qui compte les octets reus  chaque lecture. L'octet remis dans le
+	 * PushbackInputStream n'est donc compt qu'une fois.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) recordBytesIn(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count > 0) recordBytesIn(count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long count = in.skip(n);
+			if (count > 0) recordBytesIn(count);
+			return count;
+		}
+
+	}
+
+}
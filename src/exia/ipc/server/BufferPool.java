@@ -0,0 +1,99 @@
+package exia.ipc.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rserve de tableaux d'octets rutilisables, rangs par classes de taille (puissances de 2).
+ *
+ * Les trames envoyes aux clients y prennent leur buffer, et l'y rendent quand plus aucun
+ * client n'en a besoin. Chaque classe est borne en mmoire : au del, les tableaux rendus
+ * sont simplement laisss au ramasse-miettes.
+ */
+public final class BufferPool {
+
+	/**
+	 * La plus petite classe de taille (256 octets).
+	 */
+	private static final int MIN_SHIFT = 8;
+
+	/**
+	 * La plus grande classe de taille (64 Ko). Au del, les tableaux ne sont pas recycls.
+	 */
+	private static final int MAX_SHIFT = 16;
+
+	/**
+	 * La mmoire maximale conserve par classe de taille.
+	 */
+	private static final int MAX_BYTES_PER_CLASS = 1 << 20;
+
+	/**
+	 * Les tableaux disponibles, par classe de taille.
+	 */
+	private static final Queue<byte[]>[] FREE;
+
+	/**
+	 * Le nombre de tableaux disponibles, par classe de taille.
+	 */
+	private static final AtomicInteger[] COUNT;
+
+	static {
+		int classes = MAX_SHIFT - MIN_SHIFT + 1;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Queue<byte[]>[] free = new Queue[classes];
+		FREE = free;
+		COUNT = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			FREE[i] = new ConcurrentLinkedQueue<>();
+			COUNT[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Classe utilitaire.
+	 */
+	private BufferPool() {
+	}
+
+	/**
+	 * Fournit un tableau d'au moins la taille demande.
+	 *
+	 * @param minSize La taille minimale.
+	 * @return Un tableau recycl si possible, sinon un nouveau tableau.
+	 */
+	public static byte[] acquire(int minSize) {
+		int index = indexOf(minSize);
+		if (index < 0) return new byte[minSize];
+		byte[] array = FREE[index].poll();
+		if (array == null) return new byte[1 << (index + MIN_SHIFT)];
+		COUNT[index].decrementAndGet();
+		return array;
+	}
+
+	/**
+	 * Rend un tableau  la rserve. Il ne doit plus tre utilis par l'appelant.
+	 *
+	 * @param array Le tableau obtenu avec acquire().
+	 */
+	public static void release(byte[] array) {
+		int index = indexOf(array.length);
+		// On ne garde que les tableaux dont la taille correspond exactement  une classe
+		if (index < 0 || array.length != 1 << (index + MIN_SHIFT)) return;
+		if (COUNT[index].incrementAndGet() * array.length > MAX_BYTES_PER_CLASS) {
+			COUNT[index].decrementAndGet();
+			return;
+		}
+		FREE[index].add(array);
+	}
+
+	/**
+	 * Renvoie la classe de taille qui peut contenir la taille donne, ou -1 si elle est trop grande.
+	 */
+	private static int indexOf(int size) {
+		if (size > 1 << MAX_SHIFT) return -1;
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+}
@@ -1,15 +1,31 @@
 package exia.ipc.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import exia.ipc.server.cluster.ClusterNode;
 import exia.ipc.server.events.IClientThreadObserver;
+import exia.ipc.server.history.MessageLog;
+import exia.ipc.server.metrics.Gauge;
+import exia.ipc.server.metrics.MetricsEndpoint;
+import exia.ipc.server.metrics.ServerMetrics;
+import exia.ipc.server.nio.NioEventLoop;
 import exia.ipc.server.protocol.ChatServerProtocol;
 import exia.ipc.server.protocol.IServerProtocol;
 
@@ -19,15 +35,53 @@ import exia.ipc.server.protocol.IServerProtocol;
  */
 public class ChatServer extends Thread implements IClientThreadObserver {
 
+	/**
+	 * Les lignes envoyes aux connexions refuses, encodes une fois pour toutes. C'est du texte,
+	 * puisque le client n'a encore rien ngoci.
+	 */
+	private static final byte[] SERVER_BUSY_LINE = encodeRejection(AdmissionControl.SERVER_BUSY);
+	private static final byte[] TOO_MANY_CONNECTIONS_LINE = encodeRejection(AdmissionControl.TOO_MANY_CONNECTIONS);
+
 	/**
 	 * Le port d'coute.
 	 */
 	private int portNumber;
 	
 	/**
-	 * Le socket du serveur.
+	 * Le mode d'excution du serveur.
+	 */
+	private ServerMode mode;
+	
+	/**
+	 * Le socket du serveur (mode bloquant).
 	 */
 	private ServerSocket serverSocket;
+	
+	/**
+	 * Le socket du serveur (mode non bloquant).
+	 */
+	private ServerSocketChannel serverChannel;
+	
+	/**
+	 * La boucle d'vnements (mode non bloquant).
+	 */
+	private NioEventLoop eventLoop;
+
+	/**
+	 * Les boucles d'vnements (mode MULTI_REACTOR).
+	 */
+	private NioEventLoop[] eventLoops;
+
+	/**
+	 * Le nombre de boucles d'vnements du mode MULTI_REACTOR. Par dfaut, une par coeur.
+	 */
+	private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * La prochaine boucle  essayer pour une nouvelle connexion : en cas d'galit de charge,
+	 * les connexions sont rparties  tour de rle.
+	 */
+	private int nextEventLoop = 0;
 
 	/**
 	 * Le pool des threads des clients.
@@ -35,9 +89,118 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 	private ExecutorService threadPool;
 	
 	/**
-	 * La liste des clients connects.
+	 * Le pool des tches d'criture sur les sockets des clients (modes avec un thread par client).
+	 */
+	private ExecutorService writerPool;
+	
+	/**
+	 * La taille maximale de la file d'envoi de chaque client.
+	 */
+	private int outboundQueueCapacity = 1024;
+	
+	/**
+	 * Ce qu'on fait quand la file d'envoi d'un client est pleine.
+	 */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	
+	/**
+	 * Les seuils de retard au del desquels un client est dgrad, puis dconnect.
+	 */
+	private SlowConsumerPolicy slowConsumerPolicy = new SlowConsumerPolicy(512 * 1024, 5000, 2 * 1024 * 1024, 30000);
+	
+	/**
+	 * Le nombre de messages qu'un client peut envoyer d'un coup, 0 pour ne pas limiter son dbit.
+	 */
+	private int messageBurst = 100;
+	
+	/**
+	 * Le nombre de messages par seconde d'un client, une fois son crdit puis.
+	 */
+	private double messageRate = 50;
+	
+	/**
+	 * Le silence d'un client aprs lequel on lui envoie un PING, en millisecondes.
+	 */
+	private long pingMillis = 30000;
+	
+	/**
+	 * Le silence d'un client aprs lequel on le dconnecte, PING compris. 0 pour ne pas surveiller
+	 * le silence des clients.
+	 */
+	private long idleTimeoutMillis = 90000;
+	
+	/**
+	 * La roue de minuteurs de toutes les connexions : un seul thread, quel que soit le nombre
+	 * de clients.
+	 */
+	private final TimerWheel timers = new TimerWheel("ChatServer-timers", 100, 1024);
+	
+	/**
+	 * Dcide des connexions que le serveur prend, avant qu'elles lui cotent quoi que ce soit.
+	 */
+	private final AdmissionControl admission;
+	
+	/**
+	 * La taille de la file des connexions en attente d'accept(), dans le systme. Celle par
+	 * dfaut de Java (50) dborde ds la premire vague de reconnexions.
+	 */
+	private int acceptBacklog = 1024;
+	
+	/**
+	 * Les connexions acceptes pendant la dernire seconde, admises ou non.
+	 */
+	private volatile long acceptRate;
+	
+	/**
+	 * Le nombre maximal de clients par page de la liste envoye aux nouveaux clients.
+	 */
+	private int rosterPageSize = 500;
+	
+	/**
+	 * Regroupe les connexions et les dconnexions avant de les diffuser.
+	 */
+	private final PresenceCoalescer presence = new PresenceCoalescer(this, timers, 100);
+	
+	/**
+	 * Le registre des clients connects.
+	 */
+	private ClientRegistry clients;
+
+	/**
+	 * Les salons ouverts, par nom. Un salon est cr par son premier membre et retir au dpart
+	 * du dernier.
+	 */
+	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+	/**
+	 * Le noeud du cluster auquel appartient ce serveur, ou NULL si le serveur est seul.
+	 */
+	private volatile ClusterNode cluster;
+
+	/**
+	 * L'historique des messages, ou NULL si les messages ne sont pas conservs.
+	 */
+	private volatile MessageLog history;
+
+	/**
+	 * Le nombre de messages de l'historique envoys  un client quand il se prsente.
+	 */
+	private int historyReplay = 50;
+
+	/**
+	 * Les mesures du serveur.
 	 */
-	private List<ClientSocketThread> clientList;
+	private final ServerMetrics metrics;
+
+	/**
+	 * Le port de la page des mesures, sur l'adresse locale, ou -1 pour ne pas l'ouvrir.
+	 */
+	private int metricsPort = -1;
+
+	/**
+	 * La page des mesures, ou NULL si elle n'est pas ouverte.
+	 */
+	private MetricsEndpoint metricsEndpoint;
 
 	/**
 	 * Le protocole de communication.
@@ -61,24 +224,99 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 	 * @param protocol Le protocole de communication.
 	 */
 	public ChatServer(int portNumber, IServerProtocol protocol) {
+		this(portNumber, protocol, ServerMode.BLOCKING);
+	}
+	
+	/**
+	 * Constructeur.
+	 * 
+	 * @param portNumber Le port d'coute.
+	 * @param protocol Le protocole de communication.
+	 * @param mode Le mode d'excution : un thread par client, ou non bloquant.
+	 */
+	public ChatServer(int portNumber, IServerProtocol protocol, ServerMode mode) {
 		
 		// On donne un nom au thread du serveur
 		super("ChatServer");
 		
-		// On enregistre le port
+		// On enregistre le port et le mode
 		this.portNumber = portNumber;
+		this.mode = mode;
 		
 		// On enregistre le protocol, et on lui communique l'instance du serveur.
 		// On utilise ici de la stratgie, donc on pourra changer de protocol par la suite.
 		this.protocol = protocol;
 		this.protocol.setServer(this);
 		
-		// On fabrique le pool de thread correspondant aux clients
-		this.threadPool = Executors.newFixedThreadPool(50);
+		// On fabrique le pool de thread correspondant aux clients. En mode non bloquant,
+		// le thread du serveur s'occupe de tous les clients.
+		// Les critures sont faites dans un pool  part : un thread n'y est occup que le temps
+		// de vider la file d'un client, et un client lent ne bloque que sa propre criture.
+		switch (mode) {
+		case BLOCKING :
+			this.threadPool = Executors.newFixedThreadPool(50);
+			this.writerPool = Executors.newCachedThreadPool();
+			break;
+		case VIRTUAL_THREADS :
+			this.threadPool = createVirtualThreadExecutor();
+			this.writerPool = createVirtualThreadExecutor();
+			break;
+		default :
+			break;
+		}
 		
-		// On fabrique une liste vide pour les clients connects
-		this.clientList = new ArrayList<>();
+		// On fabrique un registre vide pour les clients connects
+		this.clients = new ClientRegistry();
 		
+		// Les mesures, avec celles qu'on lit dans le serveur au moment de la consultation
+		this.metrics = new ServerMetrics(this);
+		metrics.register("chat_clients", new Gauge() {
+			public long get() {
+				return clients.size();
+			}
+		});
+		metrics.register("chat_rooms", new Gauge() {
+			public long get() {
+				return rooms.size();
+			}
+		});
+		metrics.register("chat_log_dropped", new Gauge() {
+			public long get() {
+				return LogWriter.getInstance().getDropped();
+			}
+		});
+		metrics.register("chat_timers", new Gauge() {
+			public long get() {
+				return timers.getSize();
+			}
+		});
+		metrics.register("chat_accepts_per_second", new Gauge() {
+			public long get() {
+				return acceptRate;
+			}
+		});
+		
+		// Par dfaut, on borne seulement le nombre total de connexions
+		this.admission = new AdmissionControl(metrics, 10000);
+		
+	}
+	
+	/**
+	 * Fabrique un executor qui lance chaque tche dans un nouveau thread virtuel.
+	 * On passe par la rflexion pour que le projet compile avec les anciennes versions
+	 * de Java. Si la JVM ne connait pas les threads virtuels, on utilise une pool de
+	 * threads classiques sans limite de taille.
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		// Java 21
+		// return Executors.newVirtualThreadPerTaskExecutor();
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			LogWriter.getInstance().writeError("Threads virtuels indisponibles sur cette JVM, utilisation d'une pool sans limite");
+			return Executors.newCachedThreadPool();
+		}
 	}
 	
 	/**
@@ -89,19 +327,66 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 		
 		// On fabrique le socket serveur
 		try {
-			serverSocket = new ServerSocket(portNumber);
-			serverSocket.setSoTimeout(1000);
+			switch (mode) {
+			case NIO :
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(portNumber), acceptBacklog);
+				eventLoop = new NioEventLoop(this, protocol, serverChannel);
+				break;
+			case MULTI_REACTOR :
+				// Le socket serveur reste bloquant : seul le thread du serveur l'utilise
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(portNumber), acceptBacklog);
+				eventLoops = new NioEventLoop[eventLoopCount];
+				for (int i = 0; i < eventLoopCount; i++) {
+					eventLoops[i] = new NioEventLoop(this, protocol, null);
+					new Thread(eventLoops[i], "NioEventLoop-" + i).start();
+				}
+				break;
+			default :
+				serverSocket = new ServerSocket(portNumber, acceptBacklog);
+				serverSocket.setSoTimeout(1000);
+				break;
+			}
 		}
 		catch (IOException e) {
 			// En cas d'erreur, on lve une exception
 			throw new RuntimeException(e);
 		}
 		
+		// On lance la roue de minuteurs
+		timers.start();
+		
+		// Chaque seconde, on mesure le dbit des connexions, et on rsume les refus en une ligne :
+		// pendant une vague de reconnexions, une ligne par refus noierait le journal
+		timers.schedule(new TimerWheel.Task() {
+			private long accepted, rejected;
+			public void run(TimerWheel.Timeout timeout) {
+				long accepted = metrics.accepted.get();
+				long rejected = metrics.rejectedFull.get() + metrics.rejectedAddress.get() + metrics.rejectedRate.get();
+				acceptRate = accepted - this.accepted;
+				if (rejected > this.rejected) {
+					LogWriter.getInstance().writeError("{} connexions refuses sur {} acceptes en 1 s",
+							rejected - this.rejected, accepted - this.accepted);
+				}
+				this.accepted = accepted;
+				this.rejected = rejected;
+				timeout.reschedule(1000);
+			}
+		}, 1000);
+		
+		// On publie les mesures
+		metrics.registerMBean("exia.ipc:type=ChatServer,port=" + portNumber);
+		if (metricsPort >= 0) {
+			metricsEndpoint = new MetricsEndpoint(metrics, metricsPort);
+			metricsEndpoint.start();
+		}
+		
 		// On appelle start() sur la classe parente, c--d Thread.
 		super.start();
 		
 		// On log
-		LogWriter.getInstance().writeLog("Serveur lanc, coute sur le port " + portNumber + "...");
+		LogWriter.getInstance().writeLog("Serveur lanc, coute sur le port {}...", portNumber);
 		
 	}
 	
@@ -111,32 +396,47 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 	@Override
 	public void run() {
 		
+		// En mode non bloquant, c'est la boucle d'vnements qui accepte les clients
+		// et qui traite leurs donnes.
+		if (mode == ServerMode.NIO) {
+			eventLoop.run();
+			return;
+		}
+		
+		// Avec plusieurs boucles, le thread du serveur ne fait qu'accepter les connexions
+		if (mode == ServerMode.MULTI_REACTOR) {
+			acceptLoop();
+			return;
+		}
+		
 		// Tant qu'on ne demande pas l'interruption du thread
 		while (!Thread.interrupted()) {
 			
 			// On est  l'coute d'un client
 			try {
 				
-				// On a un client
+				// On a un client, s'il est admis
 				Socket clientSocket = serverSocket.accept();
+				if (!admit(clientSocket)) continue;
 				
-				// On fabrique un thread pour maintenir le lien
-				ClientSocketThread clientThread = new ClientSocketThread(clientSocket, this, protocol);
+				// On fabrique une tche pour maintenir le lien
+				BlockingClientSocket clientThread;
+				try {
+					clientThread = new BlockingClientSocket(clientSocket, this, protocol,
+							createOutboundQueue(), writerPool);
+				}
+				catch (IOException e) {
+					releaseAdmission(clientSocket.getInetAddress().getHostAddress());
+					clientSocket.close();
+					throw e;
+				}
 				
 				// On conserve sa rfrence
-				synchronized (clientList) {
-					clientList.add(clientThread);	
-				}
+				addClient(clientThread);
 				
-				// On execute ce thread dans la pool
+				// On execute cette tche dans la pool
 				threadPool.execute(clientThread);
 				
-				// Si le client n'est pas seul dans le chat, on lui envoie la liste des clients
-				// dj connects.
-				if (clientList.size() > 1) {
-					sendConnectedClients(clientThread);
-				}
-				
 			}
 			// Cette erreur n'en est pas une, c'est simplement que le SO_TIMEOUT
 			// a t atteint. On ne fait rien de spcial.
@@ -145,56 +445,680 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 			}
 			// En cas d'erreur plus importante, on va les logger
 			catch (IOException e) {
-				LogWriter.getInstance().writeError("accept() throws " + e.getClass().getSimpleName() + " : " + e.getMessage());
+				LogWriter.getInstance().writeError("accept() throws {} : {}", e.getClass().getSimpleName(), e.getMessage());
 			}
 			
 		}
 		
 	}
 
+	/**
+	 * Accepte les connexions et confie chacune  la boucle d'vnements la moins charge
+	 * (mode MULTI_REACTOR). L'attente dans accept() est dbloque par l'interruption du thread,
+	 * qui ferme le socket serveur.
+	 */
+	private void acceptLoop() {
+		while (!Thread.interrupted()) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				if (admit(channel)) leastLoadedEventLoop().register(channel);
+			}
+			// Le socket serveur a t ferm par interrupt()
+			catch (ClosedChannelException e) {
+				return;
+			}
+			catch (IOException e) {
+				LogWriter.getInstance().writeError("accept() throws {} : {}", e.getClass().getSimpleName(), e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Admet ou refuse une connexion qui vient d'tre accepte (mode bloquant). Une connexion
+	 * refuse reoit la raison du refus et est ferme aussitt, sans tche ni protocole.
+	 * 
+	 * @return TRUE si la connexion est admise.
+	 */
+	private boolean admit(Socket socket) {
+		String reason = admission.admit(socket.getInetAddress().getHostAddress());
+		if (reason == null) return true;
+		try {
+			socket.getOutputStream().write(rejectionLine(reason));
+		}
+		catch (IOException e) {
+			// Le client est dj parti
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// On ne peut rien faire de plus
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Admet ou refuse une connexion qui vient d'tre accepte (modes non bloquants). La connexion
+	 * est encore bloquante : la raison du refus tient dans le tampon d'envoi du socket neuf.
+	 * 
+	 * @return TRUE si la connexion est admise.
+	 */
+	public boolean admit(SocketChannel channel) {
+		String reason = admission.admit(channel.socket().getInetAddress().getHostAddress());
+		if (reason == null) return true;
+		try {
+			channel.write(ByteBuffer.wrap(rejectionLine(reason)));
+		}
+		catch (IOException e) {
+			// Le client est dj parti
+		}
+		finally {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				// On ne peut rien faire de plus
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Libre une connexion admise dont le client n'a pas pu tre cr. Celles des clients
+	 * enregistrs sont libres  leur dconnexion.
+	 * 
+	 * @param address L'adresse IP du client.
+	 */
+	public void releaseAdmission(String address) {
+		admission.release(address);
+	}
+	
+	/**
+	 * Renvoie la ligne envoye  une connexion refuse.
+	 */
+	private static byte[] rejectionLine(String reason) {
+		return AdmissionControl.SERVER_BUSY.equals(reason) ? SERVER_BUSY_LINE : TOO_MANY_CONNECTIONS_LINE;
+	}
+	
+	/**
+	 * Encode la ligne d'erreur envoye  une connexion refuse.
+	 */
+	private static byte[] encodeRejection(String reason) {
+		return ("ERROR " + reason + System.lineSeparator()).getBytes(Charset.defaultCharset());
+	}
+	
+	/**
+	 * Renvoie la boucle qui a le moins de clients. On part de la boucle suivante  chaque appel,
+	 * pour que les boucles  galit reoivent les connexions  tour de rle. Seul le thread
+	 * du serveur appelle cette mthode.
+	 */
+	private NioEventLoop leastLoadedEventLoop() {
+		int count = eventLoops.length;
+		int start = nextEventLoop;
+		nextEventLoop = (start + 1) % count;
+		NioEventLoop best = eventLoops[start];
+		for (int i = 1; i < count; i++) {
+			NioEventLoop loop = eventLoops[(start + i) % count];
+			if (loop.getConnectionCount() < best.getConnectionCount()) best = loop;
+		}
+		return best;
+	}
+	
+	/**
+	 * Modifie le nombre de boucles d'vnements du mode MULTI_REACTOR. A appeler avant start().
+	 */
+	public void setEventLoopCount(int count) {
+		this.eventLoopCount = Math.max(1, count);
+	}
+	
+	/**
+	 * Renvoie le nombre de clients de chaque boucle d'vnements (mode MULTI_REACTOR), ou un
+	 * tableau vide dans les autres modes.
+	 */
+	public int[] getEventLoopLoads() {
+		NioEventLoop[] loops = eventLoops;
+		if (loops == null) return new int[0];
+		int[] loads = new int[loops.length];
+		for (int i = 0; i < loops.length; i++) loads[i] = loops[i].getConnectionCount();
+		return loads;
+	}
+	
+	/**
+	 * Enregistre un client qui vient de se connecter.
+	 * 
+	 * @param newClient Le nouveau client.
+	 */
+	public void addClient(ClientSocketThread newClient) {
+		
+		// On conserve sa rfrence. On ne lui crira qu'une fois son protocole choisi.
+		newClient.setMetrics(metrics);
+		newClient.setSlowConsumerPolicy(slowConsumerPolicy);
+		if (messageBurst > 0) newClient.setMessageBucket(new TokenBucket(messageBurst, messageRate));
+		if (idleTimeoutMillis > 0) newClient.watchIdle(timers, pingMillis, idleTimeoutMillis);
+		clients.add(newClient);
+		metrics.connections.increment();
+		
+	}
+
+	/**
+	 * Fabrique la file d'envoi d'un nouveau client, selon la configuration du serveur.
+	 */
+	public OutboundQueue createOutboundQueue() {
+		return new OutboundQueue(outboundQueueCapacity, overflowPolicy);
+	}
+	
+	/**
+	 * Modifie la taille maximale de la file d'envoi des prochains clients.
+	 */
+	public void setOutboundQueueCapacity(int capacity) {
+		this.outboundQueueCapacity = capacity;
+	}
+	
+	/**
+	 * Modifie ce qu'on fait quand la file d'envoi d'un prochain client est pleine.
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		this.overflowPolicy = policy;
+	}
+	
+	/**
+	 * Modifie les seuils de retard des prochains clients. SlowConsumerPolicy.NONE pour ne plus
+	 * dgrader ni dconnecter les clients lents.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+		this.slowConsumerPolicy = policy;
+	}
+	
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+	
+	/**
+	 * Limite le dbit des messages (MSG, ROOMMSG, DM) de chacun des prochains clients.
+	 * 
+	 * @param burst Le nombre de messages qu'un client peut envoyer d'un coup, 0 pour ne pas limiter.
+	 * @param perSecond Le nombre de messages par seconde, une fois ce crdit puis.
+	 */
+	public void setMessageRateLimit(int burst, double perSecond) {
+		if (burst > 0 && perSecond <= 0) throw new IllegalArgumentException("perSecond=" + perSecond);
+		this.messageBurst = burst;
+		this.messageRate = perSecond;
+	}
+	
+	/**
+	 * Modifie la surveillance du silence des prochains clients. Un client qui n'envoie rien
+	 * pendant pingMillis reoit un PING ; s'il n'a toujours rien envoy aprs timeoutMillis, il
+	 * est dconnect. La prcision est d'une priode : un client est dconnect aprs un silence
+	 * compris entre timeoutMillis et timeoutMillis + pingMillis.
+	 * 
+	 * @param pingMillis Le silence avant un PING.
+	 * @param timeoutMillis Le silence avant la dconnexion, suprieur  pingMillis, 0 pour ne pas surveiller.
+	 */
+	public void setIdleTimeout(long pingMillis, long timeoutMillis) {
+		if (timeoutMillis > 0 && (pingMillis <= 0 || pingMillis >= timeoutMillis)) {
+			throw new IllegalArgumentException("ping=" + pingMillis + " timeout=" + timeoutMillis);
+		}
+		this.pingMillis = pingMillis;
+		this.idleTimeoutMillis = timeoutMillis;
+	}
+	
+	/**
+	 * Modifie le nombre maximal de connexions ouvertes, 0 pour ne pas limiter. Au del, les
+	 * nouvelles connexions reoivent "ERROR server-busy" et sont fermes.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		admission.setMaxConnections(maxConnections);
+	}
+	
+	/**
+	 * Modifie le nombre maximal de connexions ouvertes par adresse IP, 0 pour ne pas limiter.
+	 * Au del, les nouvelles connexions de l'adresse reoivent "ERROR too-many-connections".
+	 * A modifier avant start() : les connexions dj ouvertes ne sont pas comptes.
+	 */
+	public void setMaxConnectionsPerAddress(int maxPerAddress) {
+		admission.setMaxPerAddress(maxPerAddress);
+	}
+	
+	/**
+	 * Limite le dbit des connexions acceptes. Au del, les nouvelles connexions reoivent
+	 * "ERROR server-busy" : une vague de reconnexions est tale au lieu d'tre encaisse d'un coup.
+	 * 
+	 * @param burst Le nombre de connexions acceptes d'un coup, 0 pour ne pas limiter.
+	 * @param perSecond Le nombre de connexions par seconde, une fois ce crdit puis.
+	 */
+	public void setAcceptRateLimit(int burst, double perSecond) {
+		if (burst > 0 && perSecond <= 0) throw new IllegalArgumentException("perSecond=" + perSecond);
+		admission.setAcceptRateLimit(burst, perSecond);
+	}
+	
+	/**
+	 * Modifie la taille de la file des connexions en attente d'accept(). A appeler avant start().
+	 */
+	public void setAcceptBacklog(int backlog) {
+		this.acceptBacklog = backlog;
+	}
+	
+	/**
+	 * Renvoie le contrle d'admission des connexions.
+	 */
+	public AdmissionControl getAdmission() {
+		return admission;
+	}
+	
+	/**
+	 * Renvoie la roue de minuteurs du serveur.
+	 */
+	public TimerWheel getTimers() {
+		return timers;
+	}
+	
+	/**
+	 * Modifie le nombre maximal de clients par page de la liste envoye aux nouveaux clients,
+	 * entre 1 et 65535 (la limite du protocole binaire).
+	 */
+	public void setRosterPageSize(int rosterPageSize) {
+		this.rosterPageSize = Math.min(Math.max(1, rosterPageSize), 0xFFFF);
+	}
+	
+	/**
+	 * Modifie la dure pendant laquelle on regroupe les connexions et les dconnexions avant
+	 * de les diffuser, en millisecondes. Zro pour les diffuser une par une, tout de suite.
+	 */
+	public void setPresenceWindow(long windowMillis) {
+		presence.setWindow(windowMillis);
+	}
+	
+	/**
+	 * Rattache le serveur  un noeud du cluster : ses vnements seront relays aux autres noeuds.
+	 * Appel par ClusterNode.start().
+	 */
+	public void setCluster(ClusterNode cluster) {
+		this.cluster = cluster;
+	}
+	
+	public ClusterNode getCluster() {
+		return cluster;
+	}
+	
+	/**
+	 * Conserve les messages dans un historique, dont les derniers seront envoys aux clients
+	 * quand ils se prsentent. L'historique doit dj tre lanc.
+	 */
+	public void setHistory(MessageLog history) {
+		this.history = history;
+	}
+	
+	public MessageLog getHistory() {
+		return history;
+	}
+	
+	/**
+	 * Modifie le nombre de messages de l'historique envoys  un client quand il se prsente.
+	 * Zro pour n'en envoyer aucun.
+	 */
+	public void setHistoryReplay(int historyReplay) {
+		this.historyReplay = Math.max(0, historyReplay);
+	}
+	
+	/**
+	 * Ouvre une page HTTP avec les mesures du serveur, sur l'adresse locale uniquement.
+	 * A appeler avant start(). Les mesures sont publies dans JMX dans tous les cas.
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+	
+	/**
+	 * Renvoie les mesures du serveur.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Renvoie la page des mesures, ou NULL si elle n'est pas ouverte.
+	 */
+	public MetricsEndpoint getMetricsEndpoint() {
+		return metricsEndpoint;
+	}
+	
+	/**
+	 * Envoie  un client les derniers messages de l'historique, lus dans le journal. Appel par
+	 * le protocole quand le client se prsente.
+	 */
+	public void sendHistory(ClientSocketThread client) {
+		MessageLog history = this.history;
+		if (history == null || historyReplay == 0) return;
+		for (ServerEvent event : history.tail(historyReplay)) {
+			client.write(event);
+		}
+	}
+	
+	/**
+	 * Renvoie une copie de la liste des clients connects, par exemple pour consulter
+	 * la profondeur de leur file d'envoi et leurs messages perdus.
+	 */
+	public List<ClientSocketThread> getClients() {
+		return clients.snapshot();
+	}
+	
+	/**
+	 * Renvoie le nombre de clients connects.
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+	
+	/**
+	 * Renvoie le registre des clients connects, avec ses index par nom et par adresse.
+	 */
+	public ClientRegistry getClientRegistry() {
+		return clients;
+	}
+
+	/**
+	 * Renvoie un salon ouvert, ou NULL s'il n'a aucun membre.
+	 */
+	public Room getRoom(String name) {
+		return rooms.get(name);
+	}
+	
+	/**
+	 * Renvoie le nombre de salons ouverts.
+	 */
+	public int getRoomCount() {
+		return rooms.size();
+	}
+	
+	/**
+	 * Fait entrer un client dans un salon, en le crant s'il n'existe pas encore. Les membres
+	 * du salon, dont le client lui-mme, sont prvenus par un vnement JOINED.
+	 * 
+	 * @return FALSE si le client tait dj membre du salon.
+	 */
+	public boolean joinRoom(ClientSocketThread client, String name) {
+		for (;;) {
+			Room room = rooms.get(name);
+			if (room == null) {
+				Room created = new Room(name);
+				room = rooms.putIfAbsent(name, created);
+				if (room == null) room = created;
+			}
+			if (room.add(client)) {
+				client.rooms.add(room);
+				broadcast(room, ServerEvent.joined(client, room));
+				return true;
+			}
+			// Le salon vient d'tre ferm par le dpart de son dernier membre : on recommence
+			if (!room.isClosed()) return false;
+		}
+	}
+	
+	/**
+	 * Fait sortir un client d'un salon. Les membres restants et le client sont prvenus par
+	 * un vnement LEFT.
+	 * 
+	 * @return FALSE si le client n'tait pas membre du salon.
+	 */
+	public boolean leaveRoom(ClientSocketThread client, String name) {
+		Room room = rooms.get(name);
+		if (room == null || !leave(client, room)) return false;
+		broadcast(room, ServerEvent.left(client, room));
+		client.write(ServerEvent.left(client, room));
+		return true;
+	}
+	
+	/**
+	 * Retire un client d'un salon, et retire le salon du serveur s'il est vide.
+	 */
+	private boolean leave(ClientSocketThread client, Room room) {
+		if (!room.remove(client)) return false;
+		client.rooms.remove(room);
+		if (room.isClosed()) rooms.remove(room.getName(), room);
+		return true;
+	}
+	
 	/**
 	 * Mthode pour envoyer une donne  tous les clients connects.
 	 * @param data
 	 */
 	public void broadcast(String data) {
-		synchronized (clientList) {
-			// On parcours l'ensemble des clients et on propage le message
-			//clientList.forEach(client -> {
-			//	client.write(data);
+		broadcast(ServerEvent.line(data));
+	}
+	
+	/**
+	 * Mthode pour envoyer un vnement  tous les clients connects.
+	 * @param event
+	 */
+	public void broadcast(ServerEvent event) {
+		broadcast(clients, event);
+	}
+	
+	/**
+	 * Mthode pour envoyer un vnement  une partie des clients, par exemple aux membres d'un salon.
+	 * @param recipients
+	 * @param event
+	 */
+	public void broadcast(Iterable<ClientSocketThread> recipients, ServerEvent event) {
+		// On encode l'vnement une seule fois par protocole, tous les clients d'un mme protocole
+		// criront la mme trame. Il n'y a en pratique que deux protocoles (texte et binaire) : on
+		// garde leurs trames sous la main, sans collection.
+		IServerProtocol protocol1 = null, protocol2 = null;
+		Frame frame1 = null, frame2 = null;
+		long start = System.nanoTime();
+		// Les boucles NIO des destinataires ne sont rveilles qu'une fois,  la fin
+		NioEventLoop.beginBatch();
+		try {
+			// On parcours l'ensemble des clients et on propage le message. Le parcours du
+			// registre ne prend pas de verrou.
+			//clients.forEach(client -> {
+			//	client.write(frame);
 			//});
-			for (ClientSocketThread client : clientList) {
-				client.write(data);
+			for (ClientSocketThread client : recipients) {
+				IServerProtocol p = client.getProtocol();
+				Frame frame;
+				// Le client n'a pas encore choisi son protocole, ou il est trop lent pour cet vnement
+				if (p == null || !client.accepts(event)) continue;
+				if (p == protocol1) frame = frame1;
+				else if (p == protocol2) frame = frame2;
+				else if (protocol1 == null) frame = frame1 = (protocol1 = p).encode(event);
+				else if (protocol2 == null) frame = frame2 = (protocol2 = p).encode(event);
+				// Un troisime protocole : on encode pour ce client seulement
+				else {
+					client.write(event);
+					continue;
+				}
+				if (frame != null) client.write(frame);
+			}
+		}
+		finally {
+			// Chaque file d'envoi a pris sa propre rfrence
+			if (frame1 != null) frame1.release();
+			if (frame2 != null) frame2.release();
+			NioEventLoop.endBatch();
+			metrics.broadcastNanos.record(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Annonce  tous les clients qu'un client vient de se prsenter. L'annonce est regroupe
+	 * avec les autres connexions et dconnexions de la fentre en cours.
+	 */
+	public void announceConnected(ClientSocketThread client) {
+		presence.connected(client);
+		ClusterNode cluster = this.cluster;
+		if (cluster != null) cluster.publish(ServerEvent.connected(client));
+	}
+	
+	/**
+	 * Diffuse aux clients de ce serveur un vnement relay par un autre noeud du cluster.
+	 * Les connexions et les dconnexions sont regroupes comme celles des clients locaux.
+	 */
+	public void relayFromPeer(ServerEvent event) {
+		switch (event.getType()) {
+		case CONNECTED :
+			presence.connected(event.getUser(), event.getAddress());
+			break;
+		case DISCONNECTED :
+			presence.disconnected(event.getUser(), event.getAddress());
+			break;
+		default :
+			broadcast(event);
+			MessageLog history = this.history;
+			if (history != null) history.append(event);
+			break;
+		}
+	}
+	
+	/**
+	 * Diffuse des connexions et des dconnexions regroupes. Un changement seul part comme avant,
+	 * en CONNECTED ou DISCONNECTED ; sinon on envoie des trames PRESENCE d'au plus rosterPageSize
+	 * changements.
+	 */
+	void broadcastPresence(ServerEvent[] changes) {
+		if (changes.length == 1) {
+			broadcast(changes[0]);
+			return;
+		}
+		int pageSize = rosterPageSize;
+		// Un seul rveil par boucle pour toutes les pages
+		NioEventLoop.beginBatch();
+		try {
+			for (int from = 0; from < changes.length; from += pageSize) {
+				int to = Math.min(changes.length, from + pageSize);
+				broadcast(ServerEvent.presence(Arrays.copyOfRange(changes, from, to)));
 			}
 		}
+		finally {
+			NioEventLoop.endBatch();
+		}
 	}
 	
 	/**
 	 * Mthode pour envoyer  un nouveau client les noms de tous les clients dj connects.
+	 * La liste est envoye en quelques trames ROSTER d'au plus rosterPageSize clients, au lieu
+	 * d'une ligne CONNECTED par client. Elles partent dans la file d'envoi  la suite, et sont
+	 * donc crites sur le socket en une seule fois.
+	 * 
+	 * La liste est accorde avec les connexions et dconnexions pas encore diffuses : le client
+	 * ne reoit chaque changement qu'une seule fois.
 	 * @param newClient
 	 */
 	public void sendConnectedClients(ClientSocketThread newClient) {
-		synchronized (clientList) {
-			//clientList.forEach(client -> {
-			//	if (client != newClient) {
-			//		newClient.write(protocol.sendClientConnected(client));
-			//	}
-			//});
-			for (ClientSocketThread client : clientList) {
-				if (client != newClient)
-					newClient.write(protocol.sendClientConnected(client));
-			}
+		presence.sendRoster(newClient);
+	}
+	
+	/**
+	 * Relve les clients dj annoncs, ici et sur les autres noeuds du cluster.
+	 * 
+	 * @param newClient Le nouveau client, qui ne figure pas dans sa propre liste.
+	 * @param announced Le numro de la dernire annonce  prendre en compte.
+	 */
+	List<ServerEvent> listConnected(ClientSocketThread newClient, long announced) {
+		
+		// On relve les clients  partir d'une photo du registre, sans verrou
+		//for (ClientSocketThread client : clients) {
+		//	if (client != newClient)
+		//		newClient.write(ServerEvent.connected(client));
+		//}
+		List<ClientSocketThread> snapshot = clients.snapshot();
+		
+		// Et les clients des autres noeuds du cluster,  la suite
+		ClusterNode cluster = this.cluster;
+		List<ServerEvent> remote = cluster == null ? Collections.<ServerEvent>emptyList() : cluster.getRemoteUsers();
+		List<ServerEvent> entries = new ArrayList<>(snapshot.size() + remote.size());
+		for (ClientSocketThread client : snapshot) {
+			// Un client qui ne s'est pas encore prsent n'a jamais t annonc aux autres
+			long sequence = client.presenceSequence;
+			if (client != newClient && sequence != 0 && sequence <= announced)
+				entries.add(ServerEvent.connected(client));
+		}
+		entries.addAll(remote);
+		return entries;
+		
+	}
+	
+	/**
+	 * Ecrit la liste des connects d'un nouveau client, dcoupe en pages.
+	 */
+	void writeRoster(ClientSocketThread newClient, List<ServerEvent> entries) {
+		int count = entries.size();
+		if (count == 0) return;
+		int pageSize = rosterPageSize;
+		int pages = (count + pageSize - 1) / pageSize;
+		for (int page = 0; page < pages; page++) {
+			int from = page * pageSize;
+			int to = Math.min(count, from + pageSize);
+			newClient.write(ServerEvent.roster(entries.subList(from, to).toArray(new ServerEvent[to - from]), page + 1, pages));
 		}
 	}
 	
+	/**
+	 * Quand un client vient de choisir son protocole.
+	 */
+	@Override
+	public void onProtocolNegotiated(ClientSocketThread socket) {
+		
+		// Le protocole peut saluer le client, avant tout autre message
+		socket.write(ServerEvent.WELCOME);
+		
+		// Si le client n'est pas seul dans le chat, on lui envoie la liste des clients
+		// dj connects,  ce serveur ou aux autres noeuds du cluster.
+		if (clients.size() > 1 || cluster != null) {
+			sendConnectedClients(socket);
+		}
+		
+	}
+	
 	/**
 	 * Quand un client a envoy un message.
 	 */
 	@Override
 	public void onMessage(ClientSocketThread socket, String log) {
 		// On log
-		LogWriter.getInstance().writeLog("Message de " + socket.getUserName() + " (" + socket.getAddress() + ")");
+		LogWriter.getInstance().writeLog("Message de {} ({})", socket.getUserName(), socket.getAddress());
 		// Et on propage  tous les clients
-		broadcast(protocol.sendMessage(socket, log));
+		ServerEvent event = ServerEvent.message(socket, log);
+		broadcast(event);
+		// Ainsi qu'aux autres noeuds du cluster, une seule fois chacun
+		ClusterNode cluster = this.cluster;
+		if (cluster != null) cluster.publish(event);
+		// On le conserve dans l'historique, sans attendre l'criture
+		MessageLog history = this.history;
+		if (history != null) history.append(event);
+	}
+
+	/**
+	 * Quand un client a envoy un message dans un salon. Seuls les membres du salon le reoivent.
+	 */
+	@Override
+	public void onRoomMessage(ClientSocketThread socket, String name, String log) {
+		// Il faut tre membre du salon pour y crire
+		Room room = rooms.get(name);
+		if (room == null || !room.contains(socket)) {
+			LogWriter.getInstance().writeWarning("Message de {} pour le salon {} dont il n'est pas membre", socket, name);
+			return;
+		}
+		// On propage aux membres du salon uniquement
+		broadcast(room, ServerEvent.roomMessage(socket, room, log));
+	}
+
+	/**
+	 * Quand un client a envoy un message priv. Le destinataire est trouv par l'index des noms,
+	 * en temps constant quel que soit le nombre de clients connects.
+	 */
+	@Override
+	public void onDirectMessage(ClientSocketThread socket, String recipient, String log) {
+		ClientSocketThread target = clients.findUser(recipient);
+		if (target == null) {
+			LogWriter.getInstance().writeWarning("Message priv de {} pour {} qui n'est pas connect", socket, recipient);
+			// L'expditeur est prvenu que son message n'est pas parti
+			socket.write(ServerEvent.UNKNOWN_RECIPIENT);
+			return;
+		}
+		target.write(ServerEvent.directMessage(socket, log));
 	}
 
 	/**
@@ -204,18 +1128,36 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 	public void onDisconnect(ClientSocketThread socket) {
 		
 		// On log
-		LogWriter.getInstance().writeLog("Dconnexion de " + socket.getUserName() + " (" + socket.getAddress() + ")");
+		LogWriter.getInstance().writeLog("Dconnexion de {} ({})", socket.getUserName(), socket.getAddress());
+		
+		// On retire le client dconnect. S'il l'tait dj, il n'y a rien  propager.
+		if (!clients.remove(socket)) return;
+		admission.release(socket.getAddress());
+		metrics.disconnections.increment();
 		
-		// On retire le client dconnect
-		synchronized (clientList) {
-			clientList.remove(socket);
+		// Il quitte ses salons sans vnement LEFT : l'vnement DISCONNECTED suffit
+		for (Room room : socket.rooms) {
+			leave(socket, room);
 		}
 		
-		// Et on propage  tous les clients
-		broadcast(protocol.sendClientDisconnected(socket));
+		// Et on propage  tous les clients,  la fin de la fentre en cours. Un client qui ne
+		// s'tait pas prsent n'avait pas t annonc : il n'y a rien  propager.
+		if (socket.presenceSequence == 0) return;
+		presence.disconnected(socket);
+		ClusterNode cluster = this.cluster;
+		if (cluster != null) cluster.publish(ServerEvent.disconnected(socket));
 		
 	}
 	
+	/**
+	 * Quand un client vient de changer de nom.
+	 */
+	@Override
+	public void onUserNameChanged(ClientSocketThread socket, String oldName) {
+		// On met  jour l'index des noms
+		clients.rename(socket, oldName);
+	}
+	
 	/**
 	 * On surcharge cette mthode pour fermer correctement le thread et les sockets ouverts.
 	 */
@@ -226,18 +1168,47 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 		super.interrupt();
 		
 		// On arrte toutes les connexions aux clients, et on vide la liste des clients
-		synchronized (clientList) {
-			//clientList.forEach(client -> client.interrupt());
-			for (ClientSocketThread c : clientList) c.interrupt();
-			clientList.clear();
+		//clients.forEach(client -> client.interrupt());
+		for (ClientSocketThread c : clients) c.interrupt();
+		clients.clear();
+		
+		// On ne relaie plus rien aux autres noeuds. Les annonces de prsence s'arrtent avec
+		// la roue de minuteurs.
+		if (cluster != null) {
+			cluster.interrupt();
+		}
+		
+		// On crit la fin de l'historique
+		if (history != null) {
+			history.interrupt();
+		}
+		
+		// On ne surveille plus les clients
+		timers.interrupt();
+		
+		// On ne publie plus les mesures
+		metrics.unregisterMBean();
+		if (metricsEndpoint != null) {
+			metricsEndpoint.interrupt();
+		}
+		
+		// On arrte les boucles d'vnements
+		if (eventLoops != null) {
+			for (NioEventLoop loop : eventLoops) loop.shutdown();
 		}
 		
 		// Et on arrte la pool
-		threadPool.shutdownNow();
+		if (threadPool != null) {
+			threadPool.shutdownNow();
+		}
+		if (writerPool != null) {
+			writerPool.shutdownNow();
+		}
 		
 		// On ferme le server socket
 		try {
-			serverSocket.close();
+			if (serverSocket != null) serverSocket.close();
+			if (serverChannel != null) serverChannel.close();
 		}
 		catch (IOException e) {
 			// En cas d'erreur on ne fait rien de spcial
@@ -245,6 +1216,7 @@ public class ChatServer extends Thread implements IClientThreadObserver {
 		finally {
 			// On libre la ressource
 			serverSocket = null;
+			serverChannel = null;
 		}
 		
 	}
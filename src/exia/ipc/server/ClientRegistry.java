@@ -0,0 +1,276 @@
+package exia.ipc.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Le registre des clients connects.
+ *
+ * L'ajout et le retrait se font en temps constant, et le parcours des clients (pour un broadcast)
+ * ne prend aucun verrou : il se fait sur une copie fige de la liste, sous forme de tableau. La
+ * copie n'est refaite qu'au premier parcours qui suit une modification, donc une seule fois pour
+ * tous les broadcasts entre deux connexions. On peut ajouter ou retirer des clients pendant un
+ * parcours, sans erreur : le parcours ne voit simplement pas la modification.
+ *
+ * Le registre tient aussi deux index : par nom d'utilisateur et par adresse IP. Un index garde
+ * les clients d'une mme cl dans l'ordre o ils l'ont prise : quand plusieurs clients portent
+ * le mme nom, c'est toujours le premier qui l'a pris qui reoit les messages privs. Un client
+ * n'entre dans l'index des noms qu'une fois son nom donn : un socket  peine connect n'est
+ * pas joignable sous le nom Anonymous.
+ */
+public class ClientRegistry implements Iterable<ClientSocketThread> {
+
+	/**
+	 * Les clients connects.
+	 */
+	private final Set<ClientSocketThread> clients;
+
+	/**
+	 * Le nombre de clients connects.
+	 */
+	private final AtomicInteger count;
+
+	/**
+	 * Le numro de version de la liste, incrment  chaque modification.
+	 */
+	private final AtomicLong version;
+
+	/**
+	 * La dernire copie fige de la liste.
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Les clients, par nom d'utilisateur.
+	 */
+	private final ConcurrentMap<String, Bucket> byName;
+
+	/**
+	 * Les clients, par adresse IP.
+	 */
+	private final ConcurrentMap<String, Bucket> byAddress;
+
+	/**
+	 * Constructeur.
+	 */
+	public ClientRegistry() {
+		clients = Collections.newSetFromMap(new ConcurrentHashMap<ClientSocketThread, Boolean>());
+		count = new AtomicInteger();
+		version = new AtomicLong();
+		snapshot = new Snapshot(0, new ClientSocketThread[0]);
+		byName = new ConcurrentHashMap<>();
+		byAddress = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Ajoute un client.
+	 *
+	 * @param client Le client qui vient de se connecter.
+	 * @return FALSE si le client tait dj enregistr.
+	 */
+	public boolean add(ClientSocketThread client) {
+		if (!clients.add(client)) return false;
+		count.incrementAndGet();
+		version.incrementAndGet();
+		if (client.hasUserName()) index(byName, client.getUserName(), client);
+		index(byAddress, client.getAddress(), client);
+		return true;
+	}
+
+	/**
+	 * Retire un client.
+	 *
+	 * @param client Le client qui vient de se dconnecter.
+	 * @return FALSE si le client n'tait pas (ou plus) enregistr.
+	 */
+	public boolean remove(ClientSocketThread client) {
+		if (!clients.remove(client)) return false;
+		count.decrementAndGet();
+		version.incrementAndGet();
+		unindex(byName, client.getUserName(), client);
+		unindex(byAddress, client.getAddress(), client);
+		return true;
+	}
+
+	/**
+	 * Met  jour l'index des noms quand un client change de nom.
+	 *
+	 * @param client Le client, qui porte dj son nouveau nom.
+	 * @param oldName Son ancien nom.
+	 */
+	public void rename(ClientSocketThread client, String oldName) {
+		if (!clients.contains(client)) return;
+		// Le nom par dfaut n'tait pas index : unindex() ne trouve alors rien  retirer
+		unindex(byName, oldName, client);
+		index(byName, client.getUserName(), client);
+	}
+
+	/**
+	 * Renvoie les clients qui portent ce nom, dans l'ordre o ils l'ont pris.
+	 */
+	public List<ClientSocketThread> findByName(String userName) {
+		return lookup(byName, userName);
+	}
+
+	/**
+	 * Renvoie les clients connects depuis cette adresse, dans l'ordre de leur connexion.
+	 */
+	public List<ClientSocketThread> findByAddress(String address) {
+		return lookup(byAddress, address);
+	}
+
+	/**
+	 * Trouve le destinataire d'un message priv, en temps constant.
+	 *
+	 * Le destinataire est donn par son nom, ventuellement suivi de son adresse (nom@adresse)
+	 * pour choisir entre plusieurs clients du mme nom. Si plusieurs clients correspondent,
+	 * c'est celui qui a pris le nom le premier qui est choisi.
+	 *
+	 * @param recipient Le nom, ou nom@adresse.
+	 * @return Le client, ou NULL si aucun client ne correspond.
+	 */
+	public ClientSocketThread findUser(String recipient) {
+		ClientSocketThread client = first(byName, recipient, null);
+		if (client != null) return client;
+		// Le nom peut tre suivi de l'adresse
+		int at = recipient.lastIndexOf('@');
+		if (at <= 0) return null;
+		return first(byName, recipient.substring(0, at), recipient.substring(at + 1));
+	}
+
+	public int size() {
+		return count.get();
+	}
+
+	public boolean contains(ClientSocketThread client) {
+		return clients.contains(client);
+	}
+
+	/**
+	 * Parcours sans verrou des clients connects.
+	 */
+	@Override
+	public Iterator<ClientSocketThread> iterator() {
+		return snapshot().iterator();
+	}
+
+	/**
+	 * Renvoie une copie fige de la liste des clients connects. La liste ne doit pas tre modifie.
+	 */
+	public List<ClientSocketThread> snapshot() {
+		Snapshot current = snapshot;
+		long expected = version.get();
+		if (current.version != expected) {
+			// On lit la version avant de copier : si une modification arrive pendant la
+			// copie, la version ne correspondra plus et le prochain parcours refera la copie.
+			current = new Snapshot(expected, clients.toArray(new ClientSocketThread[0]));
+			snapshot = current;
+		}
+		return Arrays.asList(current.clients);
+	}
+
+	/**
+	 * Retire tous les clients.
+	 */
+	public void clear() {
+		for (ClientSocketThread client : clients) {
+			remove(client);
+		}
+	}
+
+	private static List<ClientSocketThread> lookup(ConcurrentMap<String, Bucket> index, String key) {
+		Bucket bucket = index.get(key);
+		if (bucket == null) return Collections.emptyList();
+		synchronized (bucket) {
+			return new ArrayList<>(bucket.clients);
+		}
+	}
+
+	/**
+	 * Renvoie le premier client d'une cl, en ne gardant que ceux de cette adresse si elle est donne.
+	 */
+	private static ClientSocketThread first(ConcurrentMap<String, Bucket> index, String key, String address) {
+		Bucket bucket = index.get(key);
+		if (bucket == null) return null;
+		synchronized (bucket) {
+			for (ClientSocketThread client : bucket.clients) {
+				if (address == null || address.equals(client.getAddress())) return client;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Ajoute un client dans un index.
+	 */
+	private static void index(ConcurrentMap<String, Bucket> index, String key, ClientSocketThread client) {
+		for (;;) {
+			Bucket bucket = index.get(key);
+			if (bucket == null) {
+				Bucket created = new Bucket();
+				bucket = index.putIfAbsent(key, created);
+				if (bucket == null) bucket = created;
+			}
+			synchronized (bucket) {
+				// Le seau vient d'tre retir de l'index car il tait vide : on recommence
+				if (bucket.retired) continue;
+				bucket.clients.add(client);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Retire un client d'un index. Le seau est supprim quand il est vide.
+	 */
+	private static void unindex(ConcurrentMap<String, Bucket> index, String key, ClientSocketThread client) {
+		Bucket bucket = index.get(key);
+		if (bucket == null) return;
+		synchronized (bucket) {
+			bucket.clients.remove(client);
+			if (bucket.clients.isEmpty()) {
+				bucket.retired = true;
+				index.remove(key, bucket);
+			}
+		}
+	}
+
+	/**
+	 * Une copie fige de la liste des clients, avec la version de la liste au moment de la copie.
+	 */
+	private static final class Snapshot {
+
+		final long version;
+
+		final ClientSocketThread[] clients;
+
+		Snapshot(long version, ClientSocketThread[] clients) {
+			this.version = version;
+			this.clients = clients;
+		}
+
+	}
+
+	/**
+	 * Les clients qui partagent une mme cl d'index, dans l'ordre o ils l'ont prise. Le verrou
+	 * du seau protge son contenu : il n'est disput que par les clients d'un mme nom ou
+	 * d'une mme adresse.
+	 */
+	private static final class Bucket {
+
+		final Set<ClientSocketThread> clients = new LinkedHashSet<>();
+
+		boolean retired;
+
+	}
+
+}
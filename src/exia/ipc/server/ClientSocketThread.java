@@ -1,77 +1,172 @@
 package exia.ipc.server;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import exia.ipc.server.events.IClientThreadObservable;
 import exia.ipc.server.events.IClientThreadObserver;
+import exia.ipc.server.metrics.ServerMetrics;
+import exia.ipc.server.protocol.BinaryServerProtocol;
 import exia.ipc.server.protocol.IServerProtocol;
 
 /**
- * Le thread qui va grer l'interconnexion avec un client. Le thread est actif durant toute la dure
- * de vie du socket.
+ * L'interconnexion avec un client : son nom, son protocole, sa file d'envoi, ses salons et ses
+ * compteurs, quel que soit le mode du serveur.
+ * 
+ * Les entres/sorties sont laisses aux sous-classes : BlockingClientSocket lit le socket dans
+ * une tche ddie (modes avec un thread par client), NioClientSocket est pilot par une boucle
+ * d'vnements.
  */
-public class ClientSocketThread extends Thread implements IClientThreadObservable {
+public abstract class ClientSocketThread implements IClientThreadObservable {
+
+	// Les compteurs du client n'ont chacun qu'un seul crivain : le thread de lecture pour ce qui
+	// est reu, la tche d'criture pour ce qui est envoy. On les met  jour par lazySet, une
+	// criture ordonne sans barrire complte : quelques nanosecondes, et la lecture depuis un
+	// autre thread voit toujours une valeur entire, au pire un peu en retard.
+	private static final AtomicLongFieldUpdater<ClientSocketThread> MESSAGES_IN =
+			AtomicLongFieldUpdater.newUpdater(ClientSocketThread.class, "messagesIn");
+	private static final AtomicLongFieldUpdater<ClientSocketThread> MESSAGES_OUT =
+			AtomicLongFieldUpdater.newUpdater(ClientSocketThread.class, "messagesOut");
+	private static final AtomicLongFieldUpdater<ClientSocketThread> BYTES_IN =
+			AtomicLongFieldUpdater.newUpdater(ClientSocketThread.class, "bytesIn");
+	private static final AtomicLongFieldUpdater<ClientSocketThread> BYTES_OUT =
+			AtomicLongFieldUpdater.newUpdater(ClientSocketThread.class, "bytesOut");
+	private static final AtomicLongFieldUpdater<ClientSocketThread> PARSE_ERRORS =
+			AtomicLongFieldUpdater.newUpdater(ClientSocketThread.class, "parseErrors");
+	private static final AtomicLongFieldUpdater<ClientSocketThread> RATE_LIMITED =
+			AtomicLongFieldUpdater.newUpdater(ClientSocketThread.class, "rateLimited");
 
 	/**
-	 * Le socket connect au client.
-	 */
-	private Socket clientSocket;
-	
-	/**
-	 * Le flux pour crire sur le socket.
+	 * Les tats d'envoi d'un client : normal, dgrad car trop lent, ou en cours de dconnexion.
 	 */
-	private PrintWriter outStream;
+	private static final int NORMAL = 0, DEGRADED = 1, EVICTED = 2;
 	
 	/**
-	 * Le flux pour lire le socket.
+	 * Le protocole du serveur, qui choisit celui du client.
 	 */
-	private BufferedReader inStream;
+	private final IServerProtocol serverProtocol;
 	
 	/**
-	 * Le protocole de dialogue.
+	 * Le protocole de dialogue, NULL tant que le client ne l'a pas choisi.
 	 */
-	private IServerProtocol protocol;
+	private volatile IServerProtocol protocol;
 
 	/**
 	 * Le nom de l'utilisateur utilisant le client. Par dfaut Anonymous.
 	 */
 	private String userName = "Anonymous";
+	
+	/**
+	 * Le client a donn son nom. Jusque l, il ne figure pas dans l'index des noms.
+	 */
+	private volatile boolean named;
+	
+	/**
+	 * L'adresse IP du client, conserve pour pouvoir l'annoncer mme aprs la fermeture du socket.
+	 */
+	private final String address;
+	
+	/**
+	 * Le numro de l'annonce de sa connexion aux autres clients, 0 tant qu'il ne s'est pas
+	 * prsent. Tenu par le PresenceCoalescer du serveur.
+	 */
+	volatile long presenceSequence;
+	
+	/**
+	 * Les salons dont le client est membre, pour les quitter tous  la dconnexion.
+	 */
+	final Set<Room> rooms = Collections.newSetFromMap(new ConcurrentHashMap<Room, Boolean>());
 
 	/**
 	 * L'observateur de ce client.
 	 */
 	private IClientThreadObserver observer;
+	
+	/**
+	 * La file des messages en attente d'envoi.
+	 */
+	protected final OutboundQueue outQueue;
+
+	/**
+	 * Les mesures du serveur, ou NULL si le client n'est pas rattach  un serveur.
+	 */
+	private ServerMetrics metrics;
+
+	/**
+	 * Les seuils de retard du serveur, ou NULL si on ne les vrifie pas.
+	 */
+	private SlowConsumerPolicy slowConsumer;
+
+	/**
+	 * L'tat d'envoi du client : NORMAL, DEGRADED (trop lent, il ne reoit plus les messages du chat)
+	 * ou EVICTED (trop lent ou silencieux, il va tre dconnect : on ne lui envoie plus rien).
+	 */
+	private final AtomicInteger lagState = new AtomicInteger(NORMAL);
+
+	/**
+	 * Le seau  jetons des messages du client, ou NULL si son dbit n'est pas limit.
+	 */
+	private TokenBucket messageBucket;
+
+	/**
+	 * Le minuteur qui surveille le silence du client, ou NULL.
+	 */
+	private TimerWheel.Timeout idleTimeout;
+
+	/**
+	 * Les lignes et les trames reues du client.
+	 */
+	private volatile long messagesIn;
 
 	/**
-	 * Constructeur.
+	 * Les trames crites sur le socket du client.
+	 */
+	private volatile long messagesOut;
+
+	/**
+	 * Les octets reus du client.
+	 */
+	private volatile long bytesIn;
+
+	/**
+	 * Les octets crits sur le socket du client.
+	 */
+	private volatile long bytesOut;
+
+	/**
+	 * Les lignes et les trames invalides reues du client.
+	 */
+	private volatile long parseErrors;
+
+	/**
+	 * Les messages du client refuss car il en envoyait trop.
+	 */
+	private volatile long rateLimited;
+	
+	/**
+	 * Constructeur pour les sous-classes, qui grent elles-mmes leurs entres/sorties.
 	 * 
-	 * @param clientSocket Le socket connect au client.
+	 * @param address L'adresse IP du client.
 	 * @param observer L'observer, qui sera notifi des vnements du socket.
-	 * @param protocol Le protocole de communication.
-	 * @throws IOException Erreur d'ouverture de flux entre ou sortie.
+	 * @param protocol Le protocole du serveur, qui choisira celui du client.
+	 * @param outQueue La file des messages en attente d'envoi.
 	 */
-	public ClientSocketThread(Socket clientSocket, IClientThreadObserver observer, IServerProtocol protocol) throws IOException {
-		
-		// On donne un nom unique au thread
-		super("ClientSocket-" + clientSocket.getPort());
+	protected ClientSocketThread(String address, IClientThreadObserver observer, IServerProtocol protocol,
+			OutboundQueue outQueue) {
 		
-		// On enregistre le socket du client, l'observer et le protocole de communication
-		this.clientSocket = clientSocket;
+		// On enregistre l'adresse, l'observer, le protocole de communication et la file d'envoi
+		this.address = address;
 		this.observer = observer;
-		this.protocol = protocol;
-		
-		// On ouvre les flux d'entres/sorties
-		this.outStream = new PrintWriter(clientSocket.getOutputStream(), true);
-		this.inStream  = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+		this.serverProtocol = protocol;
+		this.outQueue = outQueue;
 		
 	}
 	
 	/**
-	 * Affiche le thread sous forme de texte.
+	 * Affiche le client sous forme de texte.
 	 */
 	@Override
 	public String toString() {
@@ -81,58 +176,413 @@ public class ClientSocketThread extends Thread implements IClientThreadObservabl
 	public void setUserName(String userName) {
 		// On vient d'avoir le nom du client
 		if ("Anonymous".equals(this.userName)) {
-			LogWriter.getInstance().writeLog("Nouvelle connexion de " + getAddress() + " (" + userName + ")");
+			LogWriter.getInstance().writeLog("Nouvelle connexion de {} ({})", getAddress(), userName);
 		}
+		String oldName = this.userName;
 		this.userName = userName;
-		
+		this.named = true;
+		// On prvient l'observer, qui tient un index des noms
+		notifyUserNameChanged(this, oldName);
 	}
 	
 	public String getUserName() {
 		return userName;
 	}
+	
+	/**
+	 * Indique si le client a donn son nom (HELLO). Avant, il s'appelle Anonymous mais ne peut
+	 * recevoir aucun message priv.
+	 */
+	public boolean hasUserName() {
+		return named;
+	}
 
 	public String getAddress() {
-		if (clientSocket == null || clientSocket.isClosed()) return "null";
-		return clientSocket.getInetAddress().getHostAddress();
+		return address;
 	}
-
-	@Override
-	public void run() {
+	
+	/**
+	 * Choisit le protocole du client d'aprs le premier octet qu'il a envoy, et prvient
+	 * l'observer, qui peut ds lors lui crire.
+	 * 
+	 * @param firstByte Le premier octet reu.
+	 */
+	protected void negotiate(int firstByte) {
+		protocol = serverProtocol.negotiate(firstByte);
+		notifyProtocolNegotiated(this);
+	}
+	
+	/**
+	 * Renvoie le protocole du client, ou NULL s'il ne l'a pas encore choisi.
+	 */
+	public IServerProtocol getProtocol() {
+		return protocol;
+	}
+	
+	/**
+	 * Traitement d'une trame envoye par un client du protocole binaire.
+	 * 
+	 * @param frame Le tableau qui contient la trame.
+	 * @param offset La position du dbut de la trame, aprs sa longueur.
+	 * @param length La longueur de la trame.
+	 */
+	protected void processFrame(byte[] frame, int offset, int length) {
+		recordMessageIn();
+		((BinaryServerProtocol) protocol).processClientFrame(this, frame, offset, length);
+	}
+	
+	/**
+	 * Traitement d'une ligne envoye par le client.
+	 * 
+	 * @param inputLine La ligne reue, sans le retour  la ligne.
+	 */
+	protected void processLine(String inputLine) {
 		
-		// On prpare des chanes d'entres/sorties
-		String inputLine, outputLine;
+		recordMessageIn();
 		
-		try {
-			// On lit le socket ligne par ligne
-			while ((inputLine = inStream.readLine()) != null) {
-				
-				// On laisse le protocol grer le traitement
-				outputLine = protocol.processClientInput(this, inputLine);
-				
-				// Si on a une rponse  envoyer
-				if (outputLine != null) {
-					write(outputLine);
-				}
-				
-			}
+		// On laisse le protocol grer le traitement
+		String outputLine = protocol.processClientInput(this, inputLine);
+		
+		// Si on a une rponse  envoyer
+		if (outputLine != null) {
+			write(outputLine);
 		}
-		// Erreur de lecture/criture
-		catch (IOException e) {
-			LogWriter.getInstance().writeError(e.getClass().getSimpleName() + " while readding/writing socket " + toString()
-				+ " : " + e.getMessage());
+		
+	}
+	
+	/**
+	 * Envoie une ligne au client.
+	 * 
+	 * @param data La ligne  envoyer.
+	 */
+	public final void write(String data) {
+		write(ServerEvent.line(data));
+	}
+	
+	/**
+	 * Envoie un vnement au client, encod avec son protocole. Rien n'est envoy tant que
+	 * le client n'a pas choisi son protocole.
+	 * 
+	 * @param event L'vnement  envoyer.
+	 */
+	public final void write(ServerEvent event) {
+		IServerProtocol protocol = this.protocol;
+		if (protocol == null || !accepts(event)) return;
+		Frame frame = protocol.encode(event);
+		if (frame == null) return;
+		write(frame);
+		frame.release();
+	}
+	
+	/**
+	 * Envoie une trame au client. La trame est mise en file d'attente et crite  part : cette
+	 * mthode ne bloque jamais, mme si le client ne lit plus son socket. La file prend sa
+	 * propre rfrence sur la trame, l'appelant garde la sienne.
+	 * 
+	 * @param frame La trame  envoyer.
+	 */
+	public abstract void write(Frame frame);
+	
+	/**
+	 * Indique si un vnement doit tre envoy  ce client. Un client dgrad ne reoit plus
+	 * les messages du chat, un client en cours de dconnexion ne reoit plus rien.
+	 * 
+	 * Un client dgrad ne reoit plus assez pour que write() vrifie son retard : on le
+	 * vrifie donc ici,  chaque message qu'on ne lui envoie pas.
+	 * 
+	 * @param event L'vnement  envoyer.
+	 */
+	public final boolean accepts(ServerEvent event) {
+		int state = lagState.get();
+		if (state == NORMAL) return true;
+		if (state == EVICTED) return false;
+		if (!event.isMessage()) return true;
+		checkLag();
+		return false;
+	}
+	
+	/**
+	 * Compare le retard du client aux seuils du serveur, aprs l'ajout d'une trame dans sa file.
+	 * Tant que la file est vide  temps, cela ne cote que la lecture de deux compteurs.
+	 * 
+	 * @return TRUE si le client vient d'tre dconnect.
+	 */
+	protected final boolean checkLag() {
+		
+		SlowConsumerPolicy policy = slowConsumer;
+		if (policy == null) return false;
+		long bytes = outQueue.getQueuedBytes();
+		long lag = outQueue.getLagNanos();
+		
+		// Second seuil : on le dconnecte
+		if (policy.shouldEvict(bytes, lag)) {
+			evict(bytes, lag);
+			return true;
 		}
 		
-		// Il n'y a plus de donnes  lire, donc le client a ferm proprement sa connexion.
-		// Si le socket est dj ferm, c'est que c'est une interruption.
-		if (clientSocket != null) {
-			notifyClientDisconnected(this);
+		// Premier seuil : on ne lui envoie plus que les connexions et dconnexions
+		if (policy.shouldDegrade(bytes, lag) && lagState.compareAndSet(NORMAL, DEGRADED)) {
+			LogWriter.getInstance().writeWarning("Client trop lent, dgrad : {} ({} octets en attente, {} ms de retard)",
+					this, bytes, lag / 1000000);
+			ServerMetrics metrics = this.metrics;
+			if (metrics != null) metrics.slowConsumersDegraded.increment();
 		}
+		return false;
+		
+	}
+	
+	/**
+	 * Dconnecte le client trop lent. Les trames en attente sont jetes et remplaces par la
+	 * raison de la dconnexion, puis le socket est ferm une fois la raison crite.
+	 */
+	private void evict(long bytes, long lag) {
+		if (!evict(SlowConsumerPolicy.REASON)) return;
+		LogWriter.getInstance().writeWarning("Client trop lent, dconnexion de {} ({} octets en attente, {} ms de retard)",
+				this, bytes, lag / 1000000);
+		ServerMetrics metrics = this.metrics;
+		if (metrics != null) metrics.slowConsumersEvicted.increment();
+	}
+	
+	/**
+	 * Dconnecte le client avec une raison, envoye dans une ligne ERROR. Les trames en attente
+	 * sont jetes, et plus rien ne lui est envoy ensuite.
+	 * 
+	 * @param reason La raison, un seul mot.
+	 * @return FALSE si le client tait dj en cours de dconnexion.
+	 */
+	protected final boolean evict(String reason) {
 		
+		// Un seul appelant dconnecte le client
+		if (lagState.getAndSet(EVICTED) == EVICTED) return false;
+		
+		// On ne garde que la raison
+		outQueue.clear();
+		IServerProtocol protocol = this.protocol;
+		Frame frame = protocol != null ? protocol.encode(ServerEvent.error(reason)) : null;
+		if (frame != null) outQueue.offer(frame);
+		sendReasonAndClose();
+		return true;
+		
+	}
+	
+	/**
+	 * Surveille le silence du client sur la roue de minuteurs du serveur. Appel par le serveur
+	 *  l'enregistrement du client.
+	 * 
+	 * On ne note pas l'heure de chaque lecture : le minuteur compare seulement le nombre d'octets
+	 * reus  celui de son chance prcdente. Une activit ne cote donc rien, et le minuteur
+	 * n'est replanifi qu'une fois par priode, dans le thread de la roue.
+	 * 
+	 * @param wheel La roue de minuteurs.
+	 * @param pingMillis Le silence aprs lequel on envoie un PING.
+	 * @param timeoutMillis Le silence aprs lequel on dconnecte le client, PING compris.
+	 */
+	void watchIdle(TimerWheel wheel, final long pingMillis, final long timeoutMillis) {
+		idleTimeout = wheel.schedule(new TimerWheel.Task() {
+			
+			/** Les octets reus  l'chance prcdente. */
+			long lastBytesIn = bytesIn;
+			
+			/** Un PING a t envoy, et le client n'a rien envoy depuis. */
+			boolean pinged;
+			
+			public void run(TimerWheel.Timeout timeout) {
+				if (isEvicted()) return;
+				long received = bytesIn;
+				// Le client a parl : on repart pour une priode complte
+				if (received != lastBytesIn) {
+					lastBytesIn = received;
+					pinged = false;
+					timeout.reschedule(pingMillis);
+				}
+				// Silence : on lui demande s'il est toujours l
+				else if (!pinged) {
+					pinged = true;
+					write(ServerEvent.PING);
+					timeout.reschedule(Math.max(1, timeoutMillis - pingMillis));
+				}
+				// Toujours rien : la connexion est morte
+				else if (evict("idle-timeout")) {
+					LogWriter.getInstance().writeWarning("Client silencieux depuis {} ms, dconnexion de {}",
+							timeoutMillis, ClientSocketThread.this);
+					ServerMetrics metrics = ClientSocketThread.this.metrics;
+					if (metrics != null) metrics.idleEvicted.increment();
+				}
+			}
+			
+		}, pingMillis);
+	}
+	
+	/**
+	 * Ecrit la raison de la dconnexion, seule dans la file d'envoi, puis ferme le socket.
+	 */
+	protected abstract void sendReasonAndClose();
+	
+	/**
+	 * L'crivain a vid la file : un client dconnect peut tre ferm, un client dgrad
+	 * a rattrap son retard et reoit  nouveau les messages.
+	 */
+	protected final void onDrained() {
+		if (isEvicted()) {
+			abort();
+		}
+		else if (lagState.compareAndSet(DEGRADED, NORMAL)) {
+			LogWriter.getInstance().writeLog("Client rtabli, il a rattrap son retard : {}", this);
+		}
+	}
+	
+	/**
+	 * Indique si le client est dgrad ou en cours de dconnexion car trop lent.
+	 */
+	public boolean isDegraded() {
+		return lagState.get() != NORMAL;
+	}
+	
+	/**
+	 * Indique si le client est en cours de dconnexion car trop lent : on ne lui crit plus rien.
+	 */
+	protected final boolean isEvicted() {
+		return lagState.get() == EVICTED;
+	}
+	
+	/**
+	 * Coupe la connexion sans librer les ressources. La dconnexion est ensuite signale 
+	 * l'observer comme une dconnexion normale.
+	 */
+	protected abstract void abort();
+	
+	/**
+	 * Prend un jeton pour un message du client (MSG, ROOMMSG, DM). Appel par le protocole, dans
+	 * le thread de lecture, avant de dcoder le message. Sans jeton, seul le client reoit une
+	 * erreur rate-limited (une ligne ERROR, ou une trame ERROR en binaire) : le message n'est ni
+	 * dcod ni diffus.
+	 * 
+	 * @return FALSE si le message doit tre ignor.
+	 */
+	public final boolean acquireMessage() {
+		TokenBucket bucket = messageBucket;
+		if (bucket == null || bucket.tryAcquire()) return true;
+		RATE_LIMITED.lazySet(this, rateLimited + 1);
+		ServerMetrics metrics = this.metrics;
+		if (metrics != null) metrics.rateLimited.increment();
+		write(ServerEvent.RATE_LIMITED);
+		return false;
+	}
+	
+	/**
+	 * Limite le dbit des messages du client. Appel par le serveur  l'enregistrement du client.
+	 */
+	void setMessageBucket(TokenBucket bucket) {
+		this.messageBucket = bucket;
+	}
+	
+	/**
+	 * Arrte la surveillance du silence du client.
+	 */
+	protected final void cancelIdleTimeout() {
+		TimerWheel.Timeout timeout = idleTimeout;
+		if (timeout != null) timeout.cancel();
+	}
+	
+	/**
+	 * Rattache le client aux mesures du serveur. Appel par le serveur  l'enregistrement du client.
+	 */
+	void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Donne au client les seuils de retard du serveur. Appel par le serveur  l'enregistrement du client.
+	 */
+	void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+		this.slowConsumer = policy != null && policy.isEnabled() ? policy : null;
+	}
+
+	/**
+	 * Compte une ligne ou une trame reue.
+	 */
+	private void recordMessageIn() {
+		MESSAGES_IN.lazySet(this, messagesIn + 1);
+		ServerMetrics metrics = this.metrics;
+		if (metrics != null) metrics.messagesIn.increment();
+	}
+
+	/**
+	 * Compte des octets reus. Appel par le seul thread qui lit le socket.
+	 */
+	protected final void recordBytesIn(long count) {
+		BYTES_IN.lazySet(this, bytesIn + count);
+		ServerMetrics metrics = this.metrics;
+		if (metrics != null) metrics.bytesIn.add(count);
+	}
+
+	/**
+	 * Compte une trame crite en entier sur le socket. Appel par la seule tche d'criture.
+	 */
+	protected final void recordFrameOut(int length) {
+		MESSAGES_OUT.lazySet(this, messagesOut + 1);
+		BYTES_OUT.lazySet(this, bytesOut + length);
+		ServerMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.messagesOut.increment();
+			metrics.bytesOut.add(length);
+		}
+	}
+
+	/**
+	 * Enregistre la dure d'une criture sur le socket.
+	 */
+	protected final void recordWrite(long nanos) {
+		ServerMetrics metrics = this.metrics;
+		if (metrics != null) metrics.writeNanos.record(nanos);
+	}
+
+	/**
+	 * Compte une ligne ou une trame invalide. Appel par le protocole, dans le thread de lecture.
+	 */
+	public final void recordParseError() {
+		PARSE_ERRORS.lazySet(this, parseErrors + 1);
+		ServerMetrics metrics = this.metrics;
+		if (metrics != null) metrics.parseErrors.increment();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn;
+	}
+
+	public long getMessagesOut() {
+		return messagesOut;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getParseErrors() {
+		return parseErrors;
+	}
+
+	public long getRateLimited() {
+		return rateLimited;
+	}
+
+	/**
+	 * Renvoie les salons dont le client est membre.
+	 */
+	public Set<Room> getRooms() {
+		return Collections.unmodifiableSet(rooms);
 	}
 	
-	public void write(String data) {
-		outStream.println(data);
-		outStream.flush();
+	/**
+	 * Renvoie la file d'envoi de ce client, pour connatre sa profondeur et le nombre de
+	 * messages perdus.
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outQueue;
 	}
 
 	@Override
@@ -140,6 +590,26 @@ public class ClientSocketThread extends Thread implements IClientThreadObservabl
 		observer.onMessage(client, log);
 	}
 	
+	@Override
+	public void notifyRoomMessageReceived(ClientSocketThread client, String room, String log) {
+		observer.onRoomMessage(client, room, log);
+	}
+	
+	@Override
+	public void notifyDirectMessageReceived(ClientSocketThread client, String recipient, String log) {
+		observer.onDirectMessage(client, recipient, log);
+	}
+	
+	@Override
+	public void notifyProtocolNegotiated(ClientSocketThread client) {
+		observer.onProtocolNegotiated(client);
+	}
+	
+	@Override
+	public void notifyUserNameChanged(ClientSocketThread client, String oldName) {
+		observer.onUserNameChanged(client, oldName);
+	}
+	
 	@Override
 	public void notifyClientDisconnected(ClientSocketThread client) {
 		// On prvient l'observer
@@ -149,29 +619,21 @@ public class ClientSocketThread extends Thread implements IClientThreadObservabl
 		// Et le thread va s'arrter de lui mme maintenant
 	}
 
-	private void close() {
-		try {
-			clientSocket.close();
-			inStream.close();
-			outStream.close();
-		}
-		catch (Exception ex) { }
-		finally {
-			clientSocket = null;
-			inStream = null;
-			outStream = null;
-		}
-	}
+	/**
+	 * Ferme le socket et libre les ressources du client.
+	 */
+	protected abstract void close();
 
 	@Override
 	public void setObserver(IClientThreadObserver observer) {
 		this.observer = observer;
 	}
 
-	@Override
+	/**
+	 * Arrte le client. En mode bloquant, la fermeture du socket dbloque la lecture en cours,
+	 * et la tche se termine alors d'elle mme.
+	 */
 	public void interrupt() {
-		// On arrte le thread qui lit le socket
-		super.interrupt();
 		// On ferme le socket et les streams
 		close();
 	}
@@ -0,0 +1,153 @@
+package exia.ipc.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Une trame prte  tre envoye sur le rseau.
+ *
+ * La ligne est encode une seule fois en octets, quel que soit le nombre de destinataires :
+ * tous les clients crivent depuis le mme buffer, en lecture seule. La trame compte ses
+ * rfrences : chaque file d'envoi qui la contient en possde une, et le buffer est rendu 
+ * la BufferPool quand la dernire est libre.
+ */
+public final class Frame {
+
+	/**
+	 * L'encodage des lignes, identique  celui des flux du client.
+	 */
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * Le retour  la ligne, identique  celui de PrintWriter.println().
+	 */
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	/**
+	 * Un encodeur par thread, car ils ne sont pas thread-safe.
+	 */
+	private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>() {
+		@Override
+		protected CharsetEncoder initialValue() {
+			return CHARSET.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	/**
+	 * Les octets de la trame, pris dans la BufferPool.
+	 */
+	private byte[] array;
+
+	/**
+	 * Le nombre d'octets utiles dans le tableau.
+	 */
+	private final int length;
+
+	/**
+	 * Le compteur de rfrences.
+	 */
+	private final AtomicInteger refCount;
+
+	/**
+	 * Constructeur.
+	 */
+	private Frame(byte[] array, int length) {
+		this.array = array;
+		this.length = length;
+		this.refCount = new AtomicInteger(1);
+	}
+
+	/**
+	 * Encode une ligne de texte, avec son retour  la ligne.
+	 * L'appelant possde une rfrence sur la trame, qu'il doit librer avec release().
+	 *
+	 * @param line La ligne  envoyer.
+	 * @return La trame encode.
+	 */
+	public static Frame text(String line) {
+		CharsetEncoder encoder = ENCODER.get().reset();
+		int maxLength = (int) Math.ceil((line.length() + LINE_SEPARATOR.length()) * (double) encoder.maxBytesPerChar());
+		byte[] array = BufferPool.acquire(maxLength);
+		ByteBuffer out = ByteBuffer.wrap(array);
+		encoder.encode(CharBuffer.wrap(line), out, false);
+		encoder.encode(CharBuffer.wrap(LINE_SEPARATOR), out, true);
+		encoder.flush(out);
+		return new Frame(array, out.position());
+	}
+
+	/**
+	 * Fabrique une trame  partir d'octets dj crits dans un tableau de la BufferPool, par
+	 * exemple par un protocole binaire. La trame devient propritaire du tableau.
+	 * L'appelant possde une rfrence sur la trame, qu'il doit librer avec release().
+	 *
+	 * @param array Le tableau, pris dans la BufferPool.
+	 * @param length Le nombre d'octets utiles.
+	 * @return La trame.
+	 */
+	public static Frame wrap(byte[] array, int length) {
+		return new Frame(array, length);
+	}
+
+	/**
+	 * Renvoie la taille de la trame en octets.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Prend une rfrence supplmentaire sur la trame.
+	 *
+	 * @return La trame elle-mme.
+	 */
+	public Frame retain() {
+		for (;;) {
+			int count = refCount.get();
+			if (count <= 0) throw new IllegalStateException("Trame dj libre");
+			if (refCount.compareAndSet(count, count + 1)) return this;
+		}
+	}
+
+	/**
+	 * Libre une rfrence. A la dernire, le buffer est rendu  la BufferPool et la trame
+	 * ne doit plus tre utilise.
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if (count == 0) {
+			byte[] recycled = array;
+			array = null;
+			BufferPool.release(recycled);
+		}
+		else if (count < 0) {
+			throw new IllegalStateException("Trame dj libre");
+		}
+	}
+
+	/**
+	 * Ecrit la trame sur un flux, sans copie intermdiaire.
+	 *
+	 * @param out Le flux de sortie.
+	 * @throws IOException Erreur d'criture.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(array, 0, length);
+	}
+
+	/**
+	 * Renvoie une vue en lecture seule sur les octets de la trame, avec sa propre position.
+	 * Les octets ne sont pas copis.
+	 */
+	public ByteBuffer duplicate() {
+		return ByteBuffer.wrap(array, 0, length).asReadOnlyBuffer();
+	}
+
+}
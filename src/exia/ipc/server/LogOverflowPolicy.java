@@ -0,0 +1,25 @@
+package exia.ipc.server;
+
+/**
+ * Ce que fait le LogWriter quand sa file est pleine, c'est--dire quand les logs arrivent plus
+ * vite que le thread d'criture ne peut les crire.
+ */
+public enum LogOverflowPolicy {
+
+	/**
+	 * On jette le nouveau log. Les logs perdus sont compts.
+	 */
+	DROP,
+
+	/**
+	 * L'appelant attend qu'une place se libre : aucun log n'est perdu, sauf les avertissements,
+	 * mais le thread qui crit le log est ralenti.
+	 */
+	WAIT,
+
+	/**
+	 * On jette les logs normaux et les avertissements, mais on attend pour les erreurs du serveur.
+	 */
+	KEEP_ERRORS
+
+}
@@ -1,19 +1,44 @@
 package exia.ipc.server;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Logger de l'application.
  * Applique le design pattern Singleton.
- * Les mthodes d'criture des logs sont synchronises.
+ *
+ * L'criture des logs ne bloque pas l'appelant : le log est dpos dans un anneau de taille fixe,
+ * sans verrou, et un thread ddi les crit par lots sur la sortie standard et dans le fichier.
+ * Le fichier est crit  travers un buffer, vid une fois par lot, et il change quand il devient
+ * trop gros ou quand la date change.
+ *
+ * Les mthodes  paramtres (writeLog("Message de {} ({})", nom, adresse)) ne construisent pas
+ * le texte du log : le modle et ses paramtres sont rangs dans une case de l'anneau, et c'est
+ * le thread d'criture qui les assemble, dans un buffer rutilis, puis les encode directement
+ * dans les buffers d'octets de la console et du fichier. La date n'est mise en forme qu'une fois
+ * par seconde. Si les paramtres sont des chanes, un log n'alloue donc aucun objet.
+ *
+ * Les erreurs provoques par un client (commande invalide, ligne trop longue, client trop lent...)
+ * sont des avertissements : crits comme les erreurs, mais jamais au prix d'une attente quand
+ * l'anneau est plein. Un client qui envoie n'importe quoi ne doit pas pouvoir ralentir les
+ * threads d'entres/sorties du serveur.
  */
 public class LogWriter {
-	
+
 	/**
 	 * Emplacement du fichier de log.
 	 * Configurable de manire statique.
@@ -21,26 +46,170 @@ public class LogWriter {
 	public static File FILE = null;
 
 	/**
-	 * Instance unique de la classe (singleton).
+	 * La taille de l'anneau, une puissance de 2.
+	 */
+	private static final int RING_SIZE = 8192;
+
+	/**
+	 * Le nombre maximal de logs d'un lot, une puissance de 2.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * La taille du buffer d'criture dans le fichier.
+	 */
+	private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+	// Les niveaux des logs
+	private static final int LOG = 0;
+	private static final int WARNING = 1;
+	private static final int ERROR = 2;
+
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Un log en attente d'criture. Les cases de l'anneau sont rutilises.
+	 */
+	private static final class Record {
+
+		/**
+		 * Le numro du log qui occupe la case, publi une fois la case remplie.
+		 */
+		private volatile long sequence = -1;
+
+		private PrintStream out;
+
+		private long timestamp;
+
+		/**
+		 * Le modle du log, dont les {} sont remplacs par les paramtres, ou NULL si le log
+		 * est le texte du premier paramtre.
+		 */
+		private String pattern;
+
+		private Object arg0;
+
+		private Object arg1;
+
+		private Object arg2;
+
+	}
+
+	/**
+	 * L'anneau des logs en attente.
 	 */
-	private static LogWriter INSTANCE = null;
+	private final Record[] ring;
+
+	private final int mask;
+
+	/**
+	 * Le numro du prochain log  rserver par un producteur.
+	 */
+	private final AtomicLong claimed = new AtomicLong();
+
+	/**
+	 * Le numro du prochain log  lire par le thread d'criture. Les cases des numros
+	 * infrieurs sont libres.
+	 */
+	private volatile long consumed = 0;
 
 	/**
-	 * Mutex utilis pour viter l'criture concurrente.
+	 * Le numro du prochain log  crire : les logs prcdents ont t crits, buffer vid.
 	 */
-	private final Lock mutex;
+	private volatile long written = 0;
 
 	/**
-	 * Le format d'affichage des dates.
+	 * Le thread d'criture, et s'il est endormi faute de logs.
+	 */
+	private final Thread writer;
+
+	private volatile boolean sleeping = false;
+
+	/**
+	 * Ce qu'on fait quand l'anneau est plein.
+	 */
+	private volatile LogOverflowPolicy overflowPolicy = LogOverflowPolicy.KEEP_ERRORS;
+
+	/**
+	 * Le nombre de logs perdus, parce que l'anneau tait plein ou que leur criture a chou.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * La taille maximale d'un fichier de log, en octets.
+	 */
+	private volatile long maxFileSize = 10 * 1024 * 1024;
+
+	/**
+	 * Le format d'affichage des dates. Utilis par le seul thread d'criture.
 	 */
 	private SimpleDateFormat dateFormat;
-	
+
+	/**
+	 * Le format de la date dans le nom des anciens fichiers.
+	 */
+	private SimpleDateFormat dayFormat;
+
+	// La date mise en forme, refaite une fois par seconde (thread d'criture uniquement)
+	private long cachedSecond = -1;
+	private String cachedDate;
+	private String cachedDay;
+
+	// Le log en cours d'criture, et ses caractres (thread d'criture uniquement)
+	private final StringBuilder line = new StringBuilder(256);
+	private char[] chars = new char[256];
+	private CharBuffer charView = CharBuffer.wrap(chars);
+
+	// L'encodage de la console et du fichier (thread d'criture uniquement)
+	private final CharsetEncoder consoleEncoder = encoder(Charset.defaultCharset());
+	private final CharsetEncoder fileEncoder = encoder(UTF8);
+	private final ByteBuffer consoleBuffer = ByteBuffer.allocate(1024);
+
+	// Le fichier ouvert (thread d'criture uniquement)
+	private File openFile;
+	private FileChannel channel;
+	private long fileSize;
+	private String fileDay;
+	private final ByteBuffer fileBuffer = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+
 	/**
 	 * Constructeur priv (singleton).
 	 */
 	private LogWriter() {
-		mutex = new ReentrantLock(true);
-		dateFormat = new SimpleDateFormat("[yyyy-MM-dd]");
+		dateFormat = new SimpleDateFormat("[yyyy-MM-dd HH:mm:ss]");
+		dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+		ring = new Record[RING_SIZE];
+		mask = RING_SIZE - 1;
+		for (int i = 0; i < RING_SIZE; i++) {
+			ring[i] = new Record();
+		}
+		//writer = new Thread(() -> writeLoop(), "LogWriter");
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+		// On crit les derniers logs avant l'arrt de la JVM
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, "LogWriter-shutdown"));
+	}
+
+	/**
+	 * Porte l'instance unique de la classe (singleton). La JVM ne l'initialise qu'au premier
+	 * appel de getInstance(), une seule fois mme si plusieurs threads l'appellent en mme temps :
+	 * les appels suivants ne prennent aucun verrou.
+	 */
+	private static final class Holder {
+
+		private static final LogWriter INSTANCE = new LogWriter();
+
 	}
 
 	/**
@@ -49,54 +218,401 @@ public class LogWriter {
 	 * @return L'instance unique du logger.
 	 */
 	public static LogWriter getInstance() {
-		// Protection en cas d'appels simultans  cette mthode.
-		// Utilisation du moniteur avec le mot cl 'synchronized' avec en paramtre l'instance
-		// qui servira d'"identifiant" pour dsigner le verrou.
-		synchronized (LogWriter.class) {
-			if (INSTANCE == null) {
-				INSTANCE = new LogWriter();
-			}
-		}
-		return INSTANCE;
+		return Holder.INSTANCE;
 	}
-	
+
 	/**
 	 * Ecrire un log normal.
 	 */
 	public void writeLog(String log) {
-		write(log, System.out);
+		write(System.out, LOG, null, log, null, null);
+	}
+
+	/**
+	 * Ecrire un log normal, dont les {} du modle sont remplacs par les paramtres.
+	 * Le texte n'est construit que par le thread d'criture.
+	 */
+	public void writeLog(String pattern, Object arg0) {
+		write(System.out, LOG, pattern, arg0, null, null);
+	}
+
+	public void writeLog(String pattern, Object arg0, Object arg1) {
+		write(System.out, LOG, pattern, arg0, arg1, null);
+	}
+
+	public void writeLog(String pattern, Object arg0, Object arg1, Object arg2) {
+		write(System.out, LOG, pattern, arg0, arg1, arg2);
+	}
+
+	/**
+	 * Ecrire un avertissement : une erreur provoque par un client. Il part sur la sortie
+	 * d'erreur, mais il est perdu plutt que d'attendre si l'anneau est plein, quelle que soit
+	 * la politique.
+	 */
+	public void writeWarning(String log) {
+		write(System.err, WARNING, null, log, null, null);
 	}
-	
+
+	/**
+	 * Ecrire un avertissement, dont les {} du modle sont remplacs par les paramtres.
+	 */
+	public void writeWarning(String pattern, Object arg0) {
+		write(System.err, WARNING, pattern, arg0, null, null);
+	}
+
+	public void writeWarning(String pattern, Object arg0, Object arg1) {
+		write(System.err, WARNING, pattern, arg0, arg1, null);
+	}
+
+	public void writeWarning(String pattern, Object arg0, Object arg1, Object arg2) {
+		write(System.err, WARNING, pattern, arg0, arg1, arg2);
+	}
+
 	/**
 	 * Ecrire un log d'erreur.
 	 */
 	public void writeError(String log) {
-		write(log, System.err);
-	}
-	
-	private void write(String log, PrintStream out) {
-		
-		// On prend le mutex
-		mutex.lock();
-		
-		// On ajoute la date
-		log = dateFormat.format(new Date()) + " " + log;
-		
-		// On crit sur la sortie standard
-		out.println(log);
-		
-		// Ecriture sur le fichier
-		if (FILE != null) {
-			writeFile(log, FILE);
-		}
-		
-		// On libre le mutex
-		mutex.unlock();
-		
-	}
-
-	private void writeFile(String msg, File file) {
-		// TODO
+		write(System.err, ERROR, null, log, null, null);
+	}
+
+	/**
+	 * Ecrire un log d'erreur, dont les {} du modle sont remplacs par les paramtres.
+	 */
+	public void writeError(String pattern, Object arg0) {
+		write(System.err, ERROR, pattern, arg0, null, null);
+	}
+
+	public void writeError(String pattern, Object arg0, Object arg1) {
+		write(System.err, ERROR, pattern, arg0, arg1, null);
+	}
+
+	public void writeError(String pattern, Object arg0, Object arg1, Object arg2) {
+		write(System.err, ERROR, pattern, arg0, arg1, arg2);
+	}
+
+	/**
+	 * Modifie ce qu'on fait quand l'anneau est plein.
+	 */
+	public void setOverflowPolicy(LogOverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Modifie la taille maximale d'un fichier de log, en octets.
+	 */
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * Renvoie le nombre de logs perdus, parce que l'anneau tait plein ou que leur criture a chou.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Dpose un log dans l'anneau. La sortie est celle du moment de l'appel : un log crit
+	 * pendant que System.out est redirig part dans la redirection.
+	 *
+	 * @param level LOG, WARNING ou ERROR : seules les erreurs et les logs normaux peuvent attendre
+	 * une place, selon la politique.
+	 */
+	private void write(PrintStream out, int level, String pattern, Object arg0, Object arg1, Object arg2) {
+
+		// On rserve une case
+		long sequence;
+		while (true) {
+			sequence = claimed.get();
+			if (sequence - consumed >= RING_SIZE) {
+				// L'anneau est plein. Si le thread d'criture est mort, personne ne fera de
+				// place : on perd le log plutt que d'attendre pour toujours.
+				LogOverflowPolicy policy = overflowPolicy;
+				if (level == WARNING || policy == LogOverflowPolicy.DROP
+						|| (policy == LogOverflowPolicy.KEEP_ERRORS && level == LOG) || !writer.isAlive()) {
+					dropped.incrementAndGet();
+					return;
+				}
+				wakeUp();
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+				continue;
+			}
+			if (claimed.compareAndSet(sequence, sequence + 1)) break;
+		}
+
+		// On la remplit, puis on la publie
+		Record record = ring[(int) sequence & mask];
+		record.out = out;
+		record.timestamp = System.currentTimeMillis();
+		record.pattern = pattern;
+		record.arg0 = arg0;
+		record.arg1 = arg1;
+		record.arg2 = arg2;
+		record.sequence = sequence;
+
+		if (sleeping) wakeUp();
+
+	}
+
+	private void wakeUp() {
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Attend que tous les logs dposs avant l'appel aient t crits.
+	 */
+	public void flush() {
+		long target = claimed.get();
+		while (written < target && writer.isAlive()) {
+			wakeUp();
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+	}
+
+	/**
+	 * Le thread d'criture : il prend tous les logs publis, les crit, puis vide le buffer
+	 * du fichier une seule fois pour tout le lot.
+	 */
+	private void writeLoop() {
+		long next = 0;
+		while (true) {
+			Record record = ring[(int) next & mask];
+			if (record.sequence != next) {
+				// Plus rien  crire pour le moment : on termine le lot
+				flushFile();
+				written = next;
+				// On s'endort, puis on vrifie une dernire fois qu'aucun log n'est arriv
+				sleeping = true;
+				if (record.sequence != next) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+				}
+				sleeping = false;
+				continue;
+			}
+
+			// On assemble le log, puis on libre la case. Un log qui choue (un paramtre dont
+			// le toString() lve une exception, une sortie en erreur...) est perdu, mais le
+			// thread continue avec les suivants.
+			PrintStream out = record.out;
+			try {
+				render(record);
+			}
+			catch (Throwable t) {
+				out = null;
+				lost(t);
+			}
+			record.out = null;
+			record.pattern = null;
+			record.arg0 = null;
+			record.arg1 = null;
+			record.arg2 = null;
+			consumed = ++next;
+
+			if (out != null) {
+				try {
+					// On crit sur la sortie standard
+					writeConsole(out);
+
+					// Ecriture sur le fichier
+					if (FILE != null) {
+						writeFile(FILE);
+					}
+				}
+				catch (Throwable t) {
+					lost(t);
+				}
+			}
+
+			// Sous une charge continue, on termine quand mme un lot de temps en temps
+			if ((next & (BATCH_SIZE - 1)) == 0) {
+				flushFile();
+				written = next;
+			}
+		}
+	}
+
+	/**
+	 * Un log n'a pas pu tre crit. On ne peut pas crire l'erreur dans le log : on la donne 
+	 * la sortie d'erreur.
+	 */
+	private void lost(Throwable t) {
+		dropped.incrementAndGet();
+		System.err.println("Log perdu : " + t);
+	}
+
+	/**
+	 * Assemble le log d'une case dans le buffer de caractres : la date, puis le modle dont les
+	 * {} sont remplacs par les paramtres.
+	 */
+	private void render(Record record) {
+
+		// La date n'est mise en forme qu'une fois par seconde
+		long second = record.timestamp / 1000;
+		if (second != cachedSecond) {
+			Date date = new Date(record.timestamp);
+			cachedDate = dateFormat.format(date);
+			cachedDay = dayFormat.format(date);
+			cachedSecond = second;
+		}
+
+		line.setLength(0);
+		line.append(cachedDate).append(' ');
+		String pattern = record.pattern;
+		if (pattern == null) {
+			append(record.arg0);
+		}
+		else {
+			int arg = 0;
+			int start = 0;
+			int end;
+			while ((end = pattern.indexOf("{}", start)) >= 0 && arg < 3) {
+				line.append(pattern, start, end);
+				append(arg == 0 ? record.arg0 : arg == 1 ? record.arg1 : record.arg2);
+				arg++;
+				start = end + 2;
+			}
+			line.append(pattern, start, pattern.length());
+		}
+		line.append(LINE_SEPARATOR);
+
+		// On copie les caractres dans un tableau rutilis, vu par un CharBuffer pour l'encodage
+		int length = line.length();
+		if (length > chars.length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+			charView = CharBuffer.wrap(chars);
+		}
+		line.getChars(0, length, chars, 0);
+		charView.clear();
+		charView.limit(length);
+
+	}
+
+	/**
+	 * Ajoute un paramtre au log. Les chanes sont copies telles quelles ; les autres objets
+	 * passent par leur toString().
+	 */
+	private void append(Object arg) {
+		if (arg instanceof CharSequence) {
+			line.append((CharSequence) arg);
+		}
+		else {
+			line.append(arg);
+		}
+	}
+
+	/**
+	 * Encode le log dans le buffer de la console, et l'crit sur la sortie.
+	 */
+	private void writeConsole(PrintStream out) {
+		charView.rewind();
+		consoleEncoder.reset();
+		consoleBuffer.clear();
+		while (true) {
+			CoderResult result = consoleEncoder.encode(charView, consoleBuffer, true);
+			if (!result.isOverflow()) result = consoleEncoder.flush(consoleBuffer);
+			out.write(consoleBuffer.array(), 0, consoleBuffer.position());
+			consoleBuffer.clear();
+			if (!result.isOverflow()) break;
+		}
+	}
+
+	/**
+	 * Encode le log directement dans le buffer du fichier, en changeant de fichier si besoin.
+	 */
+	private void writeFile(File file) {
+		try {
+			if (channel == null || !file.equals(openFile)) {
+				openFile(file);
+			}
+			// Le fichier est trop gros, ou la date a chang
+			if (fileSize > 0 && (fileSize >= maxFileSize || !cachedDay.equals(fileDay))) {
+				rotate(file);
+			}
+			charView.rewind();
+			fileEncoder.reset();
+			while (true) {
+				int before = fileBuffer.position();
+				CoderResult result = fileEncoder.encode(charView, fileBuffer, true);
+				if (!result.isOverflow()) result = fileEncoder.flush(fileBuffer);
+				fileSize += fileBuffer.position() - before;
+				if (!result.isOverflow()) break;
+				// Le buffer est plein : on l'crit et on continue
+				flushFile();
+			}
+			fileDay = cachedDay;
+		}
+		catch (IOException e) {
+			// On ne peut pas crire l'erreur dans le log : on la donne  la sortie d'erreur
+			System.err.println("Ecriture du fichier de log impossible : " + e.getMessage());
+			closeFile();
+		}
+	}
+
+	/**
+	 * Ouvre le fichier de log,  la suite des lignes dj crites.
+	 */
+	private void openFile(File file) throws IOException {
+		closeFile();
+		channel = new FileOutputStream(file, true).getChannel();
+		openFile = file;
+		fileSize = channel.size();
+		fileDay = fileSize > 0 ? dayFormat.format(new Date(file.lastModified())) : null;
+	}
+
+	/**
+	 * Renomme le fichier courant avec sa date et un numro, et en ouvre un nouveau.
+	 */
+	private void rotate(File file) throws IOException {
+		closeFile();
+		String prefix = file.getPath() + "." + fileDay + ".";
+		int index = 1;
+		File target;
+		while ((target = new File(prefix + index)).exists()) {
+			index++;
+		}
+		if (!file.renameTo(target)) {
+			throw new IOException("Impossible de renommer " + file + " en " + target);
+		}
+		openFile(file);
+	}
+
+	/**
+	 * Ecrit le contenu du buffer dans le fichier.
+	 */
+	private void flushFile() {
+		if (channel == null || fileBuffer.position() == 0) return;
+		try {
+			fileBuffer.flip();
+			while (fileBuffer.hasRemaining()) {
+				channel.write(fileBuffer);
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Ecriture du fichier de log impossible : " + e.getMessage());
+		}
+		finally {
+			fileBuffer.clear();
+		}
+	}
+
+	private static CharsetEncoder encoder(Charset charset) {
+		return charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	private void closeFile() {
+		flushFile();
+		try {
+			if (channel != null) channel.close();
+		}
+		catch (IOException e) {
+			// En cas d'erreur on ne fait rien de spcial
+		}
+		finally {
+			channel = null;
+			openFile = null;
+		}
 	}
 
 }
@@ -0,0 +1,233 @@
+package exia.ipc.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * La file des trames en attente d'envoi vers un client.
+ *
+ * La file est borne : un client qui ne lit plus ses messages ne peut pas faire grossir la
+ * mmoire du serveur sans limite. Quand elle est pleine, on applique la politique choisie.
+ * L'ajout ne bloque jamais, donc un client lent ne ralentit pas les autres.
+ *
+ * La file possde une rfrence sur chaque trame qu'elle contient. Les trames jetes sont
+ * libres ici, celles retires avec poll() doivent tre libres par l'crivain.
+ *
+ * La file mesure aussi le retard du client : les octets en attente, et l'ge de la plus ancienne
+ * trame pas encore crite. C'est ce que regarde la SlowConsumerPolicy du serveur. Chaque trame
+ * est date  l'ajout, dans un tableau  ct de celui des trames : une trame est partage entre
+ * les files de tous ses destinataires, elle ne peut pas porter la date.
+ *
+ * Les tableaux forment un anneau, protg par un verrou comme l'tait l'ArrayBlockingQueue
+ * qu'ils remplacent. Ils grandissent au besoin jusqu' la capacit : la plupart des files
+ * restent presque vides, et n'ont pas  rserver toute leur capacit ds la connexion.
+ */
+public class OutboundQueue {
+
+	/**
+	 * La taille initiale de l'anneau.
+	 */
+	private static final int INITIAL_SIZE = 16;
+
+	/**
+	 * Le nombre maximal de trames en attente.
+	 */
+	private final int capacity;
+
+	/**
+	 * Protge l'anneau.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * Les trames en attente, et l'instant (System.nanoTime()) de leur ajout.
+	 */
+	private Frame[] frames;
+
+	private long[] enqueuedAt;
+
+	/**
+	 * La position de la plus ancienne trame dans l'anneau.
+	 */
+	private int head;
+
+	/**
+	 * Le nombre de trames en attente. Modifi sous le verrou, lu sans.
+	 */
+	private volatile int count;
+
+	/**
+	 * Ce qu'on fait quand la file est pleine.
+	 */
+	private final OverflowPolicy policy;
+
+	/**
+	 * Le nombre de messages perdus car la file tait pleine.
+	 */
+	private final AtomicLong dropped;
+
+	/**
+	 * Les octets des trames en attente.
+	 */
+	private final AtomicLong bytes;
+
+	/**
+	 * L'instant (System.nanoTime()) de l'ajout de la plus ancienne trame en attente, ou 0 si la
+	 * file est vide. Modifi sous le verrou, lu sans.
+	 */
+	private volatile long headSince;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param capacity Le nombre maximal de messages en attente.
+	 * @param policy Ce qu'on fait quand la file est pleine.
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacit invalide : " + capacity);
+		this.capacity = capacity;
+		this.frames = new Frame[Math.min(capacity, INITIAL_SIZE)];
+		this.enqueuedAt = new long[frames.length];
+		this.policy = policy;
+		this.dropped = new AtomicLong();
+		this.bytes = new AtomicLong();
+	}
+
+	/**
+	 * Ajoute une trame dans la file, sans jamais bloquer.
+	 * La file prend possession d'une rfrence sur la trame, mme si elle est jete.
+	 *
+	 * @param frame La trame  envoyer.
+	 * @return FALSE si la file est pleine et que le client doit tre dconnect.
+	 */
+	public boolean offer(Frame frame) {
+		// On compte la trame avant de l'ajouter, pour que l'crivain ne la dcompte jamais avant
+		bytes.addAndGet(frame.length());
+		long now = System.nanoTime();
+		Frame oldest = null;
+		synchronized (lock) {
+			if (count == capacity) {
+				dropped.incrementAndGet();
+				switch (policy) {
+				case DROP_OLDEST :
+					// On fait de la place
+					oldest = removeHead();
+					break;
+				case DROP_NEWEST :
+					discard(frame);
+					return true;
+				default :
+					discard(frame);
+					return false;
+				}
+			}
+			if (count == frames.length) grow();
+			int tail = (head + count) % frames.length;
+			frames[tail] = frame;
+			enqueuedAt[tail] = now;
+			// La file tait vide : son retard commence avec cette trame
+			if (count++ == 0) headSince = now;
+		}
+		if (oldest != null) discard(oldest);
+		return true;
+	}
+
+	/**
+	 * Retire la prochaine trame  envoyer. L'appelant devra la librer une fois crite.
+	 *
+	 * @return La trame, ou NULL si la file est vide.
+	 */
+	public Frame poll() {
+		Frame frame;
+		synchronized (lock) {
+			if (count == 0) return null;
+			frame = removeHead();
+		}
+		bytes.addAndGet(-frame.length());
+		return frame;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Vide la file, en librant les trames.
+	 */
+	public void clear() {
+		Frame frame;
+		while ((frame = poll()) != null) {
+			frame.release();
+		}
+	}
+
+	/**
+	 * Retire la plus ancienne trame, sous le verrou. Le retard devient l'ge de la suivante.
+	 */
+	private Frame removeHead() {
+		Frame frame = frames[head];
+		frames[head] = null;
+		head = (head + 1) % frames.length;
+		headSince = --count == 0 ? 0 : enqueuedAt[head];
+		return frame;
+	}
+
+	/**
+	 * Double la taille de l'anneau, sans dpasser la capacit, en remettant les trames au dbut.
+	 */
+	private void grow() {
+		int size = Math.min(capacity, frames.length * 2);
+		Frame[] newFrames = new Frame[size];
+		long[] newEnqueuedAt = new long[size];
+		for (int i = 0; i < count; i++) {
+			int from = (head + i) % frames.length;
+			newFrames[i] = frames[from];
+			newEnqueuedAt[i] = enqueuedAt[from];
+		}
+		frames = newFrames;
+		enqueuedAt = newEnqueuedAt;
+		head = 0;
+	}
+
+	/**
+	 * Libre une trame qui ne sera pas envoye, et la dcompte.
+	 */
+	private void discard(Frame frame) {
+		bytes.addAndGet(-frame.length());
+		frame.release();
+	}
+
+	/**
+	 * Renvoie le nombre de trames en attente.
+	 */
+	public int getDepth() {
+		return count;
+	}
+
+	/**
+	 * Renvoie le nombre d'octets en attente.
+	 */
+	public long getQueuedBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Renvoie l'ge, en nanosecondes, de la plus ancienne trame pas encore retire par
+	 * l'crivain, ou 0 si la file est vide. L'horloge n'est lue que si la file n'est pas vide.
+	 */
+	public long getLagNanos() {
+		long since = headSince;
+		return since == 0 ? 0 : System.nanoTime() - since;
+	}
+
+	/**
+	 * Renvoie le nombre de messages perdus depuis la connexion.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+}
@@ -0,0 +1,24 @@
+package exia.ipc.server;
+
+/**
+ * Ce qu'on fait quand la file d'envoi d'un client est pleine, c'est--dire quand le client
+ * ne lit pas ses messages aussi vite qu'on les lui envoie.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * On jette le message le plus ancien de la file pour faire de la place.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * On jette le nouveau message.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * On dconnecte le client.
+	 */
+	DISCONNECT
+
+}
@@ -0,0 +1,338 @@
+package exia.ipc.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Regroupe les connexions et les dconnexions pendant une courte fentre de temps, pour les
+ * envoyer aux clients en une seule trame PRESENCE au lieu d'une ligne par changement.
+ *
+ * Quand 2000 clients se reconnectent aprs une coupure du rseau, chaque client recevait 2000
+ * lignes DISCONNECTED puis 2000 lignes CONNECTED. Avec la fentre, il ne reoit plus que quelques
+ * trames. Un utilisateur qui part et revient (ou qui arrive et repart) pendant la fentre s'annule :
+ * les autres clients n'en entendent pas parler.
+ *
+ * Les changements sont compts par nom et adresse : +1 pour une connexion, -1 pour une
+ * dconnexion. A la fin de la fentre, on envoie autant d'vnements que le solde.
+ *
+ * Un nouveau client reoit la liste des connects telle qu'elle tait au dbut de la fentre
+ * en cours : les changements de la fentre lui parviendront avec ceux des autres clients, une
+ * seule fois. Les listes et les diffusions passent l'une aprs l'autre, pour qu'une liste ne se
+ * glisse pas entre le relev d'une fentre et sa diffusion. Sans verrou : le thread qui trouve
+ * la file vide excute les travaux, les autres y dposent le leur et repartent aussitt. Une
+ * boucle NIO n'attend donc jamais la fin d'une diffusion  des milliers de clients.
+ */
+public class PresenceCoalescer {
+
+	/**
+	 * Le solde des changements d'un utilisateur pendant la fentre.
+	 */
+	private static class Change {
+
+		private final String user;
+
+		private final String address;
+
+		private int balance;
+
+		private Change(String user, String address) {
+			this.user = user;
+			this.address = address;
+		}
+
+		private Change(Change change) {
+			this(change.user, change.address);
+			this.balance = change.balance;
+		}
+
+	}
+
+	/**
+	 * Le serveur qui diffuse les changements.
+	 */
+	private final ChatServer server;
+
+	/**
+	 * La dure de la fentre, en millisecondes. Zro pour diffuser chaque changement tout de suite.
+	 */
+	private volatile long windowMillis;
+
+	/**
+	 * Les changements de la fentre en cours, par nom et adresse, dans l'ordre d'arrive.
+	 * Protg par le moniteur de l'instance.
+	 */
+	private Map<String, Change> pending = new LinkedHashMap<>();
+
+	/**
+	 * Le numro de la dernire annonce d'un client local. Protg par le moniteur de l'instance.
+	 */
+	private long sequence = 0;
+
+	/**
+	 * Les diffusions et les envois de listes des connects, excuts l'un aprs l'autre : un
+	 * nouveau client reoit chaque changement soit dans sa liste, soit dans une diffusion, jamais
+	 * dans les deux.
+	 */
+	private final Queue<Runnable> work = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Le nombre de travaux dposs et pas encore termins. Le thread qui le fait passer de zro
+	 *  un excute la file jusqu' ce qu'elle soit vide.
+	 */
+	private final AtomicInteger workInProgress = new AtomicInteger();
+
+	/**
+	 * Une diffusion est dj prvue pour la fentre en cours.
+	 */
+	private boolean scheduled = false;
+
+	/**
+	 * La roue de minuteurs du serveur, qui dclenche la diffusion  la fin de chaque fentre.
+	 * Une fois la roue arrte avec le serveur, plus rien n'est diffus.
+	 */
+	private final TimerWheel timers;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param server Le serveur qui diffuse les changements.
+	 * @param timers La roue de minuteurs du serveur.
+	 * @param windowMillis La dure de la fentre, en millisecondes.
+	 */
+	public PresenceCoalescer(ChatServer server, TimerWheel timers, long windowMillis) {
+		this.server = server;
+		this.timers = timers;
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Modifie la dure de la fentre. Zro pour diffuser chaque changement tout de suite.
+	 */
+	public void setWindow(long windowMillis) {
+		this.windowMillis = Math.max(0, windowMillis);
+	}
+
+	/**
+	 * Un utilisateur vient de se connecter.
+	 */
+	public void connected(ClientSocketThread client) {
+		add(client.getUserName(), client.getAddress(), 1, client, true);
+	}
+
+	/**
+	 * Un utilisateur vient de se dconnecter.
+	 */
+	public void disconnected(ClientSocketThread client) {
+		add(client.getUserName(), client.getAddress(), -1, null, true);
+	}
+
+	/**
+	 * Un utilisateur d'un autre noeud du cluster vient de se prsenter.
+	 */
+	public void connected(String user, String address) {
+		add(user, address, 1, null, false);
+	}
+
+	/**
+	 * Un utilisateur d'un autre noeud du cluster vient de se dconnecter.
+	 */
+	public void disconnected(String user, String address) {
+		add(user, address, -1, null, false);
+	}
+
+	/**
+	 * @param announced Le client local dont on annonce la connexion, ou NULL.
+	 * @param local FALSE pour un utilisateur d'un autre noeud du cluster.
+	 */
+	private void add(String user, String address, int delta, ClientSocketThread announced, boolean local) {
+
+		// Sans fentre, on diffuse tout de suite, comme avant. Le noeud du cluster nous appelle
+		// en tenant le verrou de son pair, que la liste des connects prend aussi : ses
+		// changements ne passent pas par la file, qu'il aurait sinon  vider sous ce verrou.
+		final ServerEvent[] changes = { event(user, address, delta) };
+		if (windowMillis <= 0 && !local) {
+			server.broadcastPresence(changes);
+			return;
+		}
+		if (windowMillis <= 0) {
+			final ClientSocketThread client = announced;
+			//serialize(() -> { if (client != null) announce(client); server.broadcastPresence(changes); });
+			serialize(new Runnable() {
+				@Override
+				public void run() {
+					if (client != null) announce(client);
+					server.broadcastPresence(changes);
+				}
+			});
+			return;
+		}
+
+		synchronized (this) {
+
+			// Le client fera partie des listes des prochains arrivants
+			if (announced != null) announce(announced);
+
+			// On met  jour le solde de l'utilisateur
+			String key = key(user, address);
+			Change change = pending.get(key);
+			if (change == null) {
+				change = new Change(user, address);
+				pending.put(key, change);
+			}
+			change.balance += delta;
+
+			// Le premier changement de la fentre prvoit la diffusion. La prcision est celle
+			// de la roue, un tic : la fentre n'a pas besoin de mieux.
+			if (!scheduled) {
+				scheduled = true;
+				//timers.schedule(timeout -> flush(), windowMillis);
+				timers.schedule(new TimerWheel.Task() {
+					@Override
+					public void run(TimerWheel.Timeout timeout) {
+						flush();
+					}
+				}, windowMillis);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Diffuse tout de suite les changements de la fentre en cours.
+	 */
+	public void flush() {
+		//serialize(() -> broadcastWindow());
+		serialize(new Runnable() {
+			@Override
+			public void run() {
+				broadcastWindow();
+			}
+		});
+	}
+
+	/**
+	 * Relve les changements de la fentre en cours et les diffuse. Excut dans la file.
+	 */
+	private void broadcastWindow() {
+
+		// On prend les changements de la fentre, et on en ouvre une nouvelle
+		Map<String, Change> changes;
+		synchronized (this) {
+			changes = pending;
+			pending = new LinkedHashMap<>();
+			scheduled = false;
+		}
+
+		// Les utilisateurs dont le solde est nul se sont annuls
+		List<ServerEvent> events = new ArrayList<>(changes.size());
+		for (Change change : changes.values()) {
+			for (int i = change.balance; i > 0; i--) events.add(event(change.user, change.address, 1));
+			for (int i = change.balance; i < 0; i++) events.add(event(change.user, change.address, -1));
+		}
+		if (events.isEmpty()) return;
+
+		server.broadcastPresence(events.toArray(new ServerEvent[events.size()]));
+
+	}
+
+	/**
+	 * Envoie  un nouveau client la liste des connects, sans les changements de la fentre en
+	 * cours : il les recevra avec la prochaine diffusion, comme les autres clients.
+	 *
+	 * @param newClient Le nouveau client.
+	 */
+	public void sendRoster(final ClientSocketThread newClient) {
+		//serialize(() -> writeRoster(newClient));
+		serialize(new Runnable() {
+			@Override
+			public void run() {
+				writeRoster(newClient);
+			}
+		});
+	}
+
+	/**
+	 * Relve la liste des connects d'un nouveau client et l'crit. Excut dans la file.
+	 */
+	private void writeRoster(ClientSocketThread newClient) {
+
+		// Les changements pas encore diffuss, et la dernire annonce qu'ils comprennent
+		Map<String, Change> changes = new LinkedHashMap<>();
+		long announced;
+		synchronized (this) {
+			announced = sequence;
+			for (Map.Entry<String, Change> entry : pending.entrySet()) {
+				if (entry.getValue().balance != 0) changes.put(entry.getKey(), new Change(entry.getValue()));
+			}
+		}
+
+		// Les clients annoncs depuis n'en font pas partie : leur annonce viendra aprs la liste
+		List<ServerEvent> roster = server.listConnected(newClient, announced);
+
+		// On retire les arrives pas encore diffuses...
+		for (Iterator<ServerEvent> it = roster.iterator(); it.hasNext(); ) {
+			ServerEvent user = it.next();
+			Change change = changes.get(key(user.getUser(), user.getAddress()));
+			if (change != null && change.balance > 0) {
+				change.balance--;
+				it.remove();
+			}
+		}
+
+		// ... et on remet les dparts pas encore diffuss
+		for (Change change : changes.values()) {
+			for (int i = change.balance; i < 0; i++) roster.add(event(change.user, change.address, 1));
+		}
+
+		server.writeRoster(newClient, roster);
+
+
+	}
+
+	/**
+	 * Dpose un travail dans la file. Si aucun thread ne la vide, c'est l'appelant qui s'en
+	 * charge, jusqu' ce qu'elle soit vide ; sinon il repart aussitt, et le travail sera
+	 * excut  la suite des autres par le thread qui la vide.
+	 */
+	private void serialize(Runnable task) {
+		work.add(task);
+		if (workInProgress.getAndIncrement() != 0) return;
+		do {
+			try {
+				work.poll().run();
+			}
+			// Un travail qui choue ne doit pas bloquer ceux qui suivent
+			catch (RuntimeException e) {
+				LogWriter.getInstance().writeError("Presence throws {} : {}", e.getClass().getSimpleName(), e.getMessage());
+			}
+		} while (workInProgress.decrementAndGet() != 0);
+	}
+
+	/**
+	 * Numrote l'annonce d'un client local : les listes releves avant ne le comprennent pas.
+	 */
+	private void announce(ClientSocketThread client) {
+		synchronized (this) {
+			client.presenceSequence = ++sequence;
+		}
+	}
+
+	/**
+	 * La cl des changements d'un utilisateur.
+	 */
+	private static String key(String user, String address) {
+		return user + '\u0000' + address;
+	}
+
+	private static ServerEvent event(String user, String address, int delta) {
+		return delta > 0 ? ServerEvent.connected(user, address) : ServerEvent.disconnected(user, address);
+	}
+
+}
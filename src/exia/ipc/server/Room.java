@@ -0,0 +1,112 @@
+package exia.ipc.server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Un salon de discussion et ses abonns.
+ *
+ * Un message envoy dans un salon n'est diffus qu' ses membres : le cot de la diffusion
+ * dpend de la taille du salon, pas du nombre total de clients connects.
+ *
+ * Comme pour le ClientRegistry, le parcours des membres ne prend pas de verrou : il se fait sur
+ * une copie fige, refaite au premier parcours qui suit une arrive ou un dpart.
+ */
+public class Room implements Iterable<ClientSocketThread> {
+
+	/**
+	 * Le nom du salon.
+	 */
+	private final String name;
+
+	/**
+	 * Les membres du salon. Protg par le moniteur du salon.
+	 */
+	private final Set<ClientSocketThread> members = new LinkedHashSet<>();
+
+	/**
+	 * La copie fige des membres, ou NULL si elle est  refaire.
+	 */
+	private volatile ClientSocketThread[] snapshot = new ClientSocketThread[0];
+
+	/**
+	 * Le salon a t retir du serveur car il tait vide : on ne peut plus y entrer.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param name Le nom du salon.
+	 */
+	public Room(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Ajoute un membre.
+	 *
+	 * @return FALSE si le client tait dj membre, ou si le salon est ferm.
+	 */
+	synchronized boolean add(ClientSocketThread client) {
+		if (closed || !members.add(client)) return false;
+		snapshot = null;
+		return true;
+	}
+
+	/**
+	 * Retire un membre. Le salon se ferme quand son dernier membre le quitte.
+	 *
+	 * @return FALSE si le client n'tait pas membre.
+	 */
+	synchronized boolean remove(ClientSocketThread client) {
+		if (!members.remove(client)) return false;
+		snapshot = null;
+		if (members.isEmpty()) closed = true;
+		return true;
+	}
+
+	/**
+	 * Le salon a t ferm par le dpart de son dernier membre.
+	 */
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public synchronized boolean contains(ClientSocketThread client) {
+		return members.contains(client);
+	}
+
+	public synchronized int size() {
+		return members.size();
+	}
+
+	/**
+	 * Parcours sans verrou des membres du salon.
+	 */
+	@Override
+	public Iterator<ClientSocketThread> iterator() {
+		ClientSocketThread[] current = snapshot;
+		if (current == null) {
+			synchronized (this) {
+				if (snapshot == null) {
+					snapshot = members.toArray(new ClientSocketThread[members.size()]);
+				}
+				current = snapshot;
+			}
+		}
+		return Arrays.asList(current).iterator();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
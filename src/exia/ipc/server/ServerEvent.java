@@ -0,0 +1,302 @@
+package exia.ipc.server;
+
+/**
+ * Un vnement  envoyer aux clients, indpendamment de la forme qu'il prendra sur le rseau.
+ *
+ * Chaque protocole l'encode  sa faon (une ligne de texte, une trame binaire...). Les valeurs sont
+ * releves  la cration de l'vnement : un client qui change de nom ou se dconnecte ensuite
+ * ne modifie pas ce qui est envoy.
+ */
+public final class ServerEvent {
+
+	/**
+	 * Les types d'vnements.
+	 */
+	public enum Type {
+
+		/** Le protocole du client vient d'tre choisi : on le salue avant tout autre message. */
+		WELCOME,
+
+		/** Un client a envoy un message. */
+		MESSAGE,
+
+		/** Un client vient de se connecter. */
+		CONNECTED,
+
+		/** Un client vient de se dconnecter. */
+		DISCONNECTED,
+
+		/** Une page de la liste des clients dj connects, envoye  un nouveau client. */
+		ROSTER,
+
+		/** Plusieurs connexions et dconnexions, regroupes en une seule trame. */
+		PRESENCE,
+
+		/** Un client a envoy un message priv. */
+		DIRECT_MESSAGE,
+
+		/** Un client a envoy un message dans un salon. */
+		ROOM_MESSAGE,
+
+		/** Un client vient d'entrer dans un salon. */
+		JOINED,
+
+		/** Un client vient de quitter un salon. */
+		LEFT,
+
+		/** Une ligne de texte libre. */
+		LINE,
+
+		/** Une erreur, qui concerne le seul client destinataire : ERROR suivi de la raison. */
+		ERROR,
+
+		/** Un battement de coeur : le destinataire doit rpondre PONG. */
+		PING,
+
+		/** La rponse  un PING. */
+		PONG
+
+	}
+
+	/**
+	 * Le salut envoy  un client ds que son protocole est connu.
+	 */
+	public static final ServerEvent WELCOME = new ServerEvent(Type.WELCOME, null, null, 0, null, null, 0, 0, null);
+
+	/**
+	 * L'erreur envoye  un client dont un message est refus car il en envoie trop.
+	 */
+	public static final ServerEvent RATE_LIMITED = error("rate-limited");
+
+	/**
+	 * L'erreur envoye  un client dont le message priv n'a pas de destinataire connect.
+	 */
+	public static final ServerEvent UNKNOWN_RECIPIENT = error("unknown-recipient");
+
+	/**
+	 * Le battement de coeur envoy  un client silencieux, et la rponse au sien.
+	 */
+	public static final ServerEvent PING = new ServerEvent(Type.PING, null, null, 0, null, null, 0, 0, null);
+	public static final ServerEvent PONG = new ServerEvent(Type.PONG, null, null, 0, null, null, 0, 0, null);
+
+	private final Type type;
+
+	private final String user;
+
+	private final String address;
+
+	private final long timestamp;
+
+	private final String text;
+
+	private final ServerEvent[] entries;
+
+	private final int page;
+
+	private final int pages;
+
+	private final String room;
+
+	private ServerEvent(Type type, String user, String address, long timestamp, String text,
+			ServerEvent[] entries, int page, int pages, String room) {
+		this.type = type;
+		this.user = user;
+		this.address = address;
+		this.timestamp = timestamp;
+		this.text = text;
+		this.entries = entries;
+		this.page = page;
+		this.pages = pages;
+		this.room = room;
+	}
+
+	/**
+	 * Un client a envoy un message.
+	 *
+	 * @param from Le client qui a envoy le message.
+	 * @param log Le message.
+	 */
+	public static ServerEvent message(ClientSocketThread from, String log) {
+		return new ServerEvent(Type.MESSAGE, from.getUserName(), from.getAddress(), System.currentTimeMillis(), log,
+				null, 0, 0, null);
+	}
+
+	/**
+	 * Un message envoy par un client d'un autre serveur, relay par le cluster.
+	 */
+	public static ServerEvent message(String user, String address, long timestamp, String log) {
+		return new ServerEvent(Type.MESSAGE, user, address, timestamp, log, null, 0, 0, null);
+	}
+
+	/**
+	 * Un client a envoy un message priv.
+	 *
+	 * @param from Le client qui a envoy le message.
+	 * @param log Le message.
+	 */
+	public static ServerEvent directMessage(ClientSocketThread from, String log) {
+		return new ServerEvent(Type.DIRECT_MESSAGE, from.getUserName(), from.getAddress(), System.currentTimeMillis(), log,
+				null, 0, 0, null);
+	}
+
+	/**
+	 * Un client a envoy un message dans un salon.
+	 *
+	 * @param from Le client qui a envoy le message.
+	 * @param room Le salon.
+	 * @param log Le message.
+	 */
+	public static ServerEvent roomMessage(ClientSocketThread from, Room room, String log) {
+		return new ServerEvent(Type.ROOM_MESSAGE, from.getUserName(), from.getAddress(), System.currentTimeMillis(), log,
+				null, 0, 0, room.getName());
+	}
+
+	/**
+	 * Un client vient d'entrer dans un salon.
+	 */
+	public static ServerEvent joined(ClientSocketThread client, Room room) {
+		return new ServerEvent(Type.JOINED, client.getUserName(), client.getAddress(), 0, null, null, 0, 0, room.getName());
+	}
+
+	/**
+	 * Un client vient de quitter un salon.
+	 */
+	public static ServerEvent left(ClientSocketThread client, Room room) {
+		return new ServerEvent(Type.LEFT, client.getUserName(), client.getAddress(), 0, null, null, 0, 0, room.getName());
+	}
+
+	/**
+	 * Un client vient de se connecter.
+	 */
+	public static ServerEvent connected(ClientSocketThread client) {
+		return connected(client.getUserName(), client.getAddress());
+	}
+
+	/**
+	 * Un utilisateur vient de se connecter, relev plus tt.
+	 */
+	public static ServerEvent connected(String user, String address) {
+		return new ServerEvent(Type.CONNECTED, user, address, 0, null, null, 0, 0, null);
+	}
+
+	/**
+	 * Un client vient de se dconnecter.
+	 */
+	public static ServerEvent disconnected(ClientSocketThread client) {
+		return disconnected(client.getUserName(), client.getAddress());
+	}
+
+	/**
+	 * Un utilisateur vient de se dconnecter, relev plus tt.
+	 */
+	public static ServerEvent disconnected(String user, String address) {
+		return new ServerEvent(Type.DISCONNECTED, user, address, 0, null, null, 0, 0, null);
+	}
+
+	/**
+	 * Une ligne de texte libre, dj mise en forme.
+	 */
+	public static ServerEvent line(String line) {
+		return new ServerEvent(Type.LINE, null, null, 0, line, null, 0, 0, null);
+	}
+
+	/**
+	 * Une erreur envoye  un client. Chaque protocole lui donne sa forme : une ligne ERROR
+	 * suivie de la raison, ou une trame ERROR.
+	 *
+	 * @param reason La raison, un seul mot, par exemple slow-consumer.
+	 */
+	public static ServerEvent error(String reason) {
+		return new ServerEvent(Type.ERROR, null, null, 0, reason, null, 0, 0, null);
+	}
+
+	/**
+	 * Une page de la liste des clients dj connects.
+	 *
+	 * @param entries Les clients de la page, sous forme d'vnements CONNECTED.
+	 * @param page Le numro de la page,  partir de 1.
+	 * @param pages Le nombre de pages.
+	 */
+	public static ServerEvent roster(ServerEvent[] entries, int page, int pages) {
+		return new ServerEvent(Type.ROSTER, null, null, 0, null, entries, page, pages, null);
+	}
+
+	/**
+	 * Des connexions et des dconnexions regroupes.
+	 *
+	 * @param changes Les changements, sous forme d'vnements CONNECTED et DISCONNECTED.
+	 */
+	public static ServerEvent presence(ServerEvent[] changes) {
+		return new ServerEvent(Type.PRESENCE, null, null, 0, null, changes, 0, 0, null);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Indique si l'vnement est un message crit par un client (MESSAGE, DIRECT_MESSAGE,
+	 * ROOM_MESSAGE). C'est ce qu'on ne transmet plus  un client dgrad.
+	 */
+	public boolean isMessage() {
+		return type == Type.MESSAGE || type == Type.DIRECT_MESSAGE || type == Type.ROOM_MESSAGE;
+	}
+
+	/**
+	 * Le nom du client concern (MESSAGE, DIRECT_MESSAGE, ROOM_MESSAGE, CONNECTED, DISCONNECTED, JOINED, LEFT).
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 * L'adresse du client concern (MESSAGE, DIRECT_MESSAGE, ROOM_MESSAGE, CONNECTED, DISCONNECTED, JOINED, LEFT).
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * La date du message en millisecondes (MESSAGE, DIRECT_MESSAGE, ROOM_MESSAGE).
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Le contenu du message (MESSAGE, DIRECT_MESSAGE, ROOM_MESSAGE), la ligne (LINE) ou la raison
+	 * de l'erreur (ERROR).
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Les clients de la page (ROSTER), ou les changements regroups (PRESENCE).
+	 */
+	public ServerEvent[] getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Le numro de la page,  partir de 1 (ROSTER).
+	 */
+	public int getPage() {
+		return page;
+	}
+
+	/**
+	 * Le nombre de pages (ROSTER).
+	 */
+	public int getPages() {
+		return pages;
+	}
+
+	/**
+	 * Le nom du salon (ROOM_MESSAGE, JOINED, LEFT).
+	 */
+	public String getRoom() {
+		return room;
+	}
+
+}
@@ -0,0 +1,36 @@
+package exia.ipc.server;
+
+/**
+ * Les modes d'excution du serveur, choisis  la construction du ChatServer.
+ */
+public enum ServerMode {
+
+	/**
+	 * Un thread par client, qui lit le socket de manire bloquante avec readLine().
+	 * Les threads sont pris dans une pool de taille fixe.
+	 */
+	BLOCKING,
+
+	/**
+	 * Un thread par client, qui lit le socket de manire bloquante avec readLine(), mais
+	 * chaque client est excut dans un thread virtuel, sans limite de nombre.
+	 * Les threads virtuels sont disponibles  partir de Java 21 : sur une JVM plus ancienne,
+	 * on utilise une pool de threads classiques sans limite de taille.
+	 */
+	VIRTUAL_THREADS,
+
+	/**
+	 * Entres/sorties non bloquantes (java.nio) : un seul thread surveille tous les
+	 * sockets avec un Selector, et ne traite que ceux qui ont des donnes prtes.
+	 */
+	NIO,
+
+	/**
+	 * Entres/sorties non bloquantes, avec une boucle d'vnements par coeur. Le thread du
+	 * serveur accepte les connexions et confie chacune  la boucle qui a le moins de clients :
+	 * chaque client est lu et crit par un seul thread, et la charge se rpartit sur tous les
+	 * coeurs.
+	 */
+	MULTI_REACTOR
+
+}
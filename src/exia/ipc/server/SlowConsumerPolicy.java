@@ -0,0 +1,82 @@
+package exia.ipc.server;
+
+/**
+ * Les seuils au del desquels un client est jug trop lent  lire ses messages.
+ *
+ * Le retard d'un client se mesure sur sa file d'envoi : en octets en attente, et en ge de la
+ * plus ancienne trame pas encore crite. Au premier seuil, le client est dgrad : il ne reoit plus les
+ * messages du chat, seulement les connexions et dconnexions, ce qui lui laisse le temps de
+ * rattraper son retard. Au second, il est dconnect avec la raison de la dconnexion.
+ *
+ * Un seuil  0 n'est pas vrifi. Les seuils sont immuables : la mme politique est partage
+ * par tous les clients du serveur.
+ */
+public final class SlowConsumerPolicy {
+
+	/**
+	 * Aucune vrification : seule la politique de la file pleine s'applique.
+	 */
+	public static final SlowConsumerPolicy NONE = new SlowConsumerPolicy(0, 0, 0, 0);
+
+	/**
+	 * La raison envoye au client dconnect.
+	 */
+	public static final String REASON = "slow-consumer";
+
+	private final long degradeBytes;
+
+	private final long degradeNanos;
+
+	private final long evictBytes;
+
+	private final long evictNanos;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param degradeBytes Les octets en attente  partir desquels le client est dgrad.
+	 * @param degradeMillis Le retard en millisecondes  partir duquel le client est dgrad.
+	 * @param evictBytes Les octets en attente  partir desquels le client est dconnect.
+	 * @param evictMillis Le retard en millisecondes  partir duquel le client est dconnect.
+	 */
+	public SlowConsumerPolicy(long degradeBytes, long degradeMillis, long evictBytes, long evictMillis) {
+		this.degradeBytes = degradeBytes;
+		this.degradeNanos = degradeMillis * 1000000L;
+		this.evictBytes = evictBytes;
+		this.evictNanos = evictMillis * 1000000L;
+	}
+
+	/**
+	 * Indique si un client doit tre dgrad.
+	 *
+	 * @param bytes Les octets en attente dans sa file d'envoi.
+	 * @param lagNanos L'ge de la plus ancienne trame de sa file.
+	 */
+	public boolean shouldDegrade(long bytes, long lagNanos) {
+		return (degradeBytes > 0 && bytes >= degradeBytes) || (degradeNanos > 0 && lagNanos >= degradeNanos);
+	}
+
+	/**
+	 * Indique si un client doit tre dconnect.
+	 *
+	 * @param bytes Les octets en attente dans sa file d'envoi.
+	 * @param lagNanos L'ge de la plus ancienne trame de sa file.
+	 */
+	public boolean shouldEvict(long bytes, long lagNanos) {
+		return (evictBytes > 0 && bytes >= evictBytes) || (evictNanos > 0 && lagNanos >= evictNanos);
+	}
+
+	/**
+	 * Indique si au moins un seuil est vrifi.
+	 */
+	public boolean isEnabled() {
+		return degradeBytes > 0 || degradeNanos > 0 || evictBytes > 0 || evictNanos > 0;
+	}
+
+	@Override
+	public String toString() {
+		return "degrade=" + degradeBytes + "o/" + degradeNanos / 1000000 + "ms evict=" + evictBytes + "o/"
+				+ evictNanos / 1000000 + "ms";
+	}
+
+}
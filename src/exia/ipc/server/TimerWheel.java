@@ -0,0 +1,263 @@
+package exia.ipc.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Une roue de minuteurs (hashed timer wheel) : un seul thread pour les chances de toutes
+ * les connexions, au lieu d'une tche planifie par socket.
+ *
+ * La roue est un tableau de cases ; chaque case est une liste doublement chane de minuteurs.
+ * Le thread avance d'une case  chaque tic, et dclenche les minuteurs de la case arrivs 
+ * chance. Un minuteur dont l'chance est plus loin qu'un tour reste dans sa case jusqu'au
+ * tour suivant. Ajouter, retirer ou replanifier un minuteur cote donc O(1), quel que soit le
+ * nombre de minuteurs ; la prcision est d'un tic.
+ *
+ * Les listes ne sont touches que par le thread de la roue : schedule() dpose le minuteur
+ * dans une file, et cancel() ne fait que lever un drapeau. Une tche peut replanifier son
+ * propre minuteur avec reschedule(), puisqu'elle tourne dans le thread de la roue.
+ */
+public class TimerWheel extends Thread {
+
+	/**
+	 * Ce qu'on fait  l'chance d'un minuteur. La tche est excute par le thread de la roue :
+	 * elle doit rendre la main vite.
+	 */
+	public interface Task {
+
+		/**
+		 * @param timeout Le minuteur arriv  chance, que la tche peut replanifier.
+		 */
+		public void run(Timeout timeout);
+
+	}
+
+	/**
+	 * Un minuteur : une tche, une chance, et sa place dans la roue.
+	 */
+	public static final class Timeout {
+
+		private final TimerWheel wheel;
+
+		private final Task task;
+
+		/**
+		 * Le dlai demand, en tics, tant que le minuteur n'est pas dans la roue.
+		 */
+		private long delay;
+
+		/**
+		 * Le tic de l'chance.
+		 */
+		private long deadline;
+
+		/**
+		 * La case qui contient le minuteur, ou -1.
+		 */
+		private int bucket = -1;
+
+		private Timeout prev, next;
+
+		private volatile boolean cancelled;
+
+		private Timeout(TimerWheel wheel, Task task) {
+			this.wheel = wheel;
+			this.task = task;
+		}
+
+		/**
+		 * Annule le minuteur, depuis n'importe quel thread. Il sera retir de la roue au
+		 * prochain passage sur sa case.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Replanifie le minuteur. A n'appeler que depuis sa tche, dans le thread de la roue.
+		 *
+		 * @param delayMillis Le dlai avant la prochaine chance, en millisecondes.
+		 */
+		public void reschedule(long delayMillis) {
+			if (Thread.currentThread() != wheel) {
+				throw new IllegalStateException("reschedule() hors du thread de la roue");
+			}
+			wheel.unlink(this);
+			wheel.link(this, wheel.ticks(delayMillis));
+		}
+
+	}
+
+	/**
+	 * Les cases de la roue : le premier minuteur de chaque liste.
+	 */
+	private final Timeout[] buckets;
+
+	/**
+	 * Masque pour passer d'un tic  sa case : la taille de la roue est une puissance de deux.
+	 */
+	private final int mask;
+
+	/**
+	 * La dure d'un tic, en nanosecondes.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * Les minuteurs planifis depuis un autre thread, pas encore placs dans la roue.
+	 */
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Le tic en cours. N'est lu et modifi que par le thread de la roue.
+	 */
+	private long tick;
+
+	/**
+	 * Le nombre de minuteurs dans la roue.
+	 */
+	private volatile int size;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Constructeur. Le thread est un dmon : il ne retient pas la JVM.
+	 *
+	 * @param name Le nom du thread.
+	 * @param tickMillis La dure d'un tic, c'est--dire la prcision des chances.
+	 * @param wheelSize Le nombre de cases, arrondi  la puissance de deux suprieure.
+	 */
+	public TimerWheel(String name, long tickMillis, int wheelSize) {
+		super(name);
+		setDaemon(true);
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.tickNanos = Math.max(1, tickMillis) * 1000000L;
+	}
+
+	/**
+	 * Planifie une tche, depuis n'importe quel thread.
+	 *
+	 * @param task La tche  excuter  l'chance.
+	 * @param delayMillis Le dlai, en millisecondes.
+	 * @return Le minuteur, pour l'annuler.
+	 */
+	public Timeout schedule(Task task, long delayMillis) {
+		Timeout timeout = new Timeout(this, task);
+		timeout.delay = ticks(delayMillis);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Renvoie le nombre de minuteurs dans la roue, y compris ceux annuls pas encore retirs.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public void run() {
+
+		long start = System.nanoTime();
+		while (!stopped) {
+
+			// On attend le prochain tic. En cas de retard, on rattrape les tics un par un.
+			long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+				}
+				catch (InterruptedException e) {
+					// interrupt() : la boucle vrifie stopped
+				}
+				continue;
+			}
+			tick++;
+
+			// On place les nouveaux minuteurs
+			Timeout timeout;
+			while ((timeout = pending.poll()) != null) {
+				if (!timeout.cancelled) link(timeout, timeout.delay);
+			}
+
+			// Et on dclenche ceux de la case
+			expire(buckets[(int) (tick & mask)]);
+
+		}
+
+	}
+
+	/**
+	 * Parcourt une case : retire les minuteurs annuls, et dclenche ceux arrivs  chance.
+	 */
+	private void expire(Timeout timeout) {
+		while (timeout != null) {
+			// La tche peut replanifier son minuteur : on garde le suivant avant de l'appeler
+			Timeout next = timeout.next;
+			if (timeout.cancelled) {
+				unlink(timeout);
+			}
+			else if (timeout.deadline <= tick) {
+				unlink(timeout);
+				try {
+					timeout.task.run(timeout);
+				}
+				catch (RuntimeException e) {
+					LogWriter.getInstance().writeError("Erreur dans un minuteur de {} : {}", getName(), e);
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Convertit un dlai en tics, arrondi au suprieur, au moins un.
+	 */
+	private long ticks(long delayMillis) {
+		long ticks = (delayMillis * 1000000L + tickNanos - 1) / tickNanos;
+		return Math.max(1, ticks);
+	}
+
+	/**
+	 * Place un minuteur dans la case de son chance, en tte de liste.
+	 */
+	private void link(Timeout timeout, long delay) {
+		timeout.deadline = tick + delay;
+		int index = (int) (timeout.deadline & mask);
+		timeout.bucket = index;
+		timeout.prev = null;
+		timeout.next = buckets[index];
+		if (timeout.next != null) timeout.next.prev = timeout;
+		buckets[index] = timeout;
+		size++;
+	}
+
+	/**
+	 * Retire un minuteur de sa case, s'il y est.
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.bucket < 0) return;
+		if (timeout.prev != null) timeout.prev.next = timeout.next;
+		else buckets[timeout.bucket] = timeout.next;
+		if (timeout.next != null) timeout.next.prev = timeout.prev;
+		timeout.prev = timeout.next = null;
+		timeout.bucket = -1;
+		size--;
+	}
+
+	/**
+	 * Arrte la roue. Les minuteurs en attente ne seront pas dclenchs.
+	 */
+	@Override
+	public void interrupt() {
+		stopped = true;
+		super.interrupt();
+	}
+
+}
@@ -0,0 +1,77 @@
+package exia.ipc.server;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Un seau  jetons, pour limiter le dbit des messages d'un client.
+ *
+ * Le seau contient au plus burst jetons, et se remplit d'un jeton tous les 1/refill secondes.
+ * Chaque message consomme un jeton ; un message qui n'en trouve pas est refus.
+ *
+ * On ne stocke pas le nombre de jetons, mais l'instant o le seau sera de nouveau plein
+ * (algorithme GCRA) : un seul long, mis  jour par compareAndSet. Pas de verrou, pas
+ * d'allocation, et pas de thread qui remplit les seaux en tche de fond.
+ */
+public final class TokenBucket {
+
+	private static final AtomicLongFieldUpdater<TokenBucket> FULL_AT =
+			AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "fullAt");
+
+	/**
+	 * Le temps de remplissage d'un jeton, en nanosecondes.
+	 */
+	private final long interval;
+
+	/**
+	 * Le temps de remplissage du seau vide : on accepte un message tant que le seau sera plein
+	 * dans moins de ce temps, c'est--dire tant qu'il reste un jeton.
+	 */
+	private final long capacity;
+
+	/**
+	 * L'instant (System.nanoTime()) o le seau sera plein. Dans le pass, le seau est plein.
+	 */
+	private volatile long fullAt;
+
+	/**
+	 * Constructeur. Le seau est plein.
+	 *
+	 * @param burst Le nombre de messages qu'on peut envoyer d'un coup.
+	 * @param refill Le nombre de messages par seconde, une fois les jetons puiss.
+	 */
+	public TokenBucket(int burst, double refill) {
+		if (burst < 1 || refill <= 0) {
+			throw new IllegalArgumentException("burst=" + burst + " refill=" + refill);
+		}
+		this.interval = Math.max(1, (long) (1e9 / refill));
+		this.capacity = burst * interval;
+		this.fullAt = System.nanoTime();
+	}
+
+	/**
+	 * Prend un jeton s'il en reste un.
+	 *
+	 * @return FALSE si le seau est vide : le message doit tre refus.
+	 */
+	public boolean tryAcquire() {
+		long now = System.nanoTime();
+		while (true) {
+			long fullAt = this.fullAt;
+			// Le seau est plein depuis un moment : on repart de maintenant
+			long from = fullAt - now > 0 ? fullAt : now;
+			// Prendre un jeton reculerait l'instant o le seau est plein au del de sa capacit
+			if (from + interval - now > capacity) return false;
+			if (FULL_AT.compareAndSet(this, fullAt, from + interval)) return true;
+		}
+	}
+
+	/**
+	 * Renvoie le nombre de jetons disponibles, arrondi  l'infrieur.
+	 */
+	public long getTokens() {
+		long missing = fullAt - System.nanoTime();
+		if (missing <= 0) return capacity / interval;
+		return (capacity - missing) / interval;
+	}
+
+}
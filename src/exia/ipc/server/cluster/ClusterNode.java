@@ -0,0 +1,577 @@
+package exia.ipc.server.cluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.LogWriter;
+import exia.ipc.server.ServerEvent;
+
+/**
+ * Un noeud d'un cluster de serveurs de chat.
+ *
+ * Chaque noeud relaie  ses pairs les vnements de ses propres clients (messages, connexions,
+ * dconnexions), et diffuse  ses clients ceux que ses pairs lui relaient. Un vnement traverse
+ * chaque liaison une seule fois, quel que soit le nombre de clients qui le recevront : le trafic
+ * entre les noeuds crot avec le nombre de messages, pas avec le nombre de destinataires.
+ *
+ * Les noeuds forment un maillage complet : chaque noeud doit tre reli  tous les autres, car un
+ * vnement reu d'un pair n'est jamais relay  nouveau (il n'y a donc pas de boucle). Il suffit
+ * qu'un des deux noeuds d'une paire connaisse l'autre : la liaison sert dans les deux sens.
+ *
+ * Chaque vnement porte un numro croissant propre au noeud qui l'met : un vnement dj vu
+ * (par exemple reu par deux liaisons pendant une reconnexion) est ignor. A l'ouverture d'une
+ * liaison, chaque noeud envoie la liste complte de ses utilisateurs, pour que les clients de
+ * tous les noeuds voient la mme liste de connects.
+ */
+public class ClusterNode extends Thread {
+
+	/**
+	 * L'entier qui ouvre la poigne de main, "CLUS" en ASCII.
+	 */
+	static final int MAGIC = 0x434C5553;
+
+	/**
+	 * Le dlai entre deux tentatives de connexion  un pair, en millisecondes.
+	 */
+	private static final long RECONNECT_DELAY = 1000;
+
+	/**
+	 * Le nombre maximal d'vnements en attente d'envoi par liaison, par dfaut.
+	 */
+	public static final int DEFAULT_LINK_QUEUE_CAPACITY = 65536;
+
+	/**
+	 * Le serveur local.
+	 */
+	private final ChatServer server;
+
+	/**
+	 * L'identifiant de ce noeud, unique dans le cluster.
+	 */
+	private final String nodeId;
+
+	/**
+	 * L'poque de ce noeud : un nombre tir au dmarrage, pour que les pairs sachent que nos
+	 * numros d'vnements repartent de zro.
+	 */
+	private final long epoch = new Random().nextLong();
+
+	/**
+	 * Le port sur lequel on attend les autres noeuds.
+	 */
+	private final int peerPort;
+
+	private ServerSocket serverSocket;
+
+	/**
+	 * Les pairs auxquels on se connecte nous-mmes, et la date de la dernire tentative.
+	 */
+	private final List<InetSocketAddress> peers = new CopyOnWriteArrayList<>();
+
+	private final Map<InetSocketAddress, Long> lastAttempts = new ConcurrentHashMap<>();
+
+	/**
+	 * Les liaisons ouvertes que l'on a inities, par adresse du pair.
+	 */
+	private final ConcurrentMap<InetSocketAddress, PeerLink> outgoing = new ConcurrentHashMap<>();
+
+	/**
+	 * Les liaisons actives, une par noeud distant.
+	 */
+	private final ConcurrentMap<String, PeerLink> links = new ConcurrentHashMap<>();
+
+	/**
+	 * Protge la numrotation et l'envoi des vnements, pour qu'ils partent dans l'ordre de leurs
+	 * numros sur chaque liaison, ainsi que la liste des utilisateurs locaux.
+	 */
+	private final Object publishLock = new Object();
+
+	/**
+	 * Le numro du dernier vnement mis.
+	 */
+	private long sequence = 0;
+
+	/**
+	 * Les utilisateurs locaux annoncs aux pairs, par nom et adresse.
+	 */
+	private final Map<String, Presence> localUsers = new LinkedHashMap<>();
+
+	/**
+	 * Ce qu'on sait de chaque noeud distant, par identifiant.
+	 */
+	private final ConcurrentMap<String, Origin> origins = new ConcurrentHashMap<>();
+
+	// Les compteurs
+	private final AtomicLong eventsSent = new AtomicLong();
+	private final AtomicLong batchesSent = new AtomicLong();
+	private final AtomicLong eventsReceived = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong linkOverflows = new AtomicLong();
+
+	/**
+	 * Le nombre maximal d'vnements en attente d'envoi par liaison.
+	 */
+	private volatile int linkQueueCapacity = DEFAULT_LINK_QUEUE_CAPACITY;
+
+	/**
+	 * Constructeur. Le noeud est attach au serveur, mais ne relaie rien avant start().
+	 *
+	 * @param server Le serveur local.
+	 * @param nodeId L'identifiant du noeud, unique dans le cluster.
+	 * @param peerPort Le port sur lequel on attend les autres noeuds.
+	 */
+	public ClusterNode(ChatServer server, String nodeId, int peerPort) {
+		super("ClusterNode-" + nodeId);
+		setDaemon(true);
+		this.server = server;
+		this.nodeId = nodeId;
+		this.peerPort = peerPort;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Ajoute un pair auquel ce noeud se connectera, et se reconnectera aprs une coupure.
+	 */
+	public void addPeer(String host, int port) {
+		peers.add(new InetSocketAddress(host, port));
+	}
+
+	/**
+	 * Modifie le nombre maximal d'vnements en attente d'envoi par liaison. Une liaison dont la
+	 * file est pleine est ferme, puis rouverte. La file doit pouvoir contenir la liste complte
+	 * des utilisateurs de ce noeud, envoye  l'ouverture de chaque liaison.
+	 * Ne s'applique qu'aux liaisons ouvertes ensuite.
+	 */
+	public void setLinkQueueCapacity(int linkQueueCapacity) {
+		this.linkQueueCapacity = Math.max(1, linkQueueCapacity);
+	}
+
+	public int getLinkQueueCapacity() {
+		return linkQueueCapacity;
+	}
+
+	/**
+	 * Renvoie les identifiants des noeuds actuellement relis.
+	 */
+	public List<String> getConnectedPeers() {
+		return new ArrayList<>(links.keySet());
+	}
+
+	/**
+	 * Lancer le thread.
+	 */
+	@Override
+	public synchronized void start() {
+		try {
+			serverSocket = new ServerSocket(peerPort);
+			serverSocket.setSoTimeout((int) RECONNECT_DELAY);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		server.setCluster(this);
+		super.start();
+		LogWriter.getInstance().writeLog("Noeud {} du cluster, coute sur le port {}...", nodeId, peerPort);
+	}
+
+	/**
+	 * On attend les autres noeuds, et on se connecte rgulirement aux pairs qui ne sont pas relis.
+	 */
+	@Override
+	public void run() {
+		while (!Thread.interrupted() && serverSocket != null) {
+			connectPeers();
+			try {
+				Socket socket = serverSocket.accept();
+				open(socket, false);
+			}
+			// On revient simplement vrifier les pairs
+			catch (SocketTimeoutException e) {
+			}
+			catch (IOException e) {
+				if (serverSocket != null) {
+					LogWriter.getInstance().writeError("Cluster : accept() throws {} : {}",
+							e.getClass().getSimpleName(), e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tente de se connecter aux pairs qui ne sont pas relis.
+	 */
+	private void connectPeers() {
+		long now = System.currentTimeMillis();
+		for (InetSocketAddress peer : peers) {
+			PeerLink link = outgoing.get(peer);
+			if (link != null && !link.isClosed()) continue;
+			Long last = lastAttempts.get(peer);
+			if (last != null && now - last < RECONNECT_DELAY) continue;
+			lastAttempts.put(peer, now);
+			try {
+				Socket socket = new Socket();
+				socket.connect(peer, (int) RECONNECT_DELAY);
+				link = open(socket, true);
+				if (link != null) outgoing.put(peer, link);
+			}
+			catch (IOException e) {
+				// Le pair n'est pas encore lanc : on ressaiera
+			}
+		}
+	}
+
+	/**
+	 * Fait la poigne de main sur un socket, et enregistre la liaison.
+	 *
+	 * @return La liaison, ou NULL si elle a t refuse.
+	 */
+	private PeerLink open(Socket socket, boolean initiated) throws IOException {
+		PeerLink link;
+		try {
+			socket.setSoTimeout((int) RECONNECT_DELAY);
+			socket.setTcpNoDelay(true);
+			link = new PeerLink(this, socket, initiated);
+			socket.setSoTimeout(0);
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		// On s'est connect  soi-mme
+		if (link.getRemoteId().equals(nodeId)) {
+			socket.close();
+			return null;
+		}
+		return register(link) ? link : null;
+	}
+
+	/**
+	 * Enregistre une nouvelle liaison et lui envoie la liste de nos utilisateurs.
+	 *
+	 * Si les deux noeuds se sont connects l'un  l'autre en mme temps, on garde la liaison ouverte
+	 * par le noeud dont l'identifiant est le plus petit : les deux noeuds font le mme choix.
+	 *
+	 * @return FALSE si la liaison a t refuse.
+	 */
+	private boolean register(PeerLink link) {
+		String remoteId = link.getRemoteId();
+		String preferred = nodeId.compareTo(remoteId) < 0 ? nodeId : remoteId;
+		PeerLink replaced = null;
+		synchronized (publishLock) {
+			PeerLink existing = links.get(remoteId);
+			if (existing != null && !existing.isClosed()) {
+				if (existing.getInitiator().equals(preferred)) {
+					link.close();
+					return false;
+				}
+				replaced = existing;
+			}
+			links.put(remoteId, link);
+
+			// La liste complte de nos utilisateurs, avant tout autre vnement
+			link.send(new PeerLink.Relayed(PeerLink.SYNC_BEGIN, ++sequence, null));
+			for (Presence presence : localUsers.values()) {
+				for (int i = 0; i < presence.count; i++) {
+					link.send(new PeerLink.Relayed(PeerLink.SYNC_USER, ++sequence,
+							ServerEvent.connected(presence.user, presence.address)));
+				}
+			}
+			link.send(new PeerLink.Relayed(PeerLink.SYNC_END, ++sequence, null));
+		}
+		// L'ancienne liaison n'est plus dans la table : sa fermeture ne retire pas les utilisateurs
+		if (replaced != null) replaced.close();
+		// La liste ne tenait pas dans la file : la liaison est dj ferme
+		if (link.isClosed()) return false;
+		link.start();
+		LogWriter.getInstance().writeLog("Noeud {} reli au noeud {}", nodeId, link);
+		return true;
+	}
+
+	/**
+	 * Relaie  tous les pairs un vnement d'un client local : MESSAGE, CONNECTED ou DISCONNECTED.
+	 * Les autres vnements ne sont pas relays.
+	 */
+	public void publish(ServerEvent event) {
+		int type;
+		switch (event.getType()) {
+		case MESSAGE :
+			type = PeerLink.MESSAGE;
+			break;
+		case CONNECTED :
+			type = PeerLink.CONNECTED;
+			break;
+		case DISCONNECTED :
+			type = PeerLink.DISCONNECTED;
+			break;
+		default :
+			return;
+		}
+		synchronized (publishLock) {
+			// On tient la liste des utilisateurs annoncs, pour la donner aux prochains pairs.
+			// Un client qui se dconnecte sans s'tre prsent n'est pas relay.
+			if (type != PeerLink.MESSAGE && !count(localUsers, event.getUser(), event.getAddress(),
+					type == PeerLink.CONNECTED ? 1 : -1)) {
+				return;
+			}
+			PeerLink.Relayed relayed = new PeerLink.Relayed(type, ++sequence, event);
+			for (PeerLink link : links.values()) {
+				link.send(relayed);
+			}
+		}
+	}
+
+	/**
+	 * Quand une liaison reoit un vnement d'un pair.
+	 */
+	void receive(PeerLink link, int type, long number, ServerEvent event) {
+		eventsReceived.incrementAndGet();
+		Origin origin = origin(link.getRemoteId());
+		synchronized (origin) {
+
+			// Le pair a redmarr : ses numros repartent de zro
+			if (origin.epoch != link.getRemoteEpoch()) {
+				origin.epoch = link.getRemoteEpoch();
+				origin.lastSequence = 0;
+			}
+
+			// Dj vu
+			if (number <= origin.lastSequence) {
+				duplicates.incrementAndGet();
+				return;
+			}
+			origin.lastSequence = number;
+
+			switch (type) {
+			case PeerLink.MESSAGE :
+				server.relayFromPeer(event);
+				break;
+			case PeerLink.CONNECTED :
+				count(origin.users, event.getUser(), event.getAddress(), 1);
+				server.relayFromPeer(event);
+				break;
+			case PeerLink.DISCONNECTED :
+				if (count(origin.users, event.getUser(), event.getAddress(), -1)) {
+					server.relayFromPeer(event);
+				}
+				break;
+			case PeerLink.SYNC_BEGIN :
+				origin.sync = new LinkedHashMap<>();
+				break;
+			case PeerLink.SYNC_USER :
+				if (origin.sync != null) count(origin.sync, event.getUser(), event.getAddress(), 1);
+				break;
+			case PeerLink.SYNC_END :
+				if (origin.sync != null) {
+					// On n'annonce que la diffrence avec ce qu'on savait dj
+					announceDifference(origin.users, origin.sync);
+					origin.users = origin.sync;
+					origin.sync = null;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Quand une liaison est ferme. Si c'tait la liaison active de ce pair, ses utilisateurs
+	 * sont annoncs comme dconnects.
+	 */
+	void onLinkClosed(PeerLink link) {
+		if (!links.remove(link.getRemoteId(), link)) return;
+		LogWriter.getInstance().writeLog("Noeud {} spar du noeud {}", nodeId, link.getRemoteId());
+		Origin origin = origin(link.getRemoteId());
+		synchronized (origin) {
+			announceDifference(origin.users, new LinkedHashMap<String, Presence>());
+			origin.users = new LinkedHashMap<>();
+			origin.sync = null;
+		}
+	}
+
+	void onLinkOverflow() {
+		linkOverflows.incrementAndGet();
+	}
+
+	void onBatchSent(int size) {
+		eventsSent.addAndGet(size);
+		batchesSent.incrementAndGet();
+	}
+
+	/**
+	 * Renvoie les utilisateurs connects aux autres noeuds, sous forme d'vnements CONNECTED.
+	 */
+	public List<ServerEvent> getRemoteUsers() {
+		List<ServerEvent> users = new ArrayList<>();
+		for (Origin origin : origins.values()) {
+			synchronized (origin) {
+				for (Presence presence : origin.users.values()) {
+					for (int i = 0; i < presence.count; i++) {
+						users.add(ServerEvent.connected(presence.user, presence.address));
+					}
+				}
+			}
+		}
+		return users;
+	}
+
+	/**
+	 * Le nombre d'vnements envoys aux pairs, toutes liaisons confondues.
+	 */
+	public long getEventsSent() {
+		return eventsSent.get();
+	}
+
+	/**
+	 * Le nombre de lots envoys aux pairs : chaque lot ne cote qu'une criture sur le socket.
+	 */
+	public long getBatchesSent() {
+		return batchesSent.get();
+	}
+
+	/**
+	 * Le nombre d'vnements reus des pairs, doublons compris.
+	 */
+	public long getEventsReceived() {
+		return eventsReceived.get();
+	}
+
+	/**
+	 * Le nombre d'vnements reus en double et ignors.
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Le nombre de liaisons fermes parce que leur file d'envoi tait pleine.
+	 */
+	public long getLinkOverflows() {
+		return linkOverflows.get();
+	}
+
+	/**
+	 * Arrte le noeud et ferme toutes ses liaisons.
+	 */
+	@Override
+	public void interrupt() {
+		super.interrupt();
+		try {
+			if (serverSocket != null) serverSocket.close();
+		}
+		catch (IOException e) {
+			// En cas d'erreur on ne fait rien de spcial
+		}
+		finally {
+			serverSocket = null;
+		}
+		for (PeerLink link : links.values()) {
+			link.close();
+		}
+	}
+
+	private Origin origin(String remoteId) {
+		Origin origin = origins.get(remoteId);
+		if (origin == null) {
+			Origin created = new Origin();
+			origin = origins.putIfAbsent(remoteId, created);
+			if (origin == null) origin = created;
+		}
+		return origin;
+	}
+
+	/**
+	 * Annonce aux clients locaux ce qui a chang entre deux listes d'utilisateurs d'un pair.
+	 */
+	private void announceDifference(Map<String, Presence> before, Map<String, Presence> after) {
+		for (Presence presence : before.values()) {
+			Presence now = after.get(presence.key());
+			for (int i = now == null ? 0 : now.count; i < presence.count; i++) {
+				server.relayFromPeer(ServerEvent.disconnected(presence.user, presence.address));
+			}
+		}
+		for (Presence presence : after.values()) {
+			Presence old = before.get(presence.key());
+			for (int i = old == null ? 0 : old.count; i < presence.count; i++) {
+				server.relayFromPeer(ServerEvent.connected(presence.user, presence.address));
+			}
+		}
+	}
+
+	/**
+	 * Ajoute ou retire un utilisateur d'une liste.
+	 *
+	 * @return FALSE si on retire un utilisateur qui n'tait pas dans la liste.
+	 */
+	private static boolean count(Map<String, Presence> users, String user, String address, int delta) {
+		String key = user + '\u0000' + address;
+		Presence presence = users.get(key);
+		if (presence == null) {
+			if (delta < 0) return false;
+			presence = new Presence(user, address);
+			users.put(key, presence);
+		}
+		presence.count += delta;
+		if (presence.count <= 0) users.remove(key);
+		return true;
+	}
+
+	/**
+	 * Un utilisateur et le nombre de clients qui portent ce nom depuis cette adresse.
+	 */
+	private static final class Presence {
+
+		final String user;
+
+		final String address;
+
+		int count;
+
+		Presence(String user, String address) {
+			this.user = user;
+			this.address = address;
+		}
+
+		String key() {
+			return user + '\u0000' + address;
+		}
+
+	}
+
+	/**
+	 * Ce qu'on sait d'un noeud distant. Protg par son propre moniteur.
+	 */
+	private static final class Origin {
+
+		long epoch;
+
+		long lastSequence;
+
+		Map<String, Presence> users = new LinkedHashMap<>();
+
+		/**
+		 * La liste en cours de rception, entre SYNC_BEGIN et SYNC_END.
+		 */
+		Map<String, Presence> sync;
+
+	}
+
+}
@@ -0,0 +1,339 @@
+package exia.ipc.server.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import exia.ipc.server.LogWriter;
+import exia.ipc.server.ServerEvent;
+
+/**
+ * Une liaison avec un autre serveur du cluster.
+ *
+ * La liaison a deux threads : un qui lit les lots d'vnements envoys par l'autre serveur, et un
+ * qui vide la file des vnements  lui envoyer. Tous les vnements en attente partent dans un
+ * seul lot, avec un seul flush : plus le trafic est fort, plus les lots sont gros.
+ *
+ * Le format, aprs la poigne de main (magic:int32 noeud:str poque:int64 dans chaque sens) :
+ *
+ *   lot : nombre:int32 (type:uint8 numro:int64 champs...)...
+ *
+ *   MESSAGE       nom:str adresse:str date:int64 message:str
+ *   CONNECTED     nom:str adresse:str
+ *   DISCONNECTED  nom:str adresse:str
+ *   SYNC_BEGIN    dbut de la liste complte des utilisateurs du noeud
+ *   SYNC_USER     nom:str adresse:str
+ *   SYNC_END      fin de la liste
+ *
+ * Les textes sont prfixs par leur longueur en octets (int32) et encods en UTF-8.
+ */
+class PeerLink {
+
+	// Les types d'vnements
+	static final int MESSAGE = 1;
+	static final int CONNECTED = 2;
+	static final int DISCONNECTED = 3;
+	static final int SYNC_BEGIN = 4;
+	static final int SYNC_USER = 5;
+	static final int SYNC_END = 6;
+
+	/**
+	 * Le nombre maximal d'vnements dans un lot.
+	 */
+	static final int MAX_BATCH = 1024;
+
+	/**
+	 * La taille maximale d'un texte, en octets.
+	 */
+	private static final int MAX_STRING = 1 << 20;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Le noeud local.
+	 */
+	private final ClusterNode node;
+
+	private final Socket socket;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	/**
+	 * L'identifiant du noeud distant.
+	 */
+	private final String remoteId;
+
+	/**
+	 * L'poque du noeud distant : elle change quand il redmarre, et ses numros repartent de zro.
+	 */
+	private final long remoteEpoch;
+
+	/**
+	 * L'identifiant du noeud qui a ouvert la liaison.
+	 */
+	private final String initiator;
+
+	/**
+	 * Les vnements en attente d'envoi. La file est borne : un pair qui ne lit plus ses
+	 * vnements ne doit pas remplir la mmoire de ce noeud.
+	 */
+	private final BlockingQueue<Relayed> queue;
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private Thread reader;
+
+	private Thread writer;
+
+	/**
+	 * Constructeur. La poigne de main est faite ici : le constructeur bloque jusqu' ce que
+	 * le noeud distant se soit prsent.
+	 *
+	 * @param node Le noeud local.
+	 * @param socket Le socket dj connect.
+	 * @param initiated TRUE si c'est le noeud local qui a ouvert la liaison.
+	 * @throws IOException Erreur rseau, ou le noeud distant ne parle pas ce protocole.
+	 */
+	PeerLink(ClusterNode node, Socket socket, boolean initiated) throws IOException {
+		this.node = node;
+		this.socket = socket;
+		this.queue = new LinkedBlockingQueue<>(node.getLinkQueueCapacity());
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+		// On se prsente, et on attend que l'autre en fasse autant
+		out.writeInt(ClusterNode.MAGIC);
+		writeString(out, node.getNodeId());
+		out.writeLong(node.getEpoch());
+		out.flush();
+		if (in.readInt() != ClusterNode.MAGIC) {
+			throw new IOException("Le noeud distant ne parle pas le protocole du cluster");
+		}
+		this.remoteId = readString(in);
+		this.remoteEpoch = in.readLong();
+		this.initiator = initiated ? node.getNodeId() : remoteId;
+	}
+
+	String getRemoteId() {
+		return remoteId;
+	}
+
+	long getRemoteEpoch() {
+		return remoteEpoch;
+	}
+
+	String getInitiator() {
+		return initiator;
+	}
+
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Lance les threads de lecture et d'criture.
+	 */
+	void start() {
+		//reader = new Thread(() -> readLoop(), ...);
+		reader = new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, "PeerLink-reader-" + remoteId);
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "PeerLink-writer-" + remoteId);
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	/**
+	 * Met un vnement dans la file d'envoi. Ne bloque jamais.
+	 *
+	 * Si la file est pleine, le pair ne suit plus : on ferme la liaison plutt que de perdre des
+	 * vnements sans rien dire. Le pair se reconnecte, et la liste complte des utilisateurs
+	 * envoye  l'ouverture de la nouvelle liaison remet les deux noeuds d'accord.
+	 */
+	void send(Relayed event) {
+		if (closed.get() || queue.offer(event)) return;
+		node.onLinkOverflow();
+		LogWriter.getInstance().writeError("File d'envoi vers le noeud {} pleine ({} vnements), liaison ferme",
+				remoteId, queue.size());
+		close();
+	}
+
+	/**
+	 * Ferme la liaison. Le noeud en est prvenu une seule fois.
+	 */
+	void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			// On ne fait rien de spcial
+		}
+		if (writer != null) writer.interrupt();
+		queue.clear();
+		node.onLinkClosed(this);
+	}
+
+	private void readLoop() {
+		try {
+			while (!closed.get()) {
+				int count;
+				try {
+					count = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				if (count < 0 || count > MAX_BATCH) {
+					throw new IOException("Lot invalide de " + count + " vnements");
+				}
+				for (int i = 0; i < count; i++) {
+					int type = in.readUnsignedByte();
+					long sequence = in.readLong();
+					ServerEvent event = null;
+					switch (type) {
+					case MESSAGE :
+						String user = readString(in);
+						String address = readString(in);
+						long timestamp = in.readLong();
+						event = ServerEvent.message(user, address, timestamp, readString(in));
+						break;
+					case CONNECTED :
+					case SYNC_USER :
+						event = ServerEvent.connected(readString(in), readString(in));
+						break;
+					case DISCONNECTED :
+						event = ServerEvent.disconnected(readString(in), readString(in));
+						break;
+					case SYNC_BEGIN :
+					case SYNC_END :
+						break;
+					default :
+						throw new IOException("Type d'vnement inconnu " + type);
+					}
+					node.receive(this, type, sequence, event);
+				}
+			}
+		}
+		catch (IOException e) {
+			if (!closed.get()) {
+				LogWriter.getInstance().writeError("Liaison avec le noeud {} perdue : {}", remoteId, e.getMessage());
+			}
+		}
+		finally {
+			close();
+		}
+	}
+
+	private void writeLoop() {
+		List<Relayed> batch = new ArrayList<>(MAX_BATCH);
+		try {
+			while (!closed.get()) {
+				// On attend un premier vnement, puis on prend tous ceux qui attendent
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				out.writeInt(batch.size());
+				for (Relayed relayed : batch) {
+					write(relayed);
+				}
+				out.flush();
+				node.onBatchSent(batch.size());
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			// La liaison est ferme
+		}
+		catch (IOException e) {
+			if (!closed.get()) {
+				LogWriter.getInstance().writeError("Liaison avec le noeud {} perdue : {}", remoteId, e.getMessage());
+			}
+		}
+		finally {
+			close();
+		}
+	}
+
+	private void write(Relayed relayed) throws IOException {
+		out.writeByte(relayed.type);
+		out.writeLong(relayed.sequence);
+		ServerEvent event = relayed.event;
+		switch (relayed.type) {
+		case MESSAGE :
+			writeString(out, event.getUser());
+			writeString(out, event.getAddress());
+			out.writeLong(event.getTimestamp());
+			writeString(out, event.getText());
+			break;
+		case CONNECTED :
+		case DISCONNECTED :
+		case SYNC_USER :
+			writeString(out, event.getUser());
+			writeString(out, event.getAddress());
+			break;
+		default :
+			break;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_STRING) {
+			throw new IOException("Texte invalide de " + length + " octets");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	@Override
+	public String toString() {
+		return remoteId + "@" + socket.getRemoteSocketAddress();
+	}
+
+	/**
+	 * Un vnement  envoyer, avec son type et son numro.
+	 */
+	static final class Relayed {
+
+		final int type;
+
+		final long sequence;
+
+		final ServerEvent event;
+
+		Relayed(int type, long sequence, ServerEvent event) {
+			this.type = type;
+			this.sequence = sequence;
+			this.event = event;
+		}
+
+	}
+
+}
@@ -16,11 +16,31 @@ public interface IClientThreadObservable {
 	 */
 	public void setObserver(IClientThreadObserver observer);
 	
+	/**
+	 * Quand un client vient de choisir son protocole.
+	 */
+	public void notifyProtocolNegotiated(ClientSocketThread client);
+	
 	/**
 	 * Quand un client a envoy un message.
 	 */
 	public void notifyMessageReceived(ClientSocketThread client, String log);
 	
+	/**
+	 * Quand un client a envoy un message dans un salon.
+	 */
+	public void notifyRoomMessageReceived(ClientSocketThread client, String room, String log);
+	
+	/**
+	 * Quand un client a envoy un message priv.
+	 */
+	public void notifyDirectMessageReceived(ClientSocketThread client, String recipient, String log);
+	
+	/**
+	 * Quand un client vient de changer de nom.
+	 */
+	public void notifyUserNameChanged(ClientSocketThread client, String oldName);
+	
 	/**
 	 * Quand un client vient de se dconnecter.
 	 */
@@ -7,6 +7,13 @@ import exia.ipc.server.ClientSocketThread;
  */
 public interface IClientThreadObserver {
 
+	/**
+	 * Quand un client vient de choisir son protocole : on peut commencer  lui crire.
+	 * 
+	 * @param socket Le client.
+	 */
+	public void onProtocolNegotiated(ClientSocketThread socket);
+
 	/**
 	 * Quand un message a t reu par un client.
 	 * 
@@ -15,6 +22,32 @@ public interface IClientThreadObserver {
 	 */
 	public void onMessage(ClientSocketThread socket, String log);
 
+	/**
+	 * Quand un message a t reu par un client, pour un salon.
+	 * 
+	 * @param socket Le socket+thread du client.
+	 * @param room Le nom du salon.
+	 * @param log Le message.
+	 */
+	public void onRoomMessage(ClientSocketThread socket, String room, String log);
+
+	/**
+	 * Quand un message priv a t reu par un client.
+	 * 
+	 * @param socket Le socket+thread du client.
+	 * @param recipient Le nom du destinataire, ventuellement suivi de @adresse.
+	 * @param log Le message.
+	 */
+	public void onDirectMessage(ClientSocketThread socket, String recipient, String log);
+
+	/**
+	 * Quand un client vient de changer de nom.
+	 * 
+	 * @param socket Le client, qui porte dj son nouveau nom.
+	 * @param oldName Son ancien nom.
+	 */
+	public void onUserNameChanged(ClientSocketThread socket, String oldName);
+
 	/**
 	 * Quand un client a ferm son socket.
 	 * 
@@ -0,0 +1,277 @@
+package exia.ipc.server.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import exia.ipc.server.ServerEvent;
+
+/**
+ * Un segment du journal des messages : un fichier de taille fixe, projet en mmoire, dans lequel
+ * les messages sont ajouts les uns aprs les autres.
+ *
+ * Le fichier porte le nom du numro (offset) de son premier message. Chaque enregistrement a la
+ * forme :
+ *
+ *   longueur:int32 offset:int64 date:int64 nom:str16 adresse:str16 message:str32
+ *
+ * La longueur compte les octets qui la suivent. Elle est crite en dernier : un enregistrement
+ * dont la longueur est nulle n'a pas t termin, et marque la fin des donnes.
+ *
+ * Un seul thread crit dans le segment. Les lectures peuvent se faire depuis n'importe quel
+ * thread, jusqu' l'offset publi par le MessageLog.
+ */
+class LogSegment {
+
+	/**
+	 * Une entre de l'index tous les INDEX_INTERVAL messages.
+	 */
+	private static final int INDEX_INTERVAL = 64;
+
+	/**
+	 * La taille de l'en-tte : longueur, offset et date.
+	 */
+	private static final int HEADER = 4 + 8 + 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * L'offset du premier message du segment.
+	 */
+	private final long baseOffset;
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * La position d'criture. Seul le thread d'criture y accde.
+	 */
+	private int position;
+
+	/**
+	 * L'offset du prochain message du segment.
+	 */
+	private volatile long nextOffset;
+
+	/**
+	 * La date du dernier message du segment, pour l'expiration.
+	 */
+	private volatile long lastTimestamp;
+
+	/**
+	 * Un index clairsem : la position de quelques offsets, pour ne pas parcourir le segment
+	 * depuis le dbut  chaque lecture. Protg par le moniteur du segment.
+	 */
+	private long[] indexOffsets = new long[64];
+
+	private int[] indexPositions = new int[64];
+
+	private int indexSize = 0;
+
+	/**
+	 * Ouvre un segment. S'il contient dj des messages, on les parcourt pour retrouver la fin
+	 * des donnes et reconstruire l'index.
+	 *
+	 * @param file Le fichier du segment.
+	 * @param baseOffset L'offset du premier message.
+	 * @param size La taille du segment, pour un nouveau fichier.
+	 * @throws IOException Erreur d'ouverture ou de projection du fichier.
+	 */
+	LogSegment(File file, long baseOffset, int size) throws IOException {
+		this.file = file;
+		this.baseOffset = baseOffset;
+		this.nextOffset = baseOffset;
+		this.raf = new RandomAccessFile(file, "rw");
+		try {
+			// Un segment existant garde sa taille
+			if (raf.length() == 0) raf.setLength(size);
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}
+		catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		recover();
+	}
+
+	/**
+	 * Parcourt les enregistrements complets, jusqu'au premier qui ne l'est pas.
+	 */
+	private void recover() {
+		int pos = 0;
+		while (pos + HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(pos);
+			if (length < HEADER - 4 || pos + 4 + length > buffer.capacity()) break;
+			// Un offset inattendu : la suite du segment n'est pas fiable
+			if (buffer.getLong(pos + 4) != nextOffset) break;
+			index(nextOffset, pos);
+			lastTimestamp = buffer.getLong(pos + 12);
+			nextOffset++;
+			pos += 4 + length;
+		}
+		position = pos;
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	long getNextOffset() {
+		return nextOffset;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * Le nombre d'octets crits.
+	 */
+	int size() {
+		return position;
+	}
+
+	/**
+	 * La taille du fichier sur le disque. Le fichier est prallou  la cration du segment :
+	 * elle ne dpend pas du nombre d'octets crits.
+	 */
+	long fileSize() {
+		return file.length();
+	}
+
+	boolean isEmpty() {
+		return nextOffset == baseOffset;
+	}
+
+	/**
+	 * Ajoute un message  la fin du segment.
+	 *
+	 * @return FALSE si le segment n'a plus la place.
+	 */
+	boolean append(ServerEvent event) {
+		byte[] user = event.getUser().getBytes(UTF8);
+		byte[] address = event.getAddress().getBytes(UTF8);
+		byte[] text = event.getText().getBytes(UTF8);
+		int length = HEADER - 4 + 2 + user.length + 2 + address.length + 4 + text.length;
+		if (user.length > 0xFFFF || address.length > 0xFFFF) return false;
+		// On garde la place d'une longueur nulle aprs l'enregistrement, pour marquer la fin
+		if (position + 4 + length + 4 > buffer.capacity()) return false;
+
+		// Le contenu d'abord, la longueur ensuite
+		ByteBuffer out = buffer.duplicate();
+		out.position(position + 4);
+		out.putLong(nextOffset);
+		out.putLong(event.getTimestamp());
+		out.putShort((short) user.length).put(user);
+		out.putShort((short) address.length).put(address);
+		out.putInt(text.length).put(text);
+		buffer.putInt(position, length);
+
+		index(nextOffset, position);
+		lastTimestamp = event.getTimestamp();
+		position += 4 + length;
+		nextOffset++;
+		return true;
+	}
+
+	/**
+	 * Lit des messages  partir d'un offset.
+	 *
+	 * @param from Le premier offset  lire.
+	 * @param until L'offset  ne pas atteindre : celui du prochain message non publi.
+	 * @param max Le nombre maximal de messages  lire.
+	 * @param events La liste o ajouter les messages lus.
+	 */
+	void read(long from, long until, int max, List<ServerEvent> events) {
+		int pos = lookup(from);
+		if (pos < 0) return;
+		ByteBuffer in = buffer.duplicate();
+		while (max > 0 && pos + HEADER <= in.capacity()) {
+			int length = in.getInt(pos);
+			if (length == 0) break;
+			long offset = in.getLong(pos + 4);
+			if (offset >= until) break;
+			if (offset >= from) {
+				in.position(pos + 12);
+				long timestamp = in.getLong();
+				String user = readString(in, in.getShort() & 0xFFFF);
+				String address = readString(in, in.getShort() & 0xFFFF);
+				String text = readString(in, in.getInt());
+				events.add(ServerEvent.message(user, address, timestamp, text));
+				max--;
+			}
+			pos += 4 + length;
+		}
+	}
+
+	private static String readString(ByteBuffer in, int length) {
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Ajoute une entre  l'index, tous les INDEX_INTERVAL messages.
+	 */
+	private synchronized void index(long offset, int pos) {
+		if ((offset - baseOffset) % INDEX_INTERVAL != 0) return;
+		if (indexSize == indexOffsets.length) {
+			indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+			indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+		}
+		indexOffsets[indexSize] = offset;
+		indexPositions[indexSize] = pos;
+		indexSize++;
+	}
+
+	/**
+	 * Renvoie la position de la dernire entre de l'index qui prcde l'offset, ou -1 si le
+	 * segment est vide.
+	 */
+	private synchronized int lookup(long offset) {
+		if (indexSize == 0) return -1;
+		int i = Arrays.binarySearch(indexOffsets, 0, indexSize, offset);
+		if (i < 0) i = Math.max(0, -i - 2);
+		return indexPositions[i];
+	}
+
+	/**
+	 * Force l'criture sur le disque des pages modifies.
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	void close() {
+		try {
+			raf.close();
+		}
+		catch (IOException e) {
+			// En cas d'erreur on ne fait rien de spcial
+		}
+	}
+
+	/**
+	 * Ferme et supprime le fichier. La projection en mmoire reste valide pour les lectures en
+	 * cours : elle sera libre par le ramasse-miettes.
+	 */
+	boolean delete() {
+		close();
+		return file.delete();
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+}
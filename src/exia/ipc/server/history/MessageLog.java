@@ -0,0 +1,370 @@
+package exia.ipc.server.history;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import exia.ipc.server.LogWriter;
+import exia.ipc.server.ServerEvent;
+
+/**
+ * L'historique des messages du chat, conserv sur le disque dans un journal o l'on ne fait
+ * qu'ajouter.
+ *
+ * Chaque message reoit un numro (offset) croissant. Le journal est dcoup en segments de
+ * taille fixe, projets en mmoire : quand le segment courant est plein, on en ouvre un nouveau,
+ * et les plus anciens sont supprims quand le journal dpasse sa taille maximale ou quand leurs
+ * messages sont trop vieux.
+ *
+ * Le broadcast ne fait que dposer le message dans une file. Un thread ddi vide la file par
+ * lots, crit les messages dans le segment, puis publie le dernier offset crit : les lectures
+ * ne voient que les messages publis. L'criture sur le disque (force) est faite au plus une
+ * fois par intervalle de synchronisation, pour tous les messages crits depuis.
+ */
+public class MessageLog extends Thread {
+
+	/**
+	 * Le nombre maximal de messages en attente d'criture. Au del, les messages ne sont pas
+	 * conservs : on ne ralentit pas le chat pour l'historique.
+	 */
+	private static final int QUEUE_CAPACITY = 65536;
+
+	/**
+	 * L'extension des fichiers des segments.
+	 */
+	private static final String EXTENSION = ".log";
+
+	/**
+	 * Le dossier des segments.
+	 */
+	private final File directory;
+
+	/**
+	 * La taille d'un segment, en octets.
+	 */
+	private int segmentSize = 16 * 1024 * 1024;
+
+	/**
+	 * La taille maximale du journal, en octets.
+	 */
+	private long maxBytes = 256L * 1024 * 1024;
+
+	/**
+	 * La dure de conservation des messages, en millisecondes.
+	 */
+	private long retention = TimeUnit.DAYS.toMillis(7);
+
+	/**
+	 * L'intervalle entre deux critures sur le disque, en millisecondes.
+	 */
+	private long syncInterval = 1000;
+
+	/**
+	 * Les segments, du plus ancien au plus rcent. Le dernier est le segment courant.
+	 */
+	private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Les messages en attente d'criture.
+	 */
+	private final BlockingQueue<ServerEvent> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+	/**
+	 * L'offset du prochain message : les messages d'offset infrieur sont lisibles.
+	 */
+	private volatile long committed = 0;
+
+	/**
+	 * Le nombre de messages perdus parce que la file tait pleine.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Constructeur. Le journal n'est ouvert qu'au lancement du thread.
+	 *
+	 * @param directory Le dossier des segments, cr au besoin.
+	 */
+	public MessageLog(File directory) {
+		super("MessageLog");
+		setDaemon(true);
+		this.directory = directory;
+	}
+
+	/**
+	 * Modifie la taille des prochains segments, en octets. A appeler avant start().
+	 */
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = Math.max(4096, segmentSize);
+	}
+
+	/**
+	 * Modifie la taille maximale du journal sur le disque, en octets, segments prallous
+	 * compris. Le segment courant n'est jamais supprim.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Modifie la dure de conservation des messages, en millisecondes.
+	 */
+	public void setRetention(long retention) {
+		this.retention = retention;
+	}
+
+	/**
+	 * Modifie l'intervalle entre deux critures sur le disque, en millisecondes.
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = Math.max(1, syncInterval);
+	}
+
+	/**
+	 * Ouvre les segments existants, et lance le thread d'criture.
+	 */
+	@Override
+	public synchronized void start() {
+		try {
+			open();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		super.start();
+		LogWriter.getInstance().writeLog("Historique ouvert dans {}, {} segment(s), prochain message {}",
+				directory, segments.size(), committed);
+	}
+
+	/**
+	 * Ouvre les segments existants, du plus ancien au plus rcent, et le segment courant.
+	 */
+	private void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Impossible de crer le dossier " + directory);
+		}
+		//File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(EXTENSION);
+			}
+		});
+		// Le nom est l'offset sur 20 chiffres : l'ordre des noms est celui des offsets
+		Arrays.sort(files);
+		for (File file : files) {
+			long base = Long.parseLong(file.getName().substring(0, file.getName().length() - EXTENSION.length()));
+			segments.add(new LogSegment(file, base, segmentSize));
+		}
+		if (segments.isEmpty()) {
+			roll(0);
+		}
+		committed = active().getNextOffset();
+	}
+
+	/**
+	 * Le segment courant.
+	 */
+	private LogSegment active() {
+		return segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * Ouvre un nouveau segment courant.
+	 */
+	private void roll(long baseOffset) throws IOException {
+		File file = new File(directory, String.format("%020d%s", baseOffset, EXTENSION));
+		segments.add(new LogSegment(file, baseOffset, segmentSize));
+	}
+
+	/**
+	 * Ajoute un message  l'historique. Ne bloque jamais : le message est crit plus tard par
+	 * le thread du journal. Les autres vnements sont ignors.
+	 */
+	public void append(ServerEvent event) {
+		if (event.getType() != ServerEvent.Type.MESSAGE) return;
+		if (!queue.offer(event)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Ecriture des messages, par lots, jusqu' l'interruption du thread. Une erreur du disque
+	 * ne cote que le lot en cours : le thread continue avec les suivants.
+	 */
+	@Override
+	public void run() {
+		List<ServerEvent> batch = new ArrayList<>();
+		long lastSync = System.currentTimeMillis();
+		boolean dirty = false;
+		try {
+			while (!isInterrupted()) {
+				// On attend un premier message, puis on prend tous ceux qui attendent
+				ServerEvent first = queue.poll(syncInterval, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch);
+					write(batch);
+					batch.clear();
+					dirty = true;
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastSync >= syncInterval) {
+					// En cas d'chec, on ressaiera au prochain intervalle
+					if (dirty) dirty = !force(active());
+					lastSync = now;
+					expire(now);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// Le journal est ferm
+		}
+		finally {
+			// On crit ce qui reste avant de fermer
+			queue.drainTo(batch);
+			write(batch);
+			force(active());
+			for (LogSegment segment : segments) {
+				segment.close();
+			}
+		}
+	}
+
+	/**
+	 * Ecrit un lot de messages, puis les publie. Si le segment suivant ne peut pas tre cr
+	 * (disque plein, droits...), la fin du lot est perdue : le prochain lot essaiera  nouveau.
+	 */
+	private void write(List<ServerEvent> batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			ServerEvent event = batch.get(i);
+			LogSegment segment = active();
+			if (segment.append(event)) continue;
+			// Le segment est plein : on en ouvre un autre, sauf si le message ne tiendrait
+			// mme pas dans un segment vide
+			if (segment.isEmpty()) {
+				dropped.incrementAndGet();
+				continue;
+			}
+			try {
+				roll(segment.getNextOffset());
+			}
+			catch (IOException e) {
+				dropped.addAndGet(batch.size() - i);
+				LogWriter.getInstance().writeError("Historique : {} : {}, {} message(s) perdu(s)",
+						e.getClass().getSimpleName(), e.getMessage(), batch.size() - i);
+				break;
+			}
+			if (!active().append(event)) {
+				dropped.incrementAndGet();
+			}
+			// Le segment plein ne changera plus
+			force(segment);
+		}
+		committed = active().getNextOffset();
+	}
+
+	/**
+	 * Ecrit un segment sur le disque. Les messages restent dans le segment projet en mmoire :
+	 * un chec est signal sans arrter le journal.
+	 *
+	 * @return FALSE si l'criture a chou.
+	 */
+	private boolean force(LogSegment segment) {
+		try {
+			segment.force();
+			return true;
+		}
+		catch (RuntimeException e) {
+			LogWriter.getInstance().writeError("Historique : {} lors de l'criture de {} : {}",
+					e.getClass().getSimpleName(), segment, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Supprime les plus anciens segments, tant que le journal est trop gros ou que leurs
+	 * messages sont trop vieux. La taille du journal est celle de ses fichiers, prallous :
+	 * c'est elle qui occupe le disque, pas le nombre d'octets crits.
+	 */
+	private void expire(long now) {
+		long total = 0;
+		for (LogSegment segment : segments) {
+			total += segment.fileSize();
+		}
+		while (segments.size() > 1) {
+			LogSegment oldest = segments.get(0);
+			if (total <= maxBytes && oldest.getLastTimestamp() >= now - retention) break;
+			segments.remove(0);
+			total -= oldest.fileSize();
+			if (!oldest.delete()) {
+				LogWriter.getInstance().writeError("Historique : impossible de supprimer le segment {}", oldest);
+			}
+		}
+	}
+
+	/**
+	 * Lit des messages  partir d'un offset.
+	 *
+	 * @param from Le premier offset  lire.
+	 * @param max Le nombre maximal de messages.
+	 * @return Les messages, dans l'ordre. La liste est vide si l'offset est trop rcent.
+	 */
+	public List<ServerEvent> read(long from, int max) {
+		long until = committed;
+		if (max <= 0 || from >= until) return Collections.emptyList();
+		List<ServerEvent> events = new ArrayList<>(Math.min(max, 1024));
+		for (LogSegment segment : segments) {
+			if (events.size() >= max) break;
+			// Les messages de ce segment sont tous avant from
+			if (segment.getNextOffset() <= from) continue;
+			segment.read(Math.max(from, segment.getBaseOffset()), until, max - events.size(), events);
+		}
+		return events;
+	}
+
+	/**
+	 * Renvoie les derniers messages publis, du plus ancien au plus rcent.
+	 *
+	 * @param count Le nombre de messages.
+	 */
+	public List<ServerEvent> tail(int count) {
+		return read(Math.max(0, committed - count), count);
+	}
+
+	/**
+	 * L'offset du plus ancien message encore conserv.
+	 */
+	public long getFirstOffset() {
+		return segments.get(0).getBaseOffset();
+	}
+
+	/**
+	 * L'offset du prochain message.
+	 */
+	public long getNextOffset() {
+		return committed;
+	}
+
+	/**
+	 * Le nombre de segments.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Le nombre de messages perdus, parce que la file d'criture tait pleine.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+}
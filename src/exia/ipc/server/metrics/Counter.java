@@ -0,0 +1,69 @@
+package exia.ipc.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Un compteur qui ne fait qu'augmenter, mis  jour par beaucoup de threads  la fois.
+ *
+ * Un seul AtomicLong serait disput par tous les threads de lecture et d'criture des clients :
+ * chaque incrment ferait voyager sa ligne de cache d'un coeur  l'autre. Le compteur est donc
+ * dcoup en cellules, chacune sur sa propre ligne de cache, et un thread incrmente toujours la
+ * mme cellule, choisie d'aprs son identifiant. La lecture fait la somme des cellules : elle est
+ * plus lente, mais elle n'est faite qu' la consultation des mesures.
+ */
+public final class Counter implements Metric {
+
+	/**
+	 * Le nombre de cellules, une puissance de deux.
+	 */
+	private static final int CELLS = 16;
+
+	/**
+	 * L'cart entre deux cellules, en longs : 8 longs font une ligne de cache de 64 octets.
+	 */
+	private static final int PADDING = 8;
+
+	/**
+	 * Les cellules, espaces de PADDING longs.
+	 */
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+	/**
+	 * Ajoute un au compteur.
+	 */
+	public void increment() {
+		cells.getAndAdd(cell(), 1);
+	}
+
+	/**
+	 * Ajoute une valeur au compteur.
+	 */
+	public void add(long value) {
+		cells.getAndAdd(cell(), value);
+	}
+
+	/**
+	 * La cellule du thread courant.
+	 */
+	private static int cell() {
+		return ((int) Thread.currentThread().getId() & (CELLS - 1)) * PADDING;
+	}
+
+	/**
+	 * Renvoie la valeur du compteur, somme de toutes ses cellules.
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	@Override
+	public void writeText(String name, StringBuilder out) {
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(get()).append('\n');
+	}
+
+}
@@ -0,0 +1,20 @@
+package exia.ipc.server.metrics;
+
+/**
+ * Une mesure lue au moment de la consultation, par exemple le nombre de clients connects.
+ * Rien n'est enregistr entre deux consultations.
+ */
+public abstract class Gauge implements Metric {
+
+	/**
+	 * Renvoie la valeur actuelle.
+	 */
+	public abstract long get();
+
+	@Override
+	public void writeText(String name, StringBuilder out) {
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(get()).append('\n');
+	}
+
+}
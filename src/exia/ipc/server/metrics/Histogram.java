@@ -0,0 +1,174 @@
+package exia.ipc.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * La rpartition d'une dure, en nanosecondes, pour en tirer des percentiles.
+ *
+ * Les valeurs sont ranges dans des intervalles de taille croissante : chaque puissance de deux
+ * est coupe en 8 intervalles gaux, et les valeurs de 0  15 ont chacune le leur. L'erreur sur
+ * un percentile est donc d'au plus 12,5 %, quelle que soit la dure, de la nanoseconde 
+ * plusieurs jours, pour moins de 500 intervalles. L'enregistrement d'une valeur ne fait que
+ * calculer son intervalle et l'incrmenter, sans allocation ni verrou.
+ *
+ * Comme pour Counter, les intervalles sont recopis par groupe de threads, pour que deux threads
+ * qui mesurent des dures voisines ne se disputent pas le mme compteur.
+ */
+public final class Histogram implements Metric {
+
+	/**
+	 * Le nombre d'intervalles : 16 pour les petites valeurs, et 8 par puissance de deux de 2^4
+	 *  2^62.
+	 */
+	private static final int BUCKETS = 16 + 59 * 8;
+
+	/**
+	 * Le nombre de copies des intervalles, une puissance de deux.
+	 */
+	private static final int STRIPES = 4;
+
+	/**
+	 * Les percentiles crits sur la page des mesures.
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * Les intervalles de chaque copie,  la suite.
+	 */
+	private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+
+	/**
+	 * La somme des valeurs, pour la moyenne.
+	 */
+	private final Counter sum = new Counter();
+
+	/**
+	 * Enregistre une dure. Les valeurs ngatives, qui ne peuvent venir que d'une erreur de
+	 * mesure, sont comptes comme zro.
+	 *
+	 * @param nanos La dure, en nanosecondes.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		buckets.getAndIncrement(stripe * BUCKETS + bucket(nanos));
+		sum.add(nanos);
+	}
+
+	/**
+	 * L'intervalle d'une valeur positive.
+	 */
+	static int bucket(long value) {
+		if (value < 16) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - 3)) & 7;
+		return 16 + (exponent - 4) * 8 + sub;
+	}
+
+	/**
+	 * La plus grande valeur d'un intervalle.
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < 16) return bucket;
+		int exponent = (bucket - 16) / 8 + 4;
+		int sub = (bucket - 16) % 8;
+		long lower = (8L + sub) << (exponent - 3);
+		return lower + (1L << (exponent - 3)) - 1;
+	}
+
+	/**
+	 * Renvoie une photo de la rpartition, toutes copies confondues. Les valeurs enregistres
+	 * pendant la photo peuvent y tre ou non.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			for (int i = 0; i < BUCKETS; i++) {
+				long n = buckets.get(stripe * BUCKETS + i);
+				counts[i] += n;
+				count += n;
+			}
+		}
+		return new Snapshot(counts, count, sum.get());
+	}
+
+	@Override
+	public void writeText(String name, StringBuilder out) {
+		Snapshot snapshot = snapshot();
+		out.append("# TYPE ").append(name).append(" summary\n");
+		for (double q : QUANTILES) {
+			out.append(name).append("{quantile=\"").append(q).append("\"} ").append(snapshot.percentile(q)).append('\n');
+		}
+		out.append(name).append("_sum ").append(snapshot.getSum()).append('\n');
+		out.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+	}
+
+	/**
+	 * Une photo de la rpartition.
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+
+		private final long count;
+
+		private final long sum;
+
+		private Snapshot(long[] counts, long count, long sum) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+		}
+
+		/**
+		 * Le nombre de valeurs enregistres.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * La somme des valeurs enregistres.
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * La moyenne des valeurs, ou zro si aucune valeur n'a t enregistre.
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : sum / (double) count;
+		}
+
+		/**
+		 * Renvoie un percentile, arrondi  la plus grande valeur de son intervalle.
+		 *
+		 * @param quantile Entre 0 et 1, par exemple 0.99 pour le 99e percentile.
+		 * @return La valeur, ou zro si aucune valeur n'a t enregistre.
+		 */
+		public long percentile(double quantile) {
+			if (count == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) return upperBound(i);
+			}
+			return upperBound(counts.length - 1);
+		}
+
+		/**
+		 * La plus grande valeur enregistre, arrondie  la plus grande valeur de son intervalle.
+		 */
+		public long getMax() {
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] != 0) return upperBound(i);
+			}
+			return 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,16 @@
+package exia.ipc.server.metrics;
+
+/**
+ * Une mesure du serveur, qui sait s'crire dans le format texte de la page des mesures.
+ */
+public interface Metric {
+
+	/**
+	 * Ecrit la mesure, une ligne par valeur.
+	 *
+	 * @param name Le nom de la mesure.
+	 * @param out Le texte  complter.
+	 */
+	void writeText(String name, StringBuilder out);
+
+}
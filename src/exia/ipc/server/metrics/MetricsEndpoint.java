@@ -0,0 +1,128 @@
+package exia.ipc.server.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+
+import exia.ipc.server.LogWriter;
+
+/**
+ * Une page HTTP minimale qui renvoie les mesures au format texte, quelle que soit la requte.
+ * On la lit avec curl http://127.0.0.1:port/metrics, ou depuis un Prometheus local.
+ *
+ * Le socket n'coute que sur l'adresse locale : les mesures donnent les noms et les adresses
+ * des clients, elles ne sont pas faites pour sortir de la machine. Les requtes sont traites
+ * une par une dans ce thread, ce qui suffit pour une consultation de temps en temps.
+ */
+public class MetricsEndpoint extends Thread {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Les mesures publies.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Le port d'coute.
+	 */
+	private final int portNumber;
+
+	/**
+	 * Le socket d'coute.
+	 */
+	private ServerSocket serverSocket;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param metrics Les mesures  publier.
+	 * @param portNumber Le port d'coute, sur l'adresse locale.
+	 */
+	public MetricsEndpoint(ServerMetrics metrics, int portNumber) {
+		super("MetricsEndpoint");
+		setDaemon(true);
+		this.metrics = metrics;
+		this.portNumber = portNumber;
+	}
+
+	/**
+	 * Ouvre le socket, puis lance le thread.
+	 */
+	@Override
+	public synchronized void start() {
+		try {
+			serverSocket = new ServerSocket(portNumber, 50, InetAddress.getLoopbackAddress());
+			serverSocket.setSoTimeout(1000);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		super.start();
+		LogWriter.getInstance().writeLog("Mesures publies sur http://127.0.0.1:{}/metrics", serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Le port d'coute effectif, utile si on a demand le port 0.
+	 */
+	public int getLocalPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (!Thread.interrupted()) {
+			try (Socket socket = serverSocket.accept()) {
+				socket.setSoTimeout(1000);
+				answer(socket);
+			}
+			// Le SO_TIMEOUT a t atteint, ou le client n'a pas fini sa requte
+			catch (SocketTimeoutException e) {
+			}
+			catch (IOException e) {
+				// Le socket a t ferm par interrupt()
+				if (serverSocket.isClosed()) return;
+				LogWriter.getInstance().writeError("Mesures : {} : {}", e.getClass().getSimpleName(), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Lit les en-ttes de la requte, sans les interprter, et rpond avec les mesures.
+	 */
+	private void answer(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+		String line;
+		while ((line = in.readLine()) != null && !line.isEmpty()) {
+			// On ignore la requte : il n'y a qu'une page
+		}
+		byte[] body = metrics.writeText().getBytes(CHARSET);
+		String headers = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\nContent-Length: "
+				+ body.length + "\r\nConnection: close\r\n\r\n";
+		OutputStream out = socket.getOutputStream();
+		out.write(headers.getBytes(CHARSET));
+		out.write(body);
+		out.flush();
+	}
+
+	/**
+	 * Ferme le socket d'coute, ce qui arrte le thread.
+	 */
+	@Override
+	public void interrupt() {
+		super.interrupt();
+		try {
+			if (serverSocket != null) serverSocket.close();
+		}
+		catch (IOException e) {
+			// On ne peut rien faire de plus
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package exia.ipc.server.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Les mesures du serveur, vues depuis JMX. Chaque compteur et chaque valeur est un attribut en
+ * lecture seule ; chaque rpartition donne le nombre de valeurs, leur moyenne, quelques
+ * percentiles et le maximum, dans des attributs suffixs (_count, _mean, _p50...).
+ *
+ * La liste des attributs est relue  chaque demande : une mesure ajoute aprs la publication
+ * apparat aussi. On peut enfin demander toute la page texte avec l'opration scrape, et les
+ * compteurs de chaque client avec l'opration scrapeClients, mme s'ils ne sont pas dans la page.
+ */
+class MetricsMBean implements DynamicMBean {
+
+	/**
+	 * Les suffixes des attributs d'une rpartition.
+	 */
+	private static final String[] HISTOGRAM_SUFFIXES = { "_count", "_mean", "_p50", "_p99", "_p999", "_max" };
+
+	private final ServerMetrics metrics;
+
+	MetricsMBean(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Map<String, Metric> all = metrics.getMetrics();
+		Metric metric = all.get(attribute);
+		if (metric instanceof Counter) return ((Counter) metric).get();
+		if (metric instanceof Gauge) return ((Gauge) metric).get();
+
+		// Un attribut d'une rpartition
+		int suffix = attribute.lastIndexOf('_');
+		if (suffix > 0 && all.get(attribute.substring(0, suffix)) instanceof Histogram) {
+			Histogram.Snapshot snapshot = ((Histogram) all.get(attribute.substring(0, suffix))).snapshot();
+			switch (attribute.substring(suffix)) {
+			case "_count" : return snapshot.getCount();
+			case "_mean" : return snapshot.getMean();
+			case "_p50" : return snapshot.percentile(0.5);
+			case "_p99" : return snapshot.percentile(0.99);
+			case "_p999" : return snapshot.percentile(0.999);
+			case "_max" : return snapshot.getMax();
+			default : break;
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String name : attributes) {
+			try {
+				list.add(new Attribute(name, getAttribute(name)));
+			}
+			catch (AttributeNotFoundException e) {
+				// On ne renvoie que les attributs connus
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " est en lecture seule");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+		if ("scrape".equals(actionName)) return metrics.writeText();
+		if ("scrapeClients".equals(actionName)) return metrics.writeClientText();
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (Map.Entry<String, Metric> entry : metrics.getMetrics().entrySet()) {
+			String name = entry.getKey();
+			if (entry.getValue() instanceof Histogram) {
+				for (String suffix : HISTOGRAM_SUFFIXES) {
+					String type = "_mean".equals(suffix) ? "double" : "long";
+					attributes.add(new MBeanAttributeInfo(name + suffix, type, name + suffix, true, false, false));
+				}
+			}
+			else {
+				attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+			}
+		}
+		MBeanOperationInfo scrape = new MBeanOperationInfo("scrape", "Toutes les mesures, au format texte",
+				null, "java.lang.String", MBeanOperationInfo.INFO);
+		MBeanOperationInfo scrapeClients = new MBeanOperationInfo("scrapeClients", "Les compteurs de chaque client, au format texte",
+				null, "java.lang.String", MBeanOperationInfo.INFO);
+		return new MBeanInfo(getClass().getName(), "Mesures du serveur de chat",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[] { scrape, scrapeClients }, null);
+	}
+
+}
@@ -0,0 +1,307 @@
+package exia.ipc.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.LogWriter;
+
+/**
+ * Les mesures d'un serveur : des compteurs, des valeurs lues  la demande et des rpartitions
+ * de dures.
+ *
+ * Les compteurs les plus utiliss sont des champs, pour que le code mesur les incrmente sans
+ * chercher dans une table. Toutes les mesures sont aussi ranges par nom, dans l'ordre de leur
+ * enregistrement : c'est ce qu'on parcourt pour crire la page des mesures et pour les attributs
+ * JMX. Les compteurs de chaque client sont tenus par le client lui-mme, et lus  la consultation.
+ *
+ * Les compteurs des clients ne sont pas dans la page des mesures par dfaut : tiquets par nom
+ * et par adresse, ils creraient une srie par client dans Prometheus, et autant de sries
+ * abandonnes  chaque reconnexion. On les consulte dans JMX (opration scrapeClients), ou on
+ * les ajoute  la page avec setPerClientMetrics(true), pour un petit nombre de clients.
+ */
+public class ServerMetrics {
+
+	/**
+	 * Les connexions acceptes depuis le lancement.
+	 */
+	public final Counter connections = new Counter();
+
+	/**
+	 * Les dconnexions depuis le lancement.
+	 */
+	public final Counter disconnections = new Counter();
+
+	/**
+	 * Les lignes et les trames reues des clients.
+	 */
+	public final Counter messagesIn = new Counter();
+
+	/**
+	 * Les trames crites sur les sockets des clients.
+	 */
+	public final Counter messagesOut = new Counter();
+
+	/**
+	 * Les octets reus des clients.
+	 */
+	public final Counter bytesIn = new Counter();
+
+	/**
+	 * Les octets crits sur les sockets des clients.
+	 */
+	public final Counter bytesOut = new Counter();
+
+	/**
+	 * Les lignes et les trames invalides reues des clients.
+	 */
+	public final Counter parseErrors = new Counter();
+
+	/**
+	 * Les clients dgrads car trop lents : ils ne recevaient plus que les connexions et
+	 * dconnexions.
+	 */
+	public final Counter slowConsumersDegraded = new Counter();
+
+	/**
+	 * Les clients dconnects car trop lents.
+	 */
+	public final Counter slowConsumersEvicted = new Counter();
+
+	/**
+	 * Les messages refuss car leur client en envoyait trop.
+	 */
+	public final Counter rateLimited = new Counter();
+
+	/**
+	 * Les clients dconnects car silencieux trop longtemps, mme aprs un PING.
+	 */
+	public final Counter idleEvicted = new Counter();
+
+	/**
+	 * Les connexions acceptes par le socket serveur, admises ou non.
+	 */
+	public final Counter accepted = new Counter();
+
+	/**
+	 * Les connexions refuses car le serveur avait atteint son nombre maximal de connexions.
+	 */
+	public final Counter rejectedFull = new Counter();
+
+	/**
+	 * Les connexions refuses car leur adresse avait atteint son nombre maximal de connexions.
+	 */
+	public final Counter rejectedAddress = new Counter();
+
+	/**
+	 * Les connexions refuses car elles arrivaient trop vite.
+	 */
+	public final Counter rejectedRate = new Counter();
+
+	/**
+	 * La dure d'un broadcast : l'encodage et le dpt de la trame dans la file de chaque
+	 * destinataire.
+	 */
+	public final Histogram broadcastNanos = new Histogram();
+
+	/**
+	 * La dure d'une criture sur le socket d'un client.
+	 */
+	public final Histogram writeNanos = new Histogram();
+
+	/**
+	 * Le serveur mesur, pour les compteurs de ses clients.
+	 */
+	private final ChatServer server;
+
+	/**
+	 * Les mesures, par nom, dans l'ordre de leur enregistrement.
+	 */
+	private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+	/**
+	 * Les compteurs des clients sont ajouts  la page des mesures.
+	 */
+	private volatile boolean perClientMetrics = false;
+
+	/**
+	 * Le nom de l'objet JMX, ou NULL s'il n'est pas enregistr.
+	 */
+	private ObjectName objectName;
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param server Le serveur mesur.
+	 */
+	public ServerMetrics(ChatServer server) {
+		this.server = server;
+		register("chat_connections_total", connections);
+		register("chat_disconnections_total", disconnections);
+		register("chat_messages_in_total", messagesIn);
+		register("chat_messages_out_total", messagesOut);
+		register("chat_bytes_in_total", bytesIn);
+		register("chat_bytes_out_total", bytesOut);
+		register("chat_parse_errors_total", parseErrors);
+		register("chat_slow_consumers_degraded_total", slowConsumersDegraded);
+		register("chat_slow_consumers_evicted_total", slowConsumersEvicted);
+		register("chat_rate_limited_total", rateLimited);
+		register("chat_idle_evicted_total", idleEvicted);
+		register("chat_accepted_total", accepted);
+		register("chat_rejected_full_total", rejectedFull);
+		register("chat_rejected_address_total", rejectedAddress);
+		register("chat_rejected_rate_total", rejectedRate);
+		register("chat_broadcast_nanos", broadcastNanos);
+		register("chat_write_nanos", writeNanos);
+	}
+
+	/**
+	 * Ajoute une mesure. Une mesure du mme nom est remplace.
+	 *
+	 * @param name Le nom de la mesure, en minuscules et sans espace.
+	 * @param metric La mesure.
+	 */
+	public synchronized void register(String name, Metric metric) {
+		metrics.put(name, metric);
+	}
+
+	/**
+	 * Renvoie une copie des mesures, par nom.
+	 */
+	public synchronized Map<String, Metric> getMetrics() {
+		return new LinkedHashMap<>(metrics);
+	}
+
+	/**
+	 * Ajoute ou retire les compteurs de chaque client de la page des mesures. Dsactiv par
+	 * dfaut : une srie par client ne convient qu' un petit nombre de clients.
+	 */
+	public void setPerClientMetrics(boolean perClientMetrics) {
+		this.perClientMetrics = perClientMetrics;
+	}
+
+	public boolean isPerClientMetrics() {
+		return perClientMetrics;
+	}
+
+	/**
+	 * Ecrit toutes les mesures, au format texte lu par Prometheus : une ligne par valeur,
+	 * prcde de son type. Les compteurs de chaque client connect suivent, s'ils ont t
+	 * demands avec setPerClientMetrics(true).
+	 */
+	public String writeText() {
+		StringBuilder out = new StringBuilder(4096);
+		for (Map.Entry<String, Metric> entry : getMetrics().entrySet()) {
+			entry.getValue().writeText(entry.getKey(), out);
+		}
+		if (perClientMetrics) writeClients(out);
+		return out.toString();
+	}
+
+	/**
+	 * Ecrit les compteurs de chaque client connect, au mme format, qu'ils soient dans la page
+	 * des mesures ou non.
+	 */
+	public String writeClientText() {
+		StringBuilder out = new StringBuilder(4096);
+		writeClients(out);
+		return out.toString();
+	}
+
+	/**
+	 * Ecrit les compteurs des clients, un bloc par compteur.
+	 */
+	private void writeClients(StringBuilder out) {
+		if (server == null) return;
+		Iterable<ClientSocketThread> clients = server.getClients();
+		out.append("# TYPE chat_client_messages_in counter\n");
+		for (ClientSocketThread client : clients) {
+			client(out, "chat_client_messages_in", client).append(client.getMessagesIn()).append('\n');
+		}
+		out.append("# TYPE chat_client_messages_out counter\n");
+		for (ClientSocketThread client : clients) {
+			client(out, "chat_client_messages_out", client).append(client.getMessagesOut()).append('\n');
+		}
+		out.append("# TYPE chat_client_bytes_in counter\n");
+		for (ClientSocketThread client : clients) {
+			client(out, "chat_client_bytes_in", client).append(client.getBytesIn()).append('\n');
+		}
+		out.append("# TYPE chat_client_bytes_out counter\n");
+		for (ClientSocketThread client : clients) {
+			client(out, "chat_client_bytes_out", client).append(client.getBytesOut()).append('\n');
+		}
+		out.append("# TYPE chat_client_parse_errors counter\n");
+		for (ClientSocketThread client : clients) {
+			client(out, "chat_client_parse_errors", client).append(client.getParseErrors()).append('\n');
+		}
+		out.append("# TYPE chat_client_rate_limited counter\n");
+		for (ClientSocketThread client : clients) {
+			client(out, "chat_client_rate_limited", client).append(client.getRateLimited()).append('\n');
+		}
+		out.append("# TYPE chat_client_queued_bytes gauge\n");
+		for (ClientSocketThread client : clients) {
+			client(out, "chat_client_queued_bytes", client).append(client.getOutboundQueue().getQueuedBytes()).append('\n');
+		}
+	}
+
+	/**
+	 * Le dbut de la ligne d'un client : le nom de la mesure et les tiquettes du client.
+	 */
+	private static StringBuilder client(StringBuilder out, String name, ClientSocketThread client) {
+		out.append(name).append("{user=\"");
+		escape(out, client.getUserName());
+		out.append("\",address=\"").append(client.getAddress()).append("\"} ");
+		return out;
+	}
+
+	/**
+	 * Ecrit la valeur d'une tiquette, en chappant les caractres qui la couperaient.
+	 */
+	private static void escape(StringBuilder out, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') out.append('\\').append(c);
+			else if (c == '\n') out.append("\\n");
+			else out.append(c);
+		}
+	}
+
+	/**
+	 * Publie les mesures dans JMX, sous le nom donn. On les consulte par exemple avec jconsole.
+	 *
+	 * @param name Le nom de l'objet, par exemple exia.ipc:type=ChatServer,port=500.
+	 */
+	public synchronized void registerMBean(String name) {
+		try {
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (mbeans.isRegistered(objectName)) mbeans.unregisterMBean(objectName);
+			mbeans.registerMBean(new MetricsMBean(this), objectName);
+			this.objectName = objectName;
+		}
+		catch (JMException e) {
+			LogWriter.getInstance().writeError("Impossible de publier les mesures dans JMX : {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Retire les mesures de JMX, si elles y ont t publies.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (JMException e) {
+			// Elles ont dj t retires
+		}
+		objectName = null;
+	}
+
+}
@@ -0,0 +1,331 @@
+package exia.ipc.server.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.Frame;
+import exia.ipc.server.LogWriter;
+import exia.ipc.server.OutboundQueue;
+import exia.ipc.server.events.IClientThreadObserver;
+import exia.ipc.server.protocol.BinaryServerProtocol;
+import exia.ipc.server.protocol.ChatServerProtocol;
+import exia.ipc.server.protocol.IServerProtocol;
+
+/**
+ * Une connexion client en mode non bloquant.
+ *
+ * Contrairement  BlockingClientSocket, aucun thread n'est ddi  ce client : c'est la
+ * NioEventLoop qui appelle handleRead() et flush() quand le socket est prt. Le dcoupage
+ * en lignes est donc fait ici,  la place du BufferedReader.
+ */
+public class NioClientSocket extends ClientSocketThread {
+
+	/**
+	 * Taille initiale du buffer de lecture.
+	 */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * L'encodage des lignes, identique  celui des flux du mode bloquant.
+	 */
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * Le socket connect au client.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * L'enregistrement du socket auprs du slecteur.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * La boucle d'vnements qui gre ce client.
+	 */
+	private final NioEventLoop loop;
+
+	/**
+	 * Les donnes reues qui n'ont pas encore form une ligne complte.
+	 */
+	private ByteBuffer readBuffer;
+
+	/**
+	 * La trame en cours d'criture, que le socket n'a pas pu accepter en entier.
+	 */
+	private Frame pendingFrame;
+
+	/**
+	 * La vue sur la trame en cours d'criture, avec la position atteinte.
+	 */
+	private ByteBuffer pending;
+
+	/**
+	 * Le client attend dj dans la file des critures de sa boucle : les trames suivantes
+	 * seront crites avec lui, sans nouvelle demande ni nouveau rveil.
+	 */
+	final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param channel Le socket connect au client, en mode non bloquant.
+	 * @param loop La boucle d'vnements qui gre ce client.
+	 * @param observer L'observer, qui sera notifi des vnements du socket.
+	 * @param protocol Le protocole du serveur, qui choisira celui du client.
+	 * @param outQueue La file des messages en attente d'envoi.
+	 */
+	public NioClientSocket(SocketChannel channel, NioEventLoop loop, IClientThreadObserver observer, IServerProtocol protocol,
+			OutboundQueue outQueue) {
+		super(channel.socket().getInetAddress().getHostAddress(), observer, protocol, outQueue);
+		this.channel = channel;
+		this.loop = loop;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Appel par la boucle quand des donnes sont disponibles.
+	 */
+	void handleRead() {
+
+		// On lit ce qui est disponible, sans bloquer
+		int count;
+		try {
+			count = channel.read(readBuffer);
+		}
+		catch (IOException e) {
+			LogWriter.getInstance().writeWarning("{} while reading socket {} : {}",
+					e.getClass().getSimpleName(), this, e.getMessage());
+			count = -1;
+		}
+
+		// Le client a ferm sa connexion
+		if (count < 0) {
+			disconnect();
+			return;
+		}
+		recordBytesIn(count);
+
+		readBuffer.flip();
+
+		// Le premier octet indique le protocole choisi par le client
+		if (getProtocol() == null && readBuffer.hasRemaining()) {
+			negotiate(readBuffer.get(readBuffer.position()) & 0xFF);
+			// L'octet d'annonce du protocole binaire ne fait pas partie des trames
+			if (getProtocol() instanceof BinaryServerProtocol) {
+				readBuffer.get();
+			}
+			if (channel == null) return;
+		}
+
+		// On dcoupe les lignes ou les trames compltes
+		int start = getProtocol() instanceof BinaryServerProtocol ? splitFrames() : splitLines();
+		if (start < 0) return;
+
+		// On garde le dbut de la ligne suivante
+		readBuffer.position(start);
+		readBuffer.compact();
+
+		// Le buffer est plein sans qu'on ait trouv de fin de ligne
+		if (!readBuffer.hasRemaining()) {
+			if (readBuffer.capacity() >= ChatServerProtocol.MAX_LINE_LENGTH) {
+				recordParseError();
+				LogWriter.getInstance().writeWarning("Ligne trop longue envoye par {}", this);
+				disconnect();
+				return;
+			}
+			ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+
+	}
+
+	/**
+	 * Traite les lignes compltes du buffer de lecture.
+	 *
+	 * @return La position du dbut de la ligne suivante, ou -1 si la connexion a t ferme.
+	 */
+	private int splitLines() {
+		int start = readBuffer.position();
+		for (int i = start; i < readBuffer.limit(); i++) {
+			if (readBuffer.get(i) != '\n') continue;
+			int end = i;
+			if (end > start && readBuffer.get(end - 1) == '\r') end--;
+			String inputLine = new String(readBuffer.array(), start, end - start, CHARSET);
+			start = i + 1;
+			processLine(inputLine);
+			// Le traitement a pu fermer la connexion
+			if (channel == null) return -1;
+		}
+		return start;
+	}
+
+	/**
+	 * Traite les trames compltes du buffer de lecture. La longueur en tte de chaque trame
+	 * indique directement o elle se termine : on ne parcourt pas ses octets.
+	 *
+	 * @return La position du dbut de la trame suivante, ou -1 si la connexion a t ferme.
+	 */
+	private int splitFrames() {
+		int start = readBuffer.position();
+		while (readBuffer.limit() - start >= 4) {
+			int length = readBuffer.getInt(start);
+			if (length < 0 || length > BinaryServerProtocol.MAX_FRAME_LENGTH) {
+				recordParseError();
+				LogWriter.getInstance().writeWarning("Trame trop longue envoye par {}", this);
+				disconnect();
+				return -1;
+			}
+			// La trame n'est pas encore arrive en entier
+			if (readBuffer.limit() - start - 4 < length) break;
+			processFrame(readBuffer.array(), start + 4, length);
+			start += 4 + length;
+			// Le traitement a pu fermer la connexion
+			if (channel == null) return -1;
+		}
+		return start;
+	}
+
+	/**
+	 * Met les donnes en file d'attente. Elles seront crites par la boucle ds que le
+	 * socket sera prt, sans jamais bloquer l'appelant.
+	 */
+	@Override
+	public void write(Frame frame) {
+		if (channel == null || isEvicted()) return;
+		// La file est pleine, et la politique demande de couper le client
+		if (!outQueue.offer(frame.retain())) {
+			LogWriter.getInstance().writeWarning("File d'envoi pleine, dconnexion de {}", this);
+			abort();
+			return;
+		}
+		// Le client est trop en retard : il vient d'tre dconnect
+		if (checkLag()) return;
+		loop.requestWrite(this);
+	}
+
+	/**
+	 * La raison de la dconnexion est crite par la boucle, comme les autres trames : flush()
+	 * ferme le socket une fois la file vide, ou ds que le client ne lit plus.
+	 */
+	@Override
+	protected void sendReasonAndClose() {
+		loop.requestWrite(this);
+	}
+
+	/**
+	 * Ecrit autant de donnes en attente que possible. Doit tre appel dans le thread
+	 * de la boucle.
+	 */
+	void flush() {
+
+		if (channel == null) return;
+
+		try {
+			while (true) {
+				// On prend la trame suivante dans la file
+				if (pending == null) {
+					pendingFrame = outQueue.poll();
+					if (pendingFrame == null) break;
+					pending = pendingFrame.duplicate();
+				}
+				long start = System.nanoTime();
+				channel.write(pending);
+				recordWrite(System.nanoTime() - start);
+				// Le buffer d'envoi du socket est plein : on attendra qu'il soit 
+				// nouveau prt pour continuer
+				if (pending.hasRemaining()) {
+					// Un client en cours de dconnexion n'aura pas de seconde chance
+					if (isEvicted()) abort();
+					else key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				recordFrameOut(pendingFrame.length());
+				pending = null;
+				pendingFrame.release();
+				pendingFrame = null;
+			}
+			// Tout a t crit
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			onDrained();
+		}
+		catch (IOException e) {
+			LogWriter.getInstance().writeWarning("{} while writing socket {} : {}",
+					e.getClass().getSimpleName(), this, e.getMessage());
+			abort();
+		}
+
+	}
+
+	/**
+	 * Le client est parti : on prvient l'observer et on libre les ressources.
+	 */
+	private void disconnect() {
+		if (channel != null) {
+			notifyClientDisconnected(this);
+		}
+	}
+
+	/**
+	 * La dconnexion est toujours diffre au prochain tour de la boucle : on peut tre
+	 * appel en plein broadcast, pendant le parcours de la liste des clients.
+	 */
+	@Override
+	protected void abort() {
+		loop.execute(new Runnable() {
+			public void run() {
+				disconnect();
+			}
+		});
+	}
+
+	/**
+	 * Le socket n'est ferm que dans le thread de la boucle : ferm depuis un autre thread, il
+	 * pourrait l'tre en plein flush(), qui librerait alors une seconde fois la trame en cours
+	 * d'criture.
+	 */
+	@Override
+	public void interrupt() {
+		if (loop.inLoop()) {
+			close();
+			return;
+		}
+		//loop.execute(() -> close());
+		loop.execute(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	@Override
+	protected void close() {
+		if (channel != null) loop.onClientClosed();
+		try {
+			if (key != null) key.cancel();
+			if (channel != null) channel.close();
+		}
+		catch (IOException ex) { }
+		finally {
+			channel = null;
+			key = null;
+			pending = null;
+			if (pendingFrame != null) pendingFrame.release();
+			pendingFrame = null;
+			outQueue.clear();
+			cancelIdleTimeout();
+		}
+	}
+
+}
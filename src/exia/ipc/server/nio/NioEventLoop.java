@@ -0,0 +1,384 @@
+package exia.ipc.server.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exia.ipc.server.ChatServer;
+import exia.ipc.server.LogWriter;
+import exia.ipc.server.protocol.IServerProtocol;
+
+/**
+ * Boucle d'vnements non bloquante (design pattern Reactor).
+ *
+ * Un seul thread surveille, avec un Selector, le socket serveur et tous les sockets des
+ * clients. Il n'est rveill que lorsqu'une connexion est prte  tre accepte, lue ou
+ * crite : on peut donc servir des milliers de clients sans leur ddier un thread chacun.
+ *
+ * En mode MULTI_REACTOR, le serveur lance une boucle par coeur : aucune ne surveille le socket
+ * serveur, et chacune reoit les connexions qui lui sont confies par register(). Une boucle est
+ * seule  lire et  crire les sockets de ses clients.
+ */
+public class NioEventLoop implements Runnable {
+
+	/**
+	 * Les boucles  rveiller  la fin de la diffusion en cours, pour chaque thread.
+	 */
+	private static final ThreadLocal<WakeupBatch> BATCH = new ThreadLocal<WakeupBatch>() {
+		@Override
+		protected WakeupBatch initialValue() {
+			return new WakeupBatch();
+		}
+	};
+
+	/**
+	 * Les boucles qu'un thread a besoin de rveiller pendant une diffusion. Il y a au plus une
+	 * boucle par coeur : un simple tableau suffit.
+	 */
+	private static class WakeupBatch {
+
+		/**
+		 * Le nombre de diffusions imbriques en cours. Zro quand on rveille tout de suite.
+		 */
+		private int depth;
+
+		private NioEventLoop[] loops = new NioEventLoop[8];
+
+		private int count;
+
+	}
+
+	/**
+	 * Le slecteur qui surveille tous les sockets.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Le socket serveur, en mode non bloquant, ou NULL si les connexions sont acceptes
+	 * par un autre thread.
+	 */
+	private final ServerSocketChannel serverChannel;
+
+	/**
+	 * Le serveur, qui est aussi l'observateur des clients.
+	 */
+	private final ChatServer server;
+
+	/**
+	 * Le protocole de communication.
+	 */
+	private final IServerProtocol protocol;
+
+	/**
+	 * Les clients qui ont des donnes  crire, signals depuis un autre thread que
+	 * celui de la boucle.
+	 */
+	private final Queue<NioClientSocket> writeRequests;
+
+	/**
+	 * Les tches  excuter au prochain tour de la boucle.
+	 */
+	private final Queue<Runnable> tasks;
+
+	/**
+	 * Le thread qui excute la boucle.
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * Le nombre de clients confis  cette boucle, pour rpartir les nouvelles connexions.
+	 */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/**
+	 * Constructeur.
+	 *
+	 * @param server Le serveur, observateur des clients.
+	 * @param protocol Le protocole de communication.
+	 * @param serverChannel Le socket serveur, dj attach  son port, ou NULL si les connexions
+	 * sont acceptes ailleurs et confies  la boucle par register().
+	 * @throws IOException Erreur d'ouverture du slecteur.
+	 */
+	public NioEventLoop(ChatServer server, IServerProtocol protocol, ServerSocketChannel serverChannel) throws IOException {
+		this.server = server;
+		this.protocol = protocol;
+		this.serverChannel = serverChannel;
+		this.writeRequests = new ConcurrentLinkedQueue<>();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.selector = Selector.open();
+
+		// On surveille l'arrive de nouvelles connexions
+		if (serverChannel != null) {
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	/**
+	 * Execution de la boucle, jusqu' l'interruption du thread.
+	 */
+	@Override
+	public void run() {
+
+		thread = Thread.currentThread();
+
+		try {
+			while (!thread.isInterrupted() && selector.isOpen()) {
+
+				// On attend qu'au moins un socket soit prt. L'interruption du thread
+				// ou un appel  wakeup() dbloque aussi cette attente.
+				selector.select();
+
+				// On traite les critures demandes par les autres threads
+				NioClientSocket pending;
+				while ((pending = writeRequests.poll()) != null) {
+					// Une trame mise en file aprs ce point redemandera l'criture
+					pending.writeScheduled.set(false);
+					pending.flush();
+				}
+
+				// On excute les tches diffres
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				// On traite les sockets prts
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						NioClientSocket client = (NioClientSocket) key.attachment();
+						if (key.isReadable()) {
+							client.handleRead();
+						}
+						// La lecture a pu provoquer une dconnexion
+						if (key.isValid() && key.isWritable()) {
+							client.flush();
+						}
+					}
+					// Le client a t ferm entre temps : on ne fait rien de spcial
+					catch (CancelledKeyException e) {
+					}
+				}
+
+			}
+		}
+		catch (IOException e) {
+			LogWriter.getInstance().writeError("select() throws {} : {}", e.getClass().getSimpleName(), e.getMessage());
+		}
+		finally {
+			close();
+		}
+
+	}
+
+	/**
+	 * Accepter une nouvelle connexion.
+	 */
+	private void accept() {
+
+		SocketChannel channel;
+
+		try {
+			// On a un client. Il est possible qu'un autre thread l'ait dj pris.
+			channel = serverChannel.accept();
+			if (channel == null) return;
+		}
+		catch (IOException e) {
+			LogWriter.getInstance().writeError("accept() throws {} : {}", e.getClass().getSimpleName(), e.getMessage());
+			return;
+		}
+
+		// Une connexion refuse est dj ferme
+		if (!server.admit(channel)) return;
+		connections.incrementAndGet();
+		open(channel);
+
+	}
+
+	/**
+	 * Confie  cette boucle un client accept par un autre thread. L'enregistrement auprs du
+	 * slecteur est fait par la boucle elle-mme, au prochain tour : register() sur un slecteur
+	 * bloqu dans select() attendrait la fin de l'attente.
+	 *
+	 * @param channel Le socket connect au client.
+	 */
+	public void register(final SocketChannel channel) {
+		connections.incrementAndGet();
+		//execute(() -> open(channel));
+		execute(new Runnable() {
+			public void run() {
+				open(channel);
+			}
+		});
+	}
+
+	/**
+	 * Enregistre un client auprs du slecteur et le dclare au serveur. Doit tre appel dans
+	 * le thread de la boucle.
+	 */
+	private void open(SocketChannel channel) {
+
+		try {
+
+			// On le passe en mode non bloquant et on surveille ses donnes entrantes
+			channel.configureBlocking(false);
+			NioClientSocket client = new NioClientSocket(channel, this, server, protocol, server.createOutboundQueue());
+			client.setKey(channel.register(selector, SelectionKey.OP_READ, client));
+
+			// On le dclare au serveur
+			server.addClient(client);
+
+		}
+		catch (IOException e) {
+			LogWriter.getInstance().writeError("register() throws {} : {}", e.getClass().getSimpleName(), e.getMessage());
+			connections.decrementAndGet();
+			server.releaseAdmission(channel.socket().getInetAddress().getHostAddress());
+			try {
+				channel.close();
+			}
+			catch (IOException e1) {
+				// On ne peut rien faire de plus
+			}
+		}
+
+	}
+
+	/**
+	 * Quand un client de cette boucle est ferm.
+	 */
+	void onClientClosed() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Renvoie le nombre de clients confis  cette boucle.
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * Demande l'criture des donnes en attente d'un client.
+	 * Si on est dj dans le thread de la boucle, l'criture est immdiate. Sinon, elle
+	 * sera faite par la boucle au prochain tour : le client n'est mis qu'une fois dans la file
+	 * des critures, quel que soit le nombre de trames reues d'ici l.
+	 *
+	 * @param client Le client qui a des donnes  crire.
+	 */
+	void requestWrite(NioClientSocket client) {
+		if (inLoop()) {
+			client.flush();
+		}
+		else if (client.writeScheduled.compareAndSet(false, true)) {
+			writeRequests.add(client);
+			wakeup();
+		}
+	}
+
+	/**
+	 * Indique si l'appelant est le thread de la boucle.
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Excute une tche dans le thread de la boucle, au prochain tour.
+	 *
+	 * @param task La tche  excuter.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		wakeup();
+	}
+
+	/**
+	 * Rveille la boucle, ou la note pour la fin de la diffusion en cours du thread appelant.
+	 */
+	private void wakeup() {
+		WakeupBatch batch = BATCH.get();
+		if (batch.depth == 0) {
+			selector.wakeup();
+			return;
+		}
+		for (int i = 0; i < batch.count; i++) {
+			if (batch.loops[i] == this) return;
+		}
+		if (batch.count == batch.loops.length) {
+			batch.loops = Arrays.copyOf(batch.loops, batch.count * 2);
+		}
+		batch.loops[batch.count++] = this;
+	}
+
+	/**
+	 * Commence une diffusion : jusqu' endBatch(), chaque boucle  rveiller par ce thread ne
+	 * l'est qu'une seule fois,  la fin, au lieu d'une fois par destinataire. Les diffusions
+	 * peuvent s'imbriquer.
+	 */
+	public static void beginBatch() {
+		BATCH.get().depth++;
+	}
+
+	/**
+	 * Termine une diffusion commence par beginBatch(), et rveille les boucles concernes.
+	 */
+	public static void endBatch() {
+		WakeupBatch batch = BATCH.get();
+		if (--batch.depth > 0) return;
+		for (int i = 0; i < batch.count; i++) {
+			batch.loops[i].selector.wakeup();
+			batch.loops[i] = null;
+		}
+		batch.count = 0;
+	}
+
+	/**
+	 * Arrte la boucle. Si elle ne tourne pas, on ferme directement le slecteur.
+	 */
+	public void shutdown() {
+		Thread current = thread;
+		if (current != null) {
+			current.interrupt();
+		}
+		else {
+			close();
+		}
+	}
+
+	/**
+	 * Ferme le slecteur et tous les sockets encore enregistrs. Appel par le thread de la
+	 * boucle quand elle s'arrte, ou directement si elle n'a jamais tourn : les clients sont
+	 * donc ferms par le seul thread qui les crit.
+	 */
+	public void close() {
+		if (!selector.isOpen()) return;
+		try {
+			for (SelectionKey key : selector.keys()) {
+				Object client = key.attachment();
+				if (client instanceof NioClientSocket) ((NioClientSocket) client).close();
+				else key.channel().close();
+			}
+			selector.close();
+		}
+		catch (IOException e) {
+			// En cas d'erreur on ne fait rien de spcial
+		}
+	}
+
+}
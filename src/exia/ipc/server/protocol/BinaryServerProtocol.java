@@ -0,0 +1,373 @@
+package exia.ipc.server.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import exia.ipc.server.BufferPool;
+import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.Frame;
+import exia.ipc.server.LogWriter;
+import exia.ipc.server.ServerEvent;
+
+/**
+ * Le protocole binaire : des trames prfixes par leur longueur, avec des champs typs.
+ *
+ * Le client l'annonce en envoyant l'octet MAGIC juste avant sa trame HELLO, et le serveur confirme
+ * en commenant sa rponse par le mme octet. Une ligne du protocole texte commence toujours par
+ * une commande en ASCII : les deux protocoles cohabitent donc sur le mme port.
+ *
+ * Une connexion refuse par l'AdmissionControl ne reoit pas l'octet MAGIC : le serveur ne sait
+ * pas encore quel protocole elle parle, il lui crit la ligne de texte "ERROR raison" et ferme le
+ * socket. Le client binaire reconnat cette ligne  son premier octet, 'E', qui ne peut pas tre
+ * MAGIC.
+ *
+ * Une trame a la forme suivante (entiers en big-endian, textes en UTF-8) :
+ *
+ *   longueur:int32 type:uint8 champs...
+ *
+ * La longueur compte les octets qui la suivent. Les textes sont prfixs par leur longueur
+ * (uint16), sauf le dernier champ d'une trame, qui occupe tout le reste : il n'a pas de limite
+ * de taille et peut contenir des retours  la ligne.
+ *
+ *   HELLO          (client) nom
+ *   MSG            (client) message
+ *   JOIN           (client) salon
+ *   LEAVE          (client) salon
+ *   ROOM_MSG       (client) salon:str16 message
+ *   DM             (client) destinataire:str16 message
+ *   MESSAGE        (serveur) nom:str16 adresse:str16 date:int64 message
+ *   CONNECTED      (serveur) nom:str16 adresse
+ *   DISCONNECTED   (serveur) nom:str16 adresse
+ *   ROSTER         (serveur) page:uint16 pages:uint16 nombre:uint16 (nom:str16 adresse:str16)...
+ *   PRESENCE       (serveur) nombre:uint16 (type:uint8 nom:str16 adresse:str16)...
+ *                  le type de chaque changement est CONNECTED ou DISCONNECTED
+ *   ROOM_MESSAGE   (serveur) nom:str16 adresse:str16 date:int64 salon:str16 message
+ *   DIRECT_MESSAGE (serveur) nom:str16 adresse:str16 date:int64 message
+ *   JOINED         (serveur) nom:str16 adresse:str16 salon
+ *   LEFT           (serveur) nom:str16 adresse:str16 salon
+ *   LINE           (serveur) une ligne du protocole texte, pour les vnements sans trame ddie
+ *   PING           (les deux) battement de coeur, sans champ : le destinataire rpond PONG
+ *   PONG           (les deux) rponse  un PING, sans champ
+ *   ERROR          (serveur) raison, une erreur qui ne concerne que le destinataire
+ */
+public class BinaryServerProtocol extends ChatServerProtocol {
+
+	/**
+	 * L'octet qui annonce le protocole binaire, dans les deux sens.
+	 */
+	public static final int MAGIC = 0xB1;
+
+	/**
+	 * Taille maximale d'une trame, pour qu'une trame et sa longueur tiennent dans 64 Ko.
+	 */
+	public static final int MAX_FRAME_LENGTH = 65536 - 4;
+
+	// Les types de trames
+	public static final int HELLO = 1;
+	public static final int MSG = 2;
+	public static final int MESSAGE = 3;
+	public static final int CONNECTED = 4;
+	public static final int DISCONNECTED = 5;
+	public static final int LINE = 6;
+	public static final int ROSTER = 7;
+	public static final int PRESENCE = 8;
+	public static final int JOIN = 9;
+	public static final int LEAVE = 10;
+	public static final int ROOM_MSG = 11;
+	public static final int ROOM_MESSAGE = 12;
+	public static final int JOINED = 13;
+	public static final int LEFT = 14;
+	public static final int DM = 15;
+	public static final int DIRECT_MESSAGE = 16;
+	public static final int ERROR = 17;
+	public static final int PING = 18;
+	public static final int PONG = 19;
+
+	/**
+	 * Le nombre maximal de caractres d'un champ prfix par sa longueur : en UTF-8, un caractre
+	 * Java prend au plus 3 octets, et la longueur doit tenir sur 16 bits.
+	 */
+	private static final int MAX_FIELD_CHARS = 0xFFFF / 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Un encodeur par thread, car ils ne sont pas thread-safe.
+	 */
+	private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>() {
+		@Override
+		protected CharsetEncoder initialValue() {
+			return UTF8.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	/**
+	 * Le client a dj choisi ce protocole.
+	 */
+	@Override
+	public IServerProtocol negotiate(int firstByte) {
+		return this;
+	}
+
+	/**
+	 * Un client binaire n'envoie pas de lignes.
+	 */
+	@Override
+	public String processClientInput(ClientSocketThread client, String inputLine) {
+		client.recordParseError();
+		LogWriter.getInstance().writeWarning("Ligne reue d'un client binaire {}", client);
+		return null;
+	}
+
+	/**
+	 * Quand un client envoie une trame.
+	 *
+	 * @param client Le client.
+	 * @param frame Le tableau qui contient la trame.
+	 * @param offset La position du type, juste aprs la longueur.
+	 * @param length La longueur de la trame.
+	 */
+	public void processClientFrame(ClientSocketThread client, byte[] frame, int offset, int length) {
+
+		// Trame vide
+		if (length < 1) {
+			client.recordParseError();
+			LogWriter.getInstance().writeWarning("Trame vide envoye par {}", client);
+			return;
+		}
+
+		// Le type, puis un seul champ de texte qui occupe le reste de la trame
+		int type = frame[offset] & 0xFF;
+		
+		// Le client envoie trop de messages : on refuse celui-ci sans le dcoder
+		if ((type == MSG || type == ROOM_MSG || type == DM) && !client.acquireMessage()) return;
+		
+		// Les battements de coeur n'ont pas de champ : la trame reue compte dj comme une activit
+		if (type == PONG) return;
+		if (type == PING) {
+			client.write(ServerEvent.PONG);
+			return;
+		}
+		
+		String value = new String(frame, offset + 1, length - 1, UTF8);
+
+		switch (type) {
+
+		// Le client donne son nom, en dbut de communication
+		case HELLO :
+			value = value.trim();
+			if (value.isEmpty()) {
+				client.recordParseError();
+				LogWriter.getInstance().writeWarning("Nom vide envoy par {}", client);
+				return;
+			}
+			hello(client, value);
+			break;
+
+		// Le client envoie un message
+		case MSG :
+			client.notifyMessageReceived(client, value);
+			break;
+
+		// Le client entre dans un salon, ou le quitte
+		case JOIN :
+			join(client, value.trim());
+			break;
+		case LEAVE :
+			leave(client, value.trim());
+			break;
+
+		// Le client envoie un message dans un salon, ou un message priv : le salon ou le
+		// destinataire est prfix par sa longueur
+		case ROOM_MSG :
+		case DM :
+			int targetLength = length < 3 ? -1 : (frame[offset + 1] & 0xFF) << 8 | (frame[offset + 2] & 0xFF);
+			if (targetLength < 0 || 3 + targetLength > length) {
+				client.recordParseError();
+				LogWriter.getInstance().writeWarning("Trame de type {} invalide envoye par {}", type, client);
+				return;
+			}
+			String target = new String(frame, offset + 3, targetLength, UTF8);
+			String message = new String(frame, offset + 3 + targetLength, length - 3 - targetLength, UTF8);
+			if (type == ROOM_MSG) {
+				roomMessage(client, target, message);
+			}
+			else {
+				client.notifyDirectMessageReceived(client, target, message);
+			}
+			break;
+
+		default :
+			client.recordParseError();
+			LogWriter.getInstance().writeWarning("Trame invalide de type {} envoye par {}", type, client);
+			break;
+
+		}
+
+	}
+
+	@Override
+	public Frame encode(ServerEvent event) {
+		switch (event.getType()) {
+		case WELCOME :
+			byte[] welcome = BufferPool.acquire(1);
+			welcome[0] = (byte) MAGIC;
+			return Frame.wrap(welcome, 1);
+		case MESSAGE :
+			return encode(MESSAGE, event.getUser(), event.getAddress(), event.getTimestamp(), null, event.getText());
+		case CONNECTED :
+			return encode(CONNECTED, event.getUser(), null, -1, null, event.getAddress());
+		case DISCONNECTED :
+			return encode(DISCONNECTED, event.getUser(), null, -1, null, event.getAddress());
+		case DIRECT_MESSAGE :
+			return encode(DIRECT_MESSAGE, event.getUser(), event.getAddress(), event.getTimestamp(), null, event.getText());
+		case ROOM_MESSAGE :
+			return encode(ROOM_MESSAGE, event.getUser(), event.getAddress(), event.getTimestamp(), event.getRoom(),
+					event.getText());
+		case JOINED :
+			return encode(JOINED, event.getUser(), event.getAddress(), -1, null, event.getRoom());
+		case LEFT :
+			return encode(LEFT, event.getUser(), event.getAddress(), -1, null, event.getRoom());
+		case ROSTER :
+			return roster(event);
+		case PRESENCE :
+			return presence(event);
+		case LINE :
+			return encode(LINE, null, null, -1, null, event.getText());
+		case PING :
+			return encode(PING, null, null, -1, null, "");
+		case PONG :
+			return encode(PONG, null, null, -1, null, "");
+		case ERROR :
+			return encode(ERROR, null, null, -1, null, event.getText());
+		default :
+			return null;
+		}
+	}
+
+	/**
+	 * Encode une trame dans un tableau de la BufferPool. Les champs NULL (ou une date ngative)
+	 * sont omis.
+	 */
+	private static Frame encode(int type, String user, String address, long timestamp, String room, String rest) {
+
+		CharsetEncoder encoder = ENCODER.get();
+
+		// La taille maximale : longueur, type, champs prfixs, date, salon, dernier champ
+		int maxLength = 4 + 1 + fieldLength(user) + fieldLength(address) + 8 + fieldLength(room) + 3 * rest.length();
+
+		byte[] array = BufferPool.acquire(maxLength);
+		ByteBuffer out = ByteBuffer.wrap(array);
+
+		// La longueur sera crite  la fin
+		out.position(4);
+		out.put((byte) type);
+		if (user != null) putField(encoder, out, user);
+		if (address != null) putField(encoder, out, address);
+		if (timestamp >= 0) out.putLong(timestamp);
+		if (room != null) putField(encoder, out, room);
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(rest), out, true);
+		encoder.flush(out);
+
+		int length = out.position();
+		out.putInt(0, length - 4);
+		return Frame.wrap(array, length);
+
+	}
+
+	/**
+	 * Encode une page de la liste des clients.
+	 */
+	private static Frame roster(ServerEvent event) {
+
+		CharsetEncoder encoder = ENCODER.get();
+		ServerEvent[] entries = event.getEntries();
+
+		// La taille maximale : longueur, type, page, pages, nombre, puis les clients
+		int maxLength = 4 + 1 + 2 + 2 + 2;
+		for (ServerEvent entry : entries) {
+			maxLength += fieldLength(entry.getUser()) + fieldLength(entry.getAddress());
+		}
+
+		byte[] array = BufferPool.acquire(maxLength);
+		ByteBuffer out = ByteBuffer.wrap(array);
+
+		// La longueur sera crite  la fin
+		out.position(4);
+		out.put((byte) ROSTER);
+		out.putShort((short) event.getPage());
+		out.putShort((short) event.getPages());
+		out.putShort((short) entries.length);
+		for (ServerEvent entry : entries) {
+			putField(encoder, out, entry.getUser());
+			putField(encoder, out, entry.getAddress());
+		}
+
+		int length = out.position();
+		out.putInt(0, length - 4);
+		return Frame.wrap(array, length);
+
+	}
+
+	/**
+	 * Encode des connexions et des dconnexions regroupes.
+	 */
+	private static Frame presence(ServerEvent event) {
+
+		CharsetEncoder encoder = ENCODER.get();
+		ServerEvent[] changes = event.getEntries();
+
+		// La taille maximale : longueur, type, nombre, puis les changements
+		int maxLength = 4 + 1 + 2;
+		for (ServerEvent change : changes) {
+			maxLength += 1 + fieldLength(change.getUser()) + fieldLength(change.getAddress());
+		}
+
+		byte[] array = BufferPool.acquire(maxLength);
+		ByteBuffer out = ByteBuffer.wrap(array);
+
+		// La longueur sera crite  la fin
+		out.position(4);
+		out.put((byte) PRESENCE);
+		out.putShort((short) changes.length);
+		for (ServerEvent change : changes) {
+			out.put((byte) (change.getType() == ServerEvent.Type.CONNECTED ? CONNECTED : DISCONNECTED));
+			putField(encoder, out, change.getUser());
+			putField(encoder, out, change.getAddress());
+		}
+
+		int length = out.position();
+		out.putInt(0, length - 4);
+		return Frame.wrap(array, length);
+
+	}
+
+	/**
+	 * Renvoie la taille maximale d'un champ prfix par sa longueur, une fois encod.
+	 */
+	private static int fieldLength(String value) {
+		return value == null ? 0 : 2 + 3 * Math.min(value.length(), MAX_FIELD_CHARS);
+	}
+
+	/**
+	 * Ecrit un texte prfix par sa longueur en octets.
+	 */
+	private static void putField(CharsetEncoder encoder, ByteBuffer out, String value) {
+		if (value.length() > MAX_FIELD_CHARS) {
+			value = value.substring(0, MAX_FIELD_CHARS);
+		}
+		int start = out.position();
+		out.position(start + 2);
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(value), out, true);
+		encoder.flush(out);
+		out.putShort(start, (short) (out.position() - start - 2));
+	}
+
+}
@@ -1,76 +1,265 @@
 package exia.ipc.server.protocol;
 
-import java.util.Date;
-
 import exia.ipc.server.ChatServer;
 import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.Frame;
 import exia.ipc.server.LogWriter;
+import exia.ipc.server.ServerEvent;
 
 public class ChatServerProtocol implements IServerProtocol {
 	
-	private ChatServer server;
+	/**
+	 * La longueur maximale du nom d'un salon.
+	 */
+	public static final int MAX_ROOM_NAME = 64;
+	
+	/**
+	 * Taille maximale d'une ligne, en octets. Au del, le client est dconnect.
+	 */
+	public static final int MAX_LINE_LENGTH = 65536;
 	
+	private ChatServer server;
+
+	/**
+	 * Le protocole binaire, pour les clients qui le demandent. Il est fabriqu au premier besoin.
+	 */
+	private BinaryServerProtocol binaryProtocol;
+
 	@Override
 	public void setServer(ChatServer server) {
 		this.server = server;
 	}
 
+	@Override
+	public IServerProtocol negotiate(int firstByte) {
+		// Les clients du protocole binaire commencent par un octet qui n'est pas de l'ASCII
+		if (firstByte != BinaryServerProtocol.MAGIC) {
+			return this;
+		}
+		synchronized (this) {
+			if (binaryProtocol == null) {
+				binaryProtocol = new BinaryServerProtocol();
+				binaryProtocol.setServer(server);
+			}
+			return binaryProtocol;
+		}
+	}
+
 	@Override
 	public String processClientInput(ClientSocketThread client, String inputLine) {
 		
 		// Debug
 		// System.out.println("Le client " + client + " a envoy: " + inputLine);
 		
-		// On explose la chane avec les espaces. On cherche  isoler le
-		// premier mot (qui indique la commande) et le reste de la ligne.
-		String[] tokens = inputLine.trim().split("\\s+", 2);
+		// On cherche  isoler le premier mot (qui indique la commande) et le reste de la
+		// ligne. On ne travaille que sur des positions : ni regex, ni tableau, ni majuscules.
+		//String[] tokens = inputLine.trim().split("\\s+", 2);
+		int verbStart = CommandTokenizer.skipSpaces(inputLine, 0);
+		int verbEnd = CommandTokenizer.endOfToken(inputLine, verbStart);
+		int argStart = CommandTokenizer.skipSpaces(inputLine, verbEnd);
+		int argEnd = CommandTokenizer.trimEnd(inputLine, argStart);
+		
+		// Les battements de coeur n'ont pas d'argument. Toute donne reue compte comme une
+		// activit : le PONG n'a rien d'autre  faire, et on rpond au PING du client.
+		if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "PONG")) {
+			return null;
+		}
+		if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "PING")) {
+			client.write(ServerEvent.PONG);
+			return null;
+		}
 		
 		// Message vide
-		if (tokens.length < 2) {
-			LogWriter.getInstance().writeError("Message invalide de " + client + " : " + inputLine);
+		if (argStart >= argEnd) {
+			client.recordParseError();
+			LogWriter.getInstance().writeWarning("Message invalide de {} : {}", client, inputLine);
 			return null;
 		}
 		
 		// On value le type de fonction
-		switch (tokens[0].toUpperCase()) {
 		
 		// Dans le cas o le client donne pour la premire fois son nom, en dbut
 		// de communication.
-		case "HELLO" :
-			// On associe le nom au socket
-			client.setUserName(tokens[1]);
-			// On propage l'information qu'un client est connect
-			server.broadcast(sendClientConnected(client));
-			break;
+		if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "HELLO")) {
+			hello(client, inputLine.substring(argStart, argEnd));
+		}
 		
 		// Dans le cas o le client envoie un message
-		case "MSG" :
+		else if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "MSG")) {
+			// Le client envoie trop de messages : seul lui est prvenu, rien n'est diffus
+			if (!client.acquireMessage()) return null;
 			// On broadcast  tous les clients
-			client.notifyMessageReceived(client, tokens[1]);
-			break;
-			
-		default :
-			LogWriter.getInstance().writeError("Commande invalide " + tokens[0] + " envoy par " + client);
-			break;
-			
+			client.notifyMessageReceived(client, inputLine.substring(argStart, argEnd));
+		}
+		
+		// Dans le cas o le client envoie un message priv : DM destinataire message
+		else if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "DM")) {
+			if (!client.acquireMessage()) return null;
+			int recipientEnd = CommandTokenizer.endOfToken(inputLine, argStart);
+			int textStart = CommandTokenizer.skipSpaces(inputLine, recipientEnd);
+			if (textStart >= argEnd) {
+				client.recordParseError();
+				LogWriter.getInstance().writeWarning("Message priv vide de {} : {}", client, inputLine);
+				return null;
+			}
+			client.notifyDirectMessageReceived(client, inputLine.substring(argStart, recipientEnd),
+					inputLine.substring(textStart, argEnd));
+		}
+		
+		// Dans le cas o le client entre dans un salon, ou le quitte
+		else if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "JOIN")) {
+			join(client, inputLine.substring(argStart, argEnd));
+		}
+		else if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "LEAVE")) {
+			leave(client, inputLine.substring(argStart, argEnd));
+		}
+		
+		// Dans le cas o le client envoie un message dans un salon : ROOMMSG salon message
+		else if (CommandTokenizer.isVerb(inputLine, verbStart, verbEnd, "ROOMMSG")) {
+			if (!client.acquireMessage()) return null;
+			int roomEnd = CommandTokenizer.endOfToken(inputLine, argStart);
+			int textStart = CommandTokenizer.skipSpaces(inputLine, roomEnd);
+			if (textStart >= argEnd) {
+				client.recordParseError();
+				LogWriter.getInstance().writeWarning("Message de salon vide de {} : {}", client, inputLine);
+				return null;
+			}
+			roomMessage(client, inputLine.substring(argStart, roomEnd), inputLine.substring(textStart, argEnd));
+		}
+		
+		else {
+			client.recordParseError();
+			LogWriter.getInstance().writeWarning("Commande invalide {} envoye par {}",
+					inputLine.substring(verbStart, verbEnd), client);
 		}
 		
 		return null;
 	}
 
-	@Override
-	public String sendMessage(ClientSocketThread from, String log) {
-		return String.format("MSG %s %s %s %s", from.getUserName(), from.getAddress(), new Date().getTime(), log);
+	/**
+	 * Le client vient de donner son nom, en dbut de communication.
+	 */
+	protected void hello(ClientSocketThread client, String userName) {
+		// Le client peut renvoyer HELLO : il a dj reu l'historique la premire fois
+		boolean first = !client.hasUserName();
+		// On associe le nom au socket
+		client.setUserName(userName);
+		// On propage l'information qu'un client est connect
+		server.announceConnected(client);
+		// Et on lui envoie les derniers messages
+		if (first) server.sendHistory(client);
 	}
 
-	@Override
-	public String sendClientConnected(ClientSocketThread client) {
-		return String.format("CONNECTED %s %s", client.getUserName(), client.getAddress());
+	/**
+	 * Le client demande  entrer dans un salon.
+	 */
+	protected void join(ClientSocketThread client, String room) {
+		if (!isRoomName(room)) {
+			client.recordParseError();
+			LogWriter.getInstance().writeWarning("Nom de salon invalide envoy par {} : {}", client, room);
+			return;
+		}
+		server.joinRoom(client, room);
+	}
+
+	/**
+	 * Le client demande  quitter un salon.
+	 */
+	protected void leave(ClientSocketThread client, String room) {
+		server.leaveRoom(client, room);
+	}
+
+	/**
+	 * Le client envoie un message dans un salon.
+	 */
+	protected void roomMessage(ClientSocketThread client, String room, String log) {
+		client.notifyRoomMessageReceived(client, room, log);
+	}
+
+	/**
+	 * Un nom de salon est un seul mot, pour tenir dans une ligne du protocole texte.
+	 */
+	protected static boolean isRoomName(String room) {
+		if (room.isEmpty() || room.length() > MAX_ROOM_NAME) return false;
+		return CommandTokenizer.endOfToken(room, 0) == room.length();
 	}
 
+	// Les lignes sont construites par simple concatnation : String.format() doit analyser
+	// son motif  chaque appel, ce qui est coteux pour des lignes aussi simples.
+
 	@Override
-	public String sendClientDisconnected(ClientSocketThread client) {
-		return String.format("DISCONNECTED %s %s", client.getUserName(), client.getAddress());
+	public Frame encode(ServerEvent event) {
+		switch (event.getType()) {
+		case MESSAGE :
+			return Frame.text("MSG " + oneLine(event.getUser()) + " " + event.getAddress() + " " + event.getTimestamp()
+				+ " " + oneLine(event.getText()));
+		case CONNECTED :
+			return Frame.text("CONNECTED " + oneLine(event.getUser()) + " " + event.getAddress());
+		case DISCONNECTED :
+			return Frame.text("DISCONNECTED " + oneLine(event.getUser()) + " " + event.getAddress());
+		case DIRECT_MESSAGE :
+			return Frame.text("DM " + oneLine(event.getUser()) + " " + event.getAddress() + " " + event.getTimestamp()
+				+ " " + oneLine(event.getText()));
+		case ROOM_MESSAGE :
+			return Frame.text("ROOMMSG " + oneLine(event.getUser()) + " " + event.getAddress() + " " + event.getTimestamp()
+				+ " " + event.getRoom() + " " + oneLine(event.getText()));
+		case JOINED :
+			return Frame.text("JOINED " + oneLine(event.getUser()) + " " + event.getAddress() + " " + event.getRoom());
+		case LEFT :
+			return Frame.text("LEFT " + oneLine(event.getUser()) + " " + event.getAddress() + " " + event.getRoom());
+		case ROSTER :
+			return Frame.text(roster(event));
+		case PRESENCE :
+			return Frame.text(presence(event));
+		case LINE :
+			return Frame.text(event.getText());
+		case PING :
+			return Frame.text("PING");
+		case PONG :
+			return Frame.text("PONG");
+		case ERROR :
+			return Frame.text("ERROR " + oneLine(event.getText()));
+		// Le protocole texte n'a pas de salut
+		default :
+			return null;
+		}
+	}
+
+	/**
+	 * Une page de la liste des clients, sur une seule ligne : ROSTER page/pages nom adresse nom adresse...
+	 */
+	private static String roster(ServerEvent event) {
+		ServerEvent[] entries = event.getEntries();
+		StringBuilder line = new StringBuilder(16 + entries.length * 32);
+		line.append("ROSTER ").append(event.getPage()).append('/').append(event.getPages());
+		for (ServerEvent entry : entries) {
+			line.append(' ').append(oneLine(entry.getUser())).append(' ').append(entry.getAddress());
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Des connexions et des dconnexions regroupes, sur une seule ligne : PRESENCE +nom adresse
+	 * -nom adresse... Le signe indique une connexion (+) ou une dconnexion (-).
+	 */
+	private static String presence(ServerEvent event) {
+		ServerEvent[] changes = event.getEntries();
+		StringBuilder line = new StringBuilder(16 + changes.length * 32);
+		line.append("PRESENCE");
+		for (ServerEvent change : changes) {
+			line.append(' ').append(change.getType() == ServerEvent.Type.CONNECTED ? '+' : '-')
+				.append(oneLine(change.getUser())).append(' ').append(change.getAddress());
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Les clients du protocole binaire peuvent envoyer des retours  la ligne, qui couperaient
+	 * la ligne en deux pour les clients texte : on les remplace par des espaces.
+	 */
+	private static String oneLine(String text) {
+		if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+		return text.replace('\n', ' ').replace('\r', ' ');
 	}
 
 }
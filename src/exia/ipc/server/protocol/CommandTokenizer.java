@@ -0,0 +1,64 @@
+package exia.ipc.server.protocol;
+
+/**
+ * Dcoupage des lignes de commande envoyes par les clients, sans expression rgulire ni
+ * allocation : on ne manipule que des positions dans la ligne.
+ *
+ * Une ligne a la forme "VERBE arguments". Les espaces sont tous les caractres infrieurs ou
+ * gaux  ' ', comme pour String.trim().
+ */
+public final class CommandTokenizer {
+
+	/**
+	 * Classe utilitaire.
+	 */
+	private CommandTokenizer() {
+	}
+
+	/**
+	 * Renvoie la position du premier caractre qui n'est pas un espace,  partir de from.
+	 */
+	public static int skipSpaces(CharSequence line, int from) {
+		int length = line.length();
+		while (from < length && line.charAt(from) <= ' ') from++;
+		return from;
+	}
+
+	/**
+	 * Renvoie la position qui suit le mot commenant  from.
+	 */
+	public static int endOfToken(CharSequence line, int from) {
+		int length = line.length();
+		while (from < length && line.charAt(from) > ' ') from++;
+		return from;
+	}
+
+	/**
+	 * Renvoie la fin de la ligne sans ses espaces finaux, sans descendre sous from.
+	 */
+	public static int trimEnd(CharSequence line, int from) {
+		int end = line.length();
+		while (end > from && line.charAt(end - 1) <= ' ') end--;
+		return end;
+	}
+
+	/**
+	 * Compare un mot de la ligne  un verbe, sans tenir compte de la casse.
+	 *
+	 * @param line La ligne.
+	 * @param start Le dbut du mot.
+	 * @param end La fin du mot.
+	 * @param verb Le verbe attendu, en majuscules ASCII.
+	 * @return TRUE si le mot est ce verbe.
+	 */
+	public static boolean isVerb(CharSequence line, int start, int end, String verb) {
+		if (end - start != verb.length()) return false;
+		for (int i = 0; i < verb.length(); i++) {
+			char c = line.charAt(start + i);
+			if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+			if (c != verb.charAt(i)) return false;
+		}
+		return true;
+	}
+
+}
@@ -2,6 +2,8 @@ package exia.ipc.server.protocol;
 
 import exia.ipc.server.ChatServer;
 import exia.ipc.server.ClientSocketThread;
+import exia.ipc.server.Frame;
+import exia.ipc.server.ServerEvent;
 
 public interface IServerProtocol {
 
@@ -12,6 +14,15 @@ public interface IServerProtocol {
 	 */
 	public void setServer(ChatServer server);
 	
+	/**
+	 * Choisit le protocole d'un nouveau client, d'aprs le premier octet qu'il a envoy.
+	 * Plusieurs protocoles peuvent ainsi cohabiter sur le mme port.
+	 * 
+	 * @param firstByte Le premier octet envoy par le client.
+	 * @return Le protocole  utiliser pour ce client (ventuellement celui-ci).
+	 */
+	public IServerProtocol negotiate(int firstByte);
+
 	/**
 	 * Quand un client envoie une commande.
 	 * 
@@ -22,28 +33,12 @@ public interface IServerProtocol {
 	public String processClientInput(ClientSocketThread client, String inputLine);
 
 	/**
-	 * Renvoie le message  envoyer aux clients quand on souhaite diffuser un message provenant d'un client.
-	 * 
-	 * @param socket Le client qui a envoy le message.
-	 * @param log Le message.
-	 * @return Le message  propager  tous les clients.
-	 */
-	public String sendMessage(ClientSocketThread socket, String log);
-
-	/**
-	 * Renvoie le message  envoyer aux clients quand un client vient de se connecter.
-	 * 
-	 * @param clientThread Le client qui vient de se connecter.
-	 * @return Le message  propager  tous les clients.
-	 */
-	public String sendClientConnected(ClientSocketThread clientThread);
-
-	/**
-	 * Renvoie le message  envoyer aux clients quand un client vient de se dconnecter.
+	 * Encode un vnement pour les clients qui parlent ce protocole. La trame est encode une
+	 * seule fois, puis crite  tous les destinataires.
 	 * 
-	 * @param clientThread Le client qui vient de se dconnecter.
-	 * @return Le message  propager  tous les clients.
+	 * @param event L'vnement  envoyer.
+	 * @return La trame, dont l'appelant possde une rfrence, ou NULL s'il n'y a rien  envoyer.
 	 */
-	public String sendClientDisconnected(ClientSocketThread socket);
+	public Frame encode(ServerEvent event);
 
 }